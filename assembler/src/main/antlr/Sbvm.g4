@@ -3,14 +3,17 @@ grammar Sbvm;
 // A program is a sequence of lines
 program: line*;
 
-// A line is either a label, or an instruction, followed by a newline
-line: (label | instruction | emptyLine) NEWLINE;
+// A line is either a label, an export, or an instruction, followed by a newline
+line: (label | export | instruction | emptyLine) NEWLINE;
 
 emptyLine: ;
 
 // Labels are simply identifiers, followed by colons
 label: IDENTIFIER ':';
 
+// Exports make a label visible to the other modules; they generate no code
+export: 'EXPORT' IDENTIFIER;
+
 // An instruction can be of many kinds
 instruction: halt |
              push |
@@ -31,7 +34,15 @@ instruction: halt |
              load |
              store |
              call |
-             ret
+             ret |
+             mload |
+             mstore |
+             mcopy |
+             mfill |
+             vadd |
+             vmul |
+             visgt |
+             vsum
              ;
 halt: 'HALT';
 push: 'PUSH' NUMBER;
@@ -53,6 +64,14 @@ load: 'LOAD' NUMBER;
 store: 'STORE' NUMBER;
 call: 'CALL' IDENTIFIER;
 ret: 'RET';
+mload: 'MLOAD';
+mstore: 'MSTORE';
+mcopy: 'MCOPY';
+mfill: 'MFILL';
+vadd: 'VADD';
+vmul: 'VMUL';
+visgt: 'VISGT';
+vsum: 'VSUM';
 
 
 IDENTIFIER: [a-zA-Z][a-zA-Z0-9_]*;
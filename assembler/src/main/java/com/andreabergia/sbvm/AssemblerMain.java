@@ -1,24 +1,213 @@
 package com.andreabergia.sbvm;
 
-import org.antlr.v4.runtime.ANTLRFileStream;
+import com.google.common.collect.ImmutableMap;
 
 import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class AssemblerMain {
+    private static final String OPTIMIZE_FLAG = "--optimize";
+    private static final String PROFILE_FLAG = "--profile";
+    private static final String EMIT_FLAG = "--emit";
+    private static final String OBJECT_FLAG = "--object";
+    private static final String BINARY_FLAG = "--binary";
+    private static final String LINK_FLAG = "--link";
+    private static final String MEMORY_FLAG = "--memory";
+    private static final String MAP_FLAG = "--map";
+    private static final String CACHE_FLAG = "--cache";
+    private static final long CACHE_MEMORY_WORDS = 1 << 20;
+    private static final long CACHE_DISK_BYTES = 256 << 20;
+
+    private static AssemblyCache cache; // Null without the cache option
+
     public static void main(String[] args) throws IOException {
-        if (args.length != 1) {
-            System.err.println("Please give the file to parse as the only argument!");
+        if (args.length > 2 && args[0].equals(CACHE_FLAG)) {
+            cache = new AssemblyCache(CACHE_MEMORY_WORDS, Paths.get(args[1]), CACHE_DISK_BYTES);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        String mode = args.length > 1 ? args[0] : "";
+        if (args.length == 1) {
+            runProgram(args[0], false);
+        } else if (args.length == 2 && mode.equals(OPTIMIZE_FLAG)) {
+            runProgram(args[1], true);
+        } else if (args.length == 2 && mode.equals(PROFILE_FLAG)) {
+            profileProgram(args[1]);
+        } else if (args.length == 2 && mode.equals(BINARY_FLAG)) {
+            runBinaryProgram(args[1]);
+        } else if (args.length == 3 && mode.equals(EMIT_FLAG)) {
+            emitBinaryProgram(args[1], args[2]);
+        } else if (args.length == 3 && mode.equals(OBJECT_FLAG)) {
+            emitObjectModule(args[1], args[2]);
+        } else if (args.length == 3 && mode.equals(MEMORY_FLAG)) {
+            runProgram(args[2], Memory.allocate(Integer.parseInt(args[1])));
+        } else if (args.length == 3 && mode.equals(MAP_FLAG)) {
+            Memory memory = Memory.map(Paths.get(args[1]));
+            runProgram(args[2], memory);
+            memory.flush();
+        } else if (args.length >= 2 && mode.equals(LINK_FLAG)) {
+            linkProgram(Arrays.copyOfRange(args, 1, args.length));
+        } else {
+            System.err.println("Usage: AssemblerMain [" + OPTIMIZE_FLAG + " | " + PROFILE_FLAG + "] file");
+            System.err.println("       AssemblerMain " + EMIT_FLAG + " output file");
+            System.err.println("       AssemblerMain " + OBJECT_FLAG + " objectFile file");
+            System.err.println("       AssemblerMain " + BINARY_FLAG + " binaryFile");
+            System.err.println("       AssemblerMain " + LINK_FLAG + " mainFile [moduleFile | objectFile...]");
+            System.err.println("       AssemblerMain " + MEMORY_FLAG + " words file");
+            System.err.println("       AssemblerMain " + MAP_FLAG + " memoryFile file");
+            System.err.println("Any of them can start with " + CACHE_FLAG + " directory, "
+                    + "to reuse the sources assembled by the previous runs");
+            System.exit(-1);
+        }
+        if (cache != null) {
+            System.out.println("Assembly cache: " + cache.getStats());
+        }
+    }
+
+    /**
+     * Assembles a file as a program, with its labels, using the cache if there is one.
+     */
+    private static ObjectModule assembleProgram(String fileName) throws IOException {
+        Path file = Paths.get(fileName);
+        String source = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        // A cache without memory nor directory just assembles the source
+        AssemblyCache programCache = cache != null ? cache : new AssemblyCache(0);
+        return programCache.generateProgramModule(file.getFileName().toString(), source);
+    }
+
+    /**
+     * Assembles a program and writes it, with its labels, in the binary format.
+     */
+    private static void emitBinaryProgram(String outputFileName, String fileName) throws IOException {
+        ObjectModule program = assembleProgram(fileName);
+        BinaryProgram.write(Paths.get(outputFileName), program.getCode(), program.getLabels(),
+                ImmutableMap.of("source", program.getName()));
+        System.out.println("Written " + program.size() + " words to " + outputFileName);
+    }
+
+    /**
+     * Assembles a file as a module, and writes it to an object file, to be linked later.
+     */
+    private static void emitObjectModule(String outputFileName, String fileName) throws IOException {
+        Path output = Paths.get(outputFileName);
+        String source = new String(Files.readAllBytes(Paths.get(fileName)), StandardCharsets.UTF_8);
+        ObjectModule module = ModuleAssembler.assembleModule(output.getFileName().toString(), source, cache);
+        BinaryProgram.write(output, module, ImmutableMap.of("source", Paths.get(fileName).getFileName().toString()));
+        System.out.println("Written " + module.size() + " words, exporting " + module.getExports()
+                + ", to " + outputFileName);
+    }
+
+    /**
+     * Assembles each source file as a module, loads each object file, links them, and runs the result.
+     */
+    private static void linkProgram(String[] fileNames) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String fileName : fileNames) {
+            files.add(Paths.get(fileName));
+        }
+        Linker.LinkedProgram linkedProgram;
+        try {
+            linkedProgram = ModuleAssembler.assemble(files, cache);
+        } catch (UnresolvedSymbolsException e) {
+            for (String unresolvedSymbol : e.getUnresolvedSymbols()) {
+                System.err.println(unresolvedSymbol);
+            }
             System.exit(-1);
+            return;
         }
+        System.out.println("Modules: " + linkedProgram.getModuleAddresses());
+        runProgram(linkedProgram.toArray(), false);
+    }
+
+    private static void runBinaryProgram(String fileName) throws IOException {
+        runProgram(BinaryProgram.load(Paths.get(fileName)).toArray(), false);
+    }
 
-        runProgram(args[0]);
+    /**
+     * Runs the program as written, without optimizing it, so that the addresses of the profile match the labels.
+     */
+    private static void profileProgram(String fileName) throws IOException {
+        ObjectModule program = assembleProgram(fileName);
+        CPU cpu = new CPU(program.getCode());
+        ExecutionProfile profile = cpu.runProfiled();
+        printState(cpu);
+        System.out.println("Profile:");
+        System.out.println(profile.format(program.getLabels()));
     }
 
-    private static void runProgram(String fileName) throws IOException {
-        int[] generatedProgram = ProgramVisitor.generateProgram(new ANTLRFileStream(fileName));
-        CPU cpu = new CPU(generatedProgram);
+    private static void runProgram(String fileName, boolean optimize) throws IOException {
+        runProgram(assembleFast(fileName), optimize);
+    }
+
+    /**
+     * Assembles a file without its labels: with the cache if there is one, or else with the streaming assembler.
+     */
+    private static int[] assembleFast(String fileName) throws IOException {
+        if (cache != null) {
+            return cache.generateProgram(Paths.get(fileName));
+        }
+        try (Reader reader = Files.newBufferedReader(Paths.get(fileName), StandardCharsets.UTF_8)) {
+            return StreamingAssembler.assemble(reader);
+        }
+    }
+
+    /**
+     * Runs a program with the given linear memory, without optimizing it.
+     */
+    private static void runProgram(String fileName, Memory memory) throws IOException {
+        CPU cpu;
+        int[] program = assembleFast(fileName);
+        try {
+            cpu = new CPU(Optimizer.fuse(Verifier.verify(program)).getProgram());
+        } catch (InvalidProgramException e) {
+            cpu = new CPU(program);
+        }
+        cpu.setMemory(memory);
+        runProgram(cpu);
+    }
+
+    private static void runProgram(int[] generatedProgram, boolean optimize) {
+        VerifiedProgram verifiedProgram;
+        try {
+            verifiedProgram = Verifier.verify(generatedProgram);
+        } catch (InvalidProgramException e) {
+            // Let the CPU run it with all its checks, so that it reports the problem where it happens
+            runProgram(new CPU(generatedProgram));
+            return;
+        }
+
+        if (optimize) {
+            OptimizationReport inliningReport = Optimizer.inline(verifiedProgram, Optimizer.DEFAULT_INLINING_THRESHOLD);
+            System.out.println("Inlining report:");
+            System.out.println(inliningReport);
+            verifiedProgram = inliningReport.getProgram();
+
+            OptimizationReport report = Optimizer.optimize(verifiedProgram);
+            System.out.println("Optimizer report:");
+            System.out.println(report);
+            verifiedProgram = report.getProgram();
+
+            OptimizationReport layoutReport = Optimizer.layout(verifiedProgram);
+            System.out.println("Layout report:");
+            System.out.println(layoutReport);
+            verifiedProgram = layoutReport.getProgram();
+        }
+        // The superinstructions are always used, since they make any program faster
+        runProgram(new CPU(Optimizer.fuse(verifiedProgram).getProgram()));
+    }
+
+    private static void runProgram(CPU cpu) {
         cpu.run();
+        printState(cpu);
+    }
 
+    private static void printState(CPU cpu) {
         System.out.println("After running, the cpu stack contains: " + cpu.getStack());
         System.out.println("After running, the cpu local frame contains: " + cpu.getCurrentFrame().getVariables());
     }
@@ -0,0 +1,323 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.hash.Hashing;
+import org.antlr.v4.runtime.ANTLRInputStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A cache in front of {@link ProgramVisitor}, so that assembling the same source again, as a program or as
+ * a module to be linked, does not lex nor parse it.
+ * <p>
+ * Programs and modules are keyed by a 128 bits hash of the source and of {@link #ASSEMBLER_VERSION}. They are
+ * kept in memory, up to a maximum number of words, and optionally in a directory, as object files and
+ * up to a maximum number of bytes; both levels evict the least recently used entries first.
+ * The memory is a single LRU, so an entry can use all of it.
+ * The hash is not a cryptographic one, since it must be much faster than assembling: the cache
+ * directory must not be writable by untrusted users.
+ * <p>
+ * The cache can be used by many threads, and the directory can be shared by many processes: files are
+ * written to a temporary name and atomically renamed, so readers never see a partial file, and files
+ * that cannot be read are treated as misses.
+ */
+public final class AssemblyCache {
+    /**
+     * Identifies the assembler's output: change it whenever the same source would be assembled differently,
+     * so that programs cached by older versions are not used anymore.
+     */
+    public static final String ASSEMBLER_VERSION = "2";
+
+    private static final String EXTENSION = ModuleAssembler.OBJECT_EXTENSION;
+    private static final byte PROGRAM = 0;
+    private static final byte MODULE = 1;
+
+    /**
+     * Hit and miss counters, since the creation of the cache.
+     */
+    public static final class Stats {
+        private final long memoryHits;
+        private final long diskHits;
+        private final long misses;
+        private final long evictions;
+
+        private Stats(long memoryHits, long diskHits, long misses, long evictions) {
+            this.memoryHits = memoryHits;
+            this.diskHits = diskHits;
+            this.misses = misses;
+            this.evictions = evictions;
+        }
+
+        public long getMemoryHits() {
+            return memoryHits;
+        }
+
+        public long getDiskHits() {
+            return diskHits;
+        }
+
+        /**
+         * Returns how many times a source had to be assembled.
+         */
+        public long getMisses() {
+            return misses;
+        }
+
+        /**
+         * Returns how many programs have been evicted, from the memory or from the disk.
+         */
+        public long getEvictions() {
+            return evictions;
+        }
+
+        public double getHitRate() {
+            long requests = memoryHits + diskHits + misses;
+            return requests == 0 ? 0 : (double) (memoryHits + diskHits) / requests;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("memory hits: %d, disk hits: %d, misses: %d, evictions: %d, hit rate: %.1f%%",
+                    memoryHits, diskHits, misses, evictions, 100 * getHitRate());
+        }
+    }
+
+    private final Cache<String, ObjectModule> memory;
+    private final Path directory; // Null for a memory only cache
+    private final long maxDiskBytes;
+    private final AtomicLong memoryHits = new AtomicLong();
+    private final AtomicLong diskHits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Creates a cache that keeps up to the given number of words in memory, and nothing on disk.
+     */
+    public AssemblyCache(long maxMemoryWords) {
+        this(maxMemoryWords, null, 0);
+    }
+
+    /**
+     * Creates a cache that keeps up to the given number of words in memory, and up to the given
+     * number of bytes in the given directory, which is created if it does not exist.
+     */
+    public AssemblyCache(long maxMemoryWords, Path directory, long maxDiskBytes) {
+        checkArgument(maxMemoryWords >= 0, "Invalid memory size %s", maxMemoryWords);
+        checkArgument(maxDiskBytes >= 0, "Invalid disk size %s", maxDiskBytes);
+        this.memory = CacheBuilder.newBuilder()
+                // Each segment gets an equal share of the weight: with more than one, the programs larger
+                // than a share would be evicted as soon as they are added
+                .concurrencyLevel(1)
+                .maximumWeight(maxMemoryWords)
+                .weigher((String key, ObjectModule module) -> module.size())
+                .removalListener(notification -> {
+                    if (notification.getCause() == RemovalCause.SIZE) {
+                        evictions.incrementAndGet();
+                    }
+                })
+                .build();
+        this.directory = directory;
+        this.maxDiskBytes = maxDiskBytes;
+        if (directory != null) {
+            try {
+                Files.createDirectories(directory);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot create the cache directory " + directory, e);
+            }
+        }
+    }
+
+    /**
+     * Returns the assembled program, from the cache if possible.
+     */
+    public int[] generateProgram(String source) throws InvalidProgramException {
+        return get(PROGRAM, source).getCode().clone();
+    }
+
+    /**
+     * Reads and assembles the given file, using the cache if possible.
+     */
+    public int[] generateProgram(Path sourceFile) throws IOException, InvalidProgramException {
+        return generateProgram(new String(Files.readAllBytes(sourceFile), StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Returns the assembled program as a module without imports, so that its labels can be read too.
+     */
+    public ObjectModule generateProgramModule(String name, String source) throws InvalidProgramException {
+        return withName(get(PROGRAM, source), name);
+    }
+
+    /**
+     * Returns the source assembled as a module to be linked, like
+     * {@link ModuleAssembler#assembleModule(String, String)}, from the cache if possible.
+     */
+    public ObjectModule generateObjectModule(String name, String source) throws InvalidProgramException {
+        return withName(get(MODULE, source), name);
+    }
+
+    private ObjectModule get(byte kind, String source) throws InvalidProgramException {
+        String key = Hashing.murmur3_128().newHasher()
+                .putString(ASSEMBLER_VERSION, StandardCharsets.UTF_8)
+                .putByte(kind)
+                .putString(source, StandardCharsets.UTF_8)
+                .hash().toString();
+
+        ObjectModule module = memory.getIfPresent(key);
+        if (module != null) {
+            memoryHits.incrementAndGet();
+            return module;
+        }
+
+        module = readFromDisk(key);
+        if (module != null) {
+            diskHits.incrementAndGet();
+        } else {
+            misses.incrementAndGet();
+            module = assemble(kind, source);
+            writeToDisk(key, module);
+        }
+        memory.put(key, module);
+        return module;
+    }
+
+    private static ObjectModule assemble(byte kind, String source) throws InvalidProgramException {
+        ProgramVisitor programVisitor = ProgramVisitor.visitProgram(new ANTLRInputStream(source));
+        if (kind == MODULE) {
+            return programVisitor.generateObjectModule("");
+        }
+        int[] program = programVisitor.generateProgram();
+        return new ObjectModule("", program, programVisitor.getLabels(), Collections.emptySet(), new int[0],
+                Collections.emptyMap());
+    }
+
+    /**
+     * Returns a copy of the cached module with the given name, since the same source can be used by many modules.
+     */
+    private static ObjectModule withName(ObjectModule module, String name) {
+        return new ObjectModule(name, module.getCode(), module.getLabels(), module.getExports(),
+                module.getRelocations(), module.getImports());
+    }
+
+    public Stats getStats() {
+        return new Stats(memoryHits.get(), diskHits.get(), misses.get(), evictions.get());
+    }
+
+    /**
+     * Removes all the programs from the memory; the ones on disk are kept.
+     */
+    public void clearMemory() {
+        memory.invalidateAll();
+    }
+
+    private ObjectModule readFromDisk(String key) {
+        if (directory == null) {
+            return null;
+        }
+        Path file = directory.resolve(key + EXTENSION);
+        try {
+            ObjectModule module = BinaryProgram.load(file).toObjectModule("");
+            // Marks the file as recently used, for the eviction
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+            return module;
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException | InvalidProgramException e) {
+            // Another process may have evicted the file in the meantime, or left a corrupted one
+            deleteQuietly(file);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, ObjectModule module) {
+        if (directory == null) {
+            return;
+        }
+        try {
+            Path temporaryFile = Files.createTempFile(directory, key, ".tmp");
+            try {
+                BinaryProgram.write(temporaryFile, module,
+                        Collections.singletonMap("assemblerVersion", ASSEMBLER_VERSION));
+                Files.move(temporaryFile, directory.resolve(key + EXTENSION), StandardCopyOption.ATOMIC_MOVE,
+                        StandardCopyOption.REPLACE_EXISTING);
+            } finally {
+                deleteQuietly(temporaryFile);
+            }
+            evictFromDisk();
+        } catch (IOException e) {
+            // The disk is only a second level cache: the program has been assembled anyway
+        }
+    }
+
+    private void evictFromDisk() throws IOException {
+        // The attributes are read only once: other threads and processes change them while we sort the files
+        List<DiskEntry> entries = new ArrayList<>();
+        long totalSize = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+            for (Path file : stream) {
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Evicted by someone else in the meantime
+                    continue;
+                }
+                entries.add(new DiskEntry(file, attributes.size(), attributes.lastModifiedTime()));
+                totalSize += attributes.size();
+            }
+        }
+        if (totalSize <= maxDiskBytes) {
+            return;
+        }
+        Collections.sort(entries, Comparator.comparing(entry -> entry.lastModifiedTime));
+        for (DiskEntry entry : entries) {
+            if (totalSize <= maxDiskBytes) {
+                break;
+            }
+            totalSize -= entry.size;
+            if (deleteQuietly(entry.file)) {
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A file of the disk cache, with its attributes when the eviction listed it.
+     */
+    private static final class DiskEntry {
+        final Path file;
+        final long size;
+        final FileTime lastModifiedTime;
+
+        DiskEntry(Path file, long size, FileTime lastModifiedTime) {
+            this.file = file;
+            this.size = size;
+            this.lastModifiedTime = lastModifiedTime;
+        }
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+}
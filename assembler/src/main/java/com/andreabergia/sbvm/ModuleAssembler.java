@@ -0,0 +1,100 @@
+package com.andreabergia.sbvm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * Assembles programs made of many source files: each source is assembled on its own, in parallel,
+ * into an {@link ObjectModule}, and then the modules are combined by the {@link Linker}.
+ * A label can be used in any module, as long as exactly one module exports it with {@code EXPORT label}.
+ * Modules that have not changed can be saved in object files, and linked without assembling them again.
+ */
+public final class ModuleAssembler {
+    /**
+     * The extension of the object files, which are linked as they are.
+     */
+    public static final String OBJECT_EXTENSION = ".sbo";
+
+    private ModuleAssembler() {
+    }
+
+    /**
+     * Assembles a source into a module, without resolving the labels it does not define.
+     */
+    public static ObjectModule assembleModule(String name, String source) {
+        return ProgramVisitor.visitProgram(new ANTLRInputStream(source)).generateObjectModule(name);
+    }
+
+    /**
+     * Like {@link #assembleModule(String, String)}, but uses the given cache, if it is not null.
+     */
+    public static ObjectModule assembleModule(String name, String source, AssemblyCache cache) {
+        return cache == null ? assembleModule(name, source) : cache.generateObjectModule(name, source);
+    }
+
+    /**
+     * Assembles and links the given sources, by module name. The first one is the main module.
+     */
+    public static Linker.LinkedProgram assemble(Map<String, String> sources) throws InvalidProgramException {
+        return assemble(sources, null);
+    }
+
+    /**
+     * Like {@link #assemble(Map)}, but only assembles the sources that are not in the given cache, if it is not null.
+     */
+    public static Linker.LinkedProgram assemble(Map<String, String> sources, AssemblyCache cache)
+            throws InvalidProgramException {
+        return Linker.link(assembleModules(sources, cache));
+    }
+
+    /**
+     * Assembles and links the given files, each one being a module named as the file.
+     * The first one is the main module. The object files are loaded instead of being assembled.
+     */
+    public static Linker.LinkedProgram assemble(List<Path> files) throws IOException, InvalidProgramException {
+        return assemble(files, null);
+    }
+
+    /**
+     * Like {@link #assemble(List)}, but only assembles the sources that are not in the given cache, if it is not null.
+     */
+    public static Linker.LinkedProgram assemble(List<Path> files, AssemblyCache cache)
+            throws IOException, InvalidProgramException {
+        List<String> names = new ArrayList<>();
+        Map<String, String> sources = new LinkedHashMap<>();
+        Map<String, ObjectModule> modules = new HashMap<>();
+        for (Path file : files) {
+            String name = file.getFileName().toString();
+            if (names.contains(name)) {
+                throw new InvalidProgramException("Duplicate module " + name);
+            }
+            names.add(name);
+            if (name.endsWith(OBJECT_EXTENSION)) {
+                modules.put(name, BinaryProgram.load(file).toObjectModule(name));
+            } else {
+                sources.put(name, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+            }
+        }
+        for (ObjectModule module : assembleModules(sources, cache)) {
+            modules.put(module.getName(), module);
+        }
+        return Linker.link(names.stream().map(modules::get).collect(Collectors.toList()));
+    }
+
+    private static List<ObjectModule> assembleModules(Map<String, String> sources, AssemblyCache cache) {
+        List<Map.Entry<String, String>> entries = new ArrayList<>(sources.entrySet());
+        return entries.parallelStream()
+                .map(entry -> assembleModule(entry.getKey(), entry.getValue(), cache))
+                .collect(Collectors.toList());
+    }
+}
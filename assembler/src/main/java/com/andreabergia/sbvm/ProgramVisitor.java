@@ -9,9 +9,13 @@ import org.antlr.v4.runtime.misc.Nullable;
 import org.antlr.v4.runtime.tree.TerminalNode;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
 
 public class ProgramVisitor extends SbvmBaseVisitor<Void> {
     private static final class UnresolvedAddress {
@@ -28,6 +32,7 @@ public class ProgramVisitor extends SbvmBaseVisitor<Void> {
     private final List<Integer> program = new ArrayList<>();
     private final List<UnresolvedAddress> labelsToResolve = new ArrayList<>();
     private final Map<String, Integer> labelsAddresses = new HashMap<>();
+    private final Set<String> exports = new LinkedHashSet<>();
 
 
     private int getCurrentAddress() {return program.size();}
@@ -40,6 +45,13 @@ public class ProgramVisitor extends SbvmBaseVisitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitExport(SbvmParser.ExportContext ctx) {
+        // Exports only matter to the linker, so they are checked when the object module is generated
+        exports.add(ctx.IDENTIFIER().getText());
+        return null;
+    }
+
     @Override
     public Void visitHalt(SbvmParser.HaltContext ctx) {
         // When a HALT instruction is found, adds a HALT instruction to the program
@@ -161,6 +173,54 @@ public class ProgramVisitor extends SbvmBaseVisitor<Void> {
         return null;
     }
 
+    @Override
+    public Void visitMload(SbvmParser.MloadContext ctx) {
+        program.add(Instructions.MLOAD);
+        return null;
+    }
+
+    @Override
+    public Void visitMstore(SbvmParser.MstoreContext ctx) {
+        program.add(Instructions.MSTORE);
+        return null;
+    }
+
+    @Override
+    public Void visitMcopy(SbvmParser.McopyContext ctx) {
+        program.add(Instructions.MCOPY);
+        return null;
+    }
+
+    @Override
+    public Void visitMfill(SbvmParser.MfillContext ctx) {
+        program.add(Instructions.MFILL);
+        return null;
+    }
+
+    @Override
+    public Void visitVadd(SbvmParser.VaddContext ctx) {
+        program.add(Instructions.VADD);
+        return null;
+    }
+
+    @Override
+    public Void visitVmul(SbvmParser.VmulContext ctx) {
+        program.add(Instructions.VMUL);
+        return null;
+    }
+
+    @Override
+    public Void visitVisgt(SbvmParser.VisgtContext ctx) {
+        program.add(Instructions.VISGT);
+        return null;
+    }
+
+    @Override
+    public Void visitVsum(SbvmParser.VsumContext ctx) {
+        program.add(Instructions.VSUM);
+        return null;
+    }
+
 
     private void visitOneArgumentInstruction(TerminalNode numer, int instruction) {
         int value = Integer.valueOf(numer.getText());
@@ -191,6 +251,45 @@ public class ProgramVisitor extends SbvmBaseVisitor<Void> {
         return result;
     }
 
+    /**
+     * Returns the current program as a module to be linked with other ones: the labels that are not defined
+     * in the program are not an error, but become imports of the module. Only the exported labels can be
+     * used by the other modules.
+     */
+    public ObjectModule generateObjectModule(String name) throws InvalidProgramException {
+        for (String export : exports) {
+            if (!labelsAddresses.containsKey(export)) {
+                throw new InvalidProgramException("Exported label " + export + " is not defined");
+            }
+        }
+
+        int[] code = new int[this.program.size()];
+        for (int i = 0; i < this.program.size(); i++) {
+            code[i] = this.program.get(i);
+        }
+
+        List<Integer> relocations = new ArrayList<>();
+        Map<Integer, String> imports = new TreeMap<>();
+        for (UnresolvedAddress unresolvedAddress : labelsToResolve) {
+            @Nullable Integer destination = labelsAddresses.get(unresolvedAddress.label);
+            if (destination == null) {
+                imports.put(unresolvedAddress.position, unresolvedAddress.label);
+            } else {
+                code[unresolvedAddress.position] = destination;
+                relocations.add(unresolvedAddress.position);
+            }
+        }
+        return new ObjectModule(name, code, labelsAddresses, exports,
+                relocations.stream().mapToInt(Integer::intValue).toArray(), imports);
+    }
+
+    /**
+     * Returns the address of every label of the program.
+     */
+    public Map<String, Integer> getLabels() {
+        return Collections.unmodifiableMap(labelsAddresses);
+    }
+
     /**
      * Transforms all the unresolved labels into correct addresses.
      */
@@ -225,9 +324,21 @@ public class ProgramVisitor extends SbvmBaseVisitor<Void> {
      * Generates a program from a given ANTLR input, or throws an exception if the program is invalid.
      */
     public static int[] generateProgram(CharStream input) throws InvalidProgramException {
+        return generateProgram(createParser(input));
+    }
+
+    /**
+     * Visits a given ANTLR input, and returns the visitor, so that both the program and its labels can be read.
+     */
+    public static ProgramVisitor visitProgram(CharStream input) {
+        ProgramVisitor programVisitor = new ProgramVisitor();
+        programVisitor.visit(createParser(input).program());
+        return programVisitor;
+    }
+
+    private static SbvmParser createParser(CharStream input) {
         SbvmLexer lexer = new SbvmLexer(input);
         CommonTokenStream tokenStream = new CommonTokenStream(lexer);
-        SbvmParser parser = new SbvmParser(tokenStream);
-        return generateProgram(parser);
+        return new SbvmParser(tokenStream);
     }
 }
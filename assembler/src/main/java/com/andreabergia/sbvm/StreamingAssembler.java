@@ -0,0 +1,346 @@
+package com.andreabergia.sbvm;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A hand-written, single pass assembler for the language of {@code Sbvm.g4}, which produces the same
+ * programs as {@link ProgramVisitor} without building a parse tree.
+ * <p>
+ * The source is read in chunks, one line at a time, and the words are written to a growable int array;
+ * jumps to labels that have not been seen yet are written as placeholders, and patched at the end.
+ * A syntax error stops the assembly with an {@link InvalidProgramException} that reports the line,
+ * while the ANTLR parser prints the error and tries to go on. The last line does not need a newline.
+ * Exports are checked for their syntax, but otherwise ignored, since they only matter to the {@link Linker}.
+ */
+public final class StreamingAssembler {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int EOF = -1;
+    private static final String EXPORT = "EXPORT";
+
+    private interface Input {
+        /**
+         * Reads some characters into the buffer, and returns how many, or -1 at the end of the input.
+         */
+        int read(char[] buffer) throws IOException;
+    }
+
+    private final Input input;
+    private final char[] buffer = new char[BUFFER_SIZE];
+    private int position = 0;
+    private int limit = 0;
+    private int line = 1;
+
+    private int[] program = new int[1024];
+    private int size = 0;
+    private final Map<String, Integer> labelsAddresses = new HashMap<>();
+    private int[] fixupPositions = new int[64]; // Positions of the addresses to patch
+    private String[] fixupLabels = new String[64];
+    private int fixupsCount = 0;
+    private final StringBuilder word = new StringBuilder();
+
+    private StreamingAssembler(Input input) {
+        this.input = input;
+    }
+
+    /**
+     * Assembles the source read from the given reader, which is not closed.
+     */
+    public static int[] assemble(Reader reader) throws IOException, InvalidProgramException {
+        return new StreamingAssembler(reader::read).run();
+    }
+
+    /**
+     * Assembles a source encoded in ASCII or UTF-8. Only comments can contain non ASCII characters,
+     * so the bytes can be read without decoding them.
+     */
+    public static int[] assemble(ByteBuffer source) throws InvalidProgramException {
+        ByteBuffer bytes = source.duplicate();
+        try {
+            return new StreamingAssembler(buffer -> {
+                int count = Math.min(buffer.length, bytes.remaining());
+                if (count == 0) {
+                    return EOF;
+                }
+                for (int i = 0; i < count; i++) {
+                    buffer[i] = (char) (bytes.get() & 0xFF);
+                }
+                return count;
+            }).run();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public static int[] assemble(String source) throws InvalidProgramException {
+        try {
+            return assemble(new StringReader(source));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int[] run() throws IOException {
+        while (parseLine()) {
+            // Keep going
+        }
+        for (int i = 0; i < fixupsCount; i++) {
+            Integer destination = labelsAddresses.get(fixupLabels[i]);
+            if (destination == null) {
+                throw new InvalidProgramException("Unresolved label " + fixupLabels[i]);
+            }
+            program[fixupPositions[i]] = destination;
+        }
+        return Arrays.copyOf(program, size);
+    }
+
+    /**
+     * Parses a line, including its newline, and returns false at the end of the input.
+     */
+    private boolean parseLine() throws IOException {
+        skipWhitespace();
+        int c = peek();
+        if (c == EOF) {
+            return false;
+        }
+        if (isLetter(c)) {
+            String name = readWord();
+            skipWhitespace();
+            if (peek() == ':') {
+                if (isKeyword(name)) {
+                    throw syntaxError("Invalid label " + name);
+                }
+                ++position;
+                labelsAddresses.put(name, size);
+            } else if (name.equals(EXPORT)) {
+                readLabel(name);
+            } else {
+                parseInstruction(name);
+            }
+        }
+        endLine();
+        return true;
+    }
+
+    private void parseInstruction(String name) throws IOException {
+        int opcode = getOpcode(name);
+        switch (opcode) {
+            case Instructions.PUSH:
+            case Instructions.LOAD:
+            case Instructions.STORE:
+                emit(opcode);
+                emit(readNumber());
+                break;
+
+            case Instructions.JMP:
+            case Instructions.JIF:
+            case Instructions.CALL: {
+                emit(opcode);
+                addFixup(readLabel(name));
+                emit(-1);
+                break;
+            }
+
+            case -1:
+                throw syntaxError("Unknown instruction " + name);
+
+            default:
+                emit(opcode);
+                break;
+        }
+    }
+
+    /**
+     * Reads the label that must follow the given instruction or directive.
+     */
+    private String readLabel(String name) throws IOException {
+        skipWhitespace();
+        if (!isLetter(peek())) {
+            throw syntaxError("Expected a label after " + name);
+        }
+        String label = readWord();
+        if (isKeyword(label)) {
+            throw syntaxError("Invalid label " + label);
+        }
+        return label;
+    }
+
+    private static boolean isKeyword(String name) {
+        return getOpcode(name) >= 0 || name.equals(EXPORT);
+    }
+
+    /**
+     * Returns the opcode of the given mnemonic, or -1 if it is not an instruction of the assembly language.
+     */
+    private static int getOpcode(String name) {
+        switch (name) {
+            case "HALT":
+                return Instructions.HALT;
+            case "PUSH":
+                return Instructions.PUSH;
+            case "ADD":
+                return Instructions.ADD;
+            case "SUB":
+                return Instructions.SUB;
+            case "MUL":
+                return Instructions.MUL;
+            case "DIV":
+                return Instructions.DIV;
+            case "NOT":
+                return Instructions.NOT;
+            case "AND":
+                return Instructions.AND;
+            case "OR":
+                return Instructions.OR;
+            case "POP":
+                return Instructions.POP;
+            case "DUP":
+                return Instructions.DUP;
+            case "ISEQ":
+                return Instructions.ISEQ;
+            case "ISGE":
+                return Instructions.ISGE;
+            case "ISGT":
+                return Instructions.ISGT;
+            case "JMP":
+                return Instructions.JMP;
+            case "JIF":
+                return Instructions.JIF;
+            case "LOAD":
+                return Instructions.LOAD;
+            case "STORE":
+                return Instructions.STORE;
+            case "CALL":
+                return Instructions.CALL;
+            case "RET":
+                return Instructions.RET;
+            case "MLOAD":
+                return Instructions.MLOAD;
+            case "MSTORE":
+                return Instructions.MSTORE;
+            case "MCOPY":
+                return Instructions.MCOPY;
+            case "MFILL":
+                return Instructions.MFILL;
+            case "VADD":
+                return Instructions.VADD;
+            case "VMUL":
+                return Instructions.VMUL;
+            case "VISGT":
+                return Instructions.VISGT;
+            case "VSUM":
+                return Instructions.VSUM;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Skips the whitespace and the comment at the end of a line, and its newline.
+     */
+    private void endLine() throws IOException {
+        skipWhitespace();
+        if (peek() == '/') {
+            ++position;
+            if (peek() != '/') {
+                throw syntaxError("Unexpected character '/'");
+            }
+            for (int c = peek(); c != '\n' && c != '\r' && c != EOF; c = peek()) {
+                ++position;
+            }
+        }
+        int c = peek();
+        if (c == '\r') {
+            ++position;
+            c = peek();
+            if (c != '\n') {
+                throw syntaxError("Unexpected carriage return");
+            }
+        }
+        if (c == '\n') {
+            ++position;
+            ++line;
+        } else if (c != EOF) {
+            throw syntaxError("Unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private int readNumber() throws IOException {
+        skipWhitespace();
+        int c = peek();
+        if (!isDigit(c)) {
+            throw syntaxError("Expected a number");
+        }
+        long value = 0;
+        for (; isDigit(c); c = peek()) {
+            value = value * 10 + (c - '0');
+            if (value > Integer.MAX_VALUE) {
+                throw syntaxError("Number too large");
+            }
+            ++position;
+        }
+        return (int) value;
+    }
+
+    private String readWord() throws IOException {
+        word.setLength(0);
+        for (int c = peek(); isLetter(c) || isDigit(c) || c == '_'; c = peek()) {
+            word.append((char) c);
+            ++position;
+        }
+        return word.toString();
+    }
+
+    private void skipWhitespace() throws IOException {
+        for (int c = peek(); c == ' ' || c == '\t'; c = peek()) {
+            ++position;
+        }
+    }
+
+    private int peek() throws IOException {
+        if (position == limit) {
+            int count = input.read(buffer);
+            if (count <= 0) {
+                return EOF;
+            }
+            position = 0;
+            limit = count;
+        }
+        return buffer[position];
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void emit(int word) {
+        if (size == program.length) {
+            program = Arrays.copyOf(program, program.length * 2);
+        }
+        program[size++] = word;
+    }
+
+    private void addFixup(String label) {
+        if (fixupsCount == fixupPositions.length) {
+            fixupPositions = Arrays.copyOf(fixupPositions, fixupsCount * 2);
+            fixupLabels = Arrays.copyOf(fixupLabels, fixupsCount * 2);
+        }
+        fixupPositions[fixupsCount] = size;
+        fixupLabels[fixupsCount] = label;
+        ++fixupsCount;
+    }
+
+    private InvalidProgramException syntaxError(String message) {
+        return new InvalidProgramException(String.format("Syntax error at line %d: %s", line, message));
+    }
+}
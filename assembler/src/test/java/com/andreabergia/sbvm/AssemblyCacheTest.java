@@ -0,0 +1,187 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class AssemblyCacheTest {
+    private static final String SOURCE = "PUSH 1\nPUSH 2\nADD\nHALT\n";
+    private static final int[] PROGRAM = {PUSH, 1, PUSH, 2, ADD, HALT};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMemoryHits() {
+        AssemblyCache cache = new AssemblyCache(1000);
+        assertArrayEquals(PROGRAM, cache.generateProgram(SOURCE));
+        int[] cached = cache.generateProgram(SOURCE);
+        assertArrayEquals(PROGRAM, cached);
+        // Callers get their own copy
+        cached[0] = HALT;
+        assertArrayEquals(PROGRAM, cache.generateProgram(SOURCE));
+
+        AssemblyCache.Stats stats = cache.getStats();
+        assertEquals(1, stats.getMisses());
+        assertEquals(2, stats.getMemoryHits());
+        assertEquals(0, stats.getDiskHits());
+        assertEquals(2.0 / 3, stats.getHitRate(), 1e-9);
+    }
+
+    @Test
+    public void testMemoryEviction() {
+        AssemblyCache cache = new AssemblyCache(PROGRAM.length);
+        cache.generateProgram(SOURCE);
+        cache.generateProgram("HALT\n");
+        cache.generateProgram(SOURCE);
+        assertTrue(cache.getStats().getEvictions() > 0);
+        assertEquals(3, cache.getStats().getMisses());
+    }
+
+    @Test
+    public void testLargeProgramsStayInMemory() {
+        // Much more than a quarter of the memory, which is what each of the default 4 segments would get
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < 400; i++) {
+            source.append("PUSH ").append(i).append('\n');
+        }
+        AssemblyCache cache = new AssemblyCache(1000);
+        int[] program = cache.generateProgram(source.toString());
+        assertEquals(800, program.length);
+        assertArrayEquals(program, cache.generateProgram(source.toString()));
+        assertEquals(1, cache.getStats().getMemoryHits());
+        assertEquals(0, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void testProgramLabels() {
+        AssemblyCache cache = new AssemblyCache(1000);
+        cache.generateProgram("start:\nJMP start\n");
+        ObjectModule program = cache.generateProgramModule("loop", "start:\nJMP start\n");
+        assertEquals("loop", program.getName());
+        assertEquals(Collections.singletonMap("start", 0), program.getLabels());
+        assertTrue(program.getImports().isEmpty());
+        assertEquals(1, cache.getStats().getMemoryHits());
+    }
+
+    @Test
+    public void testObjectModules() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        String library = "EXPORT addOne\naddOne:\nPUSH 1\nADD\nRET\n";
+        Map<String, String> sources = ImmutableMap.of("main", "PUSH 1\nCALL addOne\nHALT\n", "library", library);
+        AssemblyCache first = new AssemblyCache(1000, directory, 1 << 20);
+        int[] linked = ModuleAssembler.assemble(sources, first).toArray();
+        assertEquals(2, first.getStats().getMisses());
+
+        // Modules are not programs, since they can have imports
+        AssemblyCache second = new AssemblyCache(1000, directory, 1 << 20);
+        assertArrayEquals(linked, ModuleAssembler.assemble(sources, second).toArray());
+        assertEquals(2, second.getStats().getDiskHits());
+        try {
+            second.generateProgram("PUSH 1\nCALL addOne\nHALT\n");
+            fail("The program should not assemble");
+        } catch (InvalidProgramException e) {
+            // Expected
+        }
+
+        // The same source can be used by modules with different names
+        ObjectModule copy = second.generateObjectModule("copy", library);
+        assertEquals("copy", copy.getName());
+        assertEquals(Collections.singleton("addOne"), copy.getExports());
+        assertEquals(1, second.getStats().getMemoryHits());
+    }
+
+    @Test
+    public void testDiskIsSharedBetweenCaches() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        AssemblyCache first = new AssemblyCache(1000, directory, 1 << 20);
+        first.generateProgram(SOURCE);
+
+        // Another cache on the same directory behaves like another process
+        AssemblyCache second = new AssemblyCache(1000, directory, 1 << 20);
+        assertArrayEquals(PROGRAM, second.generateProgram(SOURCE));
+        assertEquals(1, second.getStats().getDiskHits());
+        assertEquals(0, second.getStats().getMisses());
+
+        first.clearMemory();
+        first.generateProgram(SOURCE);
+        assertEquals(1, first.getStats().getDiskHits());
+    }
+
+    @Test
+    public void testDiskEviction() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        AssemblyCache cache = new AssemblyCache(1000, directory, 1);
+        cache.generateProgram(SOURCE);
+        cache.generateProgram("HALT\n");
+        File[] files = directory.toFile().listFiles();
+        assertEquals(0, files.length);
+        assertEquals(2, cache.getStats().getEvictions());
+    }
+
+    @Test
+    public void testCorruptedFilesAreMisses() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        new AssemblyCache(1000, directory, 1 << 20).generateProgram(SOURCE);
+        for (File file : directory.toFile().listFiles()) {
+            Files.write(file.toPath(), new byte[]{1, 2, 3});
+        }
+
+        AssemblyCache cache = new AssemblyCache(1000, directory, 1 << 20);
+        assertArrayEquals(PROGRAM, cache.generateProgram(SOURCE));
+        assertEquals(1, cache.getStats().getMisses());
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInvalidSourcesAreNotCached() {
+        AssemblyCache cache = new AssemblyCache(1000);
+        try {
+            cache.generateProgram("JMP nowhere\n");
+        } catch (InvalidProgramException e) {
+            // Fall through
+        }
+        cache.generateProgram("JMP nowhere\n");
+    }
+
+    @Test
+    public void testConcurrentAccess() throws Exception {
+        Path directory = folder.newFolder().toPath();
+        AssemblyCache cache = new AssemblyCache(50, directory, 1 << 20);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (int i = 0; i < 200; i++) {
+                int n = i % 20;
+                results.add(executor.submit(() ->
+                        cache.generateProgram("PUSH " + n + "\nHALT\n")[1] == n));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        AssemblyCache.Stats stats = cache.getStats();
+        assertEquals(200, stats.getMemoryHits() + stats.getDiskHits() + stats.getMisses());
+    }
+}
@@ -0,0 +1,115 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ModuleAssemblerTest {
+    private static final String MAIN = "PUSH 5\nCALL square\nHALT\n";
+    private static final String LIBRARY = "EXPORT square\nsquare:\nDUP\nCALL multiply\nRET\nmultiply:\nMUL\nRET\n";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testObjectModule() {
+        ObjectModule module = ModuleAssembler.assembleModule("main", "start:\nPUSH 1\nJIF start\nCALL f\nHALT\n");
+        assertEquals("main", module.getName());
+        assertEquals(Collections.singletonMap("start", 0), module.getLabels());
+        assertEquals(Collections.emptySet(), module.getExports());
+        assertEquals(Collections.singletonMap(5, "f"), module.getImports());
+
+        ObjectModule f = ModuleAssembler.assembleModule("f", "EXPORT f\nf:\nRET\n");
+        assertEquals(Collections.singleton("f"), f.getExports());
+        assertArrayEquals(new int[]{PUSH, 1, JIF, 0, CALL, 7, HALT, Instructions.RET},
+                Linker.link(module, f).toArray());
+    }
+
+    @Test
+    public void testAssembleAndLink() {
+        Linker.LinkedProgram linkedProgram = ModuleAssembler.assemble(ImmutableMap.of("main", MAIN, "library", LIBRARY));
+        assertEquals((Integer) 5, linkedProgram.getSymbols().get("library:square"));
+        assertEquals((Integer) 9, linkedProgram.getSymbols().get("library:multiply"));
+
+        CPU cpu = new CPU(Verifier.verify(linkedProgram.toArray()));
+        cpu.run();
+        assertEquals(Collections.singletonList(25), new ArrayList<>(cpu.getStack()));
+    }
+
+    @Test
+    public void testPrivateLabelsDoNotCollide() {
+        String main = "PUSH 5\nCALL square\nCALL multiply\nHALT\nmultiply:\nPUSH 2\nMUL\nRET\n";
+        Linker.LinkedProgram linkedProgram = ModuleAssembler.assemble(ImmutableMap.of("main", main, "library", LIBRARY));
+
+        CPU cpu = new CPU(Verifier.verify(linkedProgram.toArray()));
+        cpu.run();
+        assertEquals(Collections.singletonList(50), new ArrayList<>(cpu.getStack()));
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testExportedLabelsMustBeDefined() {
+        ModuleAssembler.assembleModule("main", "EXPORT missing\nHALT\n");
+    }
+
+    @Test
+    public void testLinkObjectFiles() throws Exception {
+        Path main = folder.newFile("main.sbvm").toPath();
+        Files.write(main, MAIN.getBytes(StandardCharsets.UTF_8));
+        Path library = folder.newFile("library" + ModuleAssembler.OBJECT_EXTENSION).toPath();
+        BinaryProgram.write(library, ModuleAssembler.assembleModule("library", LIBRARY), Collections.emptyMap());
+
+        Linker.LinkedProgram linkedProgram = ModuleAssembler.assemble(Arrays.asList(main, library));
+        assertEquals(ImmutableMap.of("main.sbvm", 0, "library.sbo", 5), linkedProgram.getModuleAddresses());
+        assertEquals((Integer) 9, linkedProgram.getSymbols().get("library.sbo:multiply"));
+
+        CPU cpu = new CPU(Verifier.verify(linkedProgram.toArray()));
+        cpu.run();
+        assertEquals(Collections.singletonList(25), new ArrayList<>(cpu.getStack()));
+    }
+
+    @Test
+    public void testAssembleFiles() throws Exception {
+        Path main = folder.newFile("main.sbvm").toPath();
+        Path library = folder.newFile("library.sbvm").toPath();
+        Files.write(main, MAIN.getBytes(StandardCharsets.UTF_8));
+        Files.write(library, LIBRARY.getBytes(StandardCharsets.UTF_8));
+
+        Linker.LinkedProgram linkedProgram = ModuleAssembler.assemble(Arrays.asList(main, library));
+        assertEquals(ImmutableMap.of("main.sbvm", 0, "library.sbvm", 5), linkedProgram.getModuleAddresses());
+        assertEquals(CALL, linkedProgram.toArray()[2]);
+        assertEquals(HALT, linkedProgram.toArray()[4]);
+    }
+
+    @Test
+    public void testUnresolvedSymbols() {
+        try {
+            ModuleAssembler.assemble(ImmutableMap.of("main", MAIN, "other", "CALL cube\nRET\n"));
+            fail("The program should not link");
+        } catch (UnresolvedSymbolsException e) {
+            assertEquals(Arrays.asList("main: square is not defined", "other: cube is not defined"),
+                    e.getUnresolvedSymbols());
+        }
+        try {
+            ModuleAssembler.assemble(ImmutableMap.of("main", MAIN, "library", LIBRARY.replace("EXPORT square\n", "")));
+            fail("The program should not link");
+        } catch (UnresolvedSymbolsException e) {
+            assertEquals(Collections.singletonList("main: square is not exported (library)"), e.getUnresolvedSymbols());
+        }
+    }
+}
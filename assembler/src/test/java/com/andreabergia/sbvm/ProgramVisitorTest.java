@@ -1,5 +1,6 @@
 package com.andreabergia.sbvm;
 
+import com.google.common.collect.ImmutableMap;
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.junit.Test;
 
@@ -24,6 +25,7 @@ import static com.andreabergia.sbvm.Instructions.RET;
 import static com.andreabergia.sbvm.Instructions.STORE;
 import static com.andreabergia.sbvm.Instructions.SUB;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
 
 public class ProgramVisitorTest {
     private int[] parseProgram(String source) {
@@ -93,6 +95,18 @@ public class ProgramVisitorTest {
         assertArrayEquals(new int[]{JIF, 5, CALL, 5, HALT, PUSH, 43}, program);
     }
 
+    @Test
+    public void testLabelsAddresses() throws Exception {
+        ProgramVisitor programVisitor = ProgramVisitor.visitProgram(new ANTLRInputStream("" +
+                "start:\n" +
+                "PUSH 1\n" +
+                "loop:\n" +
+                "JIF loop\n" +
+                "HALT\n"));
+        assertArrayEquals(new int[]{PUSH, 1, JIF, 2, HALT}, programVisitor.generateProgram());
+        assertEquals(ImmutableMap.of("start", 0, "loop", 2), programVisitor.getLabels());
+    }
+
     @Test(expected = InvalidProgramException.class)
     public void testLabelNotFound() throws Exception {
         parseProgram("JMP noLabel\n");
@@ -0,0 +1,150 @@
+package com.andreabergia.sbvm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.junit.Test;
+
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static org.junit.Assert.assertArrayEquals;
+
+public class StreamingAssemblerTest {
+    private static final String[] SIMPLE_INSTRUCTIONS = {
+            "HALT", "ADD", "SUB", "MUL", "DIV", "NOT", "AND", "OR", "POP", "DUP", "ISEQ", "ISGE", "ISGT", "RET",
+            "MLOAD", "MSTORE", "MCOPY", "MFILL", "VADD", "VMUL", "VISGT", "VSUM"
+    };
+    private static final String[] JUMPS = {"JMP", "JIF", "CALL"};
+    private static final String[] NUMBER_INSTRUCTIONS = {"PUSH", "LOAD", "STORE"};
+
+    @Test
+    public void testSameOutputAsAntlr() {
+        assertSameOutput("");
+        assertSameOutput("HALT\n");
+        assertSameOutput("\n\n  \t\nHALT\n\n");
+        assertSameOutput("PUSH 42\nLOAD 0\nSTORE 007\n");
+        assertSameOutput("// A comment\nHALT // Comment inline\n  // Indented comment\n");
+        assertSameOutput("JMP afterEnd\nHALT\nafterEnd:\nPUSH 42\n");
+        assertSameOutput("JIF aLabel\nCALL anotherLabel\nHALT\naLabel:\nanotherLabel :\nPUSH 43\n");
+        assertSameOutput("start:\r\n  PUSH\t1\r\n  JMP start // Loop forever\r\n");
+        assertSameOutput("HALTS:\nPUSH_1:\nJMP HALTS\nJMP PUSH_1\n");
+        assertSameOutput("PUSH 0\nMLOAD\nPUSH 1\nMSTORE\nMCOPY\nMFILL\nVADD\nVMUL\nVISGT\nVSUM\n");
+        assertSameOutput("EXPORT square\nsquare:\nDUP\nMUL\nRET\n  EXPORT\tsquare // Twice\n");
+        // The last definition of a label wins
+        assertSameOutput("JMP twice\ntwice:\nHALT\ntwice:\nHALT\n");
+    }
+
+    @Test
+    public void testRandomPrograms() {
+        Random random = new Random(42);
+        for (int i = 0; i < 100; i++) {
+            assertSameOutput(randomSource(random, 1 + random.nextInt(200)));
+        }
+    }
+
+    @Test
+    public void testAllInputKinds() throws Exception {
+        String source = randomSource(new Random(1), 5000);
+        int[] expected = ProgramVisitor.generateProgram(new ANTLRInputStream(source));
+        assertArrayEquals(expected, StreamingAssembler.assemble(new StringReader(source)));
+        assertArrayEquals(expected, StreamingAssembler.assemble(ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8))));
+    }
+
+    @Test
+    public void testLastLineWithoutNewline() {
+        assertArrayEquals(new int[]{PUSH, 1, HALT}, StreamingAssembler.assemble("PUSH 1\nHALT"));
+        assertArrayEquals(new int[]{JMP, 0}, StreamingAssembler.assemble("a:\nJMP a // The end"));
+    }
+
+    @Test
+    public void testUtf8Comments() {
+        byte[] source = "HALT // Cos\u00EC \u00E8\n".getBytes(StandardCharsets.UTF_8);
+        assertArrayEquals(new int[]{HALT}, StreamingAssembler.assemble(ByteBuffer.wrap(source)));
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testLabelNotFound() {
+        StreamingAssembler.assemble("JMP noLabel\n");
+    }
+
+    @Test
+    public void testSyntaxErrors() {
+        assertSyntaxError("PUSH\n", 1);
+        assertSyntaxError("HALT\nPUSH x\n", 2);
+        assertSyntaxError("HALT\n\nJMP 3\n", 3);
+        assertSyntaxError("FOO\n", 1);
+        assertSyntaxError("HALT:\n", 1);
+        assertSyntaxError("JMP PUSH\n", 1);
+        assertSyntaxError("PUSH 1 2\n", 1);
+        assertSyntaxError("PUSH 99999999999\n", 1);
+        assertSyntaxError("a: HALT\n", 1);
+        assertSyntaxError("HALT / comment\n", 1);
+        assertSyntaxError("HALT\rHALT\n", 1);
+        assertSyntaxError("_label:\n", 1);
+        assertSyntaxError("halt\n", 1);
+        assertSyntaxError("EXPORT\n", 1);
+        assertSyntaxError("EXPORT 1\n", 1);
+        assertSyntaxError("EXPORT HALT\n", 1);
+        assertSyntaxError("EXPORT:\n", 1);
+        assertSyntaxError("EXPORT a b\n", 1);
+    }
+
+    private static void assertSyntaxError(String source, int line) {
+        try {
+            StreamingAssembler.assemble(source);
+        } catch (InvalidProgramException e) {
+            if (!e.getMessage().startsWith("Syntax error at line " + line + ":")) {
+                throw new AssertionError("Wrong error for " + source + ": " + e.getMessage());
+            }
+            return;
+        }
+        throw new AssertionError("No error for " + source);
+    }
+
+    private static void assertSameOutput(String source) {
+        assertArrayEquals(source, ProgramVisitor.generateProgram(new ANTLRInputStream(source)),
+                StreamingAssembler.assemble(source));
+    }
+
+    private static String randomSource(Random random, int lines) {
+        int labels = 1 + lines / 10;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < labels; i++) {
+            sb.append("label").append(i).append(":\n");
+        }
+        for (int i = 0; i < lines; i++) {
+            String whitespace = random.nextBoolean() ? " " : "\t  ";
+            if (random.nextInt(4) == 0) {
+                sb.append(whitespace);
+            }
+            switch (random.nextInt(6)) {
+                case 0:
+                    sb.append("label").append(random.nextInt(labels)).append(':');
+                    break;
+                case 1:
+                    sb.append(JUMPS[random.nextInt(JUMPS.length)]).append(whitespace)
+                            .append("label").append(random.nextInt(labels));
+                    break;
+                case 2:
+                    sb.append(NUMBER_INSTRUCTIONS[random.nextInt(NUMBER_INSTRUCTIONS.length)]).append(whitespace)
+                            .append(random.nextInt(Integer.MAX_VALUE));
+                    break;
+                case 3:
+                    // An empty line
+                    break;
+                default:
+                    sb.append(SIMPLE_INSTRUCTIONS[random.nextInt(SIMPLE_INSTRUCTIONS.length)]);
+                    break;
+            }
+            if (random.nextInt(5) == 0) {
+                sb.append(whitespace).append("// Comment ").append(i);
+            }
+            sb.append(random.nextInt(10) == 0 ? "\r\n" : "\n");
+        }
+        return sb.toString();
+    }
+}
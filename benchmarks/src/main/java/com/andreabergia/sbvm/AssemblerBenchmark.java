@@ -0,0 +1,65 @@
+package com.andreabergia.sbvm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures how long {@link ProgramVisitor} and {@link StreamingAssembler} take to assemble generated sources
+ * of increasing size. Each function of the source is 18 lines long, so 10000 functions are a few megabytes
+ * of text; {@link AssemblerFootprint} prints the throughput in MB/s and the peak heap of both assemblers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class AssemblerBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int functions;
+
+    private String source;
+    private ByteBuffer sourceBytes;
+
+    @Setup
+    public void setUp() {
+        source = BenchmarkPrograms.assemblySource(functions);
+        sourceBytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        // Fails early if the generator or the assemblers are broken
+        int[] program = ProgramVisitor.generateProgram(new ANTLRInputStream(source));
+        Verifier.verify(program);
+        if (!Arrays.equals(program, StreamingAssembler.assemble(source))) {
+            throw new IllegalStateException("The assemblers do not agree");
+        }
+    }
+
+    @Benchmark
+    public int[] generateProgram() {
+        return ProgramVisitor.generateProgram(new ANTLRInputStream(source));
+    }
+
+    @Benchmark
+    public int[] streamingFromString() {
+        return StreamingAssembler.assemble(source);
+    }
+
+    @Benchmark
+    public int[] streamingFromBytes() {
+        return StreamingAssembler.assemble(sourceBytes);
+    }
+}
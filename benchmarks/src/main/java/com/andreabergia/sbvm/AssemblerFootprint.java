@@ -0,0 +1,76 @@
+package com.andreabergia.sbvm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.function.Supplier;
+
+/**
+ * Prints the throughput, in MB/s of source, the allocated memory and the peak heap used by the ANTLR and
+ * by the streaming assembler on a large generated source. The peak heap is the sum of the peaks of all
+ * the heap pools, including the garbage not yet collected, so it is an upper bound.
+ * <p>
+ * Run it with {@code gradlew :benchmarks:assemblerFootprint}, possibly with a fixed heap such as -Xmx2g.
+ */
+public final class AssemblerFootprint {
+    private static final int FUNCTIONS = 50000;
+    private static final int RUNS = 5;
+
+    private AssemblerFootprint() {
+    }
+
+    public static void main(String[] args) {
+        String source = BenchmarkPrograms.assemblySource(args.length > 0 ? Integer.parseInt(args[0]) : FUNCTIONS);
+        ByteBuffer bytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+        double megabytes = bytes.remaining() / (1024.0 * 1024.0);
+        System.out.printf("Source: %.1f MB%n", megabytes);
+
+        measure("ANTLR", megabytes, () -> ProgramVisitor.generateProgram(new ANTLRInputStream(source)));
+        measure("streaming (String)", megabytes, () -> StreamingAssembler.assemble(source));
+        measure("streaming (bytes)", megabytes, () -> StreamingAssembler.assemble(bytes));
+    }
+
+    private static void measure(String name, double megabytes, Supplier<int[]> assembler) {
+        // The first run warms up the JIT
+        int words = assembler.get().length;
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            pool.resetPeakUsage();
+        }
+        long baseline = heapPeak();
+
+        long allocatedBefore = allocatedBytes();
+        long start = System.nanoTime();
+        for (int i = 0; i < RUNS; i++) {
+            words = assembler.get().length;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9 / RUNS;
+        double allocated = (allocatedBytes() - allocatedBefore) / (1024.0 * 1024.0) / RUNS;
+
+        System.out.printf("%-20s %8.1f MB/s, %8.1f MB allocated, peak heap %8.1f MB above the baseline (%d words)%n",
+                name, megabytes / seconds, allocated, (heapPeak() - baseline) / (1024.0 * 1024.0), words);
+    }
+
+    private static long allocatedBytes() {
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    private static long heapPeak() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) {
+                peak += pool.getPeakUsage().getUsed();
+            }
+        }
+        return peak;
+    }
+}
@@ -0,0 +1,79 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the throughput of {@link BatchExecutor} with an increasing number of threads, on a batch of
+ * many short runs of the same program. Compare the scores of the different thread counts to see
+ * how the executor scales: the batch size is fixed, so ideally the time halves when the threads double,
+ * up to the number of cores of the machine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchExecutorBenchmark {
+    private static final int BATCH_SIZE = 10000;
+
+    @Param({"1", "2", "4", "8"})
+    public int threads;
+
+    @Param({"100"})
+    public int iterations;
+
+    private VerifiedProgram program;
+    private List<int[]> inputs;
+    private BatchExecutor executor;
+
+    @Setup
+    public void setUp() {
+        program = Verifier.verify(BenchmarkPrograms.arithmeticLoopOnInput());
+        inputs = new ArrayList<>();
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            inputs.add(new int[]{iterations});
+        }
+        executor = new BatchExecutor(threads);
+    }
+
+    @TearDown
+    public void tearDown() {
+        executor.close();
+    }
+
+    @Benchmark
+    public List<Integer> batch() {
+        return executor.execute(program, inputs, cpu -> cpu.getCurrentFrame().getVariable(1));
+    }
+
+    /**
+     * The single threaded baseline, which creates a new CPU for every run.
+     */
+    @Benchmark
+    public int sequentialWithNewCPUs() {
+        int total = 0;
+        for (int[] input : inputs) {
+            CPU cpu = new CPU(program);
+            cpu.getCurrentFrame().setVariable(0, input[0]);
+            cpu.run();
+            total += cpu.getCurrentFrame().getVariable(1);
+        }
+        return total;
+    }
+}
@@ -0,0 +1,402 @@
+package com.andreabergia.sbvm;
+
+import java.util.Arrays;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+
+/**
+ * Programs shared by the benchmarks.
+ */
+public final class BenchmarkPrograms {
+    private static final int[] ARITHMETIC_OPERATIONS = {ADD, MUL, SUB};
+
+    private BenchmarkPrograms() {
+    }
+
+    /**
+     * A loop that does some arithmetic for the given number of iterations:
+     * <pre>
+     * int counter = iterations, total = 0;
+     * while (counter != 0) {
+     *     total = total + counter * 2;
+     *     counter = counter - 1;
+     * }
+     * </pre>
+     * Variable 0 is the counter, variable 1 is the total.
+     */
+    public static int[] arithmeticLoop(int iterations) {
+        return new int[]{
+                PUSH, iterations,
+                STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0,
+                NOT,
+                JIF, 28,
+                LOAD, 1,
+                LOAD, 0,
+                PUSH, 2,
+                MUL,
+                ADD,
+                STORE, 1,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4,
+                // Here is address 28
+                HALT
+        };
+    }
+
+    /**
+     * Like {@link #arithmeticLoop(int)}, but the number of iterations is read from variable 0,
+     * so that the same program can be run on different inputs.
+     */
+    public static int[] arithmeticLoopOnInput() {
+        int[] program = arithmeticLoop(0);
+        // Replaces "PUSH iterations" with "LOAD 0", which keeps all the addresses
+        program[0] = LOAD;
+        program[1] = 0;
+        return program;
+    }
+
+    /**
+     * Computes the given Fibonacci number with the naive recursive function, leaving it on the stack:
+     * <pre>
+     * int fib(int n) {
+     *     if (n >= 2) return fib(n - 1) + fib(n - 2);
+     *     return n;
+     * }
+     * </pre>
+     */
+    public static int[] recursiveFibonacci(int n) {
+        return new int[]{
+                PUSH, n,
+                CALL, 5,
+                HALT,
+                // Here is address 5, the start of "fib"
+                STORE, 0,
+                LOAD, 0,
+                PUSH, 2,
+                ISGE,
+                JIF, 17,
+                LOAD, 0,
+                RET,
+                // Here is address 17
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                CALL, 5,
+                LOAD, 0,
+                PUSH, 2,
+                SUB,
+                CALL, 5,
+                ADD,
+                RET
+        };
+    }
+
+    /**
+     * A loop written the way the assembler users typically write it, so that all the superinstructions apply:
+     * <pre>
+     * int i = 0, total = 0;
+     * while (!(i &gt;= iterations)) {
+     *     total = total + i;
+     *     i = i + 1;
+     * }
+     * </pre>
+     * Variable 0 is the counter, variable 1 is the total.
+     */
+    public static int[] countingLoop(int iterations) {
+        return new int[]{
+                PUSH, 0,
+                STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0,
+                PUSH, iterations,
+                ISGE,
+                JIF, 27,
+                LOAD, 1,
+                LOAD, 0,
+                ADD,
+                STORE, 1,
+                LOAD, 0,
+                PUSH, 1,
+                ADD,
+                STORE, 0,
+                JMP, 4,
+                // Here is address 27
+                HALT
+        };
+    }
+
+    /**
+     * Computes the sum of the numbers from 1 to {@code depth} with a recursive function, so that the
+     * call stack grows to the given depth:
+     * <pre>
+     * int sum(int n) {
+     *     if (n == 0) return 0;
+     *     return n + sum(n - 1);
+     * }
+     * </pre>
+     */
+    public static int[] recursiveSum(int depth) {
+        return new int[]{
+                PUSH, depth,
+                CALL, 5,
+                HALT,
+                // Here is address 5, the start of "sum"
+                DUP,
+                JIF, 9,
+                RET,
+                // Here is address 9
+                DUP,
+                PUSH, 1,
+                SUB,
+                CALL, 5,
+                ADD,
+                RET
+        };
+    }
+
+    /**
+     * Like {@link #recursiveSum(int)}, but tail recursive: the running total is passed as an argument,
+     * so the recursive CALL is followed by a RET, and the CPU reuses the frame instead of growing the call stack:
+     * <pre>
+     * int sum(int total, int n) {
+     *     if (n == 0) return total;
+     *     return sum(total + n, n - 1);
+     * }
+     * </pre>
+     */
+    public static int[] tailRecursiveSum(int depth) {
+        return new int[]{
+                PUSH, 0,
+                PUSH, depth,
+                CALL, 7,
+                HALT,
+                // Here is address 7, the start of "sum"
+                STORE, 0,
+                STORE, 1,
+                LOAD, 0,
+                JIF, 18,
+                LOAD, 1,
+                RET,
+                // Here is address 18
+                LOAD, 1,
+                LOAD, 0,
+                ADD,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                CALL, 7,
+                RET
+        };
+    }
+
+    /**
+     * Pushes the numbers from {@code count} down to 1, and halts leaving all of them on the stack.
+     * The stack is not empty at the loop header, so this program must be run without verifying it.
+     */
+    public static int[] stackFiller(int count) {
+        return new int[]{
+                PUSH, count,
+                STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0,
+                JIF, 9,
+                HALT,
+                // Here is address 9
+                LOAD, 0,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4
+        };
+    }
+
+    /**
+     * A loop whose body updates the given number of variables, besides the counter:
+     * <pre>
+     * for (int counter = iterations; counter != 0; counter = counter - 1) {
+     *     v1 = v1 + counter;
+     *     ...
+     *     vN = vN + counter;
+     * }
+     * </pre>
+     */
+    public static int[] localsLoop(int iterations, int variables) {
+        int[] body = new int[7 * variables];
+        for (int i = 0; i < variables; i++) {
+            int varNumber = i + 1;
+            System.arraycopy(new int[]{LOAD, varNumber, LOAD, 0, ADD, STORE, varNumber}, 0, body, 7 * i, 7);
+        }
+        return countdownLoop(iterations, body);
+    }
+
+    /**
+     * A loop whose body evaluates an expression with the given number of operations, and stores
+     * its result into variable 1:
+     * <pre>
+     * for (int counter = iterations; counter != 0; counter = counter - 1) {
+     *     v1 = ((counter + 1) * 2) - 3 ...;
+     * }
+     * </pre>
+     */
+    public static int[] arithmeticExpressionLoop(int iterations, int operations) {
+        int[] body = new int[2 + 3 * operations + 2];
+        body[0] = LOAD;
+        body[1] = 0;
+        for (int i = 0; i < operations; i++) {
+            body[2 + 3 * i] = PUSH;
+            body[3 + 3 * i] = i + 1;
+            body[4 + 3 * i] = ARITHMETIC_OPERATIONS[i % ARITHMETIC_OPERATIONS.length];
+        }
+        body[body.length - 2] = STORE;
+        body[body.length - 1] = 1;
+        return countdownLoop(iterations, body);
+    }
+
+    /**
+     * Wraps a body, which must not contain jumps, in a loop that runs it the given number of times.
+     * Variable 0 is the counter.
+     */
+    private static int[] countdownLoop(int iterations, int[] body) {
+        int end = 18 + body.length;
+        int[] header = {
+                PUSH, iterations,
+                STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0,
+                NOT,
+                JIF, end
+        };
+        int[] footer = {
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4,
+                HALT
+        };
+        int[] program = Arrays.copyOf(header, header.length + body.length + footer.length);
+        System.arraycopy(body, 0, program, header.length, body.length);
+        System.arraycopy(footer, 0, program, header.length + body.length, footer.length);
+        return program;
+    }
+
+    /**
+     * Generates an assembler source with the given number of functions, all called by the main code.
+     * Each function has a loop, so that the source uses labels, jumps and calls.
+     */
+    public static String assemblySource(int functions) {
+        StringBuilder source = new StringBuilder();
+        for (int i = 0; i < functions; i++) {
+            source.append("    PUSH ").append(i).append('\n')
+                    .append("    CALL function").append(i).append('\n')
+                    .append("    POP\n");
+        }
+        source.append("    HALT\n");
+        for (int i = 0; i < functions; i++) {
+            source.append("function").append(i).append(":\n")
+                    .append("    STORE 0    // The counter\n")
+                    .append("loop").append(i).append(":\n")
+                    .append("    LOAD 0\n")
+                    .append("    NOT\n")
+                    .append("    JIF end").append(i).append('\n')
+                    .append("    LOAD 1\n")
+                    .append("    LOAD 0\n")
+                    .append("    ADD\n")
+                    .append("    STORE 1\n")
+                    .append("    LOAD 0\n")
+                    .append("    PUSH 1\n")
+                    .append("    SUB\n")
+                    .append("    STORE 0\n")
+                    .append("    JMP loop").append(i).append('\n')
+                    .append("end").append(i).append(":\n")
+                    .append("    LOAD 1\n")
+                    .append("    RET\n")
+                    .append('\n');
+        }
+        return source.toString();
+    }
+
+    /**
+     * Adds the array b to the array a, element by element, and pushes the sum of a, with a loop that
+     * processes one word at a time. The arrays have {@code size} words each, a at address 0 and b right after it:
+     * <pre>
+     * int i = size, total = 0;
+     * while (i != 0) {
+     *     i = i - 1;
+     *     a[i] = a[i] + b[i];
+     *     total = total + a[i];
+     * }
+     * </pre>
+     */
+    public static int[] scalarAddAndSum(int size) {
+        return new int[]{
+                PUSH, size,
+                STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0,
+                NOT,
+                JIF, 37,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                LOAD, 0,
+                LOAD, 0,
+                MLOAD,
+                LOAD, 0,
+                PUSH, size,
+                ADD,
+                MLOAD,
+                ADD,
+                DUP,
+                LOAD, 1,
+                ADD,
+                STORE, 1,
+                MSTORE,
+                JMP, 4,
+                // Here is address 37
+                LOAD, 1,
+                HALT
+        };
+    }
+
+    /**
+     * Does the same as {@link #scalarAddAndSum(int)}, with a VADD and a VSUM over the whole arrays.
+     */
+    public static int[] vectorAddAndSum(int size) {
+        return new int[]{
+                PUSH, 0,
+                PUSH, size,
+                PUSH, 0,
+                PUSH, size,
+                VADD,
+                PUSH, 0,
+                PUSH, size,
+                VSUM,
+                HALT
+        };
+    }
+}
@@ -0,0 +1,53 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the dispatch cost of the switch loop of {@link CPU} with the pre-decoded {@link PredecodedCPU}.
+ * Both run the same loop; the program is decoded only once, in the setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class DispatchBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int iterations;
+
+    private int[] program;
+    private DecodedProgram decodedProgram;
+
+    @Setup
+    public void setUp() {
+        program = BenchmarkPrograms.arithmeticLoop(iterations);
+        decodedProgram = DecodedProgram.decode(program);
+    }
+
+    @Benchmark
+    public int switchLoop() {
+        CPU cpu = new CPU(program);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int predecoded() {
+        PredecodedCPU cpu = new PredecodedCPU(decodedProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+}
@@ -0,0 +1,82 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the verified interpreter with the JIT compiler, on a loop in the main code and on a recursive function.
+ * The compiled benchmarks share a {@link JitCompiler}, so they measure the steady state; the cold ones create
+ * a new compiler every time, so they include the compilation and the JVM's own warm up of the generated classes.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class JitBenchmark {
+    private VerifiedProgram loop;
+    private VerifiedProgram fibonacci;
+    private JitCompiler loopJit;
+    private JitCompiler fibonacciJit;
+
+    @Setup
+    public void setUp() {
+        loop = Verifier.verify(BenchmarkPrograms.arithmeticLoop(1000000));
+        fibonacci = Verifier.verify(BenchmarkPrograms.recursiveFibonacci(20));
+        loopJit = new JitCompiler(loop, JitSettings.DEFAULT);
+        fibonacciJit = new JitCompiler(fibonacci, JitSettings.DEFAULT);
+    }
+
+    @Benchmark
+    public int loopInterpreted() {
+        CPU cpu = new CPU(loop);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int loopCompiled() {
+        CPU cpu = new CPU(loopJit);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int loopCompiledCold() {
+        CPU cpu = new CPU(loop, JitSettings.DEFAULT);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int fibonacciInterpreted() {
+        CPU cpu = new CPU(fibonacci);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+
+    @Benchmark
+    public int fibonacciCompiled() {
+        CPU cpu = new CPU(fibonacciJit);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+
+    @Benchmark
+    public int fibonacciCompiledCold() {
+        CPU cpu = new CPU(fibonacci, JitSettings.DEFAULT);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+}
@@ -0,0 +1,46 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a loop that mostly reads and writes variables, with an increasing number of variables in the frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class LocalsBenchmark {
+    @Param({"1000", "10000"})
+    public int iterations;
+
+    @Param({"1", "8", "64"})
+    public int variables;
+
+    private VerifiedProgram program;
+
+    @Setup
+    public void setUp() {
+        program = Verifier.verify(BenchmarkPrograms.localsLoop(iterations, variables));
+    }
+
+    @Benchmark
+    public int localsLoop() {
+        CPU cpu = new CPU(program);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(variables);
+    }
+}
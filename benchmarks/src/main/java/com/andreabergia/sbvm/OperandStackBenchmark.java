@@ -0,0 +1,52 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures a stack-heavy loop. Run it with "-prof gc" to see the allocation rate of the operand stack.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class OperandStackBenchmark {
+    @Param({"10000"})
+    public int iterations;
+
+    private int[] program;
+    private VerifiedProgram verifiedProgram;
+
+    @Setup
+    public void setUp() {
+        program = BenchmarkPrograms.arithmeticLoop(iterations);
+        verifiedProgram = Verifier.verify(program);
+    }
+
+    @Benchmark
+    public int arithmeticLoop() {
+        CPU cpu = new CPU(program);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int arithmeticLoopVerified() {
+        CPU cpu = new CPU(verifiedProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+}
@@ -0,0 +1,96 @@
+package com.andreabergia.sbvm;
+
+import org.antlr.v4.runtime.ANTLRInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the time needed to get a program ready to run from its source, which has to be assembled,
+ * and from a file in the binary format, which is only mapped and copied into an array. The cached
+ * benchmarks measure the hits of an {@link AssemblyCache}, from the memory and from the disk.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class ProgramLoadingBenchmark {
+    @Param({"10", "1000", "10000"})
+    public int functions;
+
+    private Path sourceFile;
+    private Path binaryFile;
+    private String source;
+    private AssemblyCache memoryCache;
+    private Path cacheDirectory;
+    private AssemblyCache diskCache;
+
+    @Setup
+    public void setUp() throws IOException {
+        source = BenchmarkPrograms.assemblySource(functions);
+        sourceFile = Files.createTempFile("sbvm", ".sbvm");
+        Files.write(sourceFile, source.getBytes(StandardCharsets.UTF_8));
+        binaryFile = Files.createTempFile("sbvm", ".sbc");
+        ProgramVisitor programVisitor = ProgramVisitor.visitProgram(new ANTLRInputStream(source));
+        BinaryProgram.write(binaryFile, programVisitor.generateProgram(), programVisitor.getLabels(),
+                Collections.emptyMap());
+
+        memoryCache = new AssemblyCache(Long.MAX_VALUE);
+        memoryCache.generateProgram(source);
+        cacheDirectory = Files.createTempDirectory("sbvm");
+        diskCache = new AssemblyCache(0, cacheDirectory, Long.MAX_VALUE);
+        diskCache.generateProgram(source);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.delete(sourceFile);
+        Files.delete(binaryFile);
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(cacheDirectory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(cacheDirectory);
+    }
+
+    @Benchmark
+    public int[] assembleSource() throws IOException {
+        String source = new String(Files.readAllBytes(sourceFile), StandardCharsets.UTF_8);
+        return ProgramVisitor.generateProgram(new ANTLRInputStream(source));
+    }
+
+    @Benchmark
+    public int[] loadBinary() throws IOException {
+        return BinaryProgram.load(binaryFile).toArray();
+    }
+
+    @Benchmark
+    public int[] memoryCacheHit() {
+        return memoryCache.generateProgram(source);
+    }
+
+    @Benchmark
+    public int[] diskCacheHit() {
+        return diskCache.generateProgram(source);
+    }
+}
@@ -0,0 +1,66 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of CALL and RET: the Fibonacci function makes many shallow calls,
+ * while the recursive sum makes few calls that grow the call stack to the given depth.
+ * The tail recursive sum makes as many calls, but they all reuse the same frame.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RecursionBenchmark {
+    @Param({"10", "15", "20"})
+    public int fibonacciNumber;
+
+    @Param({"100", "1000", "10000"})
+    public int depth;
+
+    private VerifiedProgram fibonacci;
+    private VerifiedProgram sum;
+    private VerifiedProgram tailSum;
+
+    @Setup
+    public void setUp() {
+        fibonacci = Verifier.verify(BenchmarkPrograms.recursiveFibonacci(fibonacciNumber));
+        sum = Verifier.verify(BenchmarkPrograms.recursiveSum(depth));
+        tailSum = Verifier.verify(BenchmarkPrograms.tailRecursiveSum(depth));
+    }
+
+    @Benchmark
+    public int fibonacci() {
+        CPU cpu = new CPU(fibonacci);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+
+    @Benchmark
+    public int deepRecursion() {
+        CPU cpu = new CPU(sum);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+
+    @Benchmark
+    public int deepTailRecursion() {
+        CPU cpu = new CPU(tailSum);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+}
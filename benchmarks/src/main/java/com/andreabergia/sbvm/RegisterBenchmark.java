@@ -0,0 +1,57 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the verified {@link CPU} with the {@link RegisterCPU} on the same programs: a loop that works
+ * on variables, and the recursive Fibonacci function, which makes many calls. The programs are verified and
+ * translated only once, in the setup.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RegisterBenchmark {
+    @Param({"loop", "fibonacci"})
+    public String program;
+
+    private VerifiedProgram verifiedProgram;
+    private RegisterProgram registerProgram;
+
+    @Setup
+    public void setUp() {
+        int[] code = program.equals("loop")
+                ? BenchmarkPrograms.arithmeticLoop(100000)
+                : BenchmarkPrograms.recursiveFibonacci(20);
+        verifiedProgram = Verifier.verify(code);
+        registerProgram = RegisterProgram.translate(verifiedProgram);
+    }
+
+    @Benchmark
+    public boolean stackMachine() {
+        CPU cpu = new CPU(verifiedProgram);
+        cpu.run();
+        return cpu.isHalted();
+    }
+
+    @Benchmark
+    public boolean registerMachine() {
+        RegisterCPU cpu = new RegisterCPU(registerProgram);
+        cpu.run();
+        return cpu.isHalted();
+    }
+}
@@ -0,0 +1,91 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of time slicing: many CPUs, each one running a loop, are run to HALT by a {@link Scheduler},
+ * and compared with running them one after the other. Smaller time slices are fairer, but switch more often.
+ * The scheduler's statistics, including the run queue latency, are printed at the end of each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SchedulerBenchmark {
+    private static final int ITERATIONS = 100;
+
+    @Param({"1000", "10000"})
+    public int cpus;
+
+    @Param({"100", "1000", "10000"})
+    public int timeSlice;
+
+    @Param({"2"})
+    public int workers;
+
+    private Program program;
+    private Scheduler scheduler;
+
+    @Setup
+    public void setUp() {
+        program = Program.verify(BenchmarkPrograms.arithmeticLoopOnInput());
+        scheduler = new Scheduler(workers, timeSlice);
+    }
+
+    @TearDown
+    public void tearDown() {
+        if (scheduler.getStats().getSlices() > 0) {
+            System.out.println();
+            System.out.println(scheduler.getStats());
+        }
+        scheduler.close();
+    }
+
+    @Benchmark
+    public int scheduled() throws Exception {
+        List<CompletableFuture<CPU>> futures = new ArrayList<>(cpus);
+        for (int i = 0; i < cpus; i++) {
+            futures.add(scheduler.submit(newCPU()));
+        }
+        int total = 0;
+        for (CompletableFuture<CPU> future : futures) {
+            total += future.get().getCurrentFrame().getVariable(1);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public int sequential() {
+        int total = 0;
+        for (int i = 0; i < cpus; i++) {
+            CPU cpu = newCPU();
+            cpu.run();
+            total += cpu.getCurrentFrame().getVariable(1);
+        }
+        return total;
+    }
+
+    private CPU newCPU() {
+        CPU cpu = new CPU(program);
+        cpu.getCurrentFrame().setVariable(0, ITERATIONS);
+        return cpu;
+    }
+}
@@ -0,0 +1,71 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link CPU#snapshot()} and {@link CPU#restore(ByteBuffer)} on CPUs with a large state: either
+ * a stack with the given number of entries, or a recursion as deep as the given number of calls, which also
+ * leaves one entry on the stack for every call. Divide the size of the state by the score to get the throughput.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SnapshotBenchmark {
+    @Param({"1000", "100000", "1000000", "10000000"})
+    public int size;
+
+    @Param({"stack", "frames"})
+    public String state;
+
+    private CPU cpu;
+    private CPU target;
+    private ByteBuffer snapshot;
+
+    @Setup
+    public void setUp() {
+        Program program;
+        if (state.equals("stack")) {
+            program = Program.of(BenchmarkPrograms.stackFiller(size));
+            cpu = new CPU(program);
+            cpu.run();
+        } else {
+            // The recursion executes 6 instructions for every call, and stops before reaching the bottom
+            program = Program.verify(BenchmarkPrograms.recursiveSum(size + 1));
+            cpu = new CPU(program);
+            cpu.setMaxCallDepth(size + 1);
+            cpu.runFor(2 + 6L * size);
+        }
+        snapshot = cpu.snapshot();
+        target = new CPU(program);
+        target.setMaxCallDepth(size + 1);
+        System.out.println();
+        System.out.println("Snapshot size: " + snapshot.remaining() + " bytes");
+    }
+
+    @Benchmark
+    public ByteBuffer snapshot() {
+        return cpu.snapshot();
+    }
+
+    @Benchmark
+    public CPU restore() {
+        target.restore(snapshot);
+        return target;
+    }
+}
@@ -0,0 +1,72 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a loop made of base instructions with the same loop after the superinstruction fusion,
+ * on the verified interpreter and on the pre-decoded engine.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class SuperinstructionBenchmark {
+    @Param({"10000"})
+    public int iterations;
+
+    private VerifiedProgram baseProgram;
+    private VerifiedProgram fusedProgram;
+    private DecodedProgram decodedBaseProgram;
+    private DecodedProgram decodedFusedProgram;
+
+    @Setup
+    public void setUp() {
+        int[] program = BenchmarkPrograms.countingLoop(iterations);
+        baseProgram = Verifier.verify(program);
+        fusedProgram = Optimizer.fuse(baseProgram).getProgram();
+        decodedBaseProgram = DecodedProgram.decode(program);
+        decodedFusedProgram = DecodedProgram.decode(Optimizer.fuse(baseProgram).getInstructions());
+    }
+
+    @Benchmark
+    public int baseInstructions() {
+        CPU cpu = new CPU(baseProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int superinstructions() {
+        CPU cpu = new CPU(fusedProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int predecodedBaseInstructions() {
+        PredecodedCPU cpu = new PredecodedCPU(decodedBaseProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int predecodedSuperinstructions() {
+        PredecodedCPU cpu = new PredecodedCPU(decodedFusedProgram);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+}
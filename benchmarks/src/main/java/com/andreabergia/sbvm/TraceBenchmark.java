@@ -0,0 +1,66 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the verified interpreter, the JIT compiler and the compiled traces on a loop in the main code.
+ * The compilers are shared by all the runs, so the compiled benchmarks measure the steady state, while
+ * the cold one creates a new trace compiler every time, and includes the recording and the compilation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class TraceBenchmark {
+    private VerifiedProgram loop;
+    private JitCompiler jit;
+    private TraceCompiler traceCompiler;
+
+    @Setup
+    public void setUp() {
+        loop = Verifier.verify(BenchmarkPrograms.arithmeticLoop(1000000));
+        jit = new JitCompiler(loop, JitSettings.DEFAULT);
+        traceCompiler = new TraceCompiler(loop, JitSettings.DEFAULT);
+    }
+
+    @Benchmark
+    public int interpreted() {
+        CPU cpu = new CPU(loop);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int jitCompiled() {
+        CPU cpu = new CPU(jit);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int traced() {
+        CPU cpu = new CPU(traceCompiler);
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+
+    @Benchmark
+    public int tracedCold() {
+        CPU cpu = new CPU(new TraceCompiler(loop, JitSettings.DEFAULT));
+        cpu.run();
+        return cpu.getCurrentFrame().getVariable(1);
+    }
+}
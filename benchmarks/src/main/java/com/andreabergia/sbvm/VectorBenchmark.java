@@ -0,0 +1,69 @@
+package com.andreabergia.sbvm;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares a loop that adds two arrays in the memory one word at a time, interpreted and compiled by the JIT,
+ * with the same work done by a VADD and a VSUM. Every run adds b to a again, so the values change,
+ * but the work does not.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class VectorBenchmark {
+    @Param({"1000", "100000"})
+    public int size;
+
+    private VerifiedProgram scalar;
+    private VerifiedProgram vector;
+    private JitCompiler scalarJit;
+    private Memory memory;
+
+    @Setup
+    public void setUp() {
+        scalar = Verifier.verify(BenchmarkPrograms.scalarAddAndSum(size));
+        vector = Verifier.verify(BenchmarkPrograms.vectorAddAndSum(size));
+        scalarJit = new JitCompiler(scalar, JitSettings.DEFAULT);
+        memory = Memory.allocate(size * 2);
+        for (int i = 0; i < size; i++) {
+            memory.set(i, i);
+            memory.set(size + i, 1);
+        }
+    }
+
+    @Benchmark
+    public int scalarLoop() {
+        return run(new CPU(scalar));
+    }
+
+    @Benchmark
+    public int scalarLoopCompiled() {
+        return run(new CPU(scalarJit));
+    }
+
+    @Benchmark
+    public int vectorInstructions() {
+        return run(new CPU(vector));
+    }
+
+    private int run(CPU cpu) {
+        cpu.setMemory(memory);
+        cpu.run();
+        return cpu.getStack().iterator().next();
+    }
+}
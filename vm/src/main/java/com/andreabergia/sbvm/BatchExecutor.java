@@ -0,0 +1,128 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Runs many verified programs, or the same program on many inputs, on a pool of threads.
+ * <p>
+ * Every worker thread keeps a {@link CPU} for each of the last few programs it has run, across batches,
+ * and {@link CPU#reset() resets} it between the runs, so running one of those programs again allocates nothing.
+ * Workers take the jobs in small chunks
+ * from a shared counter, so that short and long jobs are spread evenly; the results are returned
+ * in the same order as the jobs.
+ */
+public final class BatchExecutor implements AutoCloseable {
+    private static final int CHUNK_SIZE = 16;
+    private static final int CPUS_PER_THREAD = 8;
+
+    private final ForkJoinPool pool;
+    // VerifiedProgram does not override equals, so the CPUs are looked up by identity
+    private final ThreadLocal<Map<VerifiedProgram, CPU>> cpus = ThreadLocal.withInitial(() ->
+            new LinkedHashMap<VerifiedProgram, CPU>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<VerifiedProgram, CPU> eldest) {
+                    return size() > CPUS_PER_THREAD;
+                }
+            });
+
+    /**
+     * Creates an executor that uses one thread for every available processor.
+     */
+    public BatchExecutor() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    public BatchExecutor(int parallelism) {
+        checkArgument(parallelism > 0, "Invalid parallelism %s", parallelism);
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    /**
+     * Runs every program to HALT, and returns what the given function extracts from the CPU that has run it.
+     * The function is called on the worker threads, and must not keep a reference to the CPU, which will be reused.
+     */
+    public <R> List<R> execute(List<VerifiedProgram> programs, Function<? super CPU, ? extends R> result) {
+        return execute(programs.size(), programs::get, index -> null, result);
+    }
+
+    /**
+     * Runs the program once for every input, and returns what the given function extracts from the CPU
+     * after every run. Each input is stored in the first variables of the main code before running,
+     * so the program finds {@code input[i]} in variable {@code i}.
+     */
+    public <R> List<R> execute(VerifiedProgram program, List<int[]> inputs, Function<? super CPU, ? extends R> result) {
+        return execute(inputs.size(), index -> program, inputs::get, result);
+    }
+
+    private <R> List<R> execute(int jobsCount, Function<Integer, VerifiedProgram> programs,
+                                Function<Integer, int[]> inputs, Function<? super CPU, ? extends R> result) {
+        Object[] results = new Object[jobsCount];
+        AtomicInteger nextJob = new AtomicInteger();
+        int workersCount = Math.min(getParallelism(), (jobsCount + CHUNK_SIZE - 1) / CHUNK_SIZE);
+        List<Callable<Void>> workers = new ArrayList<>();
+        for (int i = 0; i < workersCount; i++) {
+            workers.add(() -> {
+                Map<VerifiedProgram, CPU> cpus = this.cpus.get();
+                for (int from = nextJob.getAndAdd(CHUNK_SIZE); from < jobsCount; from = nextJob.getAndAdd(CHUNK_SIZE)) {
+                    for (int job = from; job < Math.min(from + CHUNK_SIZE, jobsCount); job++) {
+                        CPU cpu = cpus.computeIfAbsent(programs.apply(job), CPU::new);
+                        cpu.reset();
+                        int[] input = inputs.apply(job);
+                        if (input != null) {
+                            for (int varNumber = 0; varNumber < input.length; varNumber++) {
+                                cpu.getCurrentFrame().setVariable(varNumber, input[varNumber]);
+                            }
+                        }
+                        cpu.run();
+                        results[job] = result.apply(cpu);
+                    }
+                }
+                return null;
+            });
+        }
+
+        try {
+            for (Future<Void> future : pool.invokeAll(workers)) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while running a batch", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            } else if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IllegalStateException(e.getCause());
+        }
+
+        @SuppressWarnings("unchecked")
+        List<R> resultsList = (List<R>) Arrays.asList(results);
+        return resultsList;
+    }
+
+    /**
+     * Stops the worker threads, after the running batches have completed.
+     */
+    @Override
+    public void close() {
+        pool.shutdown();
+    }
+}
@@ -0,0 +1,348 @@
+package com.andreabergia.sbvm;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A program stored in the sbvm binary format, which can be loaded without assembling it again.
+ * <p>
+ * A file starts with a header: the magic number {@code "SBVM"}, the format version as a short, a short
+ * reserved for flags, and the number of sections. Each section has a type, a length in bytes, and a payload
+ * padded to a multiple of four bytes. All numbers are big endian ints, unless noted otherwise. The sections are:
+ * <ul>
+ * <li>the code, which is mandatory: the program's words;</li>
+ * <li>the symbols: a count, followed by the address, the name length as an unsigned short, and the UTF-8 name of each label;</li>
+ * <li>the metadata: a count, followed by pairs of strings, each one stored like the symbol names.</li>
+ * </ul>
+ * An object file stores an {@link ObjectModule} instead of a program: it has the {@link #OBJECT_MODULE_FLAG}
+ * flag, its symbols are the labels of the module, and it has three more sections:
+ * <ul>
+ * <li>the exports: a count, followed by the names of the exported labels, stored like the symbol names;</li>
+ * <li>the relocations: the positions of the words that contain a local address;</li>
+ * <li>the imports: stored like the symbols, with the position of the word that refers to each imported label.</li>
+ * </ul>
+ * Unknown sections are skipped, so that newer writers can add sections that older readers ignore.
+ * Loaded files are memory mapped, and the code is read in place from the mapping.
+ */
+public final class BinaryProgram {
+    public static final int MAGIC = 0x5342564D; // "SBVM"
+    public static final int VERSION = 1;
+
+    static final int CODE_SECTION = 1;
+    static final int SYMBOLS_SECTION = 2;
+    static final int METADATA_SECTION = 3;
+    static final int EXPORTS_SECTION = 4;
+    static final int RELOCATIONS_SECTION = 5;
+    static final int IMPORTS_SECTION = 6;
+
+    /**
+     * The flag of the object files.
+     */
+    public static final int OBJECT_MODULE_FLAG = 1;
+
+    private final int flags;
+    private final IntBuffer code;
+    private final Map<String, Integer> symbols;
+    private final Map<String, String> metadata;
+    private final Set<String> exports;
+    private final int[] relocations;
+    private final Map<Integer, String> imports;
+
+    private BinaryProgram(int flags, IntBuffer code, Map<String, Integer> symbols, Map<String, String> metadata,
+                          Set<String> exports, int[] relocations, Map<Integer, String> imports) {
+        this.flags = flags;
+        this.code = code;
+        this.symbols = Collections.unmodifiableMap(symbols);
+        this.metadata = Collections.unmodifiableMap(metadata);
+        this.exports = exports;
+        this.relocations = relocations;
+        this.imports = imports;
+    }
+
+    /**
+     * Returns a read-only view of the program's words. For a loaded file, this reads directly from the mapped file.
+     */
+    public IntBuffer getCode() {
+        return code.duplicate();
+    }
+
+    /**
+     * Copies the program's words into an array, ready to be run or verified.
+     */
+    public int[] toArray() {
+        int[] result = new int[code.remaining()];
+        code.duplicate().get(result);
+        return result;
+    }
+
+    /**
+     * Returns the labels of the program, with their address.
+     */
+    public Map<String, Integer> getSymbols() {
+        return symbols;
+    }
+
+    public Map<String, String> getMetadata() {
+        return metadata;
+    }
+
+    public boolean isObjectModule() {
+        return (flags & OBJECT_MODULE_FLAG) != 0;
+    }
+
+    /**
+     * Returns the module stored in an object file, with the given name.
+     */
+    public ObjectModule toObjectModule(String name) throws InvalidProgramException {
+        if (!isObjectModule()) {
+            throw new InvalidProgramException("Not an object file");
+        }
+        try {
+            return new ObjectModule(name, toArray(), symbols, exports, relocations, imports);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidProgramException("Invalid object file: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encodes the given program, its labels and its metadata in the binary format.
+     */
+    public static ByteBuffer encode(int[] code, Map<String, Integer> symbols, Map<String, String> metadata) {
+        List<ByteBuffer> sections = new ArrayList<>();
+        sections.add(encodeInts(CODE_SECTION, code));
+        sections.add(encodeSymbols(SYMBOLS_SECTION, symbols.values(), symbols.keySet()));
+        sections.add(encodeMetadata(metadata));
+        return encode(0, sections);
+    }
+
+    /**
+     * Encodes the given module and metadata as an object file.
+     */
+    public static ByteBuffer encode(ObjectModule module, Map<String, String> metadata) {
+        List<ByteBuffer> sections = new ArrayList<>();
+        sections.add(encodeInts(CODE_SECTION, module.getCode()));
+        sections.add(encodeSymbols(SYMBOLS_SECTION, module.getLabels().values(), module.getLabels().keySet()));
+        sections.add(encodeMetadata(metadata));
+        sections.add(encodeSymbols(EXPORTS_SECTION, null, module.getExports()));
+        sections.add(encodeInts(RELOCATIONS_SECTION, module.getRelocations()));
+        sections.add(encodeSymbols(IMPORTS_SECTION, module.getImports().keySet(), module.getImports().values()));
+        return encode(OBJECT_MODULE_FLAG, sections);
+    }
+
+    private static ByteBuffer encode(int flags, List<ByteBuffer> sections) {
+        int length = 12;
+        for (ByteBuffer section : sections) {
+            length += section.remaining();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        buffer.putInt(MAGIC).putShort((short) VERSION).putShort((short) flags).putInt(sections.size());
+        for (ByteBuffer section : sections) {
+            buffer.put(section);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns a section made of the given words.
+     */
+    private static ByteBuffer encodeInts(int type, int[] words) {
+        ByteBuffer buffer = ByteBuffer.allocate(8 + 4 * words.length);
+        buffer.putInt(type).putInt(4 * words.length);
+        buffer.asIntBuffer().put(words);
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Returns a section with a count and the given names, each one preceded by its address unless they are null.
+     */
+    private static ByteBuffer encodeSymbols(int type, Iterable<Integer> addresses, Iterable<String> names) {
+        List<byte[]> encodedNames = new ArrayList<>();
+        int length = 4;
+        for (String name : names) {
+            byte[] encodedName = encodeString(name);
+            encodedNames.add(encodedName);
+            length += (addresses == null ? 0 : 4) + 2 + encodedName.length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + padded(length));
+        buffer.putInt(type).putInt(length).putInt(encodedNames.size());
+        int i = 0;
+        if (addresses != null) {
+            for (int address : addresses) {
+                buffer.putInt(address);
+                putString(buffer, encodedNames.get(i++));
+            }
+        } else {
+            for (byte[] encodedName : encodedNames) {
+                putString(buffer, encodedName);
+            }
+        }
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static ByteBuffer encodeMetadata(Map<String, String> metadata) {
+        int length = 4;
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            length += 2 + encodeString(entry.getKey()).length + 2 + encodeString(entry.getValue()).length;
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate(8 + padded(length));
+        buffer.putInt(METADATA_SECTION).putInt(length).putInt(metadata.size());
+        for (Map.Entry<String, String> entry : metadata.entrySet()) {
+            putString(buffer, encodeString(entry.getKey()));
+            putString(buffer, encodeString(entry.getValue()));
+        }
+        buffer.position(buffer.capacity());
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * Writes the given program to a file, replacing it if it exists.
+     */
+    public static void write(Path path, int[] code, Map<String, Integer> symbols, Map<String, String> metadata)
+            throws IOException {
+        write(path, encode(code, symbols, metadata));
+    }
+
+    /**
+     * Writes the given module to an object file, replacing it if it exists.
+     */
+    public static void write(Path path, ObjectModule module, Map<String, String> metadata) throws IOException {
+        write(path, encode(module, metadata));
+    }
+
+    private static void write(Path path, ByteBuffer buffer) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Maps the given file in memory, and decodes it. The mapping stays valid after the file has been closed.
+     */
+    public static BinaryProgram load(Path path) throws IOException, InvalidProgramException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    /**
+     * Decodes a program in the binary format. The code is not copied, but read in place from the buffer.
+     */
+    public static BinaryProgram decode(ByteBuffer buffer) throws InvalidProgramException {
+        buffer = buffer.duplicate();
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new InvalidProgramException("Not an sbvm binary program");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw new InvalidProgramException("Unsupported binary program version " + version);
+            }
+            int flags = buffer.getShort();
+            int sectionsCount = buffer.getInt();
+
+            IntBuffer code = null;
+            Map<String, Integer> symbols = new LinkedHashMap<>();
+            Map<String, String> metadata = new LinkedHashMap<>();
+            Set<String> exports = new LinkedHashSet<>();
+            int[] relocations = new int[0];
+            Map<Integer, String> imports = new LinkedHashMap<>();
+            for (int i = 0; i < sectionsCount; i++) {
+                int type = buffer.getInt();
+                int length = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    throw new InvalidProgramException("Truncated binary program");
+                }
+                ByteBuffer payload = buffer.slice();
+                payload.limit(length);
+                switch (type) {
+                    case CODE_SECTION:
+                        code = payload.asIntBuffer().asReadOnlyBuffer();
+                        break;
+                    case SYMBOLS_SECTION:
+                        for (int count = payload.getInt(); count > 0; count--) {
+                            int address = payload.getInt();
+                            symbols.put(getString(payload), address);
+                        }
+                        break;
+                    case METADATA_SECTION:
+                        for (int count = payload.getInt(); count > 0; count--) {
+                            metadata.put(getString(payload), getString(payload));
+                        }
+                        break;
+                    case EXPORTS_SECTION:
+                        for (int count = payload.getInt(); count > 0; count--) {
+                            exports.add(getString(payload));
+                        }
+                        break;
+                    case RELOCATIONS_SECTION:
+                        relocations = new int[length / 4];
+                        payload.asIntBuffer().get(relocations);
+                        break;
+                    case IMPORTS_SECTION:
+                        for (int count = payload.getInt(); count > 0; count--) {
+                            int position = payload.getInt();
+                            imports.put(position, getString(payload));
+                        }
+                        break;
+                    default:
+                        // A section added by a newer version: skip it
+                        break;
+                }
+                buffer.position(buffer.position() + Math.min(padded(length), buffer.remaining()));
+            }
+            if (code == null) {
+                throw new InvalidProgramException("The binary program has no code section");
+            }
+            return new BinaryProgram(flags, code, symbols, metadata, Collections.unmodifiableSet(exports),
+                    relocations, Collections.unmodifiableMap(imports));
+        } catch (BufferUnderflowException e) {
+            throw new InvalidProgramException("Truncated binary program");
+        }
+    }
+
+    private static int padded(int length) {
+        return (length + 3) & ~3;
+    }
+
+    private static byte[] encodeString(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IllegalArgumentException("String too long for a binary program: " + s.substring(0, 32) + "...");
+        }
+        return bytes;
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putShort((short) bytes.length).put(bytes);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,149 @@
+package com.andreabergia.sbvm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.SUB;
+
+/**
+ * The JVM bytecode for the sbvm instructions, shared by the {@link JitCompiler} and the {@link TraceCompiler}.
+ * The results must match {@link CPU#doBinaryOp(int, int, int)}.
+ */
+final class Bytecode {
+    private Bytecode() {
+    }
+
+    /**
+     * Generates a public constructor that only calls the one of Object.
+     */
+    static void generateConstructor(ClassWriter cw) {
+        MethodVisitor init = cw.visitMethod(Opcodes.ACC_PUBLIC, "<init>", "()V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, "java/lang/Object", "<init>", "()V", false);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+    }
+
+    /**
+     * Replaces the two items on the top of the JVM stack with the result of the given binary instruction.
+     * AND and OR keep the second item in the given local while they test the first one.
+     */
+    static void generateBinaryOperation(MethodVisitor mv, int instruction, int scratchLocal) {
+        switch (instruction) {
+            case ADD:
+                mv.visitInsn(Opcodes.IADD);
+                break;
+            case SUB:
+                mv.visitInsn(Opcodes.ISUB);
+                break;
+            case MUL:
+                mv.visitInsn(Opcodes.IMUL);
+                break;
+            case DIV:
+                mv.visitInsn(Opcodes.IDIV);
+                break;
+            case ISEQ:
+            case ISGE:
+            case ISGT:
+                pushBoolean(mv, getComparison(instruction));
+                break;
+            case AND:
+            case OR: {
+                // Both operands are converted to booleans, like the interpreter does
+                int jumpOnFirstResult = instruction == AND ? Opcodes.IFEQ : Opcodes.IFNE;
+                Label shortCircuit = new Label();
+                Label end = new Label();
+                mv.visitVarInsn(Opcodes.ISTORE, scratchLocal);
+                mv.visitJumpInsn(jumpOnFirstResult, shortCircuit);
+                mv.visitVarInsn(Opcodes.ILOAD, scratchLocal);
+                mv.visitJumpInsn(jumpOnFirstResult, shortCircuit);
+                mv.visitInsn(instruction == AND ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+                mv.visitJumpInsn(Opcodes.GOTO, end);
+                mv.visitLabel(shortCircuit);
+                mv.visitInsn(instruction == AND ? Opcodes.ICONST_0 : Opcodes.ICONST_1);
+                mv.visitLabel(end);
+                break;
+            }
+            default:
+                throw new AssertionError("Not a binary instruction: " + instruction);
+        }
+    }
+
+    /**
+     * Returns the JVM comparison that jumps when the given comparison, or comparison jump, is true.
+     */
+    static int getComparison(int instruction) {
+        switch (instruction) {
+            case ISEQ:
+            case JEQ:
+                return Opcodes.IF_ICMPEQ;
+            case ISGE:
+            case JGE:
+                return Opcodes.IF_ICMPGE;
+            case ISGT:
+            case JGT:
+                return Opcodes.IF_ICMPGT;
+            default:
+                throw new AssertionError("Not a comparison: " + instruction);
+        }
+    }
+
+    /**
+     * Returns the JVM comparison that jumps when the given comparison, or comparison jump, is false.
+     */
+    static int getNegatedComparison(int instruction) {
+        switch (getComparison(instruction)) {
+            case Opcodes.IF_ICMPEQ:
+                return Opcodes.IF_ICMPNE;
+            case Opcodes.IF_ICMPGE:
+                return Opcodes.IF_ICMPLT;
+            default:
+                return Opcodes.IF_ICMPLE;
+        }
+    }
+
+    /**
+     * Replaces the value on the top of the JVM stack, or the two values for a comparison of two ints,
+     * with 1 if the given jump would be taken, or 0 otherwise.
+     */
+    static void pushBoolean(MethodVisitor mv, int jumpIfTrue) {
+        Label isTrue = new Label();
+        Label end = new Label();
+        mv.visitJumpInsn(jumpIfTrue, isTrue);
+        mv.visitInsn(Opcodes.ICONST_0);
+        mv.visitJumpInsn(Opcodes.GOTO, end);
+        mv.visitLabel(isTrue);
+        mv.visitInsn(Opcodes.ICONST_1);
+        mv.visitLabel(end);
+    }
+
+    /**
+     * Pushes an int constant with the shortest instruction.
+     */
+    static void pushConstant(MethodVisitor mv, int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
+}
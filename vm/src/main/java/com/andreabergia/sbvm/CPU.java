@@ -1,9 +1,8 @@
 package com.andreabergia.sbvm;
 
-import java.util.ArrayDeque;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.Deque;
-import java.util.Stack;
 
 import static com.andreabergia.sbvm.Instructions.ADD;
 import static com.andreabergia.sbvm.Instructions.AND;
@@ -11,12 +10,22 @@ import static com.andreabergia.sbvm.Instructions.CALL;
 import static com.andreabergia.sbvm.Instructions.DIV;
 import static com.andreabergia.sbvm.Instructions.DUP;
 import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
 import static com.andreabergia.sbvm.Instructions.ISEQ;
 import static com.andreabergia.sbvm.Instructions.ISGE;
 import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
 import static com.andreabergia.sbvm.Instructions.JIF;
 import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
 import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
 import static com.andreabergia.sbvm.Instructions.MUL;
 import static com.andreabergia.sbvm.Instructions.NOT;
 import static com.andreabergia.sbvm.Instructions.OR;
@@ -25,41 +34,246 @@ import static com.andreabergia.sbvm.Instructions.PUSH;
 import static com.andreabergia.sbvm.Instructions.RET;
 import static com.andreabergia.sbvm.Instructions.STORE;
 import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
 import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
 import static com.google.common.base.Preconditions.checkState;
 
 
-public class CPU {
-    private final int[] program;
+public class CPU implements VirtualMachine {
+    /**
+     * Compiled code calls interpreted or compiled functions recursively on the Java stack,
+     * so this many nested compiled calls are allowed before going back to the interpreter.
+     */
+    private static final int MAX_COMPILED_CODE_DEPTH = 256;
+
+    /**
+     * How many calls can be nested, unless {@link #setMaxCallDepth(int)} is used.
+     */
+    public static final int DEFAULT_MAX_CALL_DEPTH = 1 << 18;
+
+    private final Program program;
+    private final int[] code; // The program's words, shared with all the other CPUs running it
     private int instructionAddress = 0;
-    private final Deque<Integer> stack = new ArrayDeque<>();
+    private final IntStack stack = new IntStack();
     private boolean halted = false;
-    private Stack<Frame> frames = new Stack<>();
+    private final CallStack frames;
+    private final int[] localsCount; // Number of local slots of each function, by entry point address
+    private final boolean verified;
+    private final JitCompiler jit;
+    private final JitRuntime jitRuntime;
+    private final TraceCompiler traceCompiler;
+    private int compiledCodeDepth = 0;
+    private Memory memory = Memory.EMPTY;
 
     public CPU(int... instructions) {
-        checkArgument(instructions.length > 0, "A program should have at least an instruction");
-        this.program = instructions;
-        this.frames.push(new Frame(0)); // Prepare the initial frame
+        this(Program.of(instructions), null, null);
+    }
+
+    /**
+     * Creates a CPU for the given program, which can be shared with other CPUs. If the program
+     * has been verified, the {@link #run()} method will skip all the runtime checks.
+     */
+    public CPU(Program program) {
+        this(program, null, null);
+    }
+
+    /**
+     * Creates a CPU for a program that has passed the {@link Verifier}. Its {@link #run()} method
+     * will skip all the runtime checks, since they are known to pass.
+     */
+    public CPU(VerifiedProgram verifiedProgram) {
+        this(verifiedProgram.asProgram(), null, null);
+    }
+
+    /**
+     * Creates a CPU for a verified program, whose {@link #run()} method will compile the hot functions
+     * and loops to JVM bytecode according to the given settings.
+     */
+    public CPU(VerifiedProgram verifiedProgram, JitSettings jitSettings) {
+        this(new JitCompiler(verifiedProgram, jitSettings));
+    }
+
+    /**
+     * Creates a CPU that uses the given JIT compiler, which can be shared with other CPUs.
+     */
+    public CPU(JitCompiler jit) {
+        this(jit.getVerifiedProgram().asProgram(), jit, null);
     }
 
+    /**
+     * Creates a CPU that records and compiles the traces of the hot loops with the given compiler,
+     * which can be shared with other CPUs.
+     */
+    public CPU(TraceCompiler traceCompiler) {
+        this(traceCompiler.getVerifiedProgram().asProgram(), null, traceCompiler);
+    }
+
+    private CPU(Program program, JitCompiler jit, TraceCompiler traceCompiler) {
+        this.program = program;
+        this.code = program.getCode();
+        this.verified = program.isVerified();
+        this.localsCount = program.getLocalsCounts();
+        this.jit = jit;
+        this.jitRuntime = jit != null ? new JitRuntime(this) : null;
+        this.traceCompiler = traceCompiler;
+        this.frames = new CallStack(localsCount[0], DEFAULT_MAX_CALL_DEPTH); // Prepare the initial frame
+    }
+
+    @Override
     public int getInstructionAddress() {
         return instructionAddress;
     }
 
+    @Override
     public Collection<Integer> getStack() {
-        return stack;
+        return stack.asCollection();
     }
 
+    @Override
     public boolean isHalted() {
         return halted;
     }
 
+    public Program getProgram() {
+        return program;
+    }
+
+    public boolean isVerified() {
+        return verified;
+    }
+
+    /**
+     * Returns the JIT compiler used by this CPU, or null if it does not use one.
+     */
+    public JitCompiler getJit() {
+        return jit;
+    }
+
+    /**
+     * Returns the linear memory of the CPU, which is empty unless {@link #setMemory(Memory)} has been called.
+     */
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Sets the linear memory that the program accesses with the memory instructions, such as MLOAD and MSTORE.
+     * It belongs to the caller, so {@link #reset()} does not clear it.
+     */
+    public void setMemory(Memory memory) {
+        this.memory = checkNotNull(memory);
+    }
+
+    public int getMaxCallDepth() {
+        return frames.getMaxDepth();
+    }
+
+    /**
+     * Sets how many calls can be nested: a CALL beyond that throws a {@link CallDepthExceededException}.
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        frames.setMaxDepth(maxCallDepth);
+    }
+
+    /**
+     * Brings the CPU back to the state it had when it was created, so that it can run its program again.
+     * The stack and the frames are reused, so a reset allocates nothing.
+     */
+    public void reset() {
+        instructionAddress = 0;
+        halted = false;
+        stack.clear();
+        frames.reset();
+        compiledCodeDepth = 0;
+    }
+
+    /**
+     * Encodes the state of the CPU: its instruction address, its stack, its frames and whether it has halted.
+     * The snapshot can be restored later into any CPU for the same program, even in another process.
+     * The memory is not part of the snapshot.
+     */
+    public ByteBuffer snapshot() {
+        return CPUSnapshot.encode(this, stack, frames);
+    }
+
+    /**
+     * Replaces the state of the CPU with the one of a {@link #snapshot()}, taken from a CPU for the same program,
+     * and resumes from there. If the snapshot is invalid, the CPU is {@link #reset()} and an exception is thrown.
+     * <p>
+     * The snapshot is trusted to come from a CPU that was running the program: a verified CPU does not check
+     * the stack and the variables while it runs, so restoring a forged snapshot may make it fail unexpectedly.
+     */
+    public void restore(ByteBuffer snapshot) throws InvalidProgramException {
+        int state;
+        try {
+            state = CPUSnapshot.decode(snapshot, this, stack, frames);
+        } catch (InvalidProgramException e) {
+            reset();
+            throw e;
+        }
+        halted = state < 0;
+        instructionAddress = halted ? -1 - state : state;
+        compiledCodeDepth = 0;
+    }
+
+    @Override
     public void run() {
+        if (verified) {
+            if (!halted) {
+                runVerified(1, Long.MAX_VALUE);
+            }
+            return;
+        }
+        while (!halted) {
+            step();
+        }
+    }
+
+    /**
+     * Executes at most the given number of instructions, and returns how many have been executed:
+     * less than the budget only if the program has halted. The CPU can be run again from where it stopped,
+     * also from another thread, as long as it is not used by two threads at the same time.
+     * <p>
+     * Code compiled by the JIT cannot be suspended: it runs until its function returns, and the instructions
+     * it executes are not counted. A compiled trace only runs the whole iterations that fit in the budget,
+     * and the instructions of the last iteration are not counted if a guard leaves it.
+     */
+    public long runFor(long instructionBudget) {
+        checkArgument(instructionBudget >= 0, "Invalid instruction budget %s", instructionBudget);
+        if (halted) {
+            return 0;
+        }
+        if (verified) {
+            return instructionBudget - runVerified(1, instructionBudget);
+        }
+        long executed = 0;
+        while (!halted && executed < instructionBudget) {
+            step();
+            ++executed;
+        }
+        return executed;
+    }
+
+    /**
+     * Executes the program until it halts, counting every instruction in the returned profile.
+     * This runs all the instructions through {@link #step()}, with all the runtime checks and without
+     * the JIT, so that {@link #run()} does not pay anything for the profiler.
+     */
+    public ExecutionProfile runProfiled() {
+        ExecutionProfile profile = new ExecutionProfile(code);
         while (!halted) {
+            int address = instructionAddress;
             step();
+            profile.record(address, instructionAddress);
         }
+        return profile;
     }
 
+    @Override
     public void step() {
         checkState(!halted, "An halted CPU cannot execute the program");
         int nextInstruction = getNextWordFromProgram("Should have a next instruction");
@@ -97,12 +311,14 @@ public class CPU {
 
             case LOAD: {
                 int varNumber = getNextWordFromProgram("Should have the variable number after the LOAD instruction");
+                checkVariableNumber(varNumber);
                 stack.push(getCurrentFrame().getVariable(varNumber));
                 break;
             }
 
             case STORE: {
                 int varNumber = getNextWordFromProgram("Should have the variable number after the STORE instruction");
+                checkVariableNumber(varNumber);
                 checkStackHasAtLeastOneItem("STORE");
                 getCurrentFrame().setVariable(varNumber, stack.pop());
                 break;
@@ -151,11 +367,99 @@ public class CPU {
                 break;
             }
 
+            case JEQ:
+            case JGE:
+            case JGT:
+            case JZ: {
+                int address = getNextWordFromProgram("Should have the address after the conditional jump instruction");
+                checkJumpAddress(address);
+                if (instruction == JZ) {
+                    checkStackHasAtLeastOneItem("JZ");
+                } else if (stack.size() < 2) {
+                    throw new InvalidProgramException("There should be at least two items on the stack to execute a conditional jump");
+                }
+                if (isJumpTaken(instruction, stack)) {
+                    this.instructionAddress = address;
+                }
+                break;
+            }
+
+            case INC: {
+                int varNumber = getNextWordFromProgram("Should have the variable number after the INC instruction");
+                checkVariableNumber(varNumber);
+                int delta = getNextWordFromProgram("Should have the increment after the INC instruction");
+                getCurrentFrame().setVariable(varNumber, getCurrentFrame().getVariable(varNumber) + delta);
+                break;
+            }
+
+            case LLOP: {
+                int varNumber1 = getNextWordFromProgram("Should have the first variable number after the LLOP instruction");
+                checkVariableNumber(varNumber1);
+                int varNumber2 = getNextWordFromProgram("Should have the second variable number after the LLOP instruction");
+                checkVariableNumber(varNumber2);
+                int operation = getNextWordFromProgram("Should have the binary instruction after the LLOP instruction");
+                if (!Instructions.isBinaryOperation(operation)) {
+                    throw new InvalidProgramException(String.format("Invalid binary instruction %d at %d", operation, instructionAddress));
+                }
+                Frame frame = getCurrentFrame();
+                stack.push(doBinaryOp(operation, frame.getVariable(varNumber1), frame.getVariable(varNumber2)));
+                break;
+            }
+
+            case MLOAD:
+                checkStackHasAtLeastOneItem("MLOAD");
+                stack.push(memory.get(stack.pop()));
+                break;
+
+            case MSTORE: {
+                if (stack.size() < 2) {
+                    throw new InvalidProgramException("There should be at least two items on the stack to execute an MSTORE instruction");
+                }
+                int value = stack.pop();
+                memory.set(stack.pop(), value);
+                break;
+            }
+
+            case MCOPY:
+            case MFILL: {
+                if (stack.size() < 3) {
+                    throw new InvalidProgramException("There should be at least three items on the stack to execute an "
+                            + Instructions.getName(instruction) + " instruction");
+                }
+                doBulkMemoryOp(instruction, stack);
+                break;
+            }
+
+            case VADD:
+            case VMUL:
+            case VISGT: {
+                if (stack.size() < 4) {
+                    throw new InvalidProgramException("There should be at least four items on the stack to execute a "
+                            + Instructions.getName(instruction) + " instruction");
+                }
+                doVectorOp(instruction, stack);
+                break;
+            }
+
+            case VSUM: {
+                if (stack.size() < 2) {
+                    throw new InvalidProgramException("There should be at least two items on the stack to execute a VSUM instruction");
+                }
+                int count = stack.pop();
+                stack.push(memory.sum(stack.pop(), count));
+                break;
+            }
+
             case CALL: {
                 // The word after the instruction will contain the function address
                 int address = getNextWordFromProgram("Should have the address after the CALL instruction");
                 checkJumpAddress(address);
-                this.frames.push(new Frame(this.instructionAddress)); // Push a new stack frame
+                if (isTailCall(code, instructionAddress)) {
+                    Frame frame = getCurrentFrame();
+                    frame.reuse(frame.getReturnAddress(), localsCount[address]);
+                } else {
+                    this.frames.push(this.instructionAddress, localsCount[address]); // Push a new stack frame
+                }
                 this.instructionAddress = address;                    // and jump!
                 break;
             }
@@ -171,12 +475,310 @@ public class CPU {
         }
     }
 
+    /**
+     * Runs a verified program until HALT, with no runtime check at all. This is a copy of the
+     * {@link #decodeInstruction(int)} logic, without the checks and with the hot state in local variables.
+     * <p>
+     * It also returns when a RET leaves less than {@code baseDepth} frames, which happens when compiled
+     * code calls a function that has to be interpreted. When there is a JIT, CALLs and backward jumps are
+     * counted and, once compiled, they run the compiled code instead of interpreting.
+     * At most {@code budget} instructions are executed, and the remaining budget is returned.
+     */
+    private long runVerified(int baseDepth, long budget) {
+        final int[] program = this.code;
+        final IntStack stack = this.stack;
+        Frame frame = getCurrentFrame();
+        int ip = this.instructionAddress;
+        try {
+            while (budget > 0) {
+                --budget;
+                int instruction = program[ip++];
+                switch (instruction) {
+                    case HALT:
+                        this.halted = true;
+                        return budget;
+
+                    case PUSH:
+                        stack.push(program[ip++]);
+                        break;
+
+                    case POP:
+                        stack.pop();
+                        break;
+
+                    case DUP:
+                        stack.push(stack.peek());
+                        break;
+
+                    case LOAD:
+                        stack.push(frame.getVariable(program[ip++]));
+                        break;
+
+                    case STORE:
+                        frame.setVariable(program[ip++], stack.pop());
+                        break;
+
+                    case NOT:
+                        stack.push(toInt(!toBool(stack.pop())));
+                        break;
+
+                    case ADD: {
+                        int n2 = stack.pop();
+                        stack.push(stack.pop() + n2);
+                        break;
+                    }
+
+                    case SUB: {
+                        int n2 = stack.pop();
+                        stack.push(stack.pop() - n2);
+                        break;
+                    }
+
+                    case MUL: {
+                        int n2 = stack.pop();
+                        stack.push(stack.pop() * n2);
+                        break;
+                    }
+
+                    case DIV: {
+                        int n2 = stack.pop();
+                        stack.push(stack.pop() / n2);
+                        break;
+                    }
+
+                    case AND:
+                    case OR:
+                    case ISEQ:
+                    case ISGE:
+                    case ISGT: {
+                        int n2 = stack.pop();
+                        int n1 = stack.pop();
+                        stack.push(doBinaryOp(instruction, n1, n2));
+                        break;
+                    }
+
+                    case INC: {
+                        int varNumber = program[ip++];
+                        frame.setVariable(varNumber, frame.getVariable(varNumber) + program[ip++]);
+                        break;
+                    }
+
+                    case LLOP: {
+                        int n1 = frame.getVariable(program[ip++]);
+                        int n2 = frame.getVariable(program[ip++]);
+                        stack.push(doBinaryOp(program[ip++], n1, n2));
+                        break;
+                    }
+
+                    case MLOAD:
+                        stack.push(memory.get(stack.pop()));
+                        break;
+
+                    case MSTORE: {
+                        int value = stack.pop();
+                        memory.set(stack.pop(), value);
+                        break;
+                    }
+
+                    case MCOPY:
+                    case MFILL:
+                        doBulkMemoryOp(instruction, stack);
+                        break;
+
+                    case VADD:
+                    case VMUL:
+                    case VISGT:
+                        doVectorOp(instruction, stack);
+                        break;
+
+                    case VSUM: {
+                        int count = stack.pop();
+                        stack.push(memory.sum(stack.pop(), count));
+                        break;
+                    }
+
+                    case JMP:
+                    case JIF:
+                    case JEQ:
+                    case JGE:
+                    case JGT:
+                    case JZ: {
+                        int address = program[ip];
+                        if (instruction != JMP && !isJumpTaken(instruction, stack)) {
+                            ++ip;
+                            break;
+                        }
+                        if (jit != null && address < ip) {
+                            CompiledCode code = jit.onBackEdge(address);
+                            if (code != null && compiledCodeDepth < MAX_COMPILED_CODE_DEPTH) {
+                                // The compiled loop runs until the function returns
+                                if (executeCompiledCode(code, frame)) {
+                                    ip = this.instructionAddress;
+                                    return budget;
+                                }
+                                ip = frame.getReturnAddress();
+                                frame = frames.pop();
+                                if (frames.size() < baseDepth) {
+                                    return budget;
+                                }
+                                break;
+                            }
+                        }
+                        if (traceCompiler != null && address < ip) {
+                            TraceCompiler.Trace trace = traceCompiler.onBackEdge(address);
+                            if (trace != null) {
+                                budget = trace == TraceCompiler.RECORD
+                                        ? recordTrace(address, budget)
+                                        : executeTrace(trace, frame, budget);
+                                ip = this.instructionAddress;
+                                break;
+                            }
+                        }
+                        ip = address;
+                        break;
+                    }
+
+                    case CALL: {
+                        int address = program[ip++];
+                        boolean tailCall = isTailCall(program, ip);
+                        if (tailCall) {
+                            frame.reuse(frame.getReturnAddress(), localsCount[address]);
+                        } else {
+                            frame = frames.push(ip, localsCount[address]);
+                        }
+                        if (jit != null) {
+                            CompiledCode code = jit.onInvocation(address);
+                            if (code != null && compiledCodeDepth < MAX_COMPILED_CODE_DEPTH) {
+                                if (executeCompiledCode(code, frame)) {
+                                    ip = this.instructionAddress;
+                                    return budget;
+                                }
+                                if (tailCall) {
+                                    // The function has returned in place of the RET that follows the CALL
+                                    ip = frame.getReturnAddress();
+                                }
+                                frame = frames.pop();
+                                if (frames.size() < baseDepth) {
+                                    return budget;
+                                }
+                                break;
+                            }
+                        }
+                        ip = address;
+                        break;
+                    }
+
+                    case RET:
+                        ip = frame.getReturnAddress();
+                        frame = frames.pop();
+                        if (frames.size() < baseDepth) {
+                            return budget;
+                        }
+                        break;
+
+                    default:
+                        throw new AssertionError("Unknown instruction in a verified program: " + instruction);
+                }
+            }
+            return 0;
+        } finally {
+            this.instructionAddress = ip;
+        }
+    }
+
+    /**
+     * Returns true if the CALL whose operand ends right before the given address is followed by a RET, outside
+     * of the main code. Such a call can reuse the current frame, keeping its return address, since nothing
+     * uses the frame after the callee returns: so tail recursive functions run with a constant number of frames.
+     */
+    private boolean isTailCall(int[] code, int addressAfterCall) {
+        return addressAfterCall < code.length && code[addressAfterCall] == RET && frames.size() > 1;
+    }
+
+    /**
+     * Interprets the next iteration of the loop at the given header with {@link #step()}, recording the addresses
+     * of its instructions, and passes them to the trace compiler. Returns the remaining budget.
+     */
+    private long recordTrace(int header, long budget) {
+        int[] addresses = new int[TraceCompiler.MAX_TRACE_LENGTH];
+        int length = 0;
+        instructionAddress = header;
+        while (budget > 0) {
+            int instruction = code[instructionAddress];
+            if (instruction == CALL || instruction == RET || instruction == HALT
+                    || length == TraceCompiler.MAX_TRACE_LENGTH) {
+                traceCompiler.onRecordingFailed(header);
+                return budget;
+            }
+            addresses[length++] = instructionAddress;
+            step();
+            --budget;
+            if (instructionAddress == header) {
+                traceCompiler.onTraceRecorded(header, Arrays.copyOf(addresses, length));
+                return budget;
+            }
+        }
+        // Out of budget: the loop will be recorded again on its next iteration
+        return budget;
+    }
+
+    /**
+     * Runs a compiled trace for as many whole iterations as the budget allows, and returns the remaining budget.
+     */
+    private long executeTrace(TraceCompiler.Trace trace, Frame frame, long budget) {
+        int maxIterations = (int) Math.min(budget / trace.getLength(), Integer.MAX_VALUE);
+        long result = trace.code.execute(stack, frame, memory, maxIterations);
+        instructionAddress = (int) result;
+        int iterationsLeft = (int) (result >>> 32);
+        return budget - (long) (maxIterations - iterationsLeft) * trace.getLength();
+    }
+
+    private boolean executeCompiledCode(CompiledCode code, Frame frame) {
+        ++compiledCodeDepth;
+        try {
+            return code.execute(jitRuntime, stack, frame);
+        } finally {
+            --compiledCodeDepth;
+        }
+    }
+
+    /**
+     * Called by compiled code for a CALL. Returns true if the program has halted.
+     */
+    boolean callFromCompiledCode(int address, int returnAddress) {
+        Frame frame = frames.push(returnAddress, localsCount[address]);
+        CompiledCode code = jit.onInvocation(address);
+        if (code != null && compiledCodeDepth < MAX_COMPILED_CODE_DEPTH) {
+            if (executeCompiledCode(code, frame)) {
+                return true;
+            }
+            frames.pop();
+            return false;
+        }
+
+        // Interpret the function until its RET pops the frame
+        this.instructionAddress = address;
+        runVerified(frames.size(), Long.MAX_VALUE);
+        return halted;
+    }
+
+    void haltFromCompiledCode(int instructionAddress) {
+        this.instructionAddress = instructionAddress;
+        this.halted = true;
+    }
+
     private void checkJumpAddress(int address) {
-        if (address < 0 || address >= program.length) {
+        if (address < 0 || address >= code.length) {
             throw new InvalidProgramException(String.format("Invalid jump address %d at %d", address, instructionAddress));
         }
     }
 
+    private void checkVariableNumber(int varNumber) {
+        if (varNumber < 0 || varNumber >= Frame.MAX_VARIABLES) {
+            throw new InvalidProgramException(String.format("Invalid variable number %d at %d", varNumber, instructionAddress));
+        }
+    }
+
     private void checkThereIsAReturnAddress() {
         if (this.frames.size() == 1) {
             throw new InvalidProgramException(String.format("Invalid RET instruction: no current function call %d", instructionAddress));
@@ -189,7 +791,68 @@ public class CPU {
         }
     }
 
-    private Integer doBinaryOp(int instruction, int n1, int n2) {
+    /**
+     * Pops the operands of a conditional jump, and returns true if the jump has to be taken.
+     */
+    private static boolean isJumpTaken(int instruction, IntStack stack) {
+        switch (instruction) {
+            case JIF:
+                return stack.pop() != 0;
+            case JZ:
+                return stack.pop() == 0;
+            case JEQ:
+                return stack.pop() == stack.pop();
+            case JGE:
+                return stack.pop() <= stack.pop();
+            case JGT:
+                return stack.pop() < stack.pop();
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    /**
+     * Pops the three operands of an MCOPY or an MFILL, and executes it.
+     */
+    private void doBulkMemoryOp(int instruction, IntStack stack) {
+        int count = stack.pop();
+        int n2 = stack.pop();
+        int n1 = stack.pop();
+        if (instruction == MCOPY) {
+            memory.copy(n1, n2, count);
+        } else {
+            memory.fill(n1, n2, count);
+        }
+    }
+
+    /**
+     * Pops the four operands of a VADD, a VMUL or a VISGT, and executes it.
+     */
+    private void doVectorOp(int instruction, IntStack stack) {
+        int count = stack.pop();
+        int to = stack.pop();
+        int b = stack.pop();
+        int a = stack.pop();
+        switch (instruction) {
+            case VADD:
+                memory.add(a, b, to, count);
+                break;
+            case VMUL:
+                memory.multiply(a, b, to, count);
+                break;
+            case VISGT:
+                memory.greaterThan(a, b, to, count);
+                break;
+            default:
+                throw new AssertionError();
+        }
+    }
+
+    /**
+     * Applies a binary instruction to its operands. This is the definition of the arithmetic and logic
+     * that the other engines and the optimizer share.
+     */
+    static int doBinaryOp(int instruction, int n1, int n2) {
         switch (instruction) {
             case ADD:
                 return n1 + n2;
@@ -214,23 +877,24 @@ public class CPU {
         }
     }
 
-    private boolean toBool(int n) {
+    private static boolean toBool(int n) {
         return n != 0;
     }
 
-    private int toInt(boolean b) {
+    private static int toInt(boolean b) {
         return b ? 1 : 0;
     }
 
     private int getNextWordFromProgram(String errorMessage) {
-        if (instructionAddress >= program.length) {
+        if (instructionAddress >= code.length) {
             throw new InvalidProgramException(errorMessage);
         }
-        int nextWord = program[instructionAddress];
+        int nextWord = code[instructionAddress];
         ++instructionAddress;
         return nextWord;
     }
 
+    @Override
     public Frame getCurrentFrame() {
         return frames.peek();
     }
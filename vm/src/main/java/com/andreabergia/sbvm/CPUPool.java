@@ -0,0 +1,63 @@
+package com.andreabergia.sbvm;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A thread-safe pool of CPUs for the same program, so that running the program many times
+ * does not create a new CPU every time. CPUs are reset when they are acquired.
+ */
+public final class CPUPool {
+    private final Program program;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<CPU> idle = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    /**
+     * Creates a pool that keeps at most {@code maxIdle} CPUs that are not in use; more can be
+     * acquired at the same time, but the extra ones are dropped when released.
+     */
+    public CPUPool(Program program, int maxIdle) {
+        checkArgument(maxIdle >= 0, "Invalid maximum number of idle CPUs %s", maxIdle);
+        this.program = program;
+        this.maxIdle = maxIdle;
+    }
+
+    public Program getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns a CPU ready to run the program from the start.
+     */
+    public CPU acquire() {
+        CPU cpu = idle.poll();
+        if (cpu == null) {
+            return new CPU(program);
+        }
+        idleCount.decrementAndGet();
+        cpu.reset();
+        return cpu;
+    }
+
+    /**
+     * Gives back a CPU obtained by {@link #acquire()}, which must not be used anymore by the caller.
+     */
+    public void release(CPU cpu) {
+        checkArgument(cpu.getProgram() == program, "The CPU does not belong to this pool");
+        if (idleCount.incrementAndGet() <= maxIdle) {
+            idle.offer(cpu);
+        } else {
+            idleCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Returns the number of CPUs waiting to be acquired.
+     */
+    public int getIdleCount() {
+        return idleCount.get();
+    }
+}
@@ -0,0 +1,118 @@
+package com.andreabergia.sbvm;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * Encodes the state of a {@link CPU} in a compact binary format, and restores it, so that a program
+ * can be suspended and resumed later, in another process or on another machine.
+ * <p>
+ * A snapshot starts with a header: the magic number {@code "SBSN"}, the format version as a short, the flags
+ * as a short, the size and a hash of the program's code, the instruction address, the stack size and the number
+ * of frames. Then come the stack, from the bottom to the top, and every frame from the main one, each one
+ * as its return address, its number of variables and their values. All numbers are big endian ints,
+ * unless noted otherwise. The program is not included, so a snapshot is restored into a CPU for the same program.
+ */
+final class CPUSnapshot {
+    static final int MAGIC = 0x5342534E; // "SBSN"
+    static final int VERSION = 1;
+
+    private static final int HALTED_FLAG = 1;
+    private static final int HEADER_SIZE = 28;
+
+    private CPUSnapshot() {
+    }
+
+    static ByteBuffer encode(CPU cpu, IntStack stack, CallStack frames) {
+        long size = HEADER_SIZE + 4L * stack.size();
+        for (int i = 0; i < frames.size(); i++) {
+            size += 8 + 4L * frames.get(i).getVariablesCount();
+        }
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalStateException("The CPU state is too large for a snapshot: " + size + " bytes");
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size);
+        int[] code = cpu.getProgram().getCode();
+        buffer.putInt(MAGIC).putShort((short) VERSION).putShort((short) (cpu.isHalted() ? HALTED_FLAG : 0));
+        buffer.putInt(code.length).putInt(Arrays.hashCode(code));
+        buffer.putInt(cpu.getInstructionAddress()).putInt(stack.size()).putInt(frames.size());
+
+        IntBuffer ints = buffer.asIntBuffer();
+        stack.writeTo(ints);
+        for (int i = 0; i < frames.size(); i++) {
+            Frame frame = frames.get(i);
+            ints.put(frame.getReturnAddress()).put(frame.getVariablesCount());
+            frame.writeVariablesTo(ints);
+        }
+        buffer.rewind(); // The int view has filled the rest of the buffer, which is exactly as large as needed
+        return buffer;
+    }
+
+    /**
+     * Replaces the stack and the frames with the ones of the snapshot, and returns the instruction address,
+     * or -1 - the address if the CPU was halted.
+     */
+    static int decode(ByteBuffer snapshot, CPU cpu, IntStack stack, CallStack frames) throws InvalidProgramException {
+        ByteBuffer buffer = snapshot.duplicate();
+        try {
+            if (buffer.getInt() != MAGIC) {
+                throw new InvalidProgramException("Not an sbvm CPU snapshot");
+            }
+            int version = buffer.getShort();
+            if (version != VERSION) {
+                throw new InvalidProgramException("Unsupported CPU snapshot version " + version);
+            }
+            int flags = buffer.getShort();
+            int[] code = cpu.getProgram().getCode();
+            if (buffer.getInt() != code.length || buffer.getInt() != Arrays.hashCode(code)) {
+                throw new InvalidProgramException("The CPU snapshot has been taken with another program");
+            }
+            int instructionAddress = buffer.getInt();
+            int stackSize = buffer.getInt();
+            int framesCount = buffer.getInt();
+            if (instructionAddress < 0 || instructionAddress > code.length) {
+                throw new InvalidProgramException("Invalid instruction address in the CPU snapshot " + instructionAddress);
+            }
+            if (framesCount < 1 || framesCount - 1 > frames.getMaxDepth()) {
+                throw new InvalidProgramException("Invalid number of frames in the CPU snapshot " + framesCount);
+            }
+
+            IntBuffer ints = buffer.asIntBuffer();
+            if (stackSize < 0) {
+                throw new InvalidProgramException("Invalid stack size in the CPU snapshot " + stackSize);
+            }
+            if (stackSize > ints.remaining()) {
+                throw new BufferUnderflowException();
+            }
+            stack.readFrom(ints, stackSize);
+            frames.reset();
+            for (int i = 0; i < framesCount; i++) {
+                int returnAddress = ints.get();
+                int variablesCount = ints.get();
+                if (i > 0 && (returnAddress < 0 || returnAddress > code.length)) {
+                    throw new InvalidProgramException("Invalid return address in the CPU snapshot " + returnAddress);
+                }
+                if (variablesCount < 0 || variablesCount > Frame.MAX_VARIABLES) {
+                    throw new InvalidProgramException("Invalid number of variables in the CPU snapshot " + variablesCount);
+                }
+                if (variablesCount > ints.remaining()) {
+                    throw new BufferUnderflowException();
+                }
+                Frame frame;
+                if (i == 0) {
+                    frame = frames.peek();
+                    frame.reuse(0, variablesCount);
+                } else {
+                    frame = frames.push(returnAddress, variablesCount);
+                }
+                frame.readVariablesFrom(ints);
+            }
+            return (flags & HALTED_FLAG) != 0 ? -1 - instructionAddress : instructionAddress;
+        } catch (BufferUnderflowException e) {
+            throw new InvalidProgramException("Truncated CPU snapshot");
+        }
+    }
+}
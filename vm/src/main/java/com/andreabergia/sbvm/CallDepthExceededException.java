@@ -0,0 +1,17 @@
+package com.andreabergia.sbvm;
+
+/**
+ * Thrown when a program nests more calls than the CPU allows, typically because of a runaway recursion.
+ */
+public class CallDepthExceededException extends InvalidProgramException {
+    private final int maxDepth;
+
+    public CallDepthExceededException(int maxDepth) {
+        super("Maximum call depth exceeded: " + maxDepth);
+        this.maxDepth = maxDepth;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+}
@@ -0,0 +1,91 @@
+package com.andreabergia.sbvm;
+
+import java.util.Arrays;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * The frames of the functions being executed, with the main frame at the bottom.
+ * <p>
+ * Popped frames are kept and reused by the following calls, so once the stack has been as deep as
+ * the program needs, calls and returns allocate nothing. The depth is limited, so that a runaway
+ * recursion fails with a {@link CallDepthExceededException} instead of exhausting the heap.
+ */
+final class CallStack {
+    private Frame[] frames;
+    private int size = 1;
+    private int maxDepth;
+
+    CallStack(int mainFrameSize, int maxDepth) {
+        setMaxDepth(maxDepth);
+        this.frames = new Frame[16];
+        this.frames[0] = new Frame(0, mainFrameSize);
+    }
+
+    /**
+     * Sets how many calls can be nested, not counting the main frame.
+     */
+    void setMaxDepth(int maxDepth) {
+        checkArgument(maxDepth >= 0, "Invalid maximum call depth %s", maxDepth);
+        this.maxDepth = maxDepth;
+    }
+
+    int getMaxDepth() {
+        return maxDepth;
+    }
+
+    /**
+     * Pushes a frame for a new call, and returns it.
+     */
+    Frame push(int returnAddress, int variablesCount) {
+        if (size > maxDepth) {
+            throw new CallDepthExceededException(maxDepth);
+        }
+        if (size == frames.length) {
+            frames = Arrays.copyOf(frames, (int) Math.min(frames.length * 2L, maxDepth + 1L));
+        }
+        Frame frame = frames[size];
+        if (frame == null) {
+            frame = new Frame(returnAddress, variablesCount);
+            frames[size] = frame;
+        } else {
+            frame.reuse(returnAddress, variablesCount);
+        }
+        ++size;
+        return frame;
+    }
+
+    /**
+     * Pops the current frame, which must not be used anymore, and returns the new current one.
+     */
+    Frame pop() {
+        --size;
+        return frames[size - 1];
+    }
+
+    /**
+     * Returns the frame at the given index, where zero is the main frame.
+     */
+    Frame get(int index) {
+        return frames[index];
+    }
+
+    Frame peek() {
+        return frames[size - 1];
+    }
+
+    /**
+     * Returns the number of frames, including the main one.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Pops all the frames but the main one, and clears its variables.
+     */
+    void reset() {
+        size = 1;
+        frames[0].clearVariables();
+    }
+}
@@ -0,0 +1,13 @@
+package com.andreabergia.sbvm;
+
+/**
+ * Implemented by the classes generated by the {@link JitCompiler}.
+ */
+public interface CompiledCode {
+    /**
+     * Runs the compiled code in the given frame, taking the frame's items from the top of the stack.
+     * Returns true if the program has halted, false if the code has executed a RET; in that case,
+     * the stack contains the returned items and the caller has to pop the frame.
+     */
+    boolean execute(JitRuntime runtime, IntStack stack, Frame frame);
+}
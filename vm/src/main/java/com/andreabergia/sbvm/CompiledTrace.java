@@ -0,0 +1,13 @@
+package com.andreabergia.sbvm;
+
+/**
+ * Implemented by the classes generated by the {@link TraceCompiler}.
+ */
+public interface CompiledTrace {
+    /**
+     * Runs at most the given number of iterations of the loop in the given frame and memory, from its header,
+     * taking the items it needs from the top of the stack. Returns the address where the interpreter has to continue
+     * in the low 32 bits, and the number of iterations that were left in the high 32 bits.
+     */
+    long execute(IntStack stack, Frame frame, Memory memory, int maxIterations);
+}
@@ -0,0 +1,242 @@
+package com.andreabergia.sbvm;
+
+import com.andreabergia.sbvm.InstructionList.Node;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.RET;
+
+/**
+ * The basic blocks of a program and the edges between them, used by the passes that move code around.
+ * <p>
+ * A block starts at the beginning of the program, at every jump or CALL target and after every jump,
+ * RET and HALT, so only its last instruction can leave it. CALLs do not end a block, since they come
+ * back to the following instruction, but the entry point of every called function starts one.
+ */
+final class ControlFlowGraph {
+    static final class Block {
+        final int index; // In program order
+        final List<Node> nodes = new ArrayList<>();
+        Block fallThrough; // The block executed when the last instruction does not jump, or null
+        Block jumpTarget; // The target of the last instruction, if it is a jump, or null
+        final List<Block> predecessors = new ArrayList<>();
+        boolean reachable = false;
+        int loopDepth = 0;
+
+        Block(int index) {
+            this.index = index;
+        }
+
+        Node getFirst() {
+            return nodes.get(0);
+        }
+
+        Node getLast() {
+            return nodes.get(nodes.size() - 1);
+        }
+
+        /**
+         * Returns the address of the block in the decoded program, or -1 if it starts with an added instruction.
+         */
+        int getAddress() {
+            return getFirst().address;
+        }
+
+        boolean isConditional() {
+            return fallThrough != null && jumpTarget != null;
+        }
+
+        List<Block> getSuccessors() {
+            List<Block> successors = new ArrayList<>(2);
+            if (fallThrough != null) {
+                successors.add(fallThrough);
+            }
+            if (jumpTarget != null && jumpTarget != fallThrough) {
+                successors.add(jumpTarget);
+            }
+            return successors;
+        }
+    }
+
+    private final List<Block> blocks;
+
+    private ControlFlowGraph(List<Block> blocks) {
+        this.blocks = blocks;
+    }
+
+    /**
+     * Builds the graph of a verified program.
+     */
+    static ControlFlowGraph build(VerifiedProgram program) {
+        return build(InstructionList.decode(program));
+    }
+
+    static ControlFlowGraph build(InstructionList program) {
+        // Find where the blocks start
+        boolean[] isLeader = new boolean[program.size() + 1];
+        isLeader[0] = true;
+        for (int i = 0; i < program.size(); i++) {
+            Node node = program.get(i);
+            if (node.isJumpTarget()) {
+                isLeader[i] = true;
+            }
+            if (endsBlock(node.opcode)) {
+                isLeader[i + 1] = true;
+            }
+        }
+
+        List<Block> blocks = new ArrayList<>();
+        Map<Node, Block> blockOf = new IdentityHashMap<>();
+        for (int i = 0; i < program.size(); i++) {
+            if (isLeader[i]) {
+                blocks.add(new Block(blocks.size()));
+            }
+            Block block = blocks.get(blocks.size() - 1);
+            block.nodes.add(program.get(i));
+            blockOf.put(program.get(i), block);
+        }
+
+        for (Block block : blocks) {
+            Node last = block.getLast();
+            Block next = block.index + 1 < blocks.size() ? blocks.get(block.index + 1) : null;
+            if (last.opcode != JMP && last.opcode != RET && last.opcode != HALT) {
+                block.fallThrough = next;
+            }
+            if (last.isJump() && last.opcode != CALL) {
+                block.jumpTarget = blockOf.get(last.target);
+            }
+            for (Block successor : block.getSuccessors()) {
+                successor.predecessors.add(block);
+            }
+        }
+
+        ControlFlowGraph graph = new ControlFlowGraph(blocks);
+        graph.findReachableBlocks(blockOf);
+        graph.findLoops();
+        return graph;
+    }
+
+    private static boolean endsBlock(int opcode) {
+        return opcode == RET || opcode == HALT || (Instructions.hasAddressOperand(opcode) && opcode != CALL);
+    }
+
+    List<Block> getBlocks() {
+        return Collections.unmodifiableList(blocks);
+    }
+
+    /**
+     * Returns the block starting at the given address of the decoded program, or null.
+     */
+    Block getBlockAt(int address) {
+        for (Block block : blocks) {
+            if (block.getAddress() == address) {
+                return block;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Marks the blocks that can be executed, starting from the beginning of the program
+     * and from the entry point of every function called by a reachable block.
+     */
+    private void findReachableBlocks(Map<Node, Block> blockOf) {
+        Deque<Block> toVisit = new ArrayDeque<>();
+        toVisit.push(blocks.get(0));
+        blocks.get(0).reachable = true;
+        while (!toVisit.isEmpty()) {
+            Block block = toVisit.pop();
+            List<Block> next = block.getSuccessors();
+            for (Node node : block.nodes) {
+                if (node.opcode == CALL) {
+                    next.add(blockOf.get(node.target));
+                }
+            }
+            for (Block successor : next) {
+                if (!successor.reachable) {
+                    successor.reachable = true;
+                    toVisit.push(successor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Computes how many loops contain each block. A loop is found for every edge that goes back to a block
+     * being visited by a depth first search, and contains all the blocks that reach the edge without going
+     * through its header.
+     */
+    private void findLoops() {
+        List<Block> headers = new ArrayList<>();
+        Map<Block, List<Block>> backEdges = new IdentityHashMap<>();
+        int[] state = new int[blocks.size()]; // 0 not visited, 1 on the search path, 2 done
+        for (Block root : blocks) {
+            if (state[root.index] != 0) {
+                continue;
+            }
+            // An iterative depth first search, with the index of the next successor to visit for every block
+            Deque<Block> path = new ArrayDeque<>();
+            Deque<Integer> nextSuccessor = new ArrayDeque<>();
+            path.push(root);
+            nextSuccessor.push(0);
+            state[root.index] = 1;
+            while (!path.isEmpty()) {
+                Block block = path.peek();
+                int successorIndex = nextSuccessor.pop();
+                List<Block> successors = block.getSuccessors();
+                if (successorIndex == successors.size()) {
+                    state[block.index] = 2;
+                    path.pop();
+                    continue;
+                }
+                nextSuccessor.push(successorIndex + 1);
+                Block successor = successors.get(successorIndex);
+                if (state[successor.index] == 1) {
+                    if (!backEdges.containsKey(successor)) {
+                        headers.add(successor);
+                        backEdges.put(successor, new ArrayList<Block>());
+                    }
+                    backEdges.get(successor).add(block);
+                } else if (state[successor.index] == 0) {
+                    state[successor.index] = 1;
+                    path.push(successor);
+                    nextSuccessor.push(0);
+                }
+            }
+        }
+
+        for (Block header : headers) {
+            boolean[] inLoop = new boolean[blocks.size()];
+            inLoop[header.index] = true;
+            Deque<Block> toVisit = new ArrayDeque<>();
+            for (Block source : backEdges.get(header)) {
+                if (!inLoop[source.index]) {
+                    inLoop[source.index] = true;
+                    toVisit.push(source);
+                }
+            }
+            while (!toVisit.isEmpty()) {
+                for (Block predecessor : toVisit.pop().predecessors) {
+                    if (!inLoop[predecessor.index]) {
+                        inLoop[predecessor.index] = true;
+                        toVisit.push(predecessor);
+                    }
+                }
+            }
+            for (Block block : blocks) {
+                if (inLoop[block.index]) {
+                    ++block.loopDepth;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.STORE;
+
+/**
+ * A program decoded once into parallel arrays, indexed by instruction rather than by address.
+ * Operands are already read and validated, jump and CALL targets are instruction indexes, and CALLs
+ * know the size of the frame to create. Any error that the {@link CPU} would report when executing an
+ * instruction is decoded as an {@link #ERROR} instruction, which reports the same error when executed.
+ * <p>
+ * Since the CPU allows jumping anywhere, even in the middle of an instruction, the program is decoded
+ * linearly from address zero and from every jump target that is not already the start of an instruction.
+ * The instruction at index {@code i + 1} is always the one at the address following instruction {@code i}.
+ */
+public final class DecodedProgram {
+    /**
+     * Throws the exception whose message is in {@code messages[args[i]]}.
+     */
+    static final int ERROR = 0x00;
+
+    /**
+     * Continues at the instruction index {@code args[i]}, which has the same address. It is only used
+     * where a stream decoded from a jump target reaches an address that has already been decoded.
+     */
+    static final int FALLTHROUGH = 0x7F;
+
+    private static final int NOT_DECODED = -1;
+
+    final int[] ops;
+    final int[] args;
+    final int[] args2; // Second and third operands, only used by the superinstructions
+    final int[] args3;
+    final int[] frameSizes;
+    final int[] addresses;
+    final int[] indexOfAddress;
+    final String[] messages;
+    final int mainFrameSize;
+
+    private DecodedProgram(int[] ops, int[] args, int[] args2, int[] args3, int[] frameSizes, int[] addresses,
+                           int[] indexOfAddress, String[] messages, int mainFrameSize) {
+        this.ops = ops;
+        this.args = args;
+        this.args2 = args2;
+        this.args3 = args3;
+        this.frameSizes = frameSizes;
+        this.addresses = addresses;
+        this.indexOfAddress = indexOfAddress;
+        this.messages = messages;
+        this.mainFrameSize = mainFrameSize;
+    }
+
+    /**
+     * Returns the number of decoded instructions, including the synthetic ones.
+     */
+    public int size() {
+        return ops.length;
+    }
+
+    public static DecodedProgram decode(int... program) {
+        if (program.length == 0) {
+            throw new InvalidProgramException("A program should have at least an instruction");
+        }
+        return new Decoder(program).decode();
+    }
+
+    private static final class Decoder {
+        private final int[] program;
+        private final int[] localsCount;
+        private final int[] indexOfAddress;
+        private final List<String> messages = new ArrayList<>();
+        private final Deque<Integer> streamsToDecode = new ArrayDeque<>();
+        private int[] ops = new int[16];
+        private int[] args = new int[16];
+        private int[] args2 = new int[16];
+        private int[] args3 = new int[16];
+        private int[] frameSizes = new int[16];
+        private int[] addresses = new int[16];
+        private int size = 0;
+
+        private Decoder(int[] program) {
+            this.program = program;
+            this.localsCount = LocalsAnalyzer.computeLocalsCount(program);
+            // One more entry, for the address right after the end of the program
+            this.indexOfAddress = new int[program.length + 1];
+            Arrays.fill(indexOfAddress, NOT_DECODED);
+        }
+
+        private DecodedProgram decode() {
+            streamsToDecode.add(0);
+            while (!streamsToDecode.isEmpty()) {
+                int start = streamsToDecode.poll();
+                if (indexOfAddress[start] == NOT_DECODED) {
+                    decodeStream(start);
+                }
+            }
+            resolveTargets();
+            return new DecodedProgram(
+                    Arrays.copyOf(ops, size), Arrays.copyOf(args, size), Arrays.copyOf(args2, size),
+                    Arrays.copyOf(args3, size), Arrays.copyOf(frameSizes, size),
+                    Arrays.copyOf(addresses, size), indexOfAddress, messages.toArray(new String[messages.size()]),
+                    localsCount[0]);
+        }
+
+        /**
+         * Decodes linearly from the given address, until the end of the program or an address already decoded.
+         */
+        private void decodeStream(int address) {
+            while (true) {
+                if (indexOfAddress[address] != NOT_DECODED) {
+                    emit(FALLTHROUGH, indexOfAddress[address], address);
+                    return;
+                }
+                indexOfAddress[address] = size;
+                if (address == program.length) {
+                    emitError("Should have a next instruction", address);
+                    return;
+                }
+
+                int instruction = program[address];
+                int operandsCount = Instructions.getOperandsCount(instruction);
+                if (operandsCount < 0) {
+                    emitError("Unknown instruction: " + instruction, address);
+                    ++address;
+                    continue;
+                }
+                // Where the CPU's instruction address would be after reading the operands
+                int addressAfterOperands = address + 1 + operandsCount;
+                String error = checkOperands(instruction, address, operandsCount);
+                if (error != null) {
+                    emitError(error, address);
+                    if (addressAfterOperands > program.length) {
+                        return;
+                    }
+                    address = addressAfterOperands;
+                    continue;
+                }
+
+                if (Instructions.hasAddressOperand(instruction)) {
+                    streamsToDecode.add(program[address + 1]);
+                }
+                emitInstruction(instruction, address, operandsCount);
+                address = addressAfterOperands;
+            }
+        }
+
+        /**
+         * Reads the operands in the same order as the CPU does, and returns the message of the first
+         * error that the CPU would report, or null if they are valid.
+         */
+        private String checkOperands(int instruction, int address, int operandsCount) {
+            for (int i = 1; i <= operandsCount; i++) {
+                int operandAddress = address + i;
+                if (operandAddress >= program.length) {
+                    return missingOperandMessage(instruction, i);
+                }
+                int operand = program[operandAddress];
+                // The CPU reports errors with the address after the operand
+                int reportedAddress = operandAddress + 1;
+                if (i == 1 && Instructions.hasAddressOperand(instruction)
+                        && (operand < 0 || operand >= program.length)) {
+                    return String.format("Invalid jump address %d at %d", operand, reportedAddress);
+                }
+                boolean isVariable = (i == 1 && (instruction == LOAD || instruction == STORE || instruction == INC))
+                        || (i <= 2 && instruction == LLOP);
+                if (isVariable && (operand < 0 || operand >= Frame.MAX_VARIABLES)) {
+                    return String.format("Invalid variable number %d at %d", operand, reportedAddress);
+                }
+                if (i == 3 && instruction == LLOP && !Instructions.isBinaryOperation(operand)) {
+                    return String.format("Invalid binary instruction %d at %d", operand, reportedAddress);
+                }
+            }
+            return null;
+        }
+
+        private static String missingOperandMessage(int instruction, int operand) {
+            switch (instruction) {
+                case Instructions.PUSH:
+                    return "Should have the value after the PUSH instruction";
+                case LOAD:
+                    return "Should have the variable number after the LOAD instruction";
+                case STORE:
+                    return "Should have the variable number after the STORE instruction";
+                case JMP:
+                    return "Should have the address after the JMP instruction";
+                case JIF:
+                    return "Should have the address after the JIF instruction";
+                case CALL:
+                    return "Should have the address after the CALL instruction";
+                case Instructions.JEQ:
+                case Instructions.JGE:
+                case Instructions.JGT:
+                case Instructions.JZ:
+                    return "Should have the address after the conditional jump instruction";
+                case INC:
+                    return operand == 1
+                            ? "Should have the variable number after the INC instruction"
+                            : "Should have the increment after the INC instruction";
+                case LLOP:
+                    return operand == 1 ? "Should have the first variable number after the LLOP instruction"
+                            : operand == 2 ? "Should have the second variable number after the LLOP instruction"
+                            : "Should have the binary instruction after the LLOP instruction";
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        private void resolveTargets() {
+            for (int i = 0; i < size; i++) {
+                int op = ops[i];
+                if (Instructions.hasAddressOperand(op)) {
+                    int targetAddress = args[i];
+                    args[i] = indexOfAddress[targetAddress];
+                    if (op == CALL) {
+                        frameSizes[i] = localsCount[targetAddress];
+                    }
+                }
+            }
+        }
+
+        private void emitError(String message, int address) {
+            messages.add(message);
+            emit(ERROR, messages.size() - 1, address);
+        }
+
+        private void emitInstruction(int instruction, int address, int operandsCount) {
+            emit(instruction, operandsCount > 0 ? program[address + 1] : 0, address);
+            args2[size - 1] = operandsCount > 1 ? program[address + 2] : 0;
+            args3[size - 1] = operandsCount > 2 ? program[address + 3] : 0;
+        }
+
+        private void emit(int op, int arg, int address) {
+            if (size == ops.length) {
+                int newLength = size * 2;
+                ops = Arrays.copyOf(ops, newLength);
+                args = Arrays.copyOf(args, newLength);
+                args2 = Arrays.copyOf(args2, newLength);
+                args3 = Arrays.copyOf(args3, newLength);
+                frameSizes = Arrays.copyOf(frameSizes, newLength);
+                addresses = Arrays.copyOf(addresses, newLength);
+            }
+            ops[size] = op;
+            args[size] = arg;
+            addresses[size] = address;
+            ++size;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * How many times each instruction of a program has been executed, collected by {@link CPU#runProfiled()}.
+ * Besides the counters by opcode and by address, it records how many times each function has been
+ * called, and how many times each conditional jump has been taken.
+ */
+public final class ExecutionProfile {
+    private static final int MAX_REPORTED_ADDRESSES = 20;
+
+    private final int[] program;
+    private final long[] opcodeCounts = new long[256];
+    private final long[] addressCounts;
+    private final long[] callCounts; // By function address
+    private final long[] jumpsTaken;
+    private long instructionsCount = 0;
+
+    ExecutionProfile(int[] program) {
+        this.program = program;
+        this.addressCounts = new long[program.length];
+        this.callCounts = new long[program.length];
+        this.jumpsTaken = new long[program.length];
+    }
+
+    /**
+     * Records the execution of the instruction at the given address, which has moved the CPU to {@code nextAddress}.
+     */
+    void record(int address, int nextAddress) {
+        int instruction = program[address];
+        ++instructionsCount;
+        ++opcodeCounts[instruction];
+        ++addressCounts[address];
+        if (instruction == Instructions.CALL) {
+            ++callCounts[program[address + 1]];
+        } else if (isConditionalJump(instruction) && nextAddress == program[address + 1]) {
+            ++jumpsTaken[address];
+        }
+    }
+
+    private static boolean isConditionalJump(int instruction) {
+        return instruction != Instructions.JMP && instruction != Instructions.CALL && Instructions.hasAddressOperand(instruction);
+    }
+
+    /**
+     * Returns true if the profile has been collected running the given program.
+     */
+    boolean isProfileOf(int[] program) {
+        return Arrays.equals(this.program, program);
+    }
+
+    public long getInstructionsCount() {
+        return instructionsCount;
+    }
+
+    public long getOpcodeCount(int instruction) {
+        return opcodeCounts[instruction];
+    }
+
+    public long getAddressCount(int address) {
+        return addressCounts[address];
+    }
+
+    /**
+     * Returns how many times the function starting at the given address has been called.
+     */
+    public long getCallCount(int address) {
+        return callCounts[address];
+    }
+
+    /**
+     * Returns how many times the conditional jump at the given address has jumped.
+     */
+    public long getJumpsTaken(int address) {
+        return jumpsTaken[address];
+    }
+
+    /**
+     * Returns how many times the conditional jump at the given address has gone on to the next instruction.
+     */
+    public long getJumpsNotTaken(int address) {
+        return addressCounts[address] - jumpsTaken[address];
+    }
+
+    @Override
+    public String toString() {
+        return format(Collections.<String, Integer>emptyMap());
+    }
+
+    /**
+     * Formats the profile as a report, where addresses are shown relative to the given labels,
+     * as returned by the assembler.
+     */
+    public String format(Map<String, Integer> labels) {
+        TreeMap<Integer, String> labelsByAddress = new TreeMap<>();
+        for (Map.Entry<String, Integer> entry : labels.entrySet()) {
+            labelsByAddress.put(entry.getValue(), entry.getKey());
+        }
+
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("Instructions executed: %d%n", instructionsCount));
+
+        sb.append(String.format("%nBy opcode:%n"));
+        List<Integer> opcodes = sortedByCount(opcodeCounts);
+        for (int opcode : opcodes) {
+            sb.append(String.format("  %-6s %12d %6.2f%%%n", Instructions.getName(opcode), opcodeCounts[opcode],
+                    100.0 * opcodeCounts[opcode] / instructionsCount));
+        }
+
+        sb.append(String.format("%nHottest addresses:%n"));
+        List<Integer> addresses = sortedByCount(addressCounts);
+        for (int address : addresses.subList(0, Math.min(addresses.size(), MAX_REPORTED_ADDRESSES))) {
+            sb.append(String.format("  %-24s %-6s %12d%n", formatAddress(address, labelsByAddress),
+                    Instructions.getName(program[address]), addressCounts[address]));
+        }
+
+        sb.append(String.format("%nCalls:%n"));
+        for (int address : sortedByCount(callCounts)) {
+            sb.append(String.format("  %-24s %12d%n", formatAddress(address, labelsByAddress), callCounts[address]));
+        }
+
+        sb.append(String.format("%nConditional jumps:%n"));
+        for (int address : addresses) {
+            if (isConditionalJump(program[address])) {
+                sb.append(String.format("  %-24s %-6s %12d taken %12d not taken%n",
+                        formatAddress(address, labelsByAddress), Instructions.getName(program[address]),
+                        getJumpsTaken(address), getJumpsNotTaken(address)));
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Returns the indexes of the non zero counters, sorted by decreasing count.
+     */
+    private static List<Integer> sortedByCount(final long[] counts) {
+        List<Integer> indexes = new ArrayList<>();
+        for (int i = 0; i < counts.length; i++) {
+            if (counts[i] > 0) {
+                indexes.add(i);
+            }
+        }
+        Collections.sort(indexes, (i1, i2) -> Long.compare(counts[i2], counts[i1]));
+        return indexes;
+    }
+
+    /**
+     * Formats an address as "address (label+offset)", using the nearest label before it.
+     */
+    private static String formatAddress(int address, TreeMap<Integer, String> labelsByAddress) {
+        Map.Entry<Integer, String> label = labelsByAddress.floorEntry(address);
+        if (label == null) {
+            return Integer.toString(address);
+        }
+        int offset = address - label.getKey();
+        return offset == 0
+                ? String.format("%d (%s)", address, label.getValue())
+                : String.format("%d (%s+%d)", address, label.getValue(), offset);
+    }
+}
@@ -1,30 +1,100 @@
 package com.andreabergia.sbvm;
 
+import java.nio.IntBuffer;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
 public class Frame {
-    private final Map<Integer, Integer> variables = new HashMap<>();
-    private final int returnAddress;
+    /**
+     * Variables are numbered from zero up to this limit, excluded.
+     */
+    public static final int MAX_VARIABLES = 1 << 16;
+
+    private int[] variables;
+    private int size; // Slots from here to the end of the array may hold values of a previous use of the frame
+    private int returnAddress;
 
     public Frame(int returnAddress) {
+        this(returnAddress, 0);
+    }
+
+    /**
+     * Creates a frame with room for the given number of variables. Storing a variable
+     * with a higher number is still allowed, but it will have to grow the frame.
+     */
+    public Frame(int returnAddress, int variablesCount) {
+        this.returnAddress = returnAddress;
+        this.variables = new int[variablesCount];
+        this.size = variablesCount;
+    }
+
+    /**
+     * Prepares a frame that is not used anymore for a new call, as if it had just been created,
+     * reusing its variables array when it is large enough.
+     */
+    void reuse(int returnAddress, int variablesCount) {
         this.returnAddress = returnAddress;
+        if (variablesCount > variables.length) {
+            variables = new int[variablesCount];
+        } else {
+            Arrays.fill(variables, 0, variablesCount, 0);
+        }
+        size = variablesCount;
     }
 
     public int getVariable(int varNumber) {
-        return variables.getOrDefault(varNumber, 0);
+        return varNumber < size ? variables[varNumber] : 0;
     }
 
     public void setVariable(int varNumber, int value) {
-        variables.put(varNumber, value);
+        if (varNumber >= size) {
+            grow(varNumber + 1);
+        }
+        variables[varNumber] = value;
+    }
+
+    private void grow(int minSize) {
+        int newSize = Math.max(minSize, size * 2);
+        if (newSize > variables.length) {
+            variables = Arrays.copyOf(variables, newSize);
+        }
+        Arrays.fill(variables, size, newSize, 0);
+        size = newSize;
+    }
+
+    void clearVariables() {
+        Arrays.fill(variables, 0, size, 0);
+    }
+
+    /**
+     * Returns the number of variable slots of this frame, including the ones that have never been stored.
+     */
+    int getVariablesCount() {
+        return size;
+    }
+
+    void writeVariablesTo(IntBuffer buffer) {
+        buffer.put(variables, 0, size);
+    }
+
+    void readVariablesFrom(IntBuffer buffer) {
+        buffer.get(variables, 0, size);
     }
 
     public int getReturnAddress() {
         return returnAddress;
     }
 
+    /**
+     * Returns a snapshot of all the variable slots of this frame, by number.
+     */
     public Map<Integer, Integer> getVariables() {
-        return Collections.unmodifiableMap(variables);
+        Map<Integer, Integer> result = new LinkedHashMap<>();
+        for (int i = 0; i < size; i++) {
+            result.put(i, variables[i]);
+        }
+        return Collections.unmodifiableMap(result);
     }
 }
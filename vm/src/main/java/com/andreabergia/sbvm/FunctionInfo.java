@@ -0,0 +1,95 @@
+package com.andreabergia.sbvm;
+
+/**
+ * What the {@link Verifier} found out about a function: how it uses the stack, and the stack depth before
+ * each of its instructions. All depths are relative to the depth when the function is entered, so they can
+ * be negative for a function that consumes its arguments.
+ */
+public final class FunctionInfo {
+    private static final int UNREACHABLE = Integer.MIN_VALUE;
+
+    private final int entryPoint;
+    private final int argumentsCount;
+    private final boolean returns;
+    private final int returnDelta;
+    private final int maxDepth;
+    private final boolean complete;
+    private final int firstAddress;
+    private final int[] depths;
+
+    FunctionInfo(int entryPoint, int argumentsCount, boolean returns, int returnDelta, int maxDepth,
+                 boolean complete, int firstAddress, int[] depths) {
+        this.entryPoint = entryPoint;
+        this.argumentsCount = argumentsCount;
+        this.returns = returns;
+        this.returnDelta = returns ? returnDelta : 0;
+        this.maxDepth = maxDepth;
+        this.complete = complete;
+        this.firstAddress = firstAddress;
+        this.depths = depths;
+    }
+
+    static FunctionInfo neverReturning(int entryPoint) {
+        return new FunctionInfo(entryPoint, 0, false, 0, 0, true, entryPoint, new int[0]);
+    }
+
+    public int getEntryPoint() {
+        return entryPoint;
+    }
+
+    /**
+     * Returns how many items the function consumes from its caller's stack.
+     */
+    public int getArgumentsCount() {
+        return argumentsCount;
+    }
+
+    /**
+     * Returns false if the function can never reach a RET.
+     */
+    public boolean returns() {
+        return returns;
+    }
+
+    /**
+     * Returns how much the stack depth changes between the CALL and the matching RET.
+     */
+    public int getReturnDelta() {
+        return returnDelta;
+    }
+
+    /**
+     * Returns the maximum stack depth reached in the function itself, not counting its callees.
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    boolean isComplete() {
+        return complete;
+    }
+
+    public boolean isReachable(int address) {
+        int index = address - firstAddress;
+        return index >= 0 && index < depths.length && depths[index] != UNREACHABLE;
+    }
+
+    /**
+     * Returns the stack depth before executing the instruction at the given address.
+     */
+    public int getStackDepth(int address) {
+        if (!isReachable(address)) {
+            throw new IllegalArgumentException("Address " + address + " is not reachable from function " + entryPoint);
+        }
+        return depths[address - firstAddress];
+    }
+
+    boolean sameSummary(FunctionInfo other) {
+        return other != null
+                && argumentsCount == other.argumentsCount
+                && returns == other.returns
+                && returnDelta == other.returnDelta
+                && maxDepth == other.maxDepth
+                && complete == other.complete;
+    }
+}
@@ -0,0 +1,201 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A verified program as an editable list of instructions, used by the passes that rewrite programs.
+ * Jump and CALL instructions reference their target instruction rather than an address,
+ * so that instructions can be added and removed freely; addresses are recomputed by {@link #encode()}.
+ */
+final class InstructionList {
+    static final class Node {
+        final int opcode;
+        final int operand;
+        final int operand2;
+        final int operand3;
+        Node target; // For jumps and CALLs
+        int incomingJumps = 0;
+        int address = -1; // In the decoded program, or -1 for the instructions added by the passes
+
+        Node(int opcode, int operand) {
+            this(opcode, operand, 0, 0);
+        }
+
+        Node(int opcode, int operand, int operand2, int operand3) {
+            this.opcode = opcode;
+            this.operand = operand;
+            this.operand2 = operand2;
+            this.operand3 = operand3;
+        }
+
+        Node(int opcode, Node target) {
+            this(opcode, 0);
+            this.target = target;
+        }
+
+        boolean isJump() {
+            return Instructions.hasAddressOperand(opcode);
+        }
+
+        boolean isJumpTarget() {
+            return incomingJumps > 0;
+        }
+    }
+
+    private final List<Node> nodes;
+
+    private InstructionList(List<Node> nodes) {
+        this.nodes = nodes;
+    }
+
+    /**
+     * Decodes a program, which must have been verified, so that all its jump targets are instruction starts.
+     */
+    static InstructionList decode(VerifiedProgram verifiedProgram) {
+        int[] program = verifiedProgram.getProgram();
+        List<Node> nodes = new ArrayList<>();
+        Node[] nodeAt = new Node[program.length];
+        for (int address = 0; address < program.length; ) {
+            int opcode = program[address];
+            int operandsCount = Instructions.getOperandsCount(opcode);
+            Node node = new Node(opcode,
+                    operandsCount > 0 ? program[address + 1] : 0,
+                    operandsCount > 1 ? program[address + 2] : 0,
+                    operandsCount > 2 ? program[address + 3] : 0);
+            node.address = address;
+            nodeAt[address] = node;
+            nodes.add(node);
+            address += 1 + operandsCount;
+        }
+        for (Node node : nodes) {
+            if (node.isJump()) {
+                node.target = nodeAt[node.operand];
+                ++node.target.incomingJumps;
+            }
+        }
+        return new InstructionList(nodes);
+    }
+
+    int size() {
+        return nodes.size();
+    }
+
+    Node get(int index) {
+        return nodes.get(index);
+    }
+
+    int getOpcode(int index) {
+        return index < nodes.size() ? nodes.get(index).opcode : -1;
+    }
+
+    /**
+     * Returns true if none of the given instructions, except the first one, is a jump target,
+     * so that they are always executed in sequence.
+     */
+    boolean isStraightLine(int from, int count) {
+        if (from + count > nodes.size()) {
+            return false;
+        }
+        for (int i = from + 1; i < from + count; i++) {
+            if (nodes.get(i).isJumpTarget()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Replaces {@code count} instructions with the given ones. Jumps to the first replaced instruction
+     * will go to the first new instruction or, if there is none, to the one following the replaced ones.
+     */
+    void replace(int from, int count, Node... replacement) {
+        List<Node> removed = nodes.subList(from, from + count);
+        Node first = removed.get(0);
+        Node newFirst = replacement.length > 0 ? replacement[0] : nodes.get(from + count);
+        for (Node node : removed) {
+            if (node.isJump()) {
+                --node.target.incomingJumps;
+            }
+        }
+        for (Node node : replacement) {
+            if (node.isJump()) {
+                ++node.target.incomingJumps;
+            }
+        }
+        if (first.isJumpTarget()) {
+            for (Node node : nodes) {
+                if (node.isJump() && node.target == first) {
+                    node.target = newFirst;
+                }
+            }
+            newFirst.incomingJumps += first.incomingJumps;
+            first.incomingJumps = 0;
+        }
+        removed.clear();
+        nodes.addAll(from, Arrays.asList(replacement));
+    }
+
+    /**
+     * Makes a jump or a CALL go to another instruction.
+     */
+    void retarget(Node node, Node target) {
+        --node.target.incomingJumps;
+        node.target = target;
+        ++target.incomingJumps;
+    }
+
+    /**
+     * Replaces all the instructions with the given ones, in the given order. The targets of all their jumps
+     * must be among them.
+     */
+    void setNodes(List<Node> newNodes) {
+        nodes.clear();
+        nodes.addAll(newNodes);
+        for (Node node : nodes) {
+            node.incomingJumps = 0;
+        }
+        for (Node node : nodes) {
+            if (node.isJump()) {
+                ++node.target.incomingJumps;
+            }
+        }
+    }
+
+    /**
+     * Returns the program as words, with all the jump targets relocated.
+     */
+    int[] encode() {
+        int size = 0;
+        int[] addresses = new int[nodes.size()];
+        for (int i = 0; i < nodes.size(); i++) {
+            addresses[i] = size;
+            size += 1 + Instructions.getOperandsCount(nodes.get(i).opcode);
+        }
+        Map<Node, Integer> addressOf = new IdentityHashMap<>();
+        for (int i = 0; i < nodes.size(); i++) {
+            addressOf.put(nodes.get(i), addresses[i]);
+        }
+
+        int[] program = new int[size];
+        for (int i = 0; i < nodes.size(); i++) {
+            Node node = nodes.get(i);
+            int address = addresses[i];
+            program[address] = node.opcode;
+            int operandsCount = Instructions.getOperandsCount(node.opcode);
+            if (operandsCount > 0) {
+                program[address + 1] = node.isJump() ? addressOf.get(node.target) : node.operand;
+            }
+            if (operandsCount > 1) {
+                program[address + 2] = node.operand2;
+            }
+            if (operandsCount > 2) {
+                program[address + 3] = node.operand3;
+            }
+        }
+        return program;
+    }
+}
@@ -21,4 +21,250 @@ public class Instructions {
     public static final int STORE = 0x12;
     public static final int CALL = 0x13;
     public static final int RET = 0x15;
+
+    // Linear memory: the operands are popped from the stack, and the addresses are word indexes of the CPU's Memory
+
+    /**
+     * Pops an address, and pushes the word of the memory at that address.
+     */
+    public static final int MLOAD = 0x16;
+    /**
+     * Pops a value and then an address, and writes the value in the memory at that address.
+     */
+    public static final int MSTORE = 0x17;
+    /**
+     * Pops a count, a destination address and a source address, and copies count words of the memory
+     * from the source to the destination. The two ranges can overlap.
+     */
+    public static final int MCOPY = 0x18;
+    /**
+     * Pops a count, a value and an address, and writes the value in count words of the memory from that address.
+     */
+    public static final int MFILL = 0x19;
+    /**
+     * Pops a count, a destination address and the addresses a and b, and writes a[i] + b[i] in count words
+     * of the memory from the destination. The destination must be the same range as a source, or not overlap it.
+     */
+    public static final int VADD = 0x1A;
+    /**
+     * Like VADD, but writes a[i] * b[i].
+     */
+    public static final int VMUL = 0x1B;
+    /**
+     * Like VADD, but writes 1 if a[i] &gt; b[i], or 0 otherwise.
+     */
+    public static final int VISGT = 0x1C;
+    /**
+     * Pops a count and an address, and pushes the sum of count words of the memory from that address.
+     */
+    public static final int VSUM = 0x1D;
+
+    // Superinstructions: they are not part of the assembly language, and are
+    // generated by fusing the base instructions that they replace
+
+    /**
+     * ISEQ, JIF: pops two items, and jumps to the operand address if they are equal.
+     */
+    public static final int JEQ = 0x20;
+    /**
+     * ISGE, JIF: pops n2 and n1, and jumps to the operand address if n1 &gt;= n2.
+     */
+    public static final int JGE = 0x21;
+    /**
+     * ISGT, JIF: pops n2 and n1, and jumps to the operand address if n1 &gt; n2.
+     */
+    public static final int JGT = 0x22;
+    /**
+     * NOT, JIF: pops an item, and jumps to the operand address if it is zero.
+     */
+    public static final int JZ = 0x23;
+    /**
+     * LOAD n, PUSH k, ADD, STORE n: adds the second operand to the variable in the first operand.
+     */
+    public static final int INC = 0x24;
+    /**
+     * LOAD a, LOAD b, op: pushes the result of the binary instruction in the third operand,
+     * applied to the variables in the first and second operand.
+     */
+    public static final int LLOP = 0x25;
+
+    /**
+     * Returns true if the given instruction is one of those that pop two items and push one.
+     */
+    public static boolean isBinaryOperation(int instruction) {
+        switch (instruction) {
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case AND:
+            case OR:
+            case ISEQ:
+            case ISGE:
+            case ISGT:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns true if the given instruction reads or writes the linear memory.
+     */
+    public static boolean isMemoryOperation(int instruction) {
+        return instruction == MLOAD || instruction == MSTORE || instruction == MCOPY || instruction == MFILL
+                || isVectorOperation(instruction) || instruction == VSUM;
+    }
+
+    /**
+     * Returns true if the given instruction is VADD, VMUL or VISGT, that pop four items and push none.
+     */
+    public static boolean isVectorOperation(int instruction) {
+        return instruction == VADD || instruction == VMUL || instruction == VISGT;
+    }
+
+    /**
+     * Returns true if the first operand of the given instruction is a jump or CALL target.
+     */
+    public static boolean hasAddressOperand(int instruction) {
+        switch (instruction) {
+            case JMP:
+            case JIF:
+            case CALL:
+            case JEQ:
+            case JGE:
+            case JGT:
+            case JZ:
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Returns the number of words that follow the given instruction in the program,
+     * or -1 if the instruction is unknown.
+     */
+    public static int getOperandsCount(int instruction) {
+        switch (instruction) {
+            case HALT:
+            case ADD:
+            case SUB:
+            case MUL:
+            case DIV:
+            case NOT:
+            case AND:
+            case OR:
+            case POP:
+            case DUP:
+            case ISEQ:
+            case ISGE:
+            case ISGT:
+            case RET:
+            case MLOAD:
+            case MSTORE:
+            case MCOPY:
+            case MFILL:
+            case VADD:
+            case VMUL:
+            case VISGT:
+            case VSUM:
+                return 0;
+            case PUSH:
+            case JMP:
+            case JIF:
+            case LOAD:
+            case STORE:
+            case CALL:
+            case JEQ:
+            case JGE:
+            case JGT:
+            case JZ:
+                return 1;
+            case INC:
+                return 2;
+            case LLOP:
+                return 3;
+            default:
+                return -1;
+        }
+    }
+
+    /**
+     * Returns the mnemonic of the given instruction, or its hexadecimal value if it is unknown.
+     */
+    public static String getName(int instruction) {
+        switch (instruction) {
+            case HALT:
+                return "HALT";
+            case PUSH:
+                return "PUSH";
+            case ADD:
+                return "ADD";
+            case SUB:
+                return "SUB";
+            case MUL:
+                return "MUL";
+            case DIV:
+                return "DIV";
+            case NOT:
+                return "NOT";
+            case AND:
+                return "AND";
+            case OR:
+                return "OR";
+            case POP:
+                return "POP";
+            case DUP:
+                return "DUP";
+            case ISEQ:
+                return "ISEQ";
+            case ISGE:
+                return "ISGE";
+            case ISGT:
+                return "ISGT";
+            case JMP:
+                return "JMP";
+            case JIF:
+                return "JIF";
+            case LOAD:
+                return "LOAD";
+            case STORE:
+                return "STORE";
+            case CALL:
+                return "CALL";
+            case RET:
+                return "RET";
+            case MLOAD:
+                return "MLOAD";
+            case MSTORE:
+                return "MSTORE";
+            case MCOPY:
+                return "MCOPY";
+            case MFILL:
+                return "MFILL";
+            case VADD:
+                return "VADD";
+            case VMUL:
+                return "VMUL";
+            case VISGT:
+                return "VISGT";
+            case VSUM:
+                return "VSUM";
+            case JEQ:
+                return "JEQ";
+            case JGE:
+                return "JGE";
+            case JGT:
+                return "JGT";
+            case JZ:
+                return "JZ";
+            case INC:
+                return "INC";
+            case LLOP:
+                return "LLOP";
+            default:
+                return String.format("0x%02X", instruction);
+        }
+    }
 }
@@ -0,0 +1,140 @@
+package com.andreabergia.sbvm;
+
+import java.nio.IntBuffer;
+import java.util.AbstractCollection;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A stack of primitive ints, backed by a growable array and a stack pointer.
+ * Pushing and popping never allocate, except when the array has to grow.
+ */
+public class IntStack {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int[] items;
+    private int size = 0; // Also the index of the first free slot, i.e. the stack pointer
+    private final Collection<Integer> view = new ReadOnlyView();
+
+    public IntStack() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public IntStack(int initialCapacity) {
+        this.items = new int[Math.max(1, initialCapacity)];
+    }
+
+    public void push(int value) {
+        if (size == items.length) {
+            items = Arrays.copyOf(items, items.length * 2);
+        }
+        items[size++] = value;
+    }
+
+    public int pop() {
+        return items[--size];
+    }
+
+    public int peek() {
+        return items[size - 1];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes the given number of items from the top of the stack.
+     */
+    public void drop(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("Cannot drop " + count + " items, size is " + size);
+        }
+        size -= count;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Returns the item at the given depth, where zero is the top of the stack.
+     */
+    public int get(int depth) {
+        if (depth < 0 || depth >= size) {
+            throw new IndexOutOfBoundsException("Invalid stack depth " + depth + ", size is " + size);
+        }
+        return items[size - 1 - depth];
+    }
+
+    /**
+     * Returns the content of the stack, from the top to the bottom.
+     */
+    public int[] toArray() {
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = items[size - 1 - i];
+        }
+        return result;
+    }
+
+    /**
+     * Writes the content of the stack to the given buffer, from the bottom to the top.
+     */
+    void writeTo(IntBuffer buffer) {
+        buffer.put(items, 0, size);
+    }
+
+    /**
+     * Replaces the content of the stack with the given number of items read from the buffer,
+     * from the bottom to the top.
+     */
+    void readFrom(IntBuffer buffer, int count) {
+        if (count > items.length) {
+            items = new int[count];
+        }
+        buffer.get(items, 0, count);
+        size = count;
+    }
+
+    /**
+     * Returns a live, read-only view of the stack, iterated from the top to the bottom.
+     * Boxing happens only when the view is actually read.
+     */
+    public Collection<Integer> asCollection() {
+        return view;
+    }
+
+    private final class ReadOnlyView extends AbstractCollection<Integer> {
+        @Override
+        public Iterator<Integer> iterator() {
+            return new Iterator<Integer>() {
+                private int next = size - 1;
+
+                @Override
+                public boolean hasNext() {
+                    return next >= 0;
+                }
+
+                @Override
+                public Integer next() {
+                    if (next < 0) {
+                        throw new NoSuchElementException();
+                    }
+                    return items[next--];
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
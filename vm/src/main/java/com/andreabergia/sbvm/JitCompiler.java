@@ -0,0 +1,652 @@
+package com.andreabergia.sbvm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+
+/**
+ * Compiles the hot parts of a verified program to JVM classes, so that HotSpot can optimize them.
+ * <p>
+ * There are two kinds of compilation units: functions, compiled when they have been called often enough,
+ * and loops, compiled from their header when a backward jump to it has been taken often enough, so that a
+ * long running loop in the main code can leave the interpreter. Each unit becomes a class, defined by a
+ * class loader dedicated to this compiler, with a static method that contains the translated code:
+ * <ul>
+ * <li>the variables of the frame become JVM locals, loaded from the {@link Frame} on entry;</li>
+ * <li>the items of the stack that belong to the frame live on the JVM operand stack, which is possible because
+ * the verifier has proven that the stack depth is the same on every path;</li>
+ * <li>JMP and JIF become JVM branches;</li>
+ * <li>CALL and RET move the frame's items back to the {@link IntStack}, and CALL goes through the
+ * {@link JitRuntime}, so the callee can be either compiled or interpreted;</li>
+ * <li>HALT moves the items back to the stack and the locals back to the frame, so that the state of
+ * the CPU is exactly the one the interpreter would have produced;</li>
+ * <li>the memory instructions call the CPU's {@link Memory}, taken from the {@link JitRuntime} on entry.</li>
+ * </ul>
+ * A unit that cannot be compiled, for instance because it would be too large for a JVM method,
+ * is simply left to the interpreter.
+ */
+public final class JitCompiler {
+    private static final String GENERATED_PACKAGE = "com/andreabergia/sbvm/generated/";
+    private static final String COMPILED_CODE = "com/andreabergia/sbvm/CompiledCode";
+    private static final String JIT_RUNTIME = "com/andreabergia/sbvm/JitRuntime";
+    private static final String INT_STACK = "com/andreabergia/sbvm/IntStack";
+    private static final String FRAME = "com/andreabergia/sbvm/Frame";
+    private static final String MEMORY = "com/andreabergia/sbvm/Memory";
+    private static final String RUN_DESCRIPTOR = "(L" + JIT_RUNTIME + ";L" + INT_STACK + ";L" + FRAME + ";)Z";
+
+    // The JVM locals of the generated method
+    private static final int RUNTIME_LOCAL = 0;
+    private static final int STACK_LOCAL = 1;
+    private static final int FRAME_LOCAL = 2;
+    private static final int FIRST_VARIABLE_LOCAL = 3;
+    private static final int MAX_JVM_LOCALS = 0xFFFF;
+
+    // Marks the units that cannot be compiled
+    private static final CompiledCode NOT_COMPILABLE = new CompiledCode() {
+        @Override
+        public boolean execute(JitRuntime runtime, IntStack stack, Frame frame) {
+            throw new AssertionError();
+        }
+    };
+
+    private final VerifiedProgram verifiedProgram;
+    private final int[] program;
+    private final JitSettings settings;
+    private final JitClassLoader classLoader = new JitClassLoader(JitCompiler.class.getClassLoader());
+    // The counters are updated without synchronization: a lost update only delays a compilation
+    private final int[] invocationCounts;
+    private final int[] backEdgeCounts;
+    private final AtomicReferenceArray<CompiledCode> functions;
+    private final AtomicReferenceArray<CompiledCode> loops;
+    private int compiledUnitsCount = 0;
+    private int failedUnitsCount = 0;
+
+    /**
+     * Creates a compiler for the given program. The compiler can be shared by any number of CPUs
+     * running the program, even concurrently, so that every unit is compiled, and warmed up by the JVM, only once.
+     */
+    public JitCompiler(VerifiedProgram verifiedProgram, JitSettings settings) {
+        this.verifiedProgram = verifiedProgram;
+        this.program = verifiedProgram.getProgram();
+        this.settings = settings;
+        this.invocationCounts = new int[program.length];
+        this.backEdgeCounts = new int[program.length];
+        this.functions = new AtomicReferenceArray<>(program.length);
+        this.loops = new AtomicReferenceArray<>(program.length);
+    }
+
+    public VerifiedProgram getVerifiedProgram() {
+        return verifiedProgram;
+    }
+
+    /**
+     * Returns how many units have been compiled so far.
+     */
+    public synchronized int getCompiledUnitsCount() {
+        return compiledUnitsCount;
+    }
+
+    /**
+     * Returns how many units could not be compiled, and are left to the interpreter.
+     */
+    public synchronized int getFailedUnitsCount() {
+        return failedUnitsCount;
+    }
+
+    public boolean isFunctionCompiled(int address) {
+        CompiledCode code = functions.get(address);
+        return code != null && code != NOT_COMPILABLE;
+    }
+
+    public boolean isLoopCompiled(int address) {
+        CompiledCode code = loops.get(address);
+        return code != null && code != NOT_COMPILABLE;
+    }
+
+    /**
+     * Counts a call to the given function, and returns its compiled code if there is one.
+     */
+    CompiledCode onInvocation(int address) {
+        CompiledCode code = functions.get(address);
+        if (code == null) {
+            if (invocationCounts[address]++ < settings.getInvocationThreshold()) {
+                return null;
+            }
+            code = compileFunction(address);
+        }
+        return code != NOT_COMPILABLE ? code : null;
+    }
+
+    /**
+     * Counts a backward jump to the given loop header, and returns its compiled code if there is one.
+     */
+    CompiledCode onBackEdge(int address) {
+        CompiledCode code = loops.get(address);
+        if (code == null) {
+            if (backEdgeCounts[address]++ < settings.getBackEdgeThreshold()) {
+                return null;
+            }
+            code = compileLoop(address);
+        }
+        return code != NOT_COMPILABLE ? code : null;
+    }
+
+    private synchronized CompiledCode compileFunction(int entryPoint) {
+        CompiledCode code = functions.get(entryPoint);
+        if (code == null) {
+            FunctionInfo function = verifiedProgram.getFunctions().get(entryPoint);
+            code = compile("Function" + entryPoint, entryPoint, function.getArgumentsCount(), function);
+            functions.set(entryPoint, code);
+        }
+        return code;
+    }
+
+    private synchronized CompiledCode compileLoop(int header) {
+        CompiledCode code = loops.get(header);
+        if (code == null) {
+            code = compileLoopUnit(header);
+            loops.set(header, code);
+        }
+        return code;
+    }
+
+    private CompiledCode compileLoopUnit(int header) {
+        // The code is the same for every function that contains the loop, as long as the frame has
+        // the same number of items on the stack when entering the loop
+        FunctionInfo function = null;
+        int items = -1;
+        List<FunctionInfo> candidates = new ArrayList<>(verifiedProgram.getFunctions().values());
+        candidates.add(verifiedProgram.getMain());
+        for (FunctionInfo candidate : candidates) {
+            if (candidate.isReachable(header)) {
+                int candidateItems = candidate.getArgumentsCount() + candidate.getStackDepth(header);
+                if (function != null && candidateItems != items) {
+                    ++failedUnitsCount;
+                    return NOT_COMPILABLE;
+                }
+                function = candidate;
+                items = candidateItems;
+            }
+        }
+        if (function == null) {
+            ++failedUnitsCount;
+            return NOT_COMPILABLE;
+        }
+        return compile("Loop" + header, header, items, function);
+    }
+
+    private CompiledCode compile(String className, int start, int itemsAtStart, FunctionInfo function) {
+        try {
+            byte[] bytes = new UnitCompiler(GENERATED_PACKAGE + className, start, itemsAtStart, function).compile();
+            if (bytes == null) {
+                ++failedUnitsCount;
+                return NOT_COMPILABLE;
+            }
+            Class<?> generatedClass = classLoader.define(GENERATED_PACKAGE.replace('/', '.') + className, bytes);
+            CompiledCode code = (CompiledCode) generatedClass.newInstance();
+            ++compiledUnitsCount;
+            return code;
+        } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+            // For instance, a method too large for the JVM
+            ++failedUnitsCount;
+            return NOT_COMPILABLE;
+        }
+    }
+
+    static final class JitClassLoader extends ClassLoader {
+        JitClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    /**
+     * Translates the code reachable from a start address, without following CALLs, to a JVM method.
+     */
+    private final class UnitCompiler {
+        private final String className;
+        private final int start;
+        private final int depthOffset; // Added to the function's depths to get the items of the frame
+        private final FunctionInfo function;
+        private final BitSet reachable = new BitSet();
+        private final BitSet jumpTargets = new BitSet();
+        private final BitSet fusedJifs = new BitSet();
+        private final Label[] labels;
+        private int variablesCount = 0;
+        private int maxItems = 0;
+        private int firstTemporaryLocal;
+        private int scratchLocal;
+        private int memoryLocal;
+        private boolean usesMemory = false;
+        private MethodVisitor mv;
+
+        UnitCompiler(String className, int start, int itemsAtStart, FunctionInfo function) {
+            this.className = className;
+            this.start = start;
+            this.depthOffset = itemsAtStart - function.getStackDepth(start);
+            this.function = function;
+            this.labels = new Label[program.length];
+        }
+
+        private int itemsAt(int address) {
+            return function.getStackDepth(address) + depthOffset;
+        }
+
+        byte[] compile() {
+            findReachableCode();
+            firstTemporaryLocal = FIRST_VARIABLE_LOCAL + variablesCount;
+            scratchLocal = firstTemporaryLocal + maxItems;
+            memoryLocal = scratchLocal + 1;
+            if (memoryLocal + 1 > MAX_JVM_LOCALS) {
+                return null;
+            }
+
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+            cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null,
+                    "java/lang/Object", new String[]{COMPILED_CODE});
+            Bytecode.generateConstructor(cw);
+            generateExecute(cw);
+            generateRun(cw);
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        private void findReachableCode() {
+            Deque<Integer> toVisit = new ArrayDeque<>();
+            toVisit.push(start);
+            reachable.set(start);
+            while (!toVisit.isEmpty()) {
+                int address = toVisit.pop();
+                labels[address] = new Label();
+                maxItems = Math.max(maxItems, itemsAt(address));
+                int instruction = program[address];
+                int next = address + 1 + Instructions.getOperandsCount(instruction);
+                switch (instruction) {
+                    case HALT:
+                    case RET:
+                        break;
+                    case JMP:
+                        visit(program[address + 1], true, toVisit);
+                        break;
+                    case JIF:
+                    case JEQ:
+                    case JGE:
+                    case JGT:
+                    case JZ:
+                        visit(program[address + 1], true, toVisit);
+                        visit(next, false, toVisit);
+                        break;
+                    case CALL:
+                        if (verifiedProgram.getFunctions().get(program[address + 1]).returns()) {
+                            visit(next, false, toVisit);
+                        }
+                        break;
+                    case LOAD:
+                    case STORE:
+                    case INC:
+                        variablesCount = Math.max(variablesCount, program[address + 1] + 1);
+                        visit(next, false, toVisit);
+                        break;
+                    case LLOP:
+                        variablesCount = Math.max(variablesCount,
+                                Math.max(program[address + 1], program[address + 2]) + 1);
+                        visit(next, false, toVisit);
+                        break;
+                    default:
+                        usesMemory |= Instructions.isMemoryOperation(instruction);
+                        visit(next, false, toVisit);
+                        break;
+                }
+            }
+        }
+
+        private void visit(int address, boolean isJump, Deque<Integer> toVisit) {
+            if (isJump) {
+                jumpTargets.set(address);
+            }
+            if (!reachable.get(address)) {
+                reachable.set(address);
+                toVisit.push(address);
+            }
+        }
+
+        private void generateExecute(ClassWriter cw) {
+            MethodVisitor execute = cw.visitMethod(Opcodes.ACC_PUBLIC, "execute", RUN_DESCRIPTOR, null, null);
+            execute.visitCode();
+            execute.visitVarInsn(Opcodes.ALOAD, 1);
+            execute.visitVarInsn(Opcodes.ALOAD, 2);
+            execute.visitVarInsn(Opcodes.ALOAD, 3);
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, className, "run", RUN_DESCRIPTOR, false);
+            execute.visitInsn(Opcodes.IRETURN);
+            execute.visitMaxs(0, 0);
+            execute.visitEnd();
+        }
+
+        private void generateRun(ClassWriter cw) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", RUN_DESCRIPTOR, null, null);
+            mv.visitCode();
+
+            // Prologue: load the variables from the frame and the frame's items from the stack
+            for (int i = 0; i < variablesCount; i++) {
+                mv.visitVarInsn(Opcodes.ALOAD, FRAME_LOCAL);
+                Bytecode.pushConstant(mv, i);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "getVariable", "(I)I", false);
+                mv.visitVarInsn(Opcodes.ISTORE, FIRST_VARIABLE_LOCAL + i);
+            }
+            if (usesMemory) {
+                mv.visitVarInsn(Opcodes.ALOAD, RUNTIME_LOCAL);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, JIT_RUNTIME, "getMemory", "()L" + MEMORY + ";", false);
+                mv.visitVarInsn(Opcodes.ASTORE, memoryLocal);
+            }
+            reloadItems(itemsAt(start));
+            mv.visitJumpInsn(Opcodes.GOTO, labels[start]);
+
+            for (int address = reachable.nextSetBit(0); address >= 0; ) {
+                int next = generateInstruction(address);
+                int nextToGenerate = reachable.nextSetBit(address + 1);
+                while (nextToGenerate >= 0 && fusedJifs.get(nextToGenerate)) {
+                    nextToGenerate = reachable.nextSetBit(nextToGenerate + 1);
+                }
+                if (next >= 0 && next != nextToGenerate) {
+                    mv.visitJumpInsn(Opcodes.GOTO, labels[next]);
+                }
+                address = nextToGenerate;
+            }
+
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Generates the code for an instruction, and returns the address where the execution continues
+         * if it falls through, or -1.
+         */
+        private int generateInstruction(int address) {
+            mv.visitLabel(labels[address]);
+            int instruction = program[address];
+            int operand = Instructions.getOperandsCount(instruction) > 0 ? program[address + 1] : 0;
+            int next = address + 1 + Instructions.getOperandsCount(instruction);
+
+            switch (instruction) {
+                case HALT:
+                    spillItems(itemsAt(address));
+                    saveVariables();
+                    mv.visitVarInsn(Opcodes.ALOAD, RUNTIME_LOCAL);
+                    Bytecode.pushConstant(mv, address + 1);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, JIT_RUNTIME, "halt", "(I)V", false);
+                    mv.visitInsn(Opcodes.ICONST_1);
+                    mv.visitInsn(Opcodes.IRETURN);
+                    return -1;
+
+                case PUSH:
+                    Bytecode.pushConstant(mv, operand);
+                    return next;
+
+                case POP:
+                    mv.visitInsn(Opcodes.POP);
+                    return next;
+
+                case DUP:
+                    mv.visitInsn(Opcodes.DUP);
+                    return next;
+
+                case LOAD:
+                    mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + operand);
+                    return next;
+
+                case STORE:
+                    mv.visitVarInsn(Opcodes.ISTORE, FIRST_VARIABLE_LOCAL + operand);
+                    return next;
+
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case AND:
+                case OR:
+                case ISEQ:
+                case ISGE:
+                case ISGT:
+                    return generateBinaryOperation(instruction, next);
+
+                case NOT:
+                    if (isFusableJif(next)) {
+                        fusedJifs.set(next);
+                        mv.visitJumpInsn(Opcodes.IFEQ, labels[program[next + 1]]);
+                        return next + 2;
+                    }
+                    Bytecode.pushBoolean(mv, Opcodes.IFEQ);
+                    return next;
+
+                case INC: {
+                    int local = FIRST_VARIABLE_LOCAL + operand;
+                    int delta = program[address + 2];
+                    if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+                        mv.visitIincInsn(local, delta);
+                    } else {
+                        mv.visitVarInsn(Opcodes.ILOAD, local);
+                        Bytecode.pushConstant(mv, delta);
+                        mv.visitInsn(Opcodes.IADD);
+                        mv.visitVarInsn(Opcodes.ISTORE, local);
+                    }
+                    return next;
+                }
+
+                case LLOP:
+                    mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + operand);
+                    mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + program[address + 2]);
+                    return generateBinaryOperation(program[address + 3], next);
+
+                case JEQ:
+                case JGE:
+                case JGT:
+                    mv.visitJumpInsn(Bytecode.getComparison(instruction), labels[operand]);
+                    return next;
+
+                case JZ:
+                    mv.visitJumpInsn(Opcodes.IFEQ, labels[operand]);
+                    return next;
+
+                case JMP:
+                    mv.visitJumpInsn(Opcodes.GOTO, labels[operand]);
+                    return -1;
+
+                case JIF:
+                    mv.visitJumpInsn(Opcodes.IFNE, labels[operand]);
+                    return next;
+
+                case MLOAD:
+                    callMemory(itemsAt(address), 1, "get", "(I)I");
+                    return next;
+
+                case MSTORE:
+                    callMemory(itemsAt(address), 2, "set", "(II)V");
+                    return next;
+
+                case MCOPY:
+                    callMemory(itemsAt(address), 3, "copy", "(III)V");
+                    return next;
+
+                case MFILL:
+                    callMemory(itemsAt(address), 3, "fill", "(III)V");
+                    return next;
+
+                case VADD:
+                    callMemory(itemsAt(address), 4, "add", "(IIII)V");
+                    return next;
+
+                case VMUL:
+                    callMemory(itemsAt(address), 4, "multiply", "(IIII)V");
+                    return next;
+
+                case VISGT:
+                    callMemory(itemsAt(address), 4, "greaterThan", "(IIII)V");
+                    return next;
+
+                case VSUM:
+                    callMemory(itemsAt(address), 2, "sum", "(II)I");
+                    return next;
+
+                case CALL: {
+                    FunctionInfo callee = verifiedProgram.getFunctions().get(operand);
+                    int items = itemsAt(address);
+                    spillItems(items);
+                    mv.visitVarInsn(Opcodes.ALOAD, RUNTIME_LOCAL);
+                    Bytecode.pushConstant(mv, operand);
+                    Bytecode.pushConstant(mv, next);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, JIT_RUNTIME, "call", "(II)Z", false);
+                    if (!callee.returns()) {
+                        // The callee can only halt
+                        mv.visitInsn(Opcodes.POP);
+                        returnHalted();
+                        return -1;
+                    }
+                    Label notHalted = new Label();
+                    mv.visitJumpInsn(Opcodes.IFEQ, notHalted);
+                    returnHalted();
+                    mv.visitLabel(notHalted);
+                    reloadItems(items + callee.getReturnDelta());
+                    return next;
+                }
+
+                case RET:
+                    spillItems(itemsAt(address));
+                    mv.visitInsn(Opcodes.ICONST_0);
+                    mv.visitInsn(Opcodes.IRETURN);
+                    return -1;
+
+                default:
+                    throw new AssertionError("Unknown instruction in a verified program: " + instruction);
+            }
+        }
+
+        /**
+         * Generates a binary instruction on the two items on the top of the JVM stack,
+         * and returns the address where the execution continues.
+         */
+        private int generateBinaryOperation(int instruction, int next) {
+            if ((instruction == ISEQ || instruction == ISGE || instruction == ISGT) && isFusableJif(next)) {
+                fusedJifs.set(next);
+                mv.visitJumpInsn(Bytecode.getComparison(instruction), labels[program[next + 1]]);
+                return next + 2;
+            }
+            Bytecode.generateBinaryOperation(mv, instruction, scratchLocal);
+            return next;
+        }
+
+        /**
+         * Calls a method of the memory with the given number of items from the top of the JVM stack,
+         * which go through the temporary locals so that the memory can be pushed below them.
+         */
+        private void callMemory(int items, int argumentsCount, String method, String descriptor) {
+            for (int i = items - 1; i >= items - argumentsCount; i--) {
+                mv.visitVarInsn(Opcodes.ISTORE, firstTemporaryLocal + i);
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, memoryLocal);
+            for (int i = items - argumentsCount; i < items; i++) {
+                mv.visitVarInsn(Opcodes.ILOAD, firstTemporaryLocal + i);
+            }
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MEMORY, method, descriptor, false);
+        }
+
+        /**
+         * A comparison can jump directly if it is followed by a JIF that no other instruction jumps to.
+         */
+        private boolean isFusableJif(int address) {
+            return program[address] == JIF && address != start && !jumpTargets.get(address);
+        }
+
+        private void returnHalted() {
+            saveVariables();
+            mv.visitInsn(Opcodes.ICONST_1);
+            mv.visitInsn(Opcodes.IRETURN);
+        }
+
+        /**
+         * Moves the given number of items from the JVM operand stack to the {@link IntStack}, keeping their order.
+         */
+        private void spillItems(int count) {
+            for (int i = count - 1; i >= 0; i--) {
+                mv.visitVarInsn(Opcodes.ISTORE, firstTemporaryLocal + i);
+            }
+            for (int i = 0; i < count; i++) {
+                mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+                mv.visitVarInsn(Opcodes.ILOAD, firstTemporaryLocal + i);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "push", "(I)V", false);
+            }
+        }
+
+        /**
+         * Moves the given number of items from the {@link IntStack} to the JVM operand stack, keeping their order.
+         */
+        private void reloadItems(int count) {
+            if (count == 0) {
+                return;
+            }
+            for (int depth = count - 1; depth >= 0; depth--) {
+                mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+                Bytecode.pushConstant(mv, depth);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "get", "(I)I", false);
+            }
+            mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+            Bytecode.pushConstant(mv, count);
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "drop", "(I)V", false);
+        }
+
+        private void saveVariables() {
+            for (int i = 0; i < variablesCount; i++) {
+                mv.visitVarInsn(Opcodes.ALOAD, FRAME_LOCAL);
+                Bytecode.pushConstant(mv, i);
+                mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + i);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "setVariable", "(II)V", false);
+            }
+        }
+
+    }
+}
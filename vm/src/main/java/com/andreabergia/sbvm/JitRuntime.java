@@ -0,0 +1,35 @@
+package com.andreabergia.sbvm;
+
+/**
+ * The services that compiled code needs from the {@link CPU}. Compiled classes are defined by their own
+ * class loader, so they cannot see anything that is not public.
+ */
+public final class JitRuntime {
+    private final CPU cpu;
+
+    JitRuntime(CPU cpu) {
+        this.cpu = cpu;
+    }
+
+    /**
+     * Calls the given function, compiled or interpreted, with its arguments on the top of the stack.
+     * Returns true if the program has halted in the function.
+     */
+    public boolean call(int address, int returnAddress) {
+        return cpu.callFromCompiledCode(address, returnAddress);
+    }
+
+    /**
+     * Returns the linear memory of the CPU.
+     */
+    public Memory getMemory() {
+        return cpu.getMemory();
+    }
+
+    /**
+     * Halts the CPU, with the given instruction address.
+     */
+    public void halt(int instructionAddress) {
+        cpu.haltFromCompiledCode(instructionAddress);
+    }
+}
@@ -0,0 +1,29 @@
+package com.andreabergia.sbvm;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * When the {@link JitCompiler} should compile code: after a function has been called the given number
+ * of times, or after a backward jump to the same loop header has been taken the given number of times.
+ */
+public final class JitSettings {
+    public static final JitSettings DEFAULT = new JitSettings(1000, 10000);
+
+    private final int invocationThreshold;
+    private final int backEdgeThreshold;
+
+    public JitSettings(int invocationThreshold, int backEdgeThreshold) {
+        checkArgument(invocationThreshold >= 0, "The invocation threshold cannot be negative");
+        checkArgument(backEdgeThreshold >= 0, "The back edge threshold cannot be negative");
+        this.invocationThreshold = invocationThreshold;
+        this.backEdgeThreshold = backEdgeThreshold;
+    }
+
+    public int getInvocationThreshold() {
+        return invocationThreshold;
+    }
+
+    public int getBackEdgeThreshold() {
+        return backEdgeThreshold;
+    }
+}
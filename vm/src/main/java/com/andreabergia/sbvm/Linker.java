@@ -0,0 +1,153 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.IntStream;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Combines separately assembled {@link ObjectModule}s into a single program.
+ * <p>
+ * The modules are laid out one after another, in the given order, so the first one is the main module
+ * and starts at address zero. A label imported by a module must be exported by exactly one of the other
+ * modules; the labels that are not exported are private to their module. The symbol table is built sequentially, since it is cheap; then the modules are copied and
+ * relocated in parallel, each one into its own range of the program.
+ * All the unresolved labels are reported together, by an {@link UnresolvedSymbolsException}.
+ */
+public final class Linker {
+    /**
+     * The result of linking: the program, and where each module and label ended up.
+     */
+    public static final class LinkedProgram {
+        private final int[] code;
+        private final Map<String, Integer> moduleAddresses;
+        private final Map<String, Integer> symbols;
+
+        private LinkedProgram(int[] code, Map<String, Integer> moduleAddresses, Map<String, Integer> symbols) {
+            this.code = code;
+            this.moduleAddresses = Collections.unmodifiableMap(moduleAddresses);
+            this.symbols = Collections.unmodifiableMap(symbols);
+        }
+
+        /**
+         * Returns a copy of the linked program's words.
+         */
+        public int[] toArray() {
+            return code.clone();
+        }
+
+        /**
+         * Returns the address of the first word of each module.
+         */
+        public Map<String, Integer> getModuleAddresses() {
+            return moduleAddresses;
+        }
+
+        /**
+         * Returns the address of every label, qualified with the name of its module as "module:label".
+         */
+        public Map<String, Integer> getSymbols() {
+            return symbols;
+        }
+    }
+
+    private Linker() {
+    }
+
+    public static LinkedProgram link(ObjectModule... modules) throws InvalidProgramException {
+        List<ObjectModule> list = new ArrayList<>();
+        Collections.addAll(list, modules);
+        return link(list);
+    }
+
+    /**
+     * Links the given modules, the first one being the main one.
+     */
+    public static LinkedProgram link(List<ObjectModule> modules) throws InvalidProgramException {
+        checkArgument(!modules.isEmpty(), "There should be at least a module to link");
+
+        int[] bases = new int[modules.size()];
+        Map<String, Integer> moduleAddresses = new LinkedHashMap<>();
+        Map<String, Integer> symbols = new LinkedHashMap<>();
+        Map<String, List<ObjectModule>> exporters = new HashMap<>();
+        int size = 0;
+        for (int i = 0; i < modules.size(); i++) {
+            ObjectModule module = modules.get(i);
+            if (moduleAddresses.put(module.getName(), size) != null) {
+                throw new InvalidProgramException("Duplicate module " + module.getName());
+            }
+            bases[i] = size;
+            for (Map.Entry<String, Integer> label : module.getLabels().entrySet()) {
+                symbols.put(module.getName() + ":" + label.getKey(), size + label.getValue());
+            }
+            for (String export : module.getExports()) {
+                exporters.computeIfAbsent(export, name -> new ArrayList<>()).add(module);
+            }
+            size += module.size();
+        }
+
+        List<String> unresolved = new ArrayList<>();
+        Map<String, Integer> exports = new HashMap<>();
+        for (ObjectModule module : modules) {
+            Set<String> reported = new HashSet<>();
+            for (String label : module.getImports().values()) {
+                List<ObjectModule> candidates = exporters.getOrDefault(label, Collections.emptyList());
+                if (candidates.size() == 1) {
+                    exports.put(label, symbols.get(candidates.get(0).getName() + ":" + label));
+                } else if (reported.add(label)) {
+                    unresolved.add(describe(module, label, candidates, modules));
+                }
+            }
+        }
+        if (!unresolved.isEmpty()) {
+            throw new UnresolvedSymbolsException(unresolved);
+        }
+
+        int[] code = new int[size];
+        IntStream.range(0, modules.size()).parallel().forEach(i -> relocate(modules.get(i), bases[i], exports, code));
+        return new LinkedProgram(code, moduleAddresses, symbols);
+    }
+
+    private static String describe(ObjectModule module, String label, List<ObjectModule> candidates,
+                                   List<ObjectModule> modules) {
+        if (candidates.isEmpty()) {
+            List<String> definers = new ArrayList<>();
+            for (ObjectModule other : modules) {
+                if (other.getLabels().containsKey(label)) {
+                    definers.add(other.getName());
+                }
+            }
+            if (definers.isEmpty()) {
+                return module.getName() + ": " + label + " is not defined";
+            }
+            return module.getName() + ": " + label + " is not exported (" + String.join(", ", definers) + ")";
+        }
+        List<String> names = new ArrayList<>();
+        for (ObjectModule candidate : candidates) {
+            names.add(candidate.getName());
+        }
+        return module.getName() + ": " + label + " is exported by more than a module (" + String.join(", ", names) + ")";
+    }
+
+    /**
+     * Copies the module into the program at the given address, moving its local addresses
+     * and filling in the imported ones. Each module only writes to its own range.
+     */
+    private static void relocate(ObjectModule module, int base, Map<String, Integer> exports, int[] code) {
+        int[] moduleCode = module.getCode();
+        System.arraycopy(moduleCode, 0, code, base, moduleCode.length);
+        for (int position : module.getRelocations()) {
+            code[base + position] += base;
+        }
+        for (Map.Entry<Integer, String> entry : module.getImports().entrySet()) {
+            code[base + entry.getKey()] = exports.get(entry.getValue());
+        }
+    }
+}
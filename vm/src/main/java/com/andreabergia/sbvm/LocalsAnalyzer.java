@@ -0,0 +1,125 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayDeque;
+import java.util.BitSet;
+import java.util.Deque;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+
+/**
+ * Pre-pass over a program that computes how many local variable slots each function needs.
+ * A function is identified by its entry point: the address zero for the main code, or the target of a CALL.
+ */
+public final class LocalsAnalyzer {
+    private LocalsAnalyzer() {
+    }
+
+    /**
+     * Returns an array, indexed by address, that contains for every function entry point the number
+     * of local slots used by the function, i.e. one more than the highest slot used by its instructions.
+     * Invalid code, including out of range variable numbers, is skipped: the CPU will report it
+     * when (and if) it gets executed.
+     */
+    public static int[] computeLocalsCount(int[] program) {
+        return computeLocalsCount(program, new BitSet(program.length));
+    }
+
+    /**
+     * Like {@link #computeLocalsCount(int[])}, but also sets in {@code analyzed} all the entry points found.
+     */
+    static int[] computeLocalsCount(int[] program, BitSet analyzed) {
+        int[] localsCount = new int[program.length];
+        Deque<Integer> entryPoints = new ArrayDeque<>();
+        entryPoints.push(0);
+        while (!entryPoints.isEmpty()) {
+            int entryPoint = entryPoints.pop();
+            if (!analyzed.get(entryPoint)) {
+                analyzed.set(entryPoint);
+                localsCount[entryPoint] = analyzeFunction(program, entryPoint, entryPoints);
+            }
+        }
+        return localsCount;
+    }
+
+    private static int analyzeFunction(int[] program, int entryPoint, Deque<Integer> entryPoints) {
+        // Visits every instruction reachable from the entry point, without following CALLs
+        int slots = 0;
+        BitSet visited = new BitSet(program.length);
+        Deque<Integer> toVisit = new ArrayDeque<>();
+        toVisit.push(entryPoint);
+        while (!toVisit.isEmpty()) {
+            int address = toVisit.pop();
+            if (address < 0 || address >= program.length || visited.get(address)) {
+                continue;
+            }
+            visited.set(address);
+
+            int instruction = program[address];
+            int operandsCount = Instructions.getOperandsCount(instruction);
+            if (operandsCount < 0 || address + operandsCount >= program.length) {
+                continue;
+            }
+            int operand = operandsCount > 0 ? program[address + 1] : 0;
+            int next = address + 1 + operandsCount;
+
+            switch (instruction) {
+                case HALT:
+                case RET:
+                    break;
+
+                case JMP:
+                    toVisit.push(operand);
+                    break;
+
+                case JIF:
+                case JEQ:
+                case JGE:
+                case JGT:
+                case JZ:
+                    toVisit.push(operand);
+                    toVisit.push(next);
+                    break;
+
+                case CALL:
+                    if (operand >= 0 && operand < program.length) {
+                        entryPoints.push(operand);
+                    }
+                    toVisit.push(next);
+                    break;
+
+                case LOAD:
+                case STORE:
+                case INC:
+                    slots = countSlot(slots, operand);
+                    toVisit.push(next);
+                    break;
+
+                case LLOP:
+                    slots = countSlot(countSlot(slots, operand), program[address + 2]);
+                    toVisit.push(next);
+                    break;
+
+                default:
+                    toVisit.push(next);
+                    break;
+            }
+        }
+        return slots;
+    }
+
+    private static int countSlot(int slots, int varNumber) {
+        return varNumber >= slots && varNumber < Frame.MAX_VARIABLES ? varNumber + 1 : slots;
+    }
+}
@@ -0,0 +1,238 @@
+package com.andreabergia.sbvm;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A linear memory of int words, outside of the Java heap, that programs access with MLOAD, MSTORE, MCOPY
+ * and MFILL. Its size is fixed when it is created, and the addresses are word indexes starting from zero.
+ * <p>
+ * The vector instructions VADD, VMUL, VISGT and VSUM work on whole ranges of words. They move the words
+ * between the buffer and small int arrays with bulk gets and puts, and compute on the arrays with simple counted
+ * loops, that the HotSpot compiler can unroll and turn into SIMD instructions.
+ * <p>
+ * The memory is either allocated with {@link #allocate(int)}, or mapped from a file with {@link #map(Path)},
+ * so that a large dataset can be processed without copying it onto the heap: the program reads the file
+ * in place, and its writes go back to the file. The words of a mapped file are big endian ints, like in the binary
+ * format, so that files can be moved between machines; an allocated memory uses the native byte order instead,
+ * so that the accesses and the bulk transfers do not have to swap the bytes.
+ * <p>
+ * Any number of CPUs can share a memory, but they do not synchronize their accesses to it.
+ */
+public final class Memory {
+    /**
+     * The largest number of words, whose size in bytes still fits in an int.
+     */
+    public static final int MAX_SIZE = Integer.MAX_VALUE / 4;
+
+    /**
+     * The number of words that the vector instructions process at a time.
+     */
+    private static final int CHUNK_SIZE = 1024;
+
+    /**
+     * The memory of the CPUs that are not given one: any access to it fails.
+     */
+    static final Memory EMPTY = allocate(0);
+
+    private final MappedByteBuffer mapping; // Null for an allocated memory
+    private final IntBuffer words;
+    private final int size;
+
+    private Memory(ByteBuffer bytes, MappedByteBuffer mapping) {
+        this.mapping = mapping;
+        this.words = bytes.asIntBuffer();
+        this.size = words.capacity();
+    }
+
+    /**
+     * Allocates a memory of the given number of words, all zero.
+     */
+    public static Memory allocate(int size) {
+        checkArgument(size >= 0 && size <= MAX_SIZE, "Invalid memory size %s", size);
+        return new Memory(ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()), null);
+    }
+
+    /**
+     * Maps the whole content of an existing file, whose length must be a multiple of four bytes.
+     * The mapping stays valid after the file has been closed, and until the memory is garbage collected.
+     */
+    public static Memory map(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long length = channel.size();
+            checkArgument(length % 4 == 0 && length / 4 <= MAX_SIZE, "Invalid memory file length %s", length);
+            MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            return new Memory(mapping, mapping);
+        }
+    }
+
+    /**
+     * Returns the number of words of the memory.
+     */
+    public int getSize() {
+        return size;
+    }
+
+    public int get(int address) {
+        checkRange(address, 1);
+        return words.get(address);
+    }
+
+    public void set(int address, int value) {
+        checkRange(address, 1);
+        words.put(address, value);
+    }
+
+    /**
+     * Copies {@code count} words from the address {@code from} to the address {@code to}.
+     * The two ranges can overlap: the result is the same as if the words were copied to a temporary buffer first.
+     */
+    public void copy(int from, int to, int count) {
+        checkRange(from, count);
+        checkRange(to, count);
+        if (from == to || count == 0) {
+            return;
+        }
+        if (to + count <= from || from + count <= to) {
+            IntBuffer source = words.duplicate();
+            source.limit(from + count).position(from);
+            IntBuffer destination = words.duplicate();
+            destination.position(to);
+            destination.put(source);
+        } else if (to < from) {
+            for (int i = 0; i < count; i++) {
+                words.put(to + i, words.get(from + i));
+            }
+        } else {
+            for (int i = count - 1; i >= 0; i--) {
+                words.put(to + i, words.get(from + i));
+            }
+        }
+    }
+
+    /**
+     * Writes the given value in {@code count} words, starting from the given address.
+     */
+    public void fill(int address, int value, int count) {
+        checkRange(address, count);
+        for (int i = address; i < address + count; i++) {
+            words.put(i, value);
+        }
+    }
+
+    /**
+     * Writes {@code a[i] + b[i]} in {@code to[i]}, for each of the {@code count} words of the three ranges.
+     * The destination must either be the same range as a source, or not overlap it.
+     */
+    public void add(int a, int b, int to, int count) {
+        elementWise(Instructions.VADD, a, b, to, count);
+    }
+
+    /**
+     * Writes {@code a[i] * b[i]} in {@code to[i]}, with the same rules as {@link #add(int, int, int, int)}.
+     */
+    public void multiply(int a, int b, int to, int count) {
+        elementWise(Instructions.VMUL, a, b, to, count);
+    }
+
+    /**
+     * Writes 1 in {@code to[i]} if {@code a[i] > b[i]}, or 0 otherwise,
+     * with the same rules as {@link #add(int, int, int, int)}.
+     */
+    public void greaterThan(int a, int b, int to, int count) {
+        elementWise(Instructions.VISGT, a, b, to, count);
+    }
+
+    /**
+     * Returns the sum of {@code count} words starting from the given address, wrapping around on overflow like ADD.
+     */
+    public int sum(int address, int count) {
+        checkRange(address, count);
+        int[] chunk = new int[Math.min(count, CHUNK_SIZE)];
+        IntBuffer source = words.duplicate();
+        source.position(address);
+        int sum = 0;
+        for (int done = 0; done < count; done += chunk.length) {
+            int length = Math.min(chunk.length, count - done);
+            source.get(chunk, 0, length);
+            for (int i = 0; i < length; i++) {
+                sum += chunk[i];
+            }
+        }
+        return sum;
+    }
+
+    private void elementWise(int instruction, int a, int b, int to, int count) {
+        checkRange(a, count);
+        checkRange(b, count);
+        checkRange(to, count);
+        checkSameOrDisjoint(a, to, count);
+        checkSameOrDisjoint(b, to, count);
+        int[] chunkA = new int[Math.min(count, CHUNK_SIZE)];
+        int[] chunkB = new int[chunkA.length];
+        IntBuffer sourceA = words.duplicate();
+        sourceA.position(a);
+        IntBuffer sourceB = words.duplicate();
+        sourceB.position(b);
+        IntBuffer destination = words.duplicate();
+        destination.position(to);
+        for (int done = 0; done < count; done += chunkA.length) {
+            int length = Math.min(chunkA.length, count - done);
+            sourceA.get(chunkA, 0, length);
+            sourceB.get(chunkB, 0, length);
+            // One loop per instruction, rather than a switch inside the loop, so that each one can be vectorized
+            switch (instruction) {
+                case Instructions.VADD:
+                    for (int i = 0; i < length; i++) {
+                        chunkA[i] += chunkB[i];
+                    }
+                    break;
+                case Instructions.VMUL:
+                    for (int i = 0; i < length; i++) {
+                        chunkA[i] *= chunkB[i];
+                    }
+                    break;
+                case Instructions.VISGT:
+                    for (int i = 0; i < length; i++) {
+                        chunkA[i] = chunkA[i] > chunkB[i] ? 1 : 0;
+                    }
+                    break;
+                default:
+                    throw new AssertionError();
+            }
+            destination.put(chunkA, 0, length);
+        }
+    }
+
+    /**
+     * Writes the changes of a memory mapped from a file back to the file. It does nothing for an allocated memory.
+     */
+    public void flush() {
+        if (mapping != null) {
+            mapping.force();
+        }
+    }
+
+    private static void checkSameOrDisjoint(int source, int destination, int count) {
+        if (source != destination && source < destination + count && destination < source + count) {
+            throw new InvalidProgramException(String.format(
+                    "The destination range at %d overlaps the source range at %d without being the same", destination, source));
+        }
+    }
+
+    private void checkRange(int address, int count) {
+        if (count < 0 || address < 0 || address > size - count) {
+            throw new InvalidProgramException(count == 1
+                    ? String.format("Invalid memory address %d, the memory has %d words", address, size)
+                    : String.format("Invalid memory range of %d words at %d, the memory has %d words", count, address, size));
+        }
+    }
+}
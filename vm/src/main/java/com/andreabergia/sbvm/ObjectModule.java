@@ -0,0 +1,88 @@
+package com.andreabergia.sbvm;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A separately assembled piece of a program, which the {@link Linker} combines with other modules.
+ * <p>
+ * Its code is assembled as if it started at address zero. Only its exported labels can be used by the other
+ * modules, so the private ones can have the same name in many modules; references to labels defined
+ * in the module itself are listed among the relocations, since they have to be moved together
+ * with the module, while the references to labels defined elsewhere are listed among the imports.
+ * Modules can be stored in object files, in the {@link BinaryProgram} format, and linked later.
+ */
+public final class ObjectModule {
+    private final String name;
+    private final int[] code;
+    private final Map<String, Integer> labels;
+    private final Set<String> exports;
+    private final int[] relocations;
+    private final Map<Integer, String> imports;
+
+    /**
+     * Creates a module. The exports must be some of the labels. The relocations are the positions of the words
+     * that contain a local address, while the imports map the positions of the words that must contain
+     * an address from another module to its label.
+     */
+    public ObjectModule(String name, int[] code, Map<String, Integer> labels, Set<String> exports,
+                        int[] relocations, Map<Integer, String> imports) {
+        for (String export : exports) {
+            checkArgument(labels.containsKey(export), "Exported label %s is not defined", export);
+        }
+        for (int position : relocations) {
+            checkArgument(position >= 0 && position < code.length, "Invalid relocation position %s", position);
+        }
+        for (int position : imports.keySet()) {
+            checkArgument(position >= 0 && position < code.length, "Invalid import position %s", position);
+        }
+        this.name = name;
+        this.code = code.clone();
+        this.labels = Collections.unmodifiableMap(new LinkedHashMap<>(labels));
+        this.exports = Collections.unmodifiableSet(new LinkedHashSet<>(exports));
+        this.relocations = relocations.clone();
+        this.imports = Collections.unmodifiableMap(new LinkedHashMap<>(imports));
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int size() {
+        return code.length;
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    /**
+     * Returns the address of every label defined in the module, relative to its start.
+     */
+    public Map<String, Integer> getLabels() {
+        return labels;
+    }
+
+    /**
+     * Returns the labels that the other modules can use.
+     */
+    public Set<String> getExports() {
+        return exports;
+    }
+
+    int[] getRelocations() {
+        return relocations;
+    }
+
+    /**
+     * Returns the labels that the module uses but does not define, by the position of the word that refers to them.
+     */
+    public Map<Integer, String> getImports() {
+        return imports;
+    }
+}
@@ -0,0 +1,16 @@
+package com.andreabergia.sbvm;
+
+/**
+ * A transformation of a program that does not change its observable behavior.
+ */
+interface OptimizationPass {
+    /**
+     * The name shown in the {@link OptimizationReport}.
+     */
+    String getName();
+
+    /**
+     * Rewrites the program in place, and returns how many rewrites have been made.
+     */
+    int apply(InstructionList program);
+}
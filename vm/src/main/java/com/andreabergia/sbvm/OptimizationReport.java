@@ -0,0 +1,155 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The result of the {@link Optimizer}: the optimized program, and what each pass has done to it.
+ */
+public final class OptimizationReport {
+    /**
+     * What a single pass has done, summed over all the rounds of the optimizer.
+     */
+    public static final class PassResult {
+        private int rewrites;
+        private int removedInstructions;
+
+        public int getRewrites() {
+            return rewrites;
+        }
+
+        /**
+         * Returns how many instructions the pass has removed; it can be negative for a pass that adds instructions.
+         */
+        public int getRemovedInstructions() {
+            return removedInstructions;
+        }
+    }
+
+    /**
+     * A CALL that has been replaced with a copy of the called function.
+     */
+    public static final class InlinedCall {
+        private final int callAddress;
+        private final int functionAddress;
+        private final int instructions;
+
+        InlinedCall(int callAddress, int functionAddress, int instructions) {
+            this.callAddress = callAddress;
+            this.functionAddress = functionAddress;
+            this.instructions = instructions;
+        }
+
+        /**
+         * Returns the address of the CALL, in the original program.
+         */
+        public int getCallAddress() {
+            return callAddress;
+        }
+
+        /**
+         * Returns the address of the called function, in the original program.
+         */
+        public int getFunctionAddress() {
+            return functionAddress;
+        }
+
+        /**
+         * Returns how many instructions of the function have been copied.
+         */
+        public int getInstructions() {
+            return instructions;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("CALL at %d of the function at %d, %d instructions",
+                    callAddress, functionAddress, instructions);
+        }
+    }
+
+    private final int originalInstructions;
+    private final int originalSize;
+    private final Map<String, PassResult> passResults = new LinkedHashMap<>();
+    private final List<InlinedCall> inlinedCalls = new ArrayList<>();
+    private VerifiedProgram program;
+    private int optimizedInstructions;
+
+    OptimizationReport(int originalInstructions, int originalSize) {
+        this.originalInstructions = originalInstructions;
+        this.originalSize = originalSize;
+    }
+
+    void addPassResult(String passName, int rewrites, int removedInstructions) {
+        PassResult result = passResults.get(passName);
+        if (result == null) {
+            result = new PassResult();
+            passResults.put(passName, result);
+        }
+        result.rewrites += rewrites;
+        result.removedInstructions += removedInstructions;
+    }
+
+    void addInlinedCall(InlinedCall inlinedCall) {
+        inlinedCalls.add(inlinedCall);
+    }
+
+    void setProgram(VerifiedProgram program, int optimizedInstructions) {
+        this.program = program;
+        this.optimizedInstructions = optimizedInstructions;
+    }
+
+    /**
+     * Returns the optimized program, which has been verified again.
+     */
+    public VerifiedProgram getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns the optimized program as words, ready to be executed.
+     */
+    public int[] getInstructions() {
+        return program.getProgram().clone();
+    }
+
+    public int getOriginalInstructions() {
+        return originalInstructions;
+    }
+
+    public int getOptimizedInstructions() {
+        return optimizedInstructions;
+    }
+
+    /**
+     * Returns the results of every pass, by name, in the order in which the passes run.
+     */
+    public Map<String, PassResult> getPassResults() {
+        return Collections.unmodifiableMap(passResults);
+    }
+
+    /**
+     * Returns the calls replaced by the inlining, in the order in which they have been inlined.
+     */
+    public List<InlinedCall> getInlinedCalls() {
+        return Collections.unmodifiableList(inlinedCalls);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, PassResult> entry : passResults.entrySet()) {
+            sb.append(String.format("%-20s %5d rewrites, %5d instructions removed%n",
+                    entry.getKey(), entry.getValue().rewrites, entry.getValue().removedInstructions));
+        }
+        for (InlinedCall inlinedCall : inlinedCalls) {
+            sb.append(String.format("Inlined %s%n", inlinedCall));
+        }
+        sb.append(String.format("Instructions: %d -> %d, words: %d -> %d",
+                originalInstructions, optimizedInstructions, originalSize, program.getProgram().length));
+        return sb.toString();
+    }
+}
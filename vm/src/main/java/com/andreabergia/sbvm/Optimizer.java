@@ -0,0 +1,795 @@
+package com.andreabergia.sbvm;
+
+import com.andreabergia.sbvm.ControlFlowGraph.Block;
+import com.andreabergia.sbvm.InstructionList.Node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * Rewrites a verified program into a shorter one that computes the same result, by repeatedly
+ * running some simple passes over it until none of them finds anything more to do.
+ * <p>
+ * Patterns are only rewritten if they cannot be entered in the middle by a jump, and all the jump and CALL
+ * targets are relocated. The optimized program leaves the same stack and variables when it halts,
+ * but its instruction addresses are different.
+ */
+public final class Optimizer {
+    private static final int MAX_ROUNDS = 16;
+
+    /**
+     * The size, in instructions, of the largest functions inlined by the assembler.
+     */
+    public static final int DEFAULT_INLINING_THRESHOLD = 16;
+
+    private final List<OptimizationPass> passes;
+
+    Optimizer(OptimizationPass... passes) {
+        this.passes = Arrays.asList(passes);
+    }
+
+    /**
+     * Verifies and optimizes the given program.
+     */
+    public static OptimizationReport optimize(int... program) throws InvalidProgramException {
+        return optimize(Verifier.verify(program));
+    }
+
+    public static OptimizationReport optimize(VerifiedProgram program) {
+        return new Optimizer(new ConstantFolding(), new BranchFolding(), new Peephole(), new JumpThreading(),
+                new UnreachableCodeRemoval()).run(program);
+    }
+
+    /**
+     * Verifies the given program, and reorders its blocks so that the most likely path falls through.
+     */
+    public static OptimizationReport layout(int... program) throws InvalidProgramException {
+        return layout(Verifier.verify(program));
+    }
+
+    /**
+     * Reorders the blocks of the program so that the most likely path falls through, guessing it from the loops.
+     */
+    public static OptimizationReport layout(VerifiedProgram program) {
+        return layout(program, null);
+    }
+
+    /**
+     * Reorders the blocks of the program so that the path most often taken in the given profile, collected
+     * running the same program, falls through. The profile can be null, to guess the path from the loops.
+     */
+    public static OptimizationReport layout(VerifiedProgram program, ExecutionProfile profile) {
+        checkArgument(profile == null || profile.isProfileOf(program.getProgram()),
+                "The profile has been collected on another program");
+        return new Optimizer(new BlockLayout(profile), new JumpThreading(), new UnreachableCodeRemoval(),
+                new BranchFolding(), new Peephole()).run(program);
+    }
+
+    /**
+     * Verifies the given program, and replaces the common sequences of instructions with superinstructions.
+     */
+    public static OptimizationReport fuse(int... program) throws InvalidProgramException {
+        return fuse(Verifier.verify(program));
+    }
+
+    /**
+     * Replaces the common sequences of instructions with superinstructions. This should be the last
+     * transformation of a program, since the other passes only know about the base instructions.
+     */
+    public static OptimizationReport fuse(VerifiedProgram program) {
+        return new Optimizer(new SuperinstructionFusion()).run(program);
+    }
+
+    /**
+     * Verifies the given program, and inlines the calls of the functions of at most {@code maxInstructions}
+     * instructions.
+     */
+    public static OptimizationReport inline(int[] program, int maxInstructions) throws InvalidProgramException {
+        return inline(Verifier.verify(program), maxInstructions);
+    }
+
+    /**
+     * Replaces the calls of the functions of at most {@code maxInstructions} instructions with a copy of their code.
+     * The report lists all the inlined calls. The optimized program leaves the same stack when it halts, but the
+     * frames of the callers have some more variables, that held the ones of the callees.
+     */
+    public static OptimizationReport inline(VerifiedProgram program, int maxInstructions) {
+        Inlining inlining = new Inlining(maxInstructions);
+        OptimizationReport report = new Optimizer(inlining).run(program);
+        for (OptimizationReport.InlinedCall inlinedCall : inlining.getInlinedCalls()) {
+            report.addInlinedCall(inlinedCall);
+        }
+        return report;
+    }
+
+    OptimizationReport run(VerifiedProgram verifiedProgram) {
+        InstructionList program = InstructionList.decode(verifiedProgram);
+        OptimizationReport report = new OptimizationReport(program.size(), verifiedProgram.getProgram().length);
+        boolean changed = true;
+        for (int round = 0; changed && round < MAX_ROUNDS; round++) {
+            changed = false;
+            for (OptimizationPass pass : passes) {
+                int sizeBefore = program.size();
+                int rewrites = pass.apply(program);
+                report.addPassResult(pass.getName(), rewrites, sizeBefore - program.size());
+                changed |= rewrites > 0;
+            }
+        }
+        // Verifying again is cheap, and guarantees that no pass has broken the program
+        report.setProgram(Verifier.verify(program.encode()), program.size());
+        return report;
+    }
+
+    /**
+     * Replaces operations on constants with their result: {@code PUSH a, PUSH b, ADD} becomes {@code PUSH a+b},
+     * and {@code PUSH a, NOT} becomes {@code PUSH !a}.
+     */
+    static final class ConstantFolding implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "constant folding";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            int rewrites = 0;
+            for (int i = 0; i < program.size(); i++) {
+                if (program.getOpcode(i) != PUSH) {
+                    continue;
+                }
+                int a = program.get(i).operand;
+                if (program.getOpcode(i + 1) == NOT && program.isStraightLine(i, 2)) {
+                    program.replace(i, 2, new Node(PUSH, a == 0 ? 1 : 0));
+                } else if (program.getOpcode(i + 1) == PUSH && Instructions.isBinaryOperation(program.getOpcode(i + 2))
+                        && program.isStraightLine(i, 3)) {
+                    int b = program.get(i + 1).operand;
+                    int operation = program.getOpcode(i + 2);
+                    if (operation == DIV && b == 0) {
+                        // The division by zero must still happen at runtime
+                        continue;
+                    }
+                    program.replace(i, 3, new Node(PUSH, CPU.doBinaryOp(operation, a, b)));
+                } else {
+                    continue;
+                }
+                ++rewrites;
+                // The new constant can be folded with the previous one
+                i = Math.max(i - 2, -1);
+            }
+            return rewrites;
+        }
+    }
+
+    /**
+     * Simplifies the jumps whose outcome is known: {@code PUSH c, JIF} becomes a JMP or disappears,
+     * a JMP to the next instruction disappears, and a JIF to the next instruction becomes a POP.
+     */
+    static final class BranchFolding implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "branch folding";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            int rewrites = 0;
+            for (int i = 0; i < program.size(); i++) {
+                int instruction = program.getOpcode(i);
+                Node next = i + 1 < program.size() ? program.get(i + 1) : null;
+                if (instruction == PUSH && program.getOpcode(i + 1) == JIF && program.isStraightLine(i, 2)
+                        && i + 2 < program.size()) {
+                    if (program.get(i).operand != 0) {
+                        program.replace(i, 2, new Node(JMP, program.get(i + 1).target));
+                    } else {
+                        program.replace(i, 2);
+                    }
+                } else if (instruction == JMP && next != null && program.get(i).target == next) {
+                    program.replace(i, 1);
+                } else if (instruction == JIF && next != null && program.get(i).target == next) {
+                    program.replace(i, 1, new Node(POP, 0));
+                } else {
+                    continue;
+                }
+                ++rewrites;
+                i = Math.max(i - 2, -1);
+            }
+            return rewrites;
+        }
+    }
+
+    /**
+     * Removes or simplifies some useless sequences:
+     * <ul>
+     * <li>{@code DUP, POP}, {@code PUSH c, POP} and {@code LOAD n, POP} disappear;</li>
+     * <li>{@code NOT, NOT} disappears when the next instruction is a JIF, or the previous one already
+     * produces a boolean;</li>
+     * <li>{@code STORE n, LOAD n} becomes {@code DUP, STORE n}, which does not read the frame.</li>
+     * </ul>
+     */
+    static final class Peephole implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "peephole";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            int rewrites = 0;
+            for (int i = 0; i < program.size(); i++) {
+                int instruction = program.getOpcode(i);
+                int next = program.getOpcode(i + 1);
+                if ((instruction == DUP || instruction == PUSH || instruction == LOAD) && next == POP
+                        && program.isStraightLine(i, 2) && i + 2 < program.size()) {
+                    program.replace(i, 2);
+                } else if (instruction == NOT && next == NOT && program.getOpcode(i + 2) == JIF
+                        && program.isStraightLine(i, 3)) {
+                    program.replace(i, 2);
+                } else if (producesBoolean(instruction) && next == NOT && program.getOpcode(i + 2) == NOT
+                        && program.isStraightLine(i, 3) && i + 3 < program.size()) {
+                    program.replace(i + 1, 2);
+                } else if (instruction == STORE && next == LOAD && program.isStraightLine(i, 2)
+                        && program.get(i).operand == program.get(i + 1).operand) {
+                    program.replace(i, 2, new Node(DUP, 0), new Node(STORE, program.get(i).operand));
+                } else {
+                    continue;
+                }
+                ++rewrites;
+                i = Math.max(i - 2, -1);
+            }
+            return rewrites;
+        }
+
+        private static boolean producesBoolean(int instruction) {
+            switch (instruction) {
+                case NOT:
+                case AND:
+                case OR:
+                case ISEQ:
+                case ISGE:
+                case ISGT:
+                    return true;
+                default:
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * Shortens the paths that go through more than one jump:
+     * <ul>
+     * <li>a jump to a JMP goes directly to the end of the chain of JMPs;</li>
+     * <li>a JMP to a RET or a HALT becomes a copy of it;</li>
+     * <li>{@code JIF a, JMP b, a:} becomes {@code NOT, JIF b}, and {@code JZ a, JMP b, a:} becomes {@code JIF b}.</li>
+     * </ul>
+     * CALLs are left alone, so that the entry points of the functions do not change.
+     */
+    static final class JumpThreading implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "jump threading";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            int rewrites = 0;
+            for (int i = 0; i < program.size(); i++) {
+                Node node = program.get(i);
+                if (!node.isJump() || node.opcode == CALL) {
+                    continue;
+                }
+                Node target = node.target;
+                // A cycle of JMPs is an infinite loop anyway, so it is enough to stop following it at some point
+                for (int steps = 0; target.opcode == JMP && steps < program.size(); steps++) {
+                    target = target.target;
+                }
+                if (target != node.target) {
+                    program.retarget(node, target);
+                } else if (node.opcode == JMP && (target.opcode == RET || target.opcode == HALT)) {
+                    program.replace(i, 1, new Node(target.opcode, 0));
+                } else if (isInvertible(node.opcode) && program.getOpcode(i + 1) == JMP
+                        && program.isStraightLine(i, 2) && i + 2 < program.size() && program.get(i + 2) == target) {
+                    program.replace(i, 2, invert(node, program.get(i + 1).target));
+                } else {
+                    continue;
+                }
+                ++rewrites;
+            }
+            return rewrites;
+        }
+    }
+
+    /**
+     * Removes the blocks that can never be executed: the code after a HALT, a RET or a JMP that no jump goes to,
+     * and the functions that are not called anymore, for instance because all their calls have been inlined.
+     */
+    static final class UnreachableCodeRemoval implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "unreachable code";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            List<Node> reachableNodes = new ArrayList<>();
+            int removedBlocks = 0;
+            for (Block block : ControlFlowGraph.build(program).getBlocks()) {
+                if (block.reachable) {
+                    reachableNodes.addAll(block.nodes);
+                } else {
+                    ++removedBlocks;
+                }
+            }
+            if (removedBlocks > 0) {
+                program.setNodes(reachableNodes);
+            }
+            return removedBlocks;
+        }
+    }
+
+    /**
+     * Reorders the blocks so that every block is followed by its most likely successor, inverting the conditional
+     * jumps or adding JMPs where needed. Without a profile, the most likely successor is the one in more loops,
+     * so that the code that leaves a loop is moved after it; with an {@link ExecutionProfile}, it is the side
+     * of the conditional jump taken most often. A JMP is followed to its target only if nothing else goes there.
+     * <p>
+     * The first block stays first, and blocks only move when one successor is more likely than the other.
+     * The layout is computed once, since the jumps it adds and inverts are not in the profile.
+     */
+    static final class BlockLayout implements OptimizationPass {
+        private final ExecutionProfile profile;
+        private boolean applied = false;
+
+        BlockLayout(ExecutionProfile profile) {
+            this.profile = profile;
+        }
+
+        @Override
+        public String getName() {
+            return "block layout";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            if (applied) {
+                return 0;
+            }
+            applied = true;
+
+            // Chains of likely successors, starting from every block not placed yet, in program order
+            List<Block> blocks = ControlFlowGraph.build(program).getBlocks();
+            boolean[] placed = new boolean[blocks.size()];
+            List<Block> order = new ArrayList<>();
+            for (Block start : blocks) {
+                for (Block block = start; block != null && !placed[block.index]; block = getNext(block, placed)) {
+                    placed[block.index] = true;
+                    order.add(block);
+                }
+            }
+            int movedBlocks = 0;
+            for (int i = 0; i < order.size(); i++) {
+                if (order.get(i).index != i) {
+                    ++movedBlocks;
+                }
+            }
+            if (movedBlocks == 0) {
+                return 0;
+            }
+
+            List<Node> nodes = new ArrayList<>();
+            Map<Node, Node> replaced = new IdentityHashMap<>();
+            for (int i = 0; i < order.size(); i++) {
+                Block block = order.get(i);
+                Block next = i + 1 < order.size() ? order.get(i + 1) : null;
+                Node last = block.getLast();
+                nodes.addAll(block.nodes.subList(0, block.nodes.size() - 1));
+                if (block.isConditional() && next != block.fallThrough && next == block.jumpTarget
+                        && isInvertible(last.opcode)) {
+                    Node[] inverted = invert(last, block.fallThrough.getFirst());
+                    replaced.put(last, inverted[0]);
+                    nodes.addAll(Arrays.asList(inverted));
+                } else {
+                    nodes.add(last);
+                    if (block.fallThrough != null && next != block.fallThrough) {
+                        nodes.add(new Node(JMP, block.fallThrough.getFirst()));
+                    }
+                }
+            }
+            for (Node node : nodes) {
+                if (node.isJump() && replaced.containsKey(node.target)) {
+                    node.target = replaced.get(node.target);
+                }
+            }
+            program.setNodes(nodes);
+            return movedBlocks;
+        }
+
+        /**
+         * Returns the successor that should follow the given block, or null if there is none not placed yet.
+         */
+        private Block getNext(Block block, boolean[] placed) {
+            Block fallThrough = block.fallThrough != null && !placed[block.fallThrough.index] ? block.fallThrough : null;
+            Block jumpTarget = block.jumpTarget != null && !placed[block.jumpTarget.index]
+                    && (block.isConditional() || block.jumpTarget.predecessors.size() == 1) ? block.jumpTarget : null;
+            if (fallThrough == null || jumpTarget == null) {
+                return fallThrough != null ? fallThrough : jumpTarget;
+            }
+            Node last = block.getLast();
+            if (profile != null && last.address >= 0) {
+                return profile.getJumpsTaken(last.address) > profile.getJumpsNotTaken(last.address)
+                        ? jumpTarget : fallThrough;
+            }
+            return jumpTarget.loopDepth > fallThrough.loopDepth ? jumpTarget : fallThrough;
+        }
+    }
+
+    private static boolean isInvertible(int opcode) {
+        return opcode == JIF || opcode == JZ;
+    }
+
+    /**
+     * Returns the instructions that jump to the given target when the given JIF or JZ would not jump.
+     */
+    private static Node[] invert(Node jump, Node target) {
+        return jump.opcode == JZ
+                ? new Node[]{new Node(JIF, target)}
+                : new Node[]{new Node(NOT, 0), new Node(JIF, target)};
+    }
+
+    /**
+     * Replaces the most common sequences with a single superinstruction, to save their dispatch cost:
+     * <ul>
+     * <li>a comparison or NOT followed by a JIF becomes JEQ, JGE, JGT or JZ;</li>
+     * <li>{@code LOAD n, PUSH k, ADD, STORE n} becomes {@code INC n k}, and so does the same sequence
+     * with SUB and {@code -k};</li>
+     * <li>{@code LOAD a, LOAD b} followed by a binary instruction becomes {@code LLOP a b op}.</li>
+     * </ul>
+     */
+    static final class SuperinstructionFusion implements OptimizationPass {
+        @Override
+        public String getName() {
+            return "superinstructions";
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            int rewrites = 0;
+            for (int i = 0; i < program.size(); i++) {
+                int instruction = program.getOpcode(i);
+                int next = program.getOpcode(i + 1);
+                if (next == JIF && conditionalJumpFor(instruction) >= 0 && program.isStraightLine(i, 2)) {
+                    program.replace(i, 2, new Node(conditionalJumpFor(instruction), program.get(i + 1).target));
+                } else if (isIncrement(program, i)) {
+                    int k = program.get(i + 1).operand;
+                    int delta = program.getOpcode(i + 2) == ADD ? k : -k;
+                    program.replace(i, 4, new Node(INC, program.get(i).operand, delta, 0));
+                } else if (instruction == LOAD && next == LOAD && Instructions.isBinaryOperation(program.getOpcode(i + 2))
+                        && program.isStraightLine(i, 3)) {
+                    program.replace(i, 3, new Node(LLOP, program.get(i).operand, program.get(i + 1).operand,
+                            program.getOpcode(i + 2)));
+                } else {
+                    continue;
+                }
+                ++rewrites;
+            }
+            return rewrites;
+        }
+
+        private static int conditionalJumpFor(int instruction) {
+            switch (instruction) {
+                case ISEQ:
+                    return JEQ;
+                case ISGE:
+                    return JGE;
+                case ISGT:
+                    return JGT;
+                case NOT:
+                    return JZ;
+                default:
+                    return -1;
+            }
+        }
+
+        private static boolean isIncrement(InstructionList program, int i) {
+            int operation = program.getOpcode(i + 2);
+            return program.getOpcode(i) == LOAD && program.getOpcode(i + 1) == PUSH
+                    && (operation == ADD || operation == SUB) && program.getOpcode(i + 3) == STORE
+                    && program.get(i).operand == program.get(i + 3).operand && program.isStraightLine(i, 4);
+        }
+    }
+
+    /**
+     * Replaces the CALLs of the small functions with a copy of their code, which saves the frame, the return
+     * address and the jumps. Only the functions that do not call any other one are inlined, so recursive ones
+     * never are; since the optimizer runs its passes until nothing changes, a function can be inlined once all
+     * its callees have been inlined into it.
+     * <p>
+     * The callee's variables are renumbered after the ones of the caller, and those that it can read before
+     * writing them are set to zero first, as in a new frame. Its RETs become jumps to the instruction following
+     * the CALL. The callee's code is left in the program, since it may be called from elsewhere.
+     */
+    static final class Inlining implements OptimizationPass {
+        private final int maxInstructions;
+        private final List<OptimizationReport.InlinedCall> inlinedCalls = new ArrayList<>();
+
+        Inlining(int maxInstructions) {
+            checkArgument(maxInstructions >= 0, "Invalid inlining threshold %s", maxInstructions);
+            this.maxInstructions = maxInstructions;
+        }
+
+        @Override
+        public String getName() {
+            return "inlining";
+        }
+
+        List<OptimizationReport.InlinedCall> getInlinedCalls() {
+            return inlinedCalls;
+        }
+
+        @Override
+        public int apply(InstructionList program) {
+            Map<Node, Integer> indexOf = new IdentityHashMap<>();
+            for (int i = 0; i < program.size(); i++) {
+                indexOf.put(program.get(i), i);
+            }
+
+            // Everything is analyzed before changing the program, which shifts the instructions
+            Map<Node, Callee> callees = new IdentityHashMap<>();
+            int[] variablesCounts = new int[program.size()];
+            computeVariablesCount(program, indexOf, 0, variablesCounts);
+            for (int i = 0; i < program.size(); i++) {
+                Node node = program.get(i);
+                if (node.opcode == CALL && !callees.containsKey(node.target)) {
+                    callees.put(node.target, Callee.analyze(program, indexOf, node.target, maxInstructions));
+                    computeVariablesCount(program, indexOf, indexOf.get(node.target), variablesCounts);
+                }
+            }
+
+            int rewrites = 0;
+            for (int i = program.size() - 1; i >= 0; i--) {
+                Node call = program.get(i);
+                Callee callee = call.opcode == CALL ? callees.get(call.target) : null;
+                if (callee == null || variablesCounts[i] + callee.variablesCount > Frame.MAX_VARIABLES) {
+                    continue;
+                }
+                program.replace(i, 1, callee.copy(variablesCounts[i], program.get(i + 1)));
+                inlinedCalls.add(new OptimizationReport.InlinedCall(call.address, call.operand, callee.nodes.length));
+                ++rewrites;
+            }
+            return rewrites;
+        }
+
+        /**
+         * Sets, for every instruction of the function starting at the given index, the number of variables
+         * of the function, unless another function that executes the instruction has more.
+         */
+        private static void computeVariablesCount(InstructionList program, Map<Node, Integer> indexOf, int entry,
+                                                  int[] variablesCounts) {
+            BitSet body = reachableFrom(program, indexOf, entry);
+            int count = 0;
+            for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+                count = Math.max(count, variablesCount(program.get(i)));
+            }
+            for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+                variablesCounts[i] = Math.max(variablesCounts[i], count);
+            }
+        }
+
+        /**
+         * Returns the indexes of the instructions that a function can execute, without following its CALLs.
+         */
+        private static BitSet reachableFrom(InstructionList program, Map<Node, Integer> indexOf, int entry) {
+            BitSet reachable = new BitSet(program.size());
+            List<Integer> toVisit = new ArrayList<>();
+            toVisit.add(entry);
+            while (!toVisit.isEmpty()) {
+                int i = toVisit.remove(toVisit.size() - 1);
+                if (i >= program.size() || reachable.get(i)) {
+                    continue;
+                }
+                reachable.set(i);
+                Node node = program.get(i);
+                if (node.isJump() && node.opcode != CALL) {
+                    toVisit.add(indexOf.get(node.target));
+                }
+                if (node.opcode != JMP && node.opcode != RET && node.opcode != HALT) {
+                    toVisit.add(i + 1);
+                }
+            }
+            return reachable;
+        }
+
+        /**
+         * Returns one more than the highest variable used by the instruction, or zero.
+         */
+        private static int variablesCount(Node node) {
+            switch (node.opcode) {
+                case LOAD:
+                case STORE:
+                case INC:
+                    return node.operand + 1;
+                case LLOP:
+                    return Math.max(node.operand, node.operand2) + 1;
+                default:
+                    return 0;
+            }
+        }
+
+        /**
+         * A function that can be inlined, with its instructions in address order.
+         */
+        private static final class Callee {
+            private final Node[] nodes;
+            private final int variablesCount;
+            private final BitSet readBeforeWritten;
+
+            private Callee(Node[] nodes, int variablesCount, BitSet readBeforeWritten) {
+                this.nodes = nodes;
+                this.variablesCount = variablesCount;
+                this.readBeforeWritten = readBeforeWritten;
+            }
+
+            /**
+             * Returns the function starting at the given instruction, or null if it cannot be inlined.
+             */
+            static Callee analyze(InstructionList program, Map<Node, Integer> indexOf, Node entry, int maxInstructions) {
+                BitSet body = reachableFrom(program, indexOf, indexOf.get(entry));
+                if (body.cardinality() > maxInstructions) {
+                    return null;
+                }
+                Node[] nodes = new Node[body.cardinality()];
+                boolean returns = false;
+                int variablesCount = 0;
+                int count = 0;
+                for (int i = body.nextSetBit(0); i >= 0; i = body.nextSetBit(i + 1)) {
+                    Node node = program.get(i);
+                    if (node.opcode == CALL || node.opcode == HALT) {
+                        return null;
+                    }
+                    returns |= node.opcode == RET;
+                    variablesCount = Math.max(variablesCount, variablesCount(node));
+                    nodes[count++] = node;
+                }
+                if (!returns || nodes[0] != entry) {
+                    // Code before the entry point would need a jump to the entry point, which is not worth it
+                    return null;
+                }
+                return new Callee(nodes, variablesCount, findReadBeforeWritten(nodes));
+            }
+
+            /**
+             * Returns the variables that may be read before being written, by following all the paths
+             * with the set of the variables that are surely written.
+             */
+            private static BitSet findReadBeforeWritten(Node[] nodes) {
+                Map<Node, Integer> positionOf = new IdentityHashMap<>();
+                for (int i = 0; i < nodes.length; i++) {
+                    positionOf.put(nodes[i], i);
+                }
+                BitSet[] written = new BitSet[nodes.length]; // Before each instruction, or null if not reached yet
+                written[0] = new BitSet();
+                boolean changed = true;
+                while (changed) {
+                    changed = false;
+                    for (int i = 0; i < nodes.length; i++) {
+                        if (written[i] == null) {
+                            continue;
+                        }
+                        Node node = nodes[i];
+                        BitSet after = (BitSet) written[i].clone();
+                        if (node.opcode == STORE || node.opcode == INC) {
+                            after.set(node.operand);
+                        }
+                        if (node.isJump()) {
+                            changed |= merge(written, positionOf.get(node.target), after);
+                        }
+                        if (node.opcode != JMP && node.opcode != RET) {
+                            changed |= merge(written, i + 1, after);
+                        }
+                    }
+                }
+
+                BitSet readBeforeWritten = new BitSet();
+                for (int i = 0; i < nodes.length; i++) {
+                    Node node = nodes[i];
+                    if ((node.opcode == LOAD || node.opcode == INC || node.opcode == LLOP) && !written[i].get(node.operand)) {
+                        readBeforeWritten.set(node.operand);
+                    }
+                    if (node.opcode == LLOP && !written[i].get(node.operand2)) {
+                        readBeforeWritten.set(node.operand2);
+                    }
+                }
+                return readBeforeWritten;
+            }
+
+            private static boolean merge(BitSet[] written, int position, BitSet incoming) {
+                if (written[position] == null) {
+                    written[position] = (BitSet) incoming.clone();
+                    return true;
+                }
+                BitSet merged = (BitSet) written[position].clone();
+                merged.and(incoming);
+                if (merged.equals(written[position])) {
+                    return false;
+                }
+                written[position] = merged;
+                return true;
+            }
+
+            /**
+             * Returns a copy of the function, with its variables starting at the given one, and its RETs
+             * going to the given instruction.
+             */
+            Node[] copy(int firstVariable, Node continuation) {
+                List<Node> copy = new ArrayList<>();
+                for (int v = readBeforeWritten.nextSetBit(0); v >= 0; v = readBeforeWritten.nextSetBit(v + 1)) {
+                    copy.add(new Node(PUSH, 0));
+                    copy.add(new Node(STORE, v + firstVariable));
+                }
+
+                Map<Node, Node> copies = new IdentityHashMap<>();
+                int last = nodes.length - 1;
+                for (int i = 0; i < nodes.length; i++) {
+                    Node node = nodes[i];
+                    Node nodeCopy;
+                    if (node.opcode == RET) {
+                        if (i == last) {
+                            // The last RET just falls through to the continuation
+                            copies.put(node, continuation);
+                            continue;
+                        }
+                        nodeCopy = new Node(JMP, continuation);
+                    } else if (node.isJump()) {
+                        nodeCopy = new Node(node.opcode, (Node) null);
+                    } else if (node.opcode == LLOP) {
+                        nodeCopy = new Node(LLOP, node.operand + firstVariable, node.operand2 + firstVariable,
+                                node.operand3);
+                    } else if (variablesCount(node) > 0) {
+                        nodeCopy = new Node(node.opcode, node.operand + firstVariable, node.operand2, node.operand3);
+                    } else {
+                        nodeCopy = new Node(node.opcode, node.operand, node.operand2, node.operand3);
+                    }
+                    copies.put(node, nodeCopy);
+                    copy.add(nodeCopy);
+                }
+                for (Node node : nodes) {
+                    Node nodeCopy = copies.get(node);
+                    if (node.isJump()) {
+                        nodeCopy.target = copies.get(node.target);
+                    }
+                }
+                return copy.toArray(new Node[copy.size()]);
+            }
+        }
+    }
+}
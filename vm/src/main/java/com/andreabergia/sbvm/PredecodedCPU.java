@@ -0,0 +1,347 @@
+package com.andreabergia.sbvm;
+
+import java.util.Collection;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An execution engine that runs a {@link DecodedProgram}, so that no instruction is decoded more than once.
+ * It has the same semantics as {@link CPU}, including the errors it reports for invalid programs.
+ */
+public class PredecodedCPU implements VirtualMachine {
+    private final int[] ops;
+    private final int[] args;
+    private final int[] args2;
+    private final int[] args3;
+    private final int[] frameSizes;
+    private final int[] addresses;
+    private final int[] indexOfAddress;
+    private final String[] messages;
+    private int ip = 0; // An instruction index, not an address
+    private final IntStack stack = new IntStack();
+    private boolean halted = false;
+    private final CallStack frames;
+    private Memory memory = Memory.EMPTY;
+
+    public PredecodedCPU(int... instructions) {
+        this(DecodedProgram.decode(instructions));
+    }
+
+    public PredecodedCPU(DecodedProgram program) {
+        this.ops = program.ops;
+        this.args = program.args;
+        this.args2 = program.args2;
+        this.args3 = program.args3;
+        this.frameSizes = program.frameSizes;
+        this.addresses = program.addresses;
+        this.indexOfAddress = program.indexOfAddress;
+        this.messages = program.messages;
+        this.frames = new CallStack(program.mainFrameSize, CPU.DEFAULT_MAX_CALL_DEPTH); // Prepare the initial frame
+    }
+
+    @Override
+    public int getInstructionAddress() {
+        return addresses[ip];
+    }
+
+    @Override
+    public Collection<Integer> getStack() {
+        return stack.asCollection();
+    }
+
+    @Override
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Sets how many calls can be nested: a CALL beyond that throws a {@link CallDepthExceededException}.
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        frames.setMaxDepth(maxCallDepth);
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Sets the linear memory of the program, like {@link CPU#setMemory(Memory)}.
+     */
+    public void setMemory(Memory memory) {
+        this.memory = checkNotNull(memory);
+    }
+
+    @Override
+    public Frame getCurrentFrame() {
+        return frames.peek();
+    }
+
+    @Override
+    public void run() {
+        if (!halted) {
+            execute(false);
+        }
+    }
+
+    @Override
+    public void step() {
+        checkState(!halted, "An halted CPU cannot execute the program");
+        execute(true);
+    }
+
+    /**
+     * Executes instructions until HALT, or just one if {@code singleStep} is true.
+     */
+    private void execute(boolean singleStep) {
+        final int[] ops = this.ops;
+        final int[] args = this.args;
+        final IntStack stack = this.stack;
+        Frame frame = frames.peek();
+        int ip = this.ip;
+        try {
+            while (true) {
+                int op = ops[ip];
+                switch (op) {
+                    case DecodedProgram.ERROR:
+                        throw new InvalidProgramException(messages[args[ip]]);
+
+                    case DecodedProgram.FALLTHROUGH:
+                        // Not an instruction of the program, so it does not count as a step
+                        ip = args[ip];
+                        continue;
+
+                    case HALT:
+                        this.halted = true;
+                        ++ip;
+                        return;
+
+                    case PUSH:
+                        stack.push(args[ip++]);
+                        break;
+
+                    case POP:
+                        checkStackHasAtLeastOneItem("POP");
+                        stack.pop();
+                        ++ip;
+                        break;
+
+                    case DUP:
+                        checkStackHasAtLeastOneItem("DUP");
+                        stack.push(stack.peek());
+                        ++ip;
+                        break;
+
+                    case LOAD:
+                        stack.push(frame.getVariable(args[ip++]));
+                        break;
+
+                    case STORE:
+                        checkStackHasAtLeastOneItem("STORE");
+                        frame.setVariable(args[ip++], stack.pop());
+                        break;
+
+                    case NOT:
+                        checkStackHasAtLeastOneItem("NOT");
+                        stack.push(stack.pop() == 0 ? 1 : 0);
+                        ++ip;
+                        break;
+
+                    case ADD:
+                    case SUB:
+                    case MUL:
+                    case DIV:
+                    case AND:
+                    case OR:
+                    case ISEQ:
+                    case ISGE:
+                    case ISGT: {
+                        if (stack.size() < 2) {
+                            throw new InvalidProgramException("There should be at least two items on the stack to execute a binary instruction");
+                        }
+                        int n2 = stack.pop();
+                        int n1 = stack.pop();
+                        stack.push(CPU.doBinaryOp(op, n1, n2));
+                        ++ip;
+                        break;
+                    }
+
+                    case JMP:
+                        ip = args[ip];
+                        break;
+
+                    case JIF:
+                        checkStackHasAtLeastOneItem("JIF");
+                        if (stack.pop() != 0) {
+                            ip = args[ip];
+                        } else {
+                            ++ip;
+                        }
+                        break;
+
+                    case JEQ:
+                    case JGE:
+                    case JGT: {
+                        if (stack.size() < 2) {
+                            throw new InvalidProgramException("There should be at least two items on the stack to execute a conditional jump");
+                        }
+                        int n2 = stack.pop();
+                        int n1 = stack.pop();
+                        boolean taken = op == JEQ ? n1 == n2 : op == JGE ? n1 >= n2 : n1 > n2;
+                        ip = taken ? args[ip] : ip + 1;
+                        break;
+                    }
+
+                    case JZ:
+                        checkStackHasAtLeastOneItem("JZ");
+                        ip = stack.pop() == 0 ? args[ip] : ip + 1;
+                        break;
+
+                    case INC:
+                        frame.setVariable(args[ip], frame.getVariable(args[ip]) + args2[ip]);
+                        ++ip;
+                        break;
+
+                    case LLOP:
+                        stack.push(CPU.doBinaryOp(args3[ip], frame.getVariable(args[ip]), frame.getVariable(args2[ip])));
+                        ++ip;
+                        break;
+
+                    case MLOAD:
+                        checkStackHasAtLeastOneItem("MLOAD");
+                        stack.push(memory.get(stack.pop()));
+                        ++ip;
+                        break;
+
+                    case MSTORE: {
+                        if (stack.size() < 2) {
+                            throw new InvalidProgramException("There should be at least two items on the stack to execute an MSTORE instruction");
+                        }
+                        int value = stack.pop();
+                        memory.set(stack.pop(), value);
+                        ++ip;
+                        break;
+                    }
+
+                    case MCOPY:
+                    case MFILL: {
+                        if (stack.size() < 3) {
+                            throw new InvalidProgramException("There should be at least three items on the stack to execute an "
+                                    + Instructions.getName(op) + " instruction");
+                        }
+                        int count = stack.pop();
+                        int n2 = stack.pop();
+                        int n1 = stack.pop();
+                        if (op == MCOPY) {
+                            memory.copy(n1, n2, count);
+                        } else {
+                            memory.fill(n1, n2, count);
+                        }
+                        ++ip;
+                        break;
+                    }
+
+                    case VADD:
+                    case VMUL:
+                    case VISGT: {
+                        if (stack.size() < 4) {
+                            throw new InvalidProgramException("There should be at least four items on the stack to execute a "
+                                    + Instructions.getName(op) + " instruction");
+                        }
+                        int count = stack.pop();
+                        int to = stack.pop();
+                        int b = stack.pop();
+                        int a = stack.pop();
+                        if (op == VADD) {
+                            memory.add(a, b, to, count);
+                        } else if (op == VMUL) {
+                            memory.multiply(a, b, to, count);
+                        } else {
+                            memory.greaterThan(a, b, to, count);
+                        }
+                        ++ip;
+                        break;
+                    }
+
+                    case VSUM: {
+                        if (stack.size() < 2) {
+                            throw new InvalidProgramException("There should be at least two items on the stack to execute a VSUM instruction");
+                        }
+                        int count = stack.pop();
+                        stack.push(memory.sum(stack.pop(), count));
+                        ++ip;
+                        break;
+                    }
+
+                    case CALL:
+                        if (ops[ip + 1] == RET && frames.size() > 1) {
+                            // A tail call, which reuses the frame like the CPU does
+                            frame.reuse(frame.getReturnAddress(), frameSizes[ip]);
+                        } else {
+                            frame = frames.push(addresses[ip + 1], frameSizes[ip]);
+                        }
+                        ip = args[ip];
+                        break;
+
+                    case RET:
+                        if (frames.size() == 1) {
+                            throw new InvalidProgramException(String.format(
+                                    "Invalid RET instruction: no current function call %d", addresses[ip] + 1));
+                        }
+                        ip = indexOfAddress[frame.getReturnAddress()];
+                        frame = frames.pop();
+                        break;
+
+                    default:
+                        throw new AssertionError();
+                }
+                if (singleStep) {
+                    return;
+                }
+            }
+        } finally {
+            this.ip = ip;
+        }
+    }
+
+    private void checkStackHasAtLeastOneItem(String instruction) {
+        if (stack.size() < 1) {
+            throw new InvalidProgramException("There should be at least one item on the stack to execute an " + instruction + " instruction");
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.andreabergia.sbvm;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * An immutable program, together with what the CPU needs to know about it before running it: whether it
+ * has been verified, where its functions start, and how many variables each of them uses.
+ * <p>
+ * All this is computed once, when the program is created, so a program can be shared by any number
+ * of {@link CPU}s, on any number of threads, and creating a CPU for it is cheap and copies nothing.
+ */
+public final class Program {
+    private final int[] code;
+    private final VerifiedProgram verifiedProgram; // Null if the program has not been verified
+    private final int[] localsCount; // By function entry point
+    private final int[] functionEntryPoints;
+    private final int maxLocals;
+
+    private Program(int[] code, VerifiedProgram verifiedProgram) {
+        checkArgument(code.length > 0, "A program should have at least an instruction");
+        this.code = code;
+        this.verifiedProgram = verifiedProgram;
+        BitSet entryPoints = new BitSet(code.length);
+        this.localsCount = LocalsAnalyzer.computeLocalsCount(code, entryPoints);
+        this.functionEntryPoints = entryPoints.stream().toArray();
+        this.maxLocals = Arrays.stream(localsCount).max().getAsInt();
+    }
+
+    /**
+     * Creates a program that has not been verified: the CPUs that run it will check every instruction.
+     * The code is copied, so the array can be reused.
+     */
+    public static Program of(int... code) {
+        return new Program(code.clone(), null);
+    }
+
+    /**
+     * Creates a verified program, or throws an exception if the code does not pass the {@link Verifier}.
+     */
+    public static Program verify(int... code) throws InvalidProgramException {
+        return Verifier.verify(code.clone()).asProgram();
+    }
+
+    static Program of(VerifiedProgram verifiedProgram) {
+        return new Program(verifiedProgram.getProgram(), verifiedProgram);
+    }
+
+    int[] getCode() {
+        return code;
+    }
+
+    /**
+     * Returns a copy of the program's words.
+     */
+    public int[] toArray() {
+        return code.clone();
+    }
+
+    public int size() {
+        return code.length;
+    }
+
+    public boolean isVerified() {
+        return verifiedProgram != null;
+    }
+
+    /**
+     * Returns the verified program, or null if the program has not been verified.
+     */
+    public VerifiedProgram getVerifiedProgram() {
+        return verifiedProgram;
+    }
+
+    /**
+     * Returns the number of variable slots used by the function starting at the given address,
+     * or by the main code for the address zero.
+     */
+    public int getLocalsCount(int entryPoint) {
+        return localsCount[entryPoint];
+    }
+
+    int[] getLocalsCounts() {
+        return localsCount;
+    }
+
+    /**
+     * Returns the highest number of variable slots used by any function.
+     */
+    public int getMaxLocals() {
+        return maxLocals;
+    }
+
+    /**
+     * Returns the entry points of the main code and of all the functions that can be called, in address order.
+     */
+    public int[] getFunctionEntryPoints() {
+        return functionEntryPoints.clone();
+    }
+}
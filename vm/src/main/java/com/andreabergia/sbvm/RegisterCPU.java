@@ -0,0 +1,381 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static com.andreabergia.sbvm.RegisterProgram.CALL_FUNCTION;
+import static com.andreabergia.sbvm.RegisterProgram.MOV;
+import static com.andreabergia.sbvm.RegisterProgram.TAIL_CALL;
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * An execution engine that runs a {@link RegisterProgram}, with the same results as {@link CPU} for the verified
+ * program it has been translated from, but usually with fewer instructions to dispatch.
+ * <p>
+ * The frames of all the functions being executed are in a single array of registers, one after the other,
+ * and the call stack only keeps where each caller's frame starts and where its results go.
+ */
+public final class RegisterCPU {
+    private final RegisterProgram program;
+    private final int[] ops;
+    private final int[] args;
+    private final int[] args2;
+    private final int[] args3;
+    private int[] registers;
+    private int index; // An instruction index, not an address
+    private int base = 0; // The first register of the current frame
+    private int function = 0;
+    private boolean halted = false;
+    private int haltedStackSize;
+
+    // The callers, from the outermost one
+    private int[] returnIndexes = new int[16];
+    private int[] callerBases = new int[16];
+    private int[] callerFunctions = new int[16];
+    private int[] resultRegisters = new int[16];
+    private int callDepth = 0;
+    private int maxCallDepth = CPU.DEFAULT_MAX_CALL_DEPTH;
+    private Memory memory = Memory.EMPTY;
+
+    public RegisterCPU(RegisterProgram program) {
+        this.program = program;
+        this.ops = program.ops;
+        this.args = program.args;
+        this.args2 = program.args2;
+        this.args3 = program.args3;
+        this.registers = new int[Math.max(64, program.frameSizes[0])];
+        System.arraycopy(program.initialRegisters[0], 0, registers, 0, program.slotsStarts[0]);
+        this.index = program.entryIndexes[0];
+    }
+
+    public boolean isHalted() {
+        return halted;
+    }
+
+    /**
+     * Sets how many calls can be nested: a CALL beyond that throws a {@link CallDepthExceededException}.
+     */
+    public void setMaxCallDepth(int maxCallDepth) {
+        checkArgument(maxCallDepth >= 0, "Invalid maximum call depth %s", maxCallDepth);
+        this.maxCallDepth = maxCallDepth;
+    }
+
+    public Memory getMemory() {
+        return memory;
+    }
+
+    /**
+     * Sets the linear memory of the program, like {@link CPU#setMemory(Memory)}.
+     */
+    public void setMemory(Memory memory) {
+        this.memory = checkNotNull(memory);
+    }
+
+    /**
+     * Returns the stack the {@link CPU} would have, from the top, which is known only once the program has halted:
+     * while it runs, some of its values are only in the registers of the variables and of the constants.
+     */
+    public Collection<Integer> getStack() {
+        checkState(halted, "The stack is only known when the program has halted");
+        List<Integer> stack = new ArrayList<>();
+        for (int i = 0; i < callDepth; i++) {
+            for (int register = callerBases[i] + program.slotsStarts[callerFunctions[i]];
+                 register < resultRegisters[i]; register++) {
+                stack.add(registers[register]);
+            }
+        }
+        int slotsStart = base + program.slotsStarts[function];
+        for (int register = slotsStart; register < slotsStart + haltedStackSize; register++) {
+            stack.add(registers[register]);
+        }
+        Collections.reverse(stack);
+        return Collections.unmodifiableList(stack);
+    }
+
+    /**
+     * Returns a copy of the variables of the function being executed.
+     */
+    public Frame getCurrentFrame() {
+        // The address following the CALL of the current function, as the CPU would have it
+        int returnAddress = callDepth == 0 ? 0 : program.addresses[returnIndexes[callDepth - 1] - 1] + 2;
+        int localsCount = program.localsCounts[function];
+        Frame frame = new Frame(returnAddress, localsCount);
+        for (int i = 0; i < localsCount; i++) {
+            frame.setVariable(i, registers[base + i]);
+        }
+        return frame;
+    }
+
+    public void run() {
+        runFor(Long.MAX_VALUE);
+    }
+
+    /**
+     * Executes at most the given number of instructions, and returns how many have been executed: less than
+     * the budget only if the program has halted. The CPU can be run again from where it stopped.
+     */
+    public long runFor(long instructionBudget) {
+        checkArgument(instructionBudget >= 0, "Invalid instruction budget %s", instructionBudget);
+        if (halted) {
+            return 0;
+        }
+        return instructionBudget - execute(instructionBudget);
+    }
+
+    /**
+     * Executes instructions until HALT or until the budget is over, and returns the remaining budget.
+     */
+    private long execute(long budget) {
+        final int[] ops = this.ops;
+        final int[] args = this.args;
+        final int[] args2 = this.args2;
+        final int[] args3 = this.args3;
+        int[] registers = this.registers;
+        int index = this.index;
+        int base = this.base;
+        int function = this.function;
+        try {
+            while (budget > 0) {
+                --budget;
+                switch (ops[index]) {
+                    case MOV:
+                        registers[base + args[index]] = registers[base + args2[index]];
+                        ++index;
+                        break;
+
+                    case ADD:
+                        registers[base + args[index]] = registers[base + args2[index]] + registers[base + args3[index]];
+                        ++index;
+                        break;
+
+                    case SUB:
+                        registers[base + args[index]] = registers[base + args2[index]] - registers[base + args3[index]];
+                        ++index;
+                        break;
+
+                    case MUL:
+                        registers[base + args[index]] = registers[base + args2[index]] * registers[base + args3[index]];
+                        ++index;
+                        break;
+
+                    case DIV:
+                        registers[base + args[index]] = registers[base + args2[index]] / registers[base + args3[index]];
+                        ++index;
+                        break;
+
+                    case AND:
+                        registers[base + args[index]] =
+                                registers[base + args2[index]] != 0 && registers[base + args3[index]] != 0 ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case OR:
+                        registers[base + args[index]] =
+                                registers[base + args2[index]] != 0 || registers[base + args3[index]] != 0 ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case ISEQ:
+                        registers[base + args[index]] =
+                                registers[base + args2[index]] == registers[base + args3[index]] ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case ISGE:
+                        registers[base + args[index]] =
+                                registers[base + args2[index]] >= registers[base + args3[index]] ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case ISGT:
+                        registers[base + args[index]] =
+                                registers[base + args2[index]] > registers[base + args3[index]] ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case NOT:
+                        registers[base + args[index]] = registers[base + args2[index]] == 0 ? 1 : 0;
+                        ++index;
+                        break;
+
+                    case MLOAD:
+                        registers[base + args[index]] = memory.get(registers[base + args2[index]]);
+                        ++index;
+                        break;
+
+                    case MSTORE:
+                        memory.set(registers[base + args[index]], registers[base + args2[index]]);
+                        ++index;
+                        break;
+
+                    case MCOPY:
+                        memory.copy(registers[base + args[index]], registers[base + args2[index]],
+                                registers[base + args3[index]]);
+                        ++index;
+                        break;
+
+                    case MFILL:
+                        memory.fill(registers[base + args[index]], registers[base + args2[index]],
+                                registers[base + args3[index]]);
+                        ++index;
+                        break;
+
+                    case VADD:
+                    case VMUL:
+                    case VISGT: {
+                        int operands = base + args[index];
+                        int a = registers[operands];
+                        int b = registers[operands + 1];
+                        int to = registers[operands + 2];
+                        int count = registers[operands + 3];
+                        if (ops[index] == VADD) {
+                            memory.add(a, b, to, count);
+                        } else if (ops[index] == VMUL) {
+                            memory.multiply(a, b, to, count);
+                        } else {
+                            memory.greaterThan(a, b, to, count);
+                        }
+                        ++index;
+                        break;
+                    }
+
+                    case VSUM:
+                        registers[base + args[index]] = memory.sum(registers[base + args2[index]],
+                                registers[base + args3[index]]);
+                        ++index;
+                        break;
+
+                    case JMP:
+                        index = args[index];
+                        break;
+
+                    case JIF:
+                        index = registers[base + args2[index]] != 0 ? args[index] : index + 1;
+                        break;
+
+                    case JZ:
+                        index = registers[base + args2[index]] == 0 ? args[index] : index + 1;
+                        break;
+
+                    case JEQ:
+                        index = registers[base + args2[index]] == registers[base + args3[index]] ? args[index] : index + 1;
+                        break;
+
+                    case JGE:
+                        index = registers[base + args2[index]] >= registers[base + args3[index]] ? args[index] : index + 1;
+                        break;
+
+                    case JGT:
+                        index = registers[base + args2[index]] > registers[base + args3[index]] ? args[index] : index + 1;
+                        break;
+
+                    case CALL_FUNCTION: {
+                        if (callDepth == maxCallDepth) {
+                            throw new CallDepthExceededException(maxCallDepth);
+                        }
+                        if (callDepth == returnIndexes.length) {
+                            growCallStack();
+                        }
+                        int callee = args[index];
+                        int argumentsStart = base + args2[index];
+                        returnIndexes[callDepth] = index + 1;
+                        callerBases[callDepth] = base;
+                        callerFunctions[callDepth] = function;
+                        resultRegisters[callDepth] = argumentsStart;
+                        ++callDepth;
+                        base += program.frameSizes[function];
+                        registers = enterFunction(callee, base, argumentsStart);
+                        function = callee;
+                        index = program.entryIndexes[callee];
+                        break;
+                    }
+
+                    case TAIL_CALL: {
+                        // The callee's arguments are the only stack slots of the frame, which it can take over
+                        int callee = args[index];
+                        registers = enterFunction(callee, base, base + args2[index]);
+                        function = callee;
+                        index = program.entryIndexes[callee];
+                        break;
+                    }
+
+                    case RET:
+                        --callDepth;
+                        System.arraycopy(registers, base + program.slotsStarts[function], registers,
+                                resultRegisters[callDepth], args[index]);
+                        index = returnIndexes[callDepth];
+                        base = callerBases[callDepth];
+                        function = callerFunctions[callDepth];
+                        break;
+
+                    case HALT:
+                        halted = true;
+                        haltedStackSize = args[index];
+                        return budget;
+
+                    default:
+                        throw new AssertionError();
+                }
+            }
+            return budget;
+        } finally {
+            this.index = index;
+            this.base = base;
+            this.function = function;
+        }
+    }
+
+    /**
+     * Prepares the frame of a function at the given register, copying its arguments and then its initial registers,
+     * and returns the registers array, which may have been grown.
+     */
+    private int[] enterFunction(int callee, int frameStart, int argumentsStart) {
+        if (frameStart + program.frameSizes[callee] > registers.length) {
+            registers = Arrays.copyOf(registers, Math.max(registers.length * 2, frameStart + program.frameSizes[callee]));
+        }
+        int slotsStart = program.slotsStarts[callee];
+        // The arguments are copied first, since the initial registers may overwrite them in a tail call
+        System.arraycopy(registers, argumentsStart, registers, frameStart + slotsStart, program.argumentsCounts[callee]);
+        System.arraycopy(program.initialRegisters[callee], 0, registers, frameStart, slotsStart);
+        return registers;
+    }
+
+    private void growCallStack() {
+        int newLength = (int) Math.min(returnIndexes.length * 2L, maxCallDepth);
+        returnIndexes = Arrays.copyOf(returnIndexes, newLength);
+        callerBases = Arrays.copyOf(callerBases, newLength);
+        callerFunctions = Arrays.copyOf(callerFunctions, newLength);
+        resultRegisters = Arrays.copyOf(resultRegisters, newLength);
+    }
+}
@@ -0,0 +1,531 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static com.google.common.base.Preconditions.checkArgument;
+
+/**
+ * A verified program translated to three-address code for the {@link RegisterCPU}, in parallel arrays
+ * indexed by instruction, like a {@link DecodedProgram}.
+ * <p>
+ * Every function, the main code included, gets its own copy of the code it can reach, and a frame of registers:
+ * first its variables, then its constants, then one register for each stack slot, from the deepest argument
+ * to the maximum depth found by the {@link Verifier}. The stack depth before every instruction is known,
+ * so LOAD, PUSH and DUP only record which register holds the value, and the following instruction reads it
+ * from there; a STORE of a result just changes the destination of the instruction that computed it.
+ * Values are written to their stack slots only where the code merges, jumps, calls or returns.
+ * <p>
+ * Instructions use the opcodes of the stack machine, with registers as operands: the arithmetic ones are
+ * {@code args = args2 op args3}, the jumps go to the instruction {@code args} comparing {@code args2}
+ * and {@code args3}, {@code JIF} and {@code JZ} test {@code args2}. MLOAD is {@code args = memory[args2]},
+ * while MSTORE, MCOPY and MFILL take their operands from {@code args}, {@code args2} and {@code args3}, in the order
+ * they are pushed on the stack. VSUM is {@code args = sum(args2, args3)}, and VADD, VMUL and VISGT
+ * find their four operands in the stack slots from {@code args}. RET returns the first {@code args} stack slots
+ * as results, and HALT stops with {@code args} stack slots in use.
+ */
+public final class RegisterProgram {
+    /**
+     * Copies the register {@code args2} to {@code args}.
+     */
+    static final int MOV = 0x30;
+
+    /**
+     * Calls the function {@code args}, whose arguments are in the caller's registers from {@code args2}:
+     * they are copied into the callee's frame, and its results are copied back there when it returns.
+     */
+    static final int CALL_FUNCTION = CALL;
+
+    /**
+     * Like {@link #CALL_FUNCTION}, but for a CALL followed by a RET: the callee takes the frame of the caller,
+     * and returns directly to the caller's caller.
+     */
+    static final int TAIL_CALL = 0x31;
+
+    final int[] ops;
+    final int[] args;
+    final int[] args2;
+    final int[] args3;
+    final int[] addresses; // Address of the stack instruction that each instruction comes from
+    // By function index, where zero is the main code
+    final int[] entryPoints;
+    final int[] entryIndexes;
+    final int[] frameSizes;
+    final int[] argumentsCounts;
+    final int[] localsCounts;
+    final int[][] initialRegisters; // Zero for the variables, then the constants
+    final int[] slotsStarts;
+
+    private RegisterProgram(int[] ops, int[] args, int[] args2, int[] args3, int[] addresses, int[] entryPoints,
+                            int[] entryIndexes, int[] frameSizes, int[] argumentsCounts, int[] localsCounts,
+                            int[][] initialRegisters) {
+        this.ops = ops;
+        this.args = args;
+        this.args2 = args2;
+        this.args3 = args3;
+        this.addresses = addresses;
+        this.entryPoints = entryPoints;
+        this.entryIndexes = entryIndexes;
+        this.frameSizes = frameSizes;
+        this.argumentsCounts = argumentsCounts;
+        this.localsCounts = localsCounts;
+        this.initialRegisters = initialRegisters;
+        this.slotsStarts = Arrays.stream(initialRegisters).mapToInt(registers -> registers.length).toArray();
+    }
+
+    /**
+     * Returns the number of instructions, of all the functions.
+     */
+    public int size() {
+        return ops.length;
+    }
+
+    /**
+     * Returns the number of functions, including the main code.
+     */
+    public int getFunctionsCount() {
+        return entryPoints.length;
+    }
+
+    public static RegisterProgram translate(Program program) {
+        checkArgument(program.isVerified(), "Only a verified program can be translated to registers");
+        return translate(program.getVerifiedProgram());
+    }
+
+    public static RegisterProgram translate(VerifiedProgram verifiedProgram) {
+        return new Translator(verifiedProgram).translate();
+    }
+
+    private static final class Translator {
+        private static final int NOT_TRANSLATED = -1;
+
+        private final int[] program;
+        private final int[] localsCount;
+        private final List<FunctionInfo> functions = new ArrayList<>();
+        private final Map<Integer, Integer> functionIndexes = new HashMap<>();
+        private final int[] indexOfAddress;
+        private int[] ops = new int[16];
+        private int[] args = new int[16];
+        private int[] args2 = new int[16];
+        private int[] args3 = new int[16];
+        private int[] addresses = new int[16];
+        private int size = 0;
+
+        // The function being translated
+        private FunctionInfo function;
+        private int slotsStart;
+        private int entryIndex;
+        private final Map<Integer, Integer> constants = new LinkedHashMap<>();
+        private int[] stack = new int[16]; // The register holding each stack slot
+        private int stackSize;
+        private int lastResult; // The last instruction, if it computed the value of its stack slot; or -1
+
+        private Translator(VerifiedProgram verifiedProgram) {
+            this.program = verifiedProgram.getProgram();
+            this.localsCount = LocalsAnalyzer.computeLocalsCount(program);
+            this.indexOfAddress = new int[program.length];
+            Arrays.fill(indexOfAddress, NOT_TRANSLATED);
+            functions.add(verifiedProgram.getMain());
+            functionIndexes.put(0, 0);
+            for (FunctionInfo info : verifiedProgram.getFunctions().values()) {
+                if (info.getEntryPoint() != 0) {
+                    functionIndexes.put(info.getEntryPoint(), functions.size());
+                    functions.add(info);
+                }
+            }
+        }
+
+        private RegisterProgram translate() {
+            int count = functions.size();
+            int[] entryPoints = new int[count];
+            int[] entryIndexes = new int[count];
+            int[] frameSizes = new int[count];
+            int[] argumentsCounts = new int[count];
+            int[] localsCounts = new int[count];
+            int[][] initialRegisters = new int[count][];
+            for (int i = 0; i < count; i++) {
+                FunctionInfo info = functions.get(i);
+                entryPoints[i] = info.getEntryPoint();
+                localsCounts[i] = localsCount[info.getEntryPoint()];
+                argumentsCounts[i] = info.getArgumentsCount();
+                initialRegisters[i] = translateFunction(info);
+                entryIndexes[i] = entryIndex;
+                frameSizes[i] = slotsStart + info.getArgumentsCount() + info.getMaxDepth();
+            }
+            return new RegisterProgram(Arrays.copyOf(ops, size), Arrays.copyOf(args, size),
+                    Arrays.copyOf(args2, size), Arrays.copyOf(args3, size), Arrays.copyOf(addresses, size),
+                    entryPoints, entryIndexes, frameSizes, argumentsCounts, localsCounts, initialRegisters);
+        }
+
+        /**
+         * Translates the code reachable from the function's entry point, in address order,
+         * and returns the initial values of its variables and constants.
+         */
+        private int[] translateFunction(FunctionInfo info) {
+            function = info;
+            List<Integer> reachable = new ArrayList<>();
+            BitSet jumpTargets = new BitSet(program.length);
+            jumpTargets.set(info.getEntryPoint()); // Code before the entry point can fall through into it
+            constants.clear();
+            int locals = localsCount[info.getEntryPoint()];
+            for (int address = 0; address < program.length; address += 1 + Instructions.getOperandsCount(program[address])) {
+                if (!info.isReachable(address)) {
+                    continue;
+                }
+                reachable.add(address);
+                int instruction = program[address];
+                if (instruction == PUSH) {
+                    addConstant(program[address + 1], locals);
+                } else if (instruction == INC) {
+                    addConstant(program[address + 2], locals);
+                } else if (Instructions.hasAddressOperand(instruction) && instruction != CALL) {
+                    jumpTargets.set(program[address + 1]);
+                }
+            }
+            slotsStart = locals + constants.size();
+            if (stack.length < info.getArgumentsCount() + info.getMaxDepth()) {
+                stack = new int[info.getArgumentsCount() + info.getMaxDepth()];
+            }
+
+            int firstIndex = size;
+            boolean fallsThrough = false;
+            for (int address : reachable) {
+                if (jumpTargets.get(address) || !fallsThrough) {
+                    if (fallsThrough) {
+                        flush(address);
+                    }
+                    // The code is entered with every value in its stack slot
+                    stackSize = info.getStackDepth(address) + info.getArgumentsCount();
+                    for (int i = 0; i < stackSize; i++) {
+                        stack[i] = slot(i);
+                    }
+                    lastResult = -1;
+                }
+                indexOfAddress[address] = size;
+                fallsThrough = translateInstruction(address);
+            }
+
+            for (int i = firstIndex; i < size; i++) {
+                if (isJump(ops[i])) {
+                    args[i] = indexOfAddress[args[i]];
+                }
+            }
+            entryIndex = indexOfAddress[info.getEntryPoint()];
+            for (int address : reachable) {
+                indexOfAddress[address] = NOT_TRANSLATED;
+            }
+
+            int[] initialRegisters = new int[slotsStart];
+            for (Map.Entry<Integer, Integer> constant : constants.entrySet()) {
+                initialRegisters[constant.getValue()] = constant.getKey();
+            }
+            return initialRegisters;
+        }
+
+        private void addConstant(int value, int locals) {
+            if (!constants.containsKey(value)) {
+                constants.put(value, locals + constants.size());
+            }
+        }
+
+        /**
+         * Translates a stack instruction, and returns false if the execution cannot continue with the next one.
+         */
+        private boolean translateInstruction(int address) {
+            int instruction = program[address];
+            switch (instruction) {
+                case PUSH:
+                    push(constants.get(program[address + 1]));
+                    return true;
+
+                case LOAD:
+                    push(program[address + 1]);
+                    return true;
+
+                case DUP:
+                    push(stack[stackSize - 1]);
+                    return true;
+
+                case POP:
+                    --stackSize;
+                    return true;
+
+                case STORE:
+                    store(program[address + 1], pop(), address);
+                    return true;
+
+                case INC: {
+                    int variable = program[address + 1];
+                    saveVariable(variable, address);
+                    emit(ADD, variable, variable, constants.get(program[address + 2]), address);
+                    return true;
+                }
+
+                case NOT:
+                    emitResult(NOT, pop(), 0, address);
+                    return true;
+
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case AND:
+                case OR:
+                case ISEQ:
+                case ISGE:
+                case ISGT: {
+                    int n2 = pop();
+                    int n1 = pop();
+                    emitResult(instruction, n1, n2, address);
+                    return true;
+                }
+
+                case LLOP:
+                    emitResult(program[address + 3], program[address + 1], program[address + 2], address);
+                    return true;
+
+                case MLOAD:
+                    emitResult(MLOAD, pop(), 0, address);
+                    return true;
+
+                case MSTORE: {
+                    int value = pop();
+                    emit(MSTORE, pop(), value, 0, address);
+                    return true;
+                }
+
+                case MCOPY:
+                case MFILL: {
+                    int count = pop();
+                    int n2 = pop();
+                    emit(instruction, pop(), n2, count, address);
+                    return true;
+                }
+
+                case VADD:
+                case VMUL:
+                case VISGT:
+                    flush(address);
+                    stackSize -= 4;
+                    emit(instruction, slot(stackSize), 0, 0, address);
+                    return true;
+
+                case VSUM: {
+                    int count = pop();
+                    emitResult(VSUM, pop(), count, address);
+                    return true;
+                }
+
+                case JIF:
+                case JZ:
+                    translateConditionalJump(instruction, address);
+                    return true;
+
+                case JEQ:
+                case JGE:
+                case JGT: {
+                    int n2 = pop();
+                    int n1 = pop();
+                    flush(address);
+                    emit(instruction, program[address + 1], n1, n2, address);
+                    return true;
+                }
+
+                case JMP:
+                    flush(address);
+                    emit(JMP, program[address + 1], 0, 0, address);
+                    return false;
+
+                case CALL: {
+                    flush(address);
+                    int callee = functionIndexes.get(program[address + 1]);
+                    FunctionInfo calleeInfo = functions.get(callee);
+                    int argumentsStart = stackSize - calleeInfo.getArgumentsCount();
+                    boolean tailCall = function.getEntryPoint() != 0 && argumentsStart == 0
+                            && address + 2 < program.length && program[address + 2] == RET;
+                    emit(tailCall ? TAIL_CALL : CALL_FUNCTION, callee, slot(argumentsStart), 0, address);
+                    stackSize = argumentsStart + calleeInfo.getArgumentsCount() + calleeInfo.getReturnDelta();
+                    for (int i = argumentsStart; i < stackSize; i++) {
+                        stack[i] = slot(i);
+                    }
+                    return calleeInfo.returns();
+                }
+
+                case RET:
+                case HALT:
+                    flush(address);
+                    emit(instruction, stackSize, 0, 0, address);
+                    return false;
+
+                default:
+                    throw new AssertionError();
+            }
+        }
+
+        private void translateConditionalJump(int instruction, int address) {
+            int condition = pop();
+            int target = program[address + 1];
+            if (isLastResult(condition)) {
+                // Jump directly on the comparison or the negation that computed the condition
+                int op = ops[lastResult];
+                int n1 = args2[lastResult];
+                int n2 = args3[lastResult];
+                int fused = -1;
+                if (op == NOT) {
+                    fused = instruction == JIF ? JZ : JIF;
+                } else if (instruction == JIF) {
+                    fused = op == ISEQ ? JEQ : op == ISGE ? JGE : op == ISGT ? JGT : -1;
+                } else if (op == ISGE || op == ISGT) {
+                    // !(n1 >= n2) is n2 > n1, and !(n1 > n2) is n2 >= n1
+                    fused = op == ISGE ? JGT : JGE;
+                    int swap = n1;
+                    n1 = n2;
+                    n2 = swap;
+                }
+                if (fused >= 0) {
+                    // The flush only writes stack slots that the comparison does not read
+                    --size;
+                    flush(address);
+                    emit(fused, target, n1, n2, address);
+                    return;
+                }
+            }
+            flush(address);
+            emit(instruction, target, condition, 0, address);
+        }
+
+        private void store(int variable, int value, int address) {
+            if (value == variable) {
+                return;
+            }
+            if (isLastResult(value) && !isOnStack(variable)) {
+                args[lastResult] = variable;
+                lastResult = -1;
+                return;
+            }
+            saveVariable(variable, address);
+            emit(MOV, variable, value, 0, address);
+        }
+
+        /**
+         * Returns true if the given register is the stack slot just popped, and the last instruction computed it.
+         */
+        private boolean isLastResult(int register) {
+            return register == slot(stackSize) && lastResult == size - 1 && args[lastResult] == register;
+        }
+
+        private boolean isOnStack(int register) {
+            for (int i = 0; i < stackSize; i++) {
+                if (stack[i] == register) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Copies the variable to the stack slots that still refer to it, before it is modified.
+         */
+        private void saveVariable(int variable, int address) {
+            for (int i = 0; i < stackSize; i++) {
+                if (stack[i] == variable) {
+                    emit(MOV, slot(i), variable, 0, address);
+                    stack[i] = slot(i);
+                }
+            }
+        }
+
+        /**
+         * Copies every value to its stack slot. A slot that does not hold its own value is never read by the others,
+         * since a slot can only be referred to by DUP from the slots above it, so the order does not matter.
+         */
+        private void flush(int address) {
+            for (int i = 0; i < stackSize; i++) {
+                if (stack[i] != slot(i)) {
+                    emit(MOV, slot(i), stack[i], 0, address);
+                    stack[i] = slot(i);
+                }
+            }
+        }
+
+        private void emitResult(int op, int n1, int n2, int address) {
+            int result = slot(stackSize);
+            emit(op, result, n1, n2, address);
+            lastResult = size - 1;
+            push(result);
+        }
+
+        private void push(int register) {
+            stack[stackSize++] = register;
+        }
+
+        private int pop() {
+            return stack[--stackSize];
+        }
+
+        private int slot(int index) {
+            return slotsStart + index;
+        }
+
+        private void emit(int op, int arg, int arg2, int arg3, int address) {
+            if (size == ops.length) {
+                int newLength = size * 2;
+                ops = Arrays.copyOf(ops, newLength);
+                args = Arrays.copyOf(args, newLength);
+                args2 = Arrays.copyOf(args2, newLength);
+                args3 = Arrays.copyOf(args3, newLength);
+                addresses = Arrays.copyOf(addresses, newLength);
+            }
+            ops[size] = op;
+            args[size] = arg;
+            args2[size] = arg2;
+            args3[size] = arg3;
+            addresses[size] = address;
+            ++size;
+            lastResult = -1;
+        }
+
+        private static boolean isJump(int op) {
+            return op == JMP || op == JIF || op == JZ || op == JEQ || op == JGE || op == JGT;
+        }
+    }
+}
@@ -0,0 +1,311 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkState;
+
+/**
+ * Runs many CPUs at the same time on a fixed number of worker threads, giving each one a time slice
+ * of a given number of instructions in turn, with {@link CPU#runFor(long)}.
+ * <p>
+ * Every worker has its own run queue: it takes the CPU at the head, runs it for a slice and, unless it has
+ * halted, puts it back at the tail, so the CPUs of a queue share their worker fairly. New CPUs are spread
+ * over the queues in turn; a worker whose queue is empty steals the CPU that has been waiting the longest
+ * in the other queues, so the load stays balanced when some programs halt earlier than others.
+ * The time that CPUs spend waiting in the queues is measured, and reported by {@link #getStats()}.
+ */
+public final class Scheduler implements AutoCloseable {
+    private static final int LATENCY_BUCKETS = 64;
+
+    private static final class Task {
+        private final CPU cpu;
+        private final CompletableFuture<CPU> result = new CompletableFuture<>();
+        // Read by the workers that look for a CPU to steal
+        private volatile long enqueuedAt;
+
+        private Task(CPU cpu) {
+            this.cpu = cpu;
+        }
+    }
+
+    /**
+     * Counters and run queue latencies, since the creation of the scheduler.
+     */
+    public static final class Stats {
+        private final long slices;
+        private final long steals;
+        private final long completed;
+        private final long totalLatencyNanos;
+        private final long maxLatencyNanos;
+        private final long[] latencyHistogram;
+
+        private Stats(long slices, long steals, long completed, long totalLatencyNanos, long maxLatencyNanos,
+                      long[] latencyHistogram) {
+            this.slices = slices;
+            this.steals = steals;
+            this.completed = completed;
+            this.totalLatencyNanos = totalLatencyNanos;
+            this.maxLatencyNanos = maxLatencyNanos;
+            this.latencyHistogram = latencyHistogram;
+        }
+
+        /**
+         * Returns how many time slices have been run.
+         */
+        public long getSlices() {
+            return slices;
+        }
+
+        /**
+         * Returns how many times a worker has taken a CPU from the queue of another worker.
+         */
+        public long getSteals() {
+            return steals;
+        }
+
+        /**
+         * Returns how many CPUs have halted, or failed.
+         */
+        public long getCompleted() {
+            return completed;
+        }
+
+        /**
+         * Returns the average time a CPU waited in a run queue before its slice started.
+         */
+        public double getMeanLatencyNanos() {
+            return slices == 0 ? 0 : (double) totalLatencyNanos / slices;
+        }
+
+        public long getMaxLatencyNanos() {
+            return maxLatencyNanos;
+        }
+
+        /**
+         * Returns an upper bound of the given percentile of the run queue latency, such as 0.99. Latencies are
+         * counted in power of two buckets, so the bound is at most twice the real value.
+         */
+        public long getLatencyPercentileNanos(double percentile) {
+            checkArgument(percentile >= 0 && percentile <= 1, "Invalid percentile %s", percentile);
+            long target = (long) Math.ceil(percentile * slices);
+            long count = 0;
+            for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+                count += latencyHistogram[bucket];
+                if (count >= target && count > 0) {
+                    return Math.min(bucket == 0 ? 0 : (1L << bucket) - 1, maxLatencyNanos);
+                }
+            }
+            return maxLatencyNanos;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("slices: %d, steals: %d, completed: %d, run queue latency: mean %.0f ns, " +
+                            "p50 %d ns, p99 %d ns, max %d ns",
+                    slices, steals, completed, getMeanLatencyNanos(), getLatencyPercentileNanos(0.5),
+                    getLatencyPercentileNanos(0.99), maxLatencyNanos);
+        }
+    }
+
+    private final long timeSlice;
+    private final List<ConcurrentLinkedDeque<Task>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private final AtomicInteger nextQueue = new AtomicInteger();
+    private final AtomicInteger queued = new AtomicInteger();
+    private final AtomicInteger idleWorkers = new AtomicInteger();
+    private final Object idleLock = new Object();
+    private volatile boolean closed = false;
+
+    private final LongAdder slices = new LongAdder();
+    private final LongAdder steals = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder totalLatencyNanos = new LongAdder();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    /**
+     * Creates a scheduler with the given number of worker threads, which runs each CPU
+     * for at most {@code timeSlice} instructions before switching to the next one.
+     */
+    public Scheduler(int workersCount, long timeSlice) {
+        checkArgument(workersCount > 0, "Invalid number of workers %s", workersCount);
+        checkArgument(timeSlice > 0, "Invalid time slice %s", timeSlice);
+        this.timeSlice = timeSlice;
+        for (int i = 0; i < workersCount; i++) {
+            queues.add(new ConcurrentLinkedDeque<>());
+        }
+        for (int i = 0; i < workersCount; i++) {
+            int index = i;
+            Thread worker = new Thread(() -> work(index), "sbvm-scheduler-" + i);
+            worker.setDaemon(true);
+            workers.add(worker);
+            worker.start();
+        }
+    }
+
+    public int getWorkersCount() {
+        return workers.size();
+    }
+
+    /**
+     * Schedules a CPU, which must not be used by the caller until the returned future completes.
+     * The future completes with the CPU when it halts, or with the exception that stopped it.
+     */
+    public CompletableFuture<CPU> submit(CPU cpu) {
+        checkState(!closed, "The scheduler has been closed");
+        Task task = new Task(cpu);
+        ConcurrentLinkedDeque<Task> queue = queues.get(Math.floorMod(nextQueue.getAndIncrement(), queues.size()));
+        enqueue(queue, task, true);
+        // If close() ran meanwhile, it may have drained the queues already. Otherwise close() or a worker
+        // has taken the task, and close() will cancel it after the workers have stopped
+        if (closed && queue.remove(task)) {
+            queued.decrementAndGet();
+            task.result.cancel(false);
+        }
+        return task.result;
+    }
+
+    /**
+     * Returns how many CPUs are waiting in the run queues.
+     */
+    public int getQueuedCount() {
+        return queued.get();
+    }
+
+    public Stats getStats() {
+        long[] histogram = new long[LATENCY_BUCKETS];
+        for (int bucket = 0; bucket < LATENCY_BUCKETS; bucket++) {
+            histogram[bucket] = latencyHistogram.get(bucket);
+        }
+        // The counters are read one at a time, so they can be slightly inconsistent while the workers run
+        return new Stats(slices.sum(), steals.sum(), completed.sum(), totalLatencyNanos.sum(), maxLatencyNanos.get(),
+                histogram);
+    }
+
+    private void enqueue(ConcurrentLinkedDeque<Task> queue, Task task, boolean wakeUp) {
+        task.enqueuedAt = System.nanoTime();
+        queue.offerLast(task);
+        queued.incrementAndGet();
+        if (wakeUp || idleWorkers.get() > 0) {
+            synchronized (idleLock) {
+                idleLock.notify();
+            }
+        }
+    }
+
+    private void work(int index) {
+        ConcurrentLinkedDeque<Task> queue = queues.get(index);
+        while (!closed) {
+            Task task = queue.pollFirst();
+            if (task == null) {
+                task = steal(index);
+            }
+            if (task == null) {
+                waitForTasks();
+                continue;
+            }
+            queued.decrementAndGet();
+            recordLatency(System.nanoTime() - task.enqueuedAt);
+            runSlice(queue, task);
+        }
+    }
+
+    private Task steal(int index) {
+        // Other workers can take the oldest task before we do: then we take the new head of its queue,
+        // or look again if that queue is empty now
+        for (int attempt = 0; attempt < queues.size(); attempt++) {
+            ConcurrentLinkedDeque<Task> oldest = null;
+            long oldestEnqueuedAt = 0;
+            for (int i = 1; i < queues.size(); i++) {
+                ConcurrentLinkedDeque<Task> queue = queues.get((index + i) % queues.size());
+                Task head = queue.peekFirst();
+                if (head != null && (oldest == null || head.enqueuedAt - oldestEnqueuedAt < 0)) {
+                    oldest = queue;
+                    oldestEnqueuedAt = head.enqueuedAt;
+                }
+            }
+            if (oldest == null) {
+                return null;
+            }
+            Task task = oldest.pollFirst();
+            if (task != null) {
+                steals.increment();
+                return task;
+            }
+        }
+        return null;
+    }
+
+    private void waitForTasks() {
+        idleWorkers.incrementAndGet();
+        try {
+            synchronized (idleLock) {
+                while (queued.get() == 0 && !closed) {
+                    idleLock.wait();
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        } finally {
+            idleWorkers.decrementAndGet();
+        }
+    }
+
+    private void runSlice(ConcurrentLinkedDeque<Task> queue, Task task) {
+        slices.increment();
+        try {
+            task.cpu.runFor(timeSlice);
+        } catch (RuntimeException | Error e) {
+            completed.increment();
+            task.result.completeExceptionally(e);
+            return;
+        }
+        if (task.cpu.isHalted()) {
+            completed.increment();
+            task.result.complete(task.cpu);
+        } else {
+            enqueue(queue, task, false);
+        }
+    }
+
+    private void recordLatency(long latencyNanos) {
+        totalLatencyNanos.add(latencyNanos);
+        maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        latencyHistogram.incrementAndGet(LATENCY_BUCKETS - Long.numberOfLeadingZeros(Math.max(latencyNanos, 0)));
+    }
+
+    /**
+     * Stops the workers after their current slice. The CPUs that have not halted are left where they stopped,
+     * and their futures are cancelled.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        synchronized (idleLock) {
+            idleLock.notifyAll();
+        }
+        for (Thread worker : workers) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        for (ConcurrentLinkedDeque<Task> queue : queues) {
+            for (Task task = queue.pollFirst(); task != null; task = queue.pollFirst()) {
+                queued.decrementAndGet();
+                task.result.cancel(false);
+            }
+        }
+    }
+}
@@ -0,0 +1,621 @@
+package com.andreabergia.sbvm;
+
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+
+/**
+ * Compiles the hot loops of a verified program from traces. When a backward jump to the same loop header
+ * has been taken as many times as the back edge threshold of the {@link JitSettings}, the {@link CPU} records
+ * the instructions of the next iteration as it interprets them, and this compiler translates that path
+ * to a JVM method that repeats it in a straight line:
+ * <ul>
+ * <li>every conditional jump becomes a guard, that leaves the compiled code when the jump goes the other way
+ * than in the recorded iteration, so that the interpreter continues from the exact address the jump goes to;</li>
+ * <li>the variables and the stack items used by the trace become JVM locals, which are written back to the frame
+ * and to the stack at every exit.</li>
+ * </ul>
+ * Unlike the {@link JitCompiler}, only the path that the loop actually takes is compiled, and nothing else
+ * of the function. A trace cannot leave its function, so a loop whose iteration calls a function, returns or
+ * halts is left to the interpreter, as is a loop whose iteration is longer than {@link #MAX_TRACE_LENGTH}.
+ */
+public final class TraceCompiler {
+    /**
+     * The largest number of instructions that a trace can have.
+     */
+    public static final int MAX_TRACE_LENGTH = 1000;
+
+    private static final String GENERATED_PACKAGE = "com/andreabergia/sbvm/generated/";
+    private static final String COMPILED_TRACE = "com/andreabergia/sbvm/CompiledTrace";
+    private static final String INT_STACK = "com/andreabergia/sbvm/IntStack";
+    private static final String FRAME = "com/andreabergia/sbvm/Frame";
+    private static final String MEMORY = "com/andreabergia/sbvm/Memory";
+    private static final String RUN_DESCRIPTOR = "(L" + INT_STACK + ";L" + FRAME + ";L" + MEMORY + ";I)J";
+
+    // The JVM locals of the generated method
+    private static final int STACK_LOCAL = 0;
+    private static final int FRAME_LOCAL = 1;
+    private static final int MEMORY_LOCAL = 2;
+    private static final int ITERATIONS_LOCAL = 3;
+    private static final int FIRST_VARIABLE_LOCAL = 4;
+    private static final int MAX_JVM_LOCALS = 0xFFFF;
+
+    /**
+     * Returned by {@link #onBackEdge(int)} when the loop has to be recorded.
+     */
+    static final Trace RECORD = new Trace(new int[0], null);
+
+    // Marks the loops that cannot be compiled
+    private static final Trace NOT_COMPILABLE = new Trace(new int[0], null);
+
+    private final VerifiedProgram verifiedProgram;
+    private final int[] program;
+    private final JitSettings settings;
+    private final JitCompiler.JitClassLoader classLoader =
+            new JitCompiler.JitClassLoader(TraceCompiler.class.getClassLoader());
+    // The counters are updated without synchronization: a lost update only delays a recording
+    private final int[] backEdgeCounts;
+    private final AtomicReferenceArray<Trace> traces;
+    private int compiledTracesCount = 0;
+    private int failedTracesCount = 0;
+
+    /**
+     * Creates a compiler for the given program, which uses only the back edge threshold of the settings.
+     * Like the {@link JitCompiler}, it can be shared by any number of CPUs running the program, even concurrently.
+     */
+    public TraceCompiler(VerifiedProgram verifiedProgram, JitSettings settings) {
+        this.verifiedProgram = verifiedProgram;
+        this.program = verifiedProgram.getProgram();
+        this.settings = settings;
+        this.backEdgeCounts = new int[program.length];
+        this.traces = new AtomicReferenceArray<>(program.length);
+    }
+
+    public VerifiedProgram getVerifiedProgram() {
+        return verifiedProgram;
+    }
+
+    /**
+     * Returns how many traces have been compiled so far.
+     */
+    public synchronized int getCompiledTracesCount() {
+        return compiledTracesCount;
+    }
+
+    /**
+     * Returns how many loops could not be recorded or compiled, and are left to the interpreter.
+     */
+    public synchronized int getFailedTracesCount() {
+        return failedTracesCount;
+    }
+
+    public boolean isTraceCompiled(int header) {
+        Trace trace = traces.get(header);
+        return trace != null && trace != NOT_COMPILABLE;
+    }
+
+    /**
+     * Returns the addresses of the instructions of the trace compiled for the given loop header,
+     * or null if there is none.
+     */
+    public int[] getTrace(int header) {
+        return isTraceCompiled(header) ? traces.get(header).addresses.clone() : null;
+    }
+
+    /**
+     * Counts a backward jump to the given loop header, and returns its compiled trace if there is one,
+     * or {@link #RECORD} if the loop has become hot and the caller should record its next iteration.
+     */
+    Trace onBackEdge(int header) {
+        Trace trace = traces.get(header);
+        if (trace == null) {
+            if (backEdgeCounts[header]++ < settings.getBackEdgeThreshold()) {
+                return null;
+            }
+            return RECORD;
+        }
+        return trace != NOT_COMPILABLE ? trace : null;
+    }
+
+    /**
+     * Compiles the recorded iteration of a loop, unless another CPU has already done it.
+     */
+    synchronized void onTraceRecorded(int header, int[] addresses) {
+        if (traces.get(header) == null) {
+            traces.set(header, compile(header, addresses));
+        }
+    }
+
+    /**
+     * Leaves a loop to the interpreter, since its iteration could not be recorded.
+     */
+    synchronized void onRecordingFailed(int header) {
+        if (traces.get(header) == null) {
+            ++failedTracesCount;
+            traces.set(header, NOT_COMPILABLE);
+        }
+    }
+
+    private Trace compile(int header, int[] addresses) {
+        String className = "Trace" + header;
+        try {
+            byte[] bytes = new TraceGenerator(GENERATED_PACKAGE + className, header, addresses).generate();
+            if (bytes == null) {
+                ++failedTracesCount;
+                return NOT_COMPILABLE;
+            }
+            Class<?> generatedClass = classLoader.define(GENERATED_PACKAGE.replace('/', '.') + className, bytes);
+            CompiledTrace code = (CompiledTrace) generatedClass.newInstance();
+            ++compiledTracesCount;
+            return new Trace(addresses, code);
+        } catch (RuntimeException | LinkageError | ReflectiveOperationException e) {
+            ++failedTracesCount;
+            return NOT_COMPILABLE;
+        }
+    }
+
+    /**
+     * A compiled trace, with the addresses of the instructions of one iteration.
+     */
+    static final class Trace {
+        final int[] addresses;
+        final CompiledTrace code;
+
+        Trace(int[] addresses, CompiledTrace code) {
+            this.addresses = addresses;
+            this.code = code;
+        }
+
+        int getLength() {
+            return addresses.length;
+        }
+    }
+
+    /**
+     * A way out of the compiled code, with the address where the interpreter continues and the number
+     * of items to move to the stack.
+     */
+    private static final class Exit {
+        final Label label = new Label();
+        final int address;
+        final int items;
+
+        Exit(int address, int items) {
+            this.address = address;
+            this.items = items;
+        }
+    }
+
+    /**
+     * Translates a recorded trace to a JVM method. The items on the stack are numbered from the deepest one
+     * that the trace uses, and each one is a JVM local.
+     */
+    private final class TraceGenerator {
+        private final String className;
+        private final int header;
+        private final int[] addresses;
+        private final int[] items; // The number of items before each instruction
+        private final BitSet usedVariables = new BitSet();
+        private final BitSet writtenVariables = new BitSet();
+        private final List<Exit> exits = new ArrayList<>();
+        private int inputs; // The items below the header's depth that the trace uses
+        private int firstItemLocal;
+        private MethodVisitor mv;
+
+        TraceGenerator(String className, int header, int[] addresses) {
+            this.className = className;
+            this.header = header;
+            this.addresses = addresses;
+            this.items = new int[addresses.length];
+        }
+
+        byte[] generate() {
+            int maxItems = analyze();
+            if (maxItems < 0) {
+                return null;
+            }
+            firstItemLocal = FIRST_VARIABLE_LOCAL + usedVariables.length();
+            if (firstItemLocal + maxItems > MAX_JVM_LOCALS) {
+                return null;
+            }
+
+            ClassWriter cw = new ClassWriter(ClassWriter.COMPUTE_FRAMES);
+            cw.visit(Opcodes.V1_8, Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER, className, null,
+                    "java/lang/Object", new String[]{COMPILED_TRACE});
+            Bytecode.generateConstructor(cw);
+            generateExecute(cw);
+            generateRun(cw);
+            cw.visitEnd();
+            return cw.toByteArray();
+        }
+
+        /**
+         * Computes the items before each instruction, and returns the largest number of items,
+         * or -1 if the trace does not end with the depth it started from.
+         */
+        private int analyze() {
+            int depth = 0;
+            int minDepth = 0;
+            int maxDepth = 0;
+            for (int i = 0; i < addresses.length; i++) {
+                int address = addresses[i];
+                int instruction = program[address];
+                items[i] = depth;
+                switch (instruction) {
+                    case LOAD:
+                        usedVariables.set(program[address + 1]);
+                        break;
+                    case STORE:
+                    case INC:
+                        usedVariables.set(program[address + 1]);
+                        writtenVariables.set(program[address + 1]);
+                        break;
+                    case LLOP:
+                        usedVariables.set(program[address + 1]);
+                        usedVariables.set(program[address + 2]);
+                        break;
+                    default:
+                        break;
+                }
+                minDepth = Math.min(minDepth, depth - getPoppedItems(instruction));
+                depth += getStackDelta(instruction);
+                maxDepth = Math.max(maxDepth, depth);
+            }
+            if (depth != 0) {
+                return -1;
+            }
+            inputs = -minDepth;
+            for (int i = 0; i < items.length; i++) {
+                items[i] += inputs;
+            }
+            return inputs + maxDepth;
+        }
+
+        private void generateExecute(ClassWriter cw) {
+            MethodVisitor execute = cw.visitMethod(Opcodes.ACC_PUBLIC, "execute", RUN_DESCRIPTOR, null, null);
+            execute.visitCode();
+            execute.visitVarInsn(Opcodes.ALOAD, 1);
+            execute.visitVarInsn(Opcodes.ALOAD, 2);
+            execute.visitVarInsn(Opcodes.ALOAD, 3);
+            execute.visitVarInsn(Opcodes.ILOAD, 4);
+            execute.visitMethodInsn(Opcodes.INVOKESTATIC, className, "run", RUN_DESCRIPTOR, false);
+            execute.visitInsn(Opcodes.LRETURN);
+            execute.visitMaxs(0, 0);
+            execute.visitEnd();
+        }
+
+        private void generateRun(ClassWriter cw) {
+            mv = cw.visitMethod(Opcodes.ACC_PUBLIC | Opcodes.ACC_STATIC, "run", RUN_DESCRIPTOR, null, null);
+            mv.visitCode();
+
+            // Prologue: load the variables from the frame and the items from the stack
+            for (int v = usedVariables.nextSetBit(0); v >= 0; v = usedVariables.nextSetBit(v + 1)) {
+                mv.visitVarInsn(Opcodes.ALOAD, FRAME_LOCAL);
+                Bytecode.pushConstant(mv, v);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "getVariable", "(I)I", false);
+                mv.visitVarInsn(Opcodes.ISTORE, FIRST_VARIABLE_LOCAL + v);
+            }
+            for (int i = 0; i < inputs; i++) {
+                mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+                Bytecode.pushConstant(mv, inputs - 1 - i);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "get", "(I)I", false);
+                mv.visitVarInsn(Opcodes.ISTORE, firstItemLocal + i);
+            }
+            if (inputs > 0) {
+                mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+                Bytecode.pushConstant(mv, inputs);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "drop", "(I)V", false);
+            }
+
+            // Every iteration starts by checking that there are some left
+            Label loop = new Label();
+            mv.visitLabel(loop);
+            mv.visitVarInsn(Opcodes.ILOAD, ITERATIONS_LOCAL);
+            mv.visitJumpInsn(Opcodes.IFEQ, exitTo(header, inputs));
+            for (int i = 0; i < addresses.length; i++) {
+                int next = i + 1 < addresses.length ? addresses[i + 1] : header;
+                generateInstruction(addresses[i], items[i], next);
+            }
+            mv.visitIincInsn(ITERATIONS_LOCAL, -1);
+            mv.visitJumpInsn(Opcodes.GOTO, loop);
+
+            for (Exit exit : exits) {
+                generateExit(exit);
+            }
+            mv.visitMaxs(0, 0);
+            mv.visitEnd();
+        }
+
+        /**
+         * Generates an instruction that executes with the given number of items, and that is followed
+         * in the trace by the given address.
+         */
+        private void generateInstruction(int address, int items, int next) {
+            int instruction = program[address];
+            int operand = Instructions.getOperandsCount(instruction) > 0 ? program[address + 1] : 0;
+            int fallThrough = address + 1 + Instructions.getOperandsCount(instruction);
+            // The top item is the local items - 1, and a new item goes to the local items
+            int top = firstItemLocal + items - 1;
+
+            switch (instruction) {
+                case PUSH:
+                    Bytecode.pushConstant(mv, operand);
+                    mv.visitVarInsn(Opcodes.ISTORE, top + 1);
+                    break;
+
+                case POP:
+                case JMP:
+                    break;
+
+                case DUP:
+                    mv.visitVarInsn(Opcodes.ILOAD, top);
+                    mv.visitVarInsn(Opcodes.ISTORE, top + 1);
+                    break;
+
+                case LOAD:
+                    mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + operand);
+                    mv.visitVarInsn(Opcodes.ISTORE, top + 1);
+                    break;
+
+                case STORE:
+                    mv.visitVarInsn(Opcodes.ILOAD, top);
+                    mv.visitVarInsn(Opcodes.ISTORE, FIRST_VARIABLE_LOCAL + operand);
+                    break;
+
+                case NOT:
+                    mv.visitVarInsn(Opcodes.ILOAD, top);
+                    Bytecode.pushBoolean(mv, Opcodes.IFEQ);
+                    mv.visitVarInsn(Opcodes.ISTORE, top);
+                    break;
+
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case AND:
+                case OR:
+                case ISEQ:
+                case ISGE:
+                case ISGT:
+                    generateBinaryOperation(instruction, top - 1, top);
+                    mv.visitVarInsn(Opcodes.ISTORE, top - 1);
+                    break;
+
+                case INC: {
+                    int local = FIRST_VARIABLE_LOCAL + operand;
+                    int delta = program[address + 2];
+                    if (delta >= Short.MIN_VALUE && delta <= Short.MAX_VALUE) {
+                        mv.visitIincInsn(local, delta);
+                    } else {
+                        mv.visitVarInsn(Opcodes.ILOAD, local);
+                        Bytecode.pushConstant(mv, delta);
+                        mv.visitInsn(Opcodes.IADD);
+                        mv.visitVarInsn(Opcodes.ISTORE, local);
+                    }
+                    break;
+                }
+
+                case LLOP:
+                    generateBinaryOperation(program[address + 3], FIRST_VARIABLE_LOCAL + operand,
+                            FIRST_VARIABLE_LOCAL + program[address + 2]);
+                    mv.visitVarInsn(Opcodes.ISTORE, top + 1);
+                    break;
+
+                case MLOAD:
+                    mv.visitVarInsn(Opcodes.ALOAD, MEMORY_LOCAL);
+                    mv.visitVarInsn(Opcodes.ILOAD, top);
+                    mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MEMORY, "get", "(I)I", false);
+                    mv.visitVarInsn(Opcodes.ISTORE, top);
+                    break;
+
+                case MSTORE:
+                    callMemory(top - 1, 2, "set", "(II)V");
+                    break;
+
+                case MCOPY:
+                    callMemory(top - 2, 3, "copy", "(III)V");
+                    break;
+
+                case MFILL:
+                    callMemory(top - 2, 3, "fill", "(III)V");
+                    break;
+
+                case VADD:
+                    callMemory(top - 3, 4, "add", "(IIII)V");
+                    break;
+
+                case VMUL:
+                    callMemory(top - 3, 4, "multiply", "(IIII)V");
+                    break;
+
+                case VISGT:
+                    callMemory(top - 3, 4, "greaterThan", "(IIII)V");
+                    break;
+
+                case VSUM:
+                    callMemory(top - 1, 2, "sum", "(II)I");
+                    mv.visitVarInsn(Opcodes.ISTORE, top - 1);
+                    break;
+
+                case JIF:
+                case JZ:
+                    if (operand != fallThrough) {
+                        // Leave when the jump does not go where it went while recording
+                        boolean taken = next == operand;
+                        mv.visitVarInsn(Opcodes.ILOAD, top);
+                        mv.visitJumpInsn(taken == (instruction == JIF) ? Opcodes.IFEQ : Opcodes.IFNE,
+                                exitTo(taken ? fallThrough : operand, items - 1));
+                    }
+                    break;
+
+                case JEQ:
+                case JGE:
+                case JGT:
+                    if (operand != fallThrough) {
+                        boolean taken = next == operand;
+                        mv.visitVarInsn(Opcodes.ILOAD, top - 1);
+                        mv.visitVarInsn(Opcodes.ILOAD, top);
+                        int comparison = taken
+                                ? Bytecode.getNegatedComparison(instruction)
+                                : Bytecode.getComparison(instruction);
+                        mv.visitJumpInsn(comparison, exitTo(taken ? fallThrough : operand, items - 2));
+                    }
+                    break;
+
+                default:
+                    throw new AssertionError("Instruction not allowed in a trace: " + instruction);
+            }
+        }
+
+        /**
+         * Pushes on the JVM stack the result of a binary instruction on the given locals.
+         */
+        private void generateBinaryOperation(int instruction, int firstLocal, int secondLocal) {
+            mv.visitVarInsn(Opcodes.ILOAD, firstLocal);
+            mv.visitVarInsn(Opcodes.ILOAD, secondLocal);
+            // The second operand is already in its local, so AND and OR can store it back there
+            Bytecode.generateBinaryOperation(mv, instruction, secondLocal);
+        }
+
+        /**
+         * Calls a method of the memory with the arguments in the given consecutive locals,
+         * leaving its result, if any, on the JVM stack.
+         */
+        private void callMemory(int firstLocal, int argumentsCount, String method, String descriptor) {
+            mv.visitVarInsn(Opcodes.ALOAD, MEMORY_LOCAL);
+            for (int i = 0; i < argumentsCount; i++) {
+                mv.visitVarInsn(Opcodes.ILOAD, firstLocal + i);
+            }
+            mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, MEMORY, method, descriptor, false);
+        }
+
+        private Label exitTo(int address, int items) {
+            Exit exit = new Exit(address, items);
+            exits.add(exit);
+            return exit.label;
+        }
+
+        /**
+         * Moves the items to the stack and the written variables to the frame, and returns the exit address
+         * with the iterations left.
+         */
+        private void generateExit(Exit exit) {
+            mv.visitLabel(exit.label);
+            for (int i = 0; i < exit.items; i++) {
+                mv.visitVarInsn(Opcodes.ALOAD, STACK_LOCAL);
+                mv.visitVarInsn(Opcodes.ILOAD, firstItemLocal + i);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, INT_STACK, "push", "(I)V", false);
+            }
+            for (int v = writtenVariables.nextSetBit(0); v >= 0; v = writtenVariables.nextSetBit(v + 1)) {
+                mv.visitVarInsn(Opcodes.ALOAD, FRAME_LOCAL);
+                Bytecode.pushConstant(mv, v);
+                mv.visitVarInsn(Opcodes.ILOAD, FIRST_VARIABLE_LOCAL + v);
+                mv.visitMethodInsn(Opcodes.INVOKEVIRTUAL, FRAME, "setVariable", "(II)V", false);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, ITERATIONS_LOCAL);
+            mv.visitInsn(Opcodes.I2L);
+            Bytecode.pushConstant(mv, 32);
+            mv.visitInsn(Opcodes.LSHL);
+            mv.visitLdcInsn((long) exit.address);
+            mv.visitInsn(Opcodes.LOR);
+            mv.visitInsn(Opcodes.LRETURN);
+        }
+
+    }
+
+    private static int getPoppedItems(int instruction) {
+        switch (instruction) {
+            case POP:
+            case DUP:
+            case STORE:
+            case NOT:
+            case JIF:
+            case JZ:
+            case MLOAD:
+                return 1;
+            case JEQ:
+            case JGE:
+            case JGT:
+            case MSTORE:
+            case VSUM:
+                return 2;
+            case MCOPY:
+            case MFILL:
+                return 3;
+            case VADD:
+            case VMUL:
+            case VISGT:
+                return 4;
+            default:
+                return Instructions.isBinaryOperation(instruction) ? 2 : 0;
+        }
+    }
+
+    private static int getStackDelta(int instruction) {
+        switch (instruction) {
+            case PUSH:
+            case DUP:
+            case LOAD:
+            case LLOP:
+                return 1;
+            case POP:
+            case STORE:
+            case JIF:
+            case JZ:
+            case VSUM:
+                return -1;
+            case JEQ:
+            case JGE:
+            case JGT:
+            case MSTORE:
+                return -2;
+            case MCOPY:
+            case MFILL:
+                return -3;
+            case VADD:
+            case VMUL:
+            case VISGT:
+                return -4;
+            default:
+                return Instructions.isBinaryOperation(instruction) ? -1 : 0;
+        }
+    }
+}
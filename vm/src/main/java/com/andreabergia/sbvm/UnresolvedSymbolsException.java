@@ -0,0 +1,24 @@
+package com.andreabergia.sbvm;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown by the {@link Linker} when some modules use labels that no module defines, or that more than
+ * one module defines. It lists all of them, not just the first one.
+ */
+public class UnresolvedSymbolsException extends InvalidProgramException {
+    private final List<String> unresolvedSymbols;
+
+    public UnresolvedSymbolsException(List<String> unresolvedSymbols) {
+        super("Unresolved symbols: " + String.join(", ", unresolvedSymbols));
+        this.unresolvedSymbols = Collections.unmodifiableList(unresolvedSymbols);
+    }
+
+    /**
+     * Returns the problems, each one as "module: label" followed by a description.
+     */
+    public List<String> getUnresolvedSymbols() {
+        return unresolvedSymbols;
+    }
+}
@@ -0,0 +1,52 @@
+package com.andreabergia.sbvm;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A program that passed the {@link Verifier}, together with what the verifier found out about its functions.
+ * The program array is shared, not copied, and must not be modified after the verification.
+ */
+public final class VerifiedProgram {
+    private final int[] program;
+    private final FunctionInfo main;
+    private final Map<Integer, FunctionInfo> functions;
+    private volatile Program asProgram;
+
+    VerifiedProgram(int[] program, FunctionInfo main, Map<Integer, FunctionInfo> functions) {
+        this.program = program;
+        this.main = main;
+        this.functions = Collections.unmodifiableMap(functions);
+    }
+
+    int[] getProgram() {
+        return program;
+    }
+
+    /**
+     * Returns the program, ready to be shared by many CPUs. It is created only once, when first needed.
+     */
+    public Program asProgram() {
+        Program result = asProgram;
+        if (result == null) {
+            // Racing threads can create it twice, which is harmless since it is immutable
+            result = Program.of(this);
+            asProgram = result;
+        }
+        return result;
+    }
+
+    /**
+     * Returns the information about the code starting at address zero.
+     */
+    public FunctionInfo getMain() {
+        return main;
+    }
+
+    /**
+     * Returns the information about all the CALL targets, by entry point.
+     */
+    public Map<Integer, FunctionInfo> getFunctions() {
+        return functions;
+    }
+}
@@ -0,0 +1,359 @@
+package com.andreabergia.sbvm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+
+/**
+ * Statically checks a program, so that it can be executed without any runtime check.
+ * <p>
+ * A program is valid if all of its instructions are known and have their operands, all the jump and CALL
+ * targets are the start of an instruction, the execution can never run past the end of the program, the stack
+ * has the same depth whenever two paths merge, and the stack can never underflow.
+ * <p>
+ * Since the arguments of a function are passed on the stack, every function is summarized by the number of
+ * items it consumes from its caller's stack and by how much it changes the stack depth when it returns.
+ * Recursive functions are handled by recomputing the summaries until they do not change anymore.
+ */
+public final class Verifier {
+    private static final int UNKNOWN_DEPTH = Integer.MIN_VALUE;
+
+    private final int[] program;
+    private final BitSet instructionStarts = new BitSet();
+    private final Map<Integer, FunctionInfo> functions = new LinkedHashMap<>();
+    private final int[] depths;
+
+    private Verifier(int[] program) {
+        this.program = program;
+        this.depths = new int[program.length];
+        Arrays.fill(depths, UNKNOWN_DEPTH);
+    }
+
+    /**
+     * Verifies the given program, or throws an exception describing the first problem found.
+     */
+    public static VerifiedProgram verify(int... program) throws InvalidProgramException {
+        if (program.length == 0) {
+            throw new InvalidProgramException("A program should have at least an instruction");
+        }
+        return new Verifier(program).verify();
+    }
+
+    private VerifiedProgram verify() {
+        decodeInstructions();
+        computeFunctionSummaries();
+        FunctionInfo main = analyze(0, false);
+        if (main.getArgumentsCount() > 0) {
+            throw new InvalidProgramException("The stack can underflow in the main code");
+        }
+        return new VerifiedProgram(program, main, functions);
+    }
+
+    /**
+     * Decodes the program linearly, checking that every instruction is known and complete,
+     * and that every address operand points to the start of an instruction.
+     */
+    private void decodeInstructions() {
+        int address = 0;
+        while (address < program.length) {
+            int instruction = program[address];
+            int operandsCount = Instructions.getOperandsCount(instruction);
+            if (operandsCount < 0) {
+                throw invalid(address, "unknown instruction " + instruction);
+            }
+            if (address + operandsCount >= program.length) {
+                throw invalid(address, "missing operand");
+            }
+            instructionStarts.set(address);
+            address += 1 + operandsCount;
+        }
+
+        for (address = instructionStarts.nextSetBit(0); address >= 0; address = instructionStarts.nextSetBit(address + 1)) {
+            int instruction = program[address];
+            if (Instructions.hasAddressOperand(instruction)) {
+                int target = program[address + 1];
+                if (target < 0 || target >= program.length || !instructionStarts.get(target)) {
+                    throw invalid(address, "invalid jump address " + target);
+                }
+                if (instruction == CALL && !functions.containsKey(target)) {
+                    functions.put(target, null);
+                }
+            } else if (instruction == LOAD || instruction == STORE || instruction == INC) {
+                checkVariableNumber(address, program[address + 1]);
+            } else if (instruction == LLOP) {
+                checkVariableNumber(address, program[address + 1]);
+                checkVariableNumber(address, program[address + 2]);
+                if (!Instructions.isBinaryOperation(program[address + 3])) {
+                    throw invalid(address, "invalid binary instruction " + program[address + 3]);
+                }
+            }
+        }
+    }
+
+    private void checkVariableNumber(int address, int varNumber) {
+        if (varNumber < 0 || varNumber >= Frame.MAX_VARIABLES) {
+            throw invalid(address, "invalid variable number " + varNumber);
+        }
+    }
+
+    private void computeFunctionSummaries() {
+        // Every round can only make a summary known, or increase the number of arguments it needs,
+        // so this converges quickly for any sensible program
+        int maxRounds = 2 * functions.size() + 8;
+        boolean changed = true;
+        for (int round = 0; changed; round++) {
+            if (round > maxRounds) {
+                throw new InvalidProgramException("Cannot bound the stack usage of the recursive functions");
+            }
+            changed = false;
+            for (Map.Entry<Integer, FunctionInfo> entry : functions.entrySet()) {
+                FunctionInfo info = analyze(entry.getKey(), true);
+                if (!info.isComplete() && !info.returns()) {
+                    // Nothing known yet: it depends on functions that have not been summarized yet
+                    continue;
+                }
+                if (!info.sameSummary(entry.getValue())) {
+                    entry.setValue(info);
+                    changed = true;
+                }
+            }
+        }
+
+        // Functions whose every return path goes through an unknown function can never return. Their placeholder
+        // needs no arguments, so analyze them again until the arguments that they and their callers need are stable
+        for (Map.Entry<Integer, FunctionInfo> entry : functions.entrySet()) {
+            if (entry.getValue() == null) {
+                entry.setValue(FunctionInfo.neverReturning(entry.getKey()));
+            }
+        }
+        changed = true;
+        for (int round = 0; changed; round++) {
+            if (round > maxRounds) {
+                throw new InvalidProgramException("Cannot bound the stack usage of the recursive functions");
+            }
+            changed = false;
+            for (Map.Entry<Integer, FunctionInfo> entry : functions.entrySet()) {
+                FunctionInfo info = analyze(entry.getKey(), true);
+                changed |= !info.sameSummary(entry.getValue());
+                entry.setValue(info);
+            }
+        }
+    }
+
+    /**
+     * Follows all the paths of a function, with depths relative to the stack depth when entering it.
+     */
+    private FunctionInfo analyze(int entryPoint, boolean isFunction) {
+        Deque<Integer> toVisit = new ArrayDeque<>();
+        BitSet visited = new BitSet(program.length);
+        depths[entryPoint] = 0;
+        toVisit.push(entryPoint);
+        visited.set(entryPoint);
+
+        int minDepth = 0;
+        int maxDepth = 0;
+        int returnDepth = UNKNOWN_DEPTH;
+        boolean complete = true;
+
+        while (!toVisit.isEmpty()) {
+            int address = toVisit.pop();
+            int depth = depths[address];
+            int instruction = program[address];
+            int next = address + 1 + Instructions.getOperandsCount(instruction);
+
+            int popped;
+            int pushed;
+            boolean fallsThrough = true;
+            int jumpTarget = -1;
+            switch (instruction) {
+                case HALT:
+                    popped = 0;
+                    pushed = 0;
+                    fallsThrough = false;
+                    break;
+                case INC:
+                    popped = 0;
+                    pushed = 0;
+                    break;
+                case PUSH:
+                case LOAD:
+                case LLOP:
+                    popped = 0;
+                    pushed = 1;
+                    break;
+                case DUP:
+                    popped = 1;
+                    pushed = 2;
+                    break;
+                case POP:
+                case STORE:
+                    popped = 1;
+                    pushed = 0;
+                    break;
+                case NOT:
+                case MLOAD:
+                    popped = 1;
+                    pushed = 1;
+                    break;
+                case MSTORE:
+                    popped = 2;
+                    pushed = 0;
+                    break;
+                case MCOPY:
+                case MFILL:
+                    popped = 3;
+                    pushed = 0;
+                    break;
+                case VADD:
+                case VMUL:
+                case VISGT:
+                    popped = 4;
+                    pushed = 0;
+                    break;
+                case ADD:
+                case SUB:
+                case MUL:
+                case DIV:
+                case AND:
+                case OR:
+                case ISEQ:
+                case ISGE:
+                case ISGT:
+                case VSUM:
+                    popped = 2;
+                    pushed = 1;
+                    break;
+                case JMP:
+                    popped = 0;
+                    pushed = 0;
+                    fallsThrough = false;
+                    jumpTarget = program[address + 1];
+                    break;
+                case JIF:
+                case JZ:
+                    popped = 1;
+                    pushed = 0;
+                    jumpTarget = program[address + 1];
+                    break;
+                case JEQ:
+                case JGE:
+                case JGT:
+                    popped = 2;
+                    pushed = 0;
+                    jumpTarget = program[address + 1];
+                    break;
+                case RET:
+                    if (!isFunction) {
+                        throw invalid(address, "RET outside of a function");
+                    }
+                    if (returnDepth != UNKNOWN_DEPTH && returnDepth != depth) {
+                        throw invalid(address, "the function returns with different stack depths");
+                    }
+                    returnDepth = depth;
+                    popped = 0;
+                    pushed = 0;
+                    fallsThrough = false;
+                    break;
+                case CALL: {
+                    FunctionInfo callee = functions.get(program[address + 1]);
+                    if (callee == null) {
+                        complete = false;
+                        fallsThrough = false;
+                        popped = 0;
+                        pushed = 0;
+                    } else {
+                        // The callee's maximum depth is not added to ours, since it is unbounded for recursive functions
+                        popped = callee.getArgumentsCount();
+                        pushed = popped + callee.getReturnDelta();
+                        fallsThrough = callee.returns();
+                    }
+                    break;
+                }
+                default:
+                    throw new AssertionError();
+            }
+
+            minDepth = Math.min(minDepth, depth - popped);
+            int newDepth = depth - popped + pushed;
+            maxDepth = Math.max(maxDepth, newDepth);
+            if (!isFunction && minDepth < 0) {
+                throw invalid(address, "stack underflow");
+            }
+
+            if (fallsThrough) {
+                if (next >= program.length) {
+                    throw invalid(address, "the execution can continue past the end of the program");
+                }
+                mergeInto(next, newDepth, visited, toVisit);
+            }
+            if (jumpTarget >= 0) {
+                mergeInto(jumpTarget, newDepth, visited, toVisit);
+            }
+        }
+
+        // Clean up the depths, since they are shared by all functions
+        int firstAddress = visited.nextSetBit(0);
+        int lastAddress = visited.length() - 1;
+        int[] functionDepths = new int[lastAddress - firstAddress + 1];
+        Arrays.fill(functionDepths, UNKNOWN_DEPTH);
+        for (int address = firstAddress; address >= 0; address = visited.nextSetBit(address + 1)) {
+            functionDepths[address - firstAddress] = depths[address];
+            depths[address] = UNKNOWN_DEPTH;
+        }
+
+        return new FunctionInfo(entryPoint, -minDepth, returnDepth != UNKNOWN_DEPTH, returnDepth, maxDepth,
+                complete, firstAddress, functionDepths);
+    }
+
+    private void mergeInto(int address, int depth, BitSet visited, Deque<Integer> toVisit) {
+        if (!visited.get(address)) {
+            visited.set(address);
+            depths[address] = depth;
+            toVisit.push(address);
+        } else if (depths[address] != depth) {
+            throw invalid(address, String.format("inconsistent stack depth at merge point: %d and %d", depths[address], depth));
+        }
+    }
+
+    private static InvalidProgramException invalid(int address, String message) {
+        return new InvalidProgramException(String.format("Invalid program at address %d: %s", address, message));
+    }
+}
@@ -0,0 +1,27 @@
+package com.andreabergia.sbvm;
+
+import java.util.Collection;
+
+/**
+ * The observable state of an execution engine for sbvm programs. All engines have
+ * the same semantics as {@link CPU}, which is the reference implementation.
+ */
+public interface VirtualMachine {
+    int getInstructionAddress();
+
+    Collection<Integer> getStack();
+
+    boolean isHalted();
+
+    Frame getCurrentFrame();
+
+    /**
+     * Executes the program until it halts.
+     */
+    void run();
+
+    /**
+     * Executes a single instruction.
+     */
+    void step();
+}
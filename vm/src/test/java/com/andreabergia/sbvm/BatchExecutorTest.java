@@ -0,0 +1,99 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static org.junit.Assert.assertEquals;
+
+public class BatchExecutorTest {
+    /**
+     * Computes (v0 + v1) * v0 and leaves it on the stack; it also stores v0 into v2,
+     * which must not leak into the next run.
+     */
+    private static final VerifiedProgram FORMULA = Verifier.verify(
+            LOAD, 2,
+            LOAD, 0,
+            STORE, 2,
+            LOAD, 0,
+            LOAD, 1,
+            ADD,
+            LOAD, 0,
+            MUL,
+            ADD,
+            HALT);
+
+    @Test
+    public void testInputsAreRunInOrder() {
+        List<int[]> inputs = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            inputs.add(new int[]{i, 3});
+        }
+        try (BatchExecutor executor = new BatchExecutor(4)) {
+            List<Integer> results = executor.execute(FORMULA, inputs, cpu -> cpu.getStack().iterator().next());
+            assertEquals(1000, results.size());
+            for (int i = 0; i < 1000; i++) {
+                assertEquals((i + 3) * i, (int) results.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void testManyPrograms() {
+        List<VerifiedProgram> programs = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            programs.add(Verifier.verify(PUSH, i, PUSH, 2, MUL, HALT));
+            programs.add(FORMULA);
+        }
+        try (BatchExecutor executor = new BatchExecutor(3)) {
+            List<Integer> results = executor.execute(programs, cpu -> cpu.getStack().iterator().next());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(2 * i, (int) results.get(2 * i));
+                assertEquals(0, (int) results.get(2 * i + 1));
+            }
+        }
+    }
+
+    @Test
+    public void testCpusAreReusedAcrossBatches() {
+        Set<CPU> cpus = Collections.newSetFromMap(new IdentityHashMap<>());
+        try (BatchExecutor executor = new BatchExecutor(1)) {
+            for (int batch = 0; batch < 3; batch++) {
+                List<Integer> results = executor.execute(FORMULA, Arrays.asList(new int[]{batch, 1}, new int[]{2, 2}),
+                        cpu -> {
+                            cpus.add(cpu);
+                            return cpu.getStack().iterator().next();
+                        });
+                assertEquals(Arrays.asList((batch + 1) * batch, 8), results);
+            }
+        }
+        assertEquals(1, cpus.size());
+    }
+
+    @Test
+    public void testEmptyBatch() {
+        try (BatchExecutor executor = new BatchExecutor()) {
+            assertEquals(Arrays.asList(), executor.execute(FORMULA, new ArrayList<>(), CPU::isHalted));
+        }
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testFailuresArePropagated() {
+        VerifiedProgram division = Verifier.verify(PUSH, 1, LOAD, 0, DIV, HALT);
+        try (BatchExecutor executor = new BatchExecutor(2)) {
+            executor.execute(division, Arrays.asList(new int[]{1}, new int[]{0}), CPU::isHalted);
+        }
+    }
+}
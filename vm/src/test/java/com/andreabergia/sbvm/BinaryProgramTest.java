@@ -0,0 +1,118 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BinaryProgramTest {
+    private static final int[] PROGRAM = {PUSH, 1, CALL, 5, HALT, PUSH, 2, ADD, RET};
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testWriteAndLoad() throws Exception {
+        Path path = folder.newFile("program.sbc").toPath();
+        BinaryProgram.write(path, PROGRAM, ImmutableMap.of("main", 0, "addTwo", 5),
+                ImmutableMap.of("source", "program.sbvm"));
+
+        BinaryProgram loaded = BinaryProgram.load(path);
+        assertArrayEquals(PROGRAM, loaded.toArray());
+        assertEquals(ImmutableMap.of("main", 0, "addTwo", 5), loaded.getSymbols());
+        assertEquals(ImmutableMap.of("source", "program.sbvm"), loaded.getMetadata());
+
+        IntBuffer code = loaded.getCode();
+        assertTrue(code.isReadOnly());
+        assertEquals(PROGRAM.length, code.remaining());
+        assertEquals(CALL, code.get(2));
+
+        CPU cpu = new CPU(Verifier.verify(loaded.toArray()));
+        cpu.run();
+        assertEquals(3, (int) cpu.getStack().iterator().next());
+    }
+
+    @Test
+    public void testObjectFiles() throws Exception {
+        ObjectModule module = new ObjectModule("library",
+                new int[]{JMP, 2, PUSH, 10, CALL, -1, RET},
+                ImmutableMap.of("addTen", 0, "body", 2),
+                Collections.singleton("addTen"),
+                new int[]{1},
+                Collections.singletonMap(5, "log"));
+        Path path = folder.newFile("library.sbo").toPath();
+        BinaryProgram.write(path, module, ImmutableMap.of("source", "library.sbvm"));
+
+        BinaryProgram loaded = BinaryProgram.load(path);
+        assertTrue(loaded.isObjectModule());
+        assertEquals(ImmutableMap.of("source", "library.sbvm"), loaded.getMetadata());
+        ObjectModule loadedModule = loaded.toObjectModule("library.sbo");
+        assertEquals("library.sbo", loadedModule.getName());
+        assertArrayEquals(module.getCode(), loadedModule.getCode());
+        assertEquals(module.getLabels(), loadedModule.getLabels());
+        assertEquals(module.getExports(), loadedModule.getExports());
+        assertArrayEquals(module.getRelocations(), loadedModule.getRelocations());
+        assertEquals(module.getImports(), loadedModule.getImports());
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testProgramsAreNotObjectFiles() {
+        BinaryProgram program = BinaryProgram.decode(BinaryProgram.encode(PROGRAM, Collections.emptyMap(),
+                Collections.emptyMap()));
+        assertFalse(program.isObjectModule());
+        program.toObjectModule("program");
+    }
+
+    @Test
+    public void testEmptyTables() {
+        ByteBuffer encoded = BinaryProgram.encode(new int[]{HALT}, Collections.emptyMap(), Collections.emptyMap());
+        BinaryProgram decoded = BinaryProgram.decode(encoded);
+        assertArrayEquals(new int[]{HALT}, decoded.toArray());
+        assertTrue(decoded.getSymbols().isEmpty());
+    }
+
+    @Test
+    public void testUnknownSectionsAreSkipped() {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        buffer.putInt(BinaryProgram.MAGIC).putShort((short) BinaryProgram.VERSION).putShort((short) 0).putInt(2);
+        buffer.putInt(42).putInt(3).put(new byte[]{1, 2, 3, 0});
+        buffer.putInt(BinaryProgram.CODE_SECTION).putInt(4).putInt(HALT);
+        buffer.flip();
+        assertArrayEquals(new int[]{HALT}, BinaryProgram.decode(buffer).toArray());
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testWrongMagic() {
+        BinaryProgram.decode(ByteBuffer.wrap(new byte[]{'J', 'U', 'N', 'K', 0, 1, 0, 0, 0, 0, 0, 0}));
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testUnsupportedVersion() {
+        ByteBuffer buffer = BinaryProgram.encode(PROGRAM, Collections.emptyMap(), Collections.emptyMap());
+        buffer.putShort(4, (short) 99);
+        BinaryProgram.decode(buffer);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testTruncatedFile() {
+        ByteBuffer buffer = BinaryProgram.encode(PROGRAM, Collections.emptyMap(), Collections.emptyMap());
+        buffer.limit(30);
+        BinaryProgram.decode(buffer);
+    }
+}
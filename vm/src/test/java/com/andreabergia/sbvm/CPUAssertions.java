@@ -7,25 +7,25 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
 public final class CPUAssertions {
-    public static void assertProgramRunsToHaltAndInstructionAddressIs(CPU cpu, int expectedAddress) {
+    public static void assertProgramRunsToHaltAndInstructionAddressIs(VirtualMachine cpu, int expectedAddress) {
         cpu.run();
         assertEquals("The CPU should have finished at the expected address",
                 expectedAddress, cpu.getInstructionAddress());
         assertTrue("The CPU should be halted", cpu.isHalted());
     }
 
-    public static void assertStackIsEmpty(CPU cpu) {
+    public static void assertStackIsEmpty(VirtualMachine cpu) {
         assertTrue("The stack should be empty", cpu.getStack().isEmpty());
     }
 
-    public static void assertStackContains(CPU cpu, int... expectedContent) {
+    public static void assertStackContains(VirtualMachine cpu, int... expectedContent) {
         assertEquals("The stack should have the expected length",
                 expectedContent.length, cpu.getStack().size());
         assertArrayEquals("The stack content should be as expected",
                 expectedContent, Ints.toArray(cpu.getStack()));
     }
 
-    public static void assertVariableValues(CPU cpu, int... expectedVariableValues) {
+    public static void assertVariableValues(VirtualMachine cpu, int... expectedVariableValues) {
         Frame frame = cpu.getCurrentFrame();
         for (int varNumber = 0; varNumber < expectedVariableValues.length; varNumber++) {
             int expectedVariableValue = expectedVariableValues[varNumber];
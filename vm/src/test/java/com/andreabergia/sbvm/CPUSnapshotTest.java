@@ -0,0 +1,140 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class CPUSnapshotTest {
+    /**
+     * Computes 10! with a recursive function, which keeps its argument in variable 0.
+     */
+    private static final int[] FACTORIAL = {
+            PUSH, 10,
+            CALL, 5,
+            HALT,
+            // Here is address 5
+            STORE, 0,
+            LOAD, 0,
+            JIF, 14,
+            PUSH, 1,
+            RET,
+            // Here is address 14
+            LOAD, 0,
+            LOAD, 0,
+            PUSH, 1,
+            SUB,
+            CALL, 5,
+            MUL,
+            RET
+    };
+
+    @Test
+    public void testRestoreResumesTheProgram() {
+        for (int budget = 0; budget < 120; budget += 7) {
+            CPU original = new CPU(Program.verify(FACTORIAL));
+            original.runFor(budget);
+            ByteBuffer snapshot = original.snapshot();
+
+            CPU restored = new CPU(Program.verify(FACTORIAL));
+            restored.restore(snapshot);
+            assertEquals(original.getInstructionAddress(), restored.getInstructionAddress());
+            assertEquals(new ArrayList<>(original.getStack()), new ArrayList<>(restored.getStack()));
+            assertEquals(original.getCurrentFrame().getVariables(), restored.getCurrentFrame().getVariables());
+            assertEquals(original.getCurrentFrame().getReturnAddress(), restored.getCurrentFrame().getReturnAddress());
+
+            original.run();
+            restored.run();
+            assertStackContains(original, 3628800);
+            assertStackContains(restored, 3628800);
+        }
+    }
+
+    @Test
+    public void testSnapshotsMoveBetweenCheckedAndVerifiedCPUs() {
+        CPU checked = new CPU(FACTORIAL);
+        checked.runFor(40);
+        CPU verified = new CPU(Program.verify(FACTORIAL));
+        verified.restore(checked.snapshot());
+        verified.run();
+        assertStackContains(verified, 3628800);
+    }
+
+    @Test
+    public void testHaltedFlag() {
+        CPU original = new CPU(FACTORIAL);
+        original.run();
+        CPU restored = new CPU(FACTORIAL);
+        restored.restore(original.snapshot());
+        assertTrue(restored.isHalted());
+        assertEquals(original.getInstructionAddress(), restored.getInstructionAddress());
+        assertStackContains(restored, 3628800);
+    }
+
+    @Test
+    public void testLargeStack() {
+        CPU original = new CPU(PUSH, 0, HALT);
+        CPU restored = new CPU(PUSH, 0, HALT);
+        ByteBuffer snapshot = ByteBuffer.allocate(28 + 4 * 1000000 + 8);
+        snapshot.putInt(CPUSnapshot.MAGIC).putShort((short) CPUSnapshot.VERSION).putShort((short) 0);
+        snapshot.put(original.snapshot().array(), 8, 8);
+        snapshot.putInt(2).putInt(1000000).putInt(1);
+        for (int i = 0; i < 1000000; i++) {
+            snapshot.putInt(i);
+        }
+        snapshot.putInt(0).putInt(0);
+        snapshot.flip();
+
+        restored.restore(snapshot);
+        assertEquals(1000000, restored.getStack().size());
+        assertEquals(999999, (int) restored.getStack().iterator().next());
+        assertEquals(snapshot, restored.snapshot());
+    }
+
+    @Test
+    public void testInvalidSnapshotsResetTheCPU() {
+        CPU cpu = new CPU(FACTORIAL);
+        cpu.runFor(30);
+        ByteBuffer snapshot = cpu.snapshot();
+
+        CPU other = new CPU(PUSH, 1, HALT);
+        assertInvalid(other, snapshot, "another program");
+
+        ByteBuffer truncated = snapshot.duplicate();
+        truncated.limit(truncated.limit() - 4);
+        CPU restored = new CPU(FACTORIAL);
+        restored.runFor(10);
+        assertInvalid(restored, truncated, "Truncated");
+        assertEquals(0, restored.getInstructionAddress());
+        assertTrue(restored.getStack().isEmpty());
+        assertFalse(restored.isHalted());
+
+        CPU shallow = new CPU(FACTORIAL);
+        shallow.setMaxCallDepth(2);
+        assertInvalid(shallow, snapshot, "number of frames");
+    }
+
+    private static void assertInvalid(CPU cpu, ByteBuffer snapshot, String message) {
+        try {
+            cpu.restore(snapshot);
+            fail("The snapshot should not be restored");
+        } catch (InvalidProgramException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(message));
+        }
+    }
+}
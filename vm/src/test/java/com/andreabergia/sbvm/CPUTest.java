@@ -18,6 +18,10 @@ import static com.andreabergia.sbvm.Instructions.ISGT;
 import static com.andreabergia.sbvm.Instructions.JIF;
 import static com.andreabergia.sbvm.Instructions.JMP;
 import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
 import static com.andreabergia.sbvm.Instructions.MUL;
 import static com.andreabergia.sbvm.Instructions.NOT;
 import static com.andreabergia.sbvm.Instructions.OR;
@@ -26,9 +30,13 @@ import static com.andreabergia.sbvm.Instructions.PUSH;
 import static com.andreabergia.sbvm.Instructions.RET;
 import static com.andreabergia.sbvm.Instructions.STORE;
 import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class CPUTest {
     // Basic instructions
@@ -336,6 +344,99 @@ public class CPUTest {
         cpu.run();
     }
 
+    @Test(expected = InvalidProgramException.class)
+    public void testLoadNeedsAValidVariableNumber() {
+        CPU cpu = new CPU(LOAD, -1, HALT);
+        cpu.run();
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStoreNeedsAValidVariableNumber() {
+        CPU cpu = new CPU(PUSH, 42, STORE, Frame.MAX_VARIABLES, HALT);
+        cpu.run();
+    }
+
+    // Memory
+
+    @Test
+    public void testMemoryStoreAndLoad() {
+        CPU cpu = new CPU(PUSH, 2, PUSH, 42, MSTORE, PUSH, 2, MLOAD, HALT);
+        cpu.setMemory(Memory.allocate(4));
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 9);
+        assertStackContains(cpu, 42);
+        assertEquals(42, cpu.getMemory().get(2));
+    }
+
+    @Test
+    public void testMemoryCopyAndFill() {
+        CPU cpu = new CPU(PUSH, 0, PUSH, 3, PUSH, 4, MFILL, PUSH, 1, PUSH, 4, PUSH, 2, MCOPY, HALT);
+        cpu.setMemory(Memory.allocate(6));
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 15);
+        assertStackIsEmpty(cpu);
+        assertArrayEquals(new int[]{3, 3, 3, 3, 3, 3}, MemoryTest.toArray(cpu.getMemory()));
+    }
+
+    @Test
+    public void testMemoryProgram() {
+        for (CPU cpu : new CPU[]{new CPU(MemoryTest.ARRAY_PROGRAM), new CPU(Verifier.verify(MemoryTest.ARRAY_PROGRAM))}) {
+            cpu.setMemory(Memory.allocate(MemoryTest.ARRAY_PROGRAM_MEMORY.length));
+            assertProgramRunsToHaltAndInstructionAddressIs(cpu, 75);
+            assertStackContains(cpu, 7, 55);
+            assertArrayEquals(MemoryTest.ARRAY_PROGRAM_MEMORY, MemoryTest.toArray(cpu.getMemory()));
+        }
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryIsEmptyByDefault() {
+        CPU cpu = new CPU(PUSH, 0, MLOAD, HALT);
+        cpu.run();
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryAccessOutsideOfTheMemoryFails() {
+        CPU cpu = new CPU(Verifier.verify(PUSH, 4, PUSH, 1, MSTORE, HALT));
+        cpu.setMemory(Memory.allocate(4));
+        cpu.run();
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryStoreNeedsTwoItemsOnTheStack() {
+        CPU cpu = new CPU(PUSH, 1, MSTORE, HALT);
+        cpu.setMemory(Memory.allocate(4));
+        cpu.run();
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryFillNeedsThreeItemsOnTheStack() {
+        CPU cpu = new CPU(PUSH, 1, PUSH, 1, MFILL, HALT);
+        cpu.setMemory(Memory.allocate(4));
+        cpu.run();
+    }
+
+    @Test
+    public void testVectorProgram() {
+        for (CPU cpu : new CPU[]{new CPU(MemoryTest.VECTOR_PROGRAM), new CPU(Verifier.verify(MemoryTest.VECTOR_PROGRAM))}) {
+            cpu.setMemory(Memory.allocate(MemoryTest.VECTOR_PROGRAM_MEMORY.length));
+            assertProgramRunsToHaltAndInstructionAddressIs(cpu, 70);
+            assertStackContains(cpu, 176, 72);
+            assertArrayEquals(MemoryTest.VECTOR_PROGRAM_MEMORY, MemoryTest.toArray(cpu.getMemory()));
+        }
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testVectorAddNeedsFourItemsOnTheStack() {
+        CPU cpu = new CPU(PUSH, 0, PUSH, 0, PUSH, 1, VADD, HALT);
+        cpu.setMemory(Memory.allocate(4));
+        cpu.run();
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testVectorSumOutsideOfTheMemoryFails() {
+        CPU cpu = new CPU(Verifier.verify(PUSH, 2, PUSH, 3, VSUM, HALT));
+        cpu.setMemory(Memory.allocate(4));
+        cpu.run();
+    }
+
     // Function calls
 
     @Test
@@ -361,4 +462,154 @@ public class CPUTest {
         assertProgramRunsToHaltAndInstructionAddressIs(cpu, 5);
         assertStackContains(cpu, 6);
     }
+
+    // Reset
+
+    @Test
+    public void testResetRunsTheProgramAgain() {
+        CPU cpu = new CPU(LOAD, 0, PUSH, 1, ADD, DUP, STORE, 0, HALT);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 9);
+        cpu.getCurrentFrame().setVariable(3, 42);
+        cpu.reset();
+        assertFalse(cpu.isHalted());
+        assertStackIsEmpty(cpu);
+        assertVariableValues(cpu, 0, 0, 0, 0);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 9);
+        assertStackContains(cpu, 1);
+    }
+
+    @Test
+    public void testRecursionDeeperThanTheMaxCallDepthFails() {
+        // addresses      0     1  2     3     4
+        CPU cpu = new CPU(CALL, 3, HALT, CALL, 3);
+        cpu.setMaxCallDepth(1000);
+        try {
+            cpu.run();
+            fail("The recursion should have exceeded the maximum call depth");
+        } catch (CallDepthExceededException e) {
+            assertEquals(1000, e.getMaxDepth());
+        }
+
+        CPU verified = new CPU(Verifier.verify(CALL, 3, HALT, CALL, 3));
+        assertEquals(CPU.DEFAULT_MAX_CALL_DEPTH, verified.getMaxCallDepth());
+        verified.setMaxCallDepth(10);
+        try {
+            verified.run();
+            fail("The recursion should have exceeded the maximum call depth");
+        } catch (CallDepthExceededException e) {
+            assertEquals(10, e.getMaxDepth());
+        }
+    }
+
+    @Test
+    public void testReusedFramesStartWithClearedVariables() {
+        // The function reads its variable 0 before storing it: it must be zero at every call
+        CPU cpu = new CPU(
+                CALL, 5,
+                CALL, 5,
+                HALT,
+                // Here is address 5
+                LOAD, 0,
+                PUSH, 1,
+                ADD,
+                DUP,
+                STORE, 0,
+                RET);
+        cpu.run();
+        assertStackContains(cpu, 1, 1);
+    }
+
+    @Test
+    public void testRunForExecutesAtMostTheBudget() {
+        int[] program = {PUSH, 1, PUSH, 2, ADD, PUSH, 3, MUL, HALT};
+        for (CPU cpu : new CPU[]{new CPU(program), new CPU(Verifier.verify(program))}) {
+            assertEquals(0, cpu.runFor(0));
+            assertEquals(2, cpu.runFor(2));
+            assertEquals(4, cpu.getInstructionAddress());
+            assertStackContains(cpu, 2, 1);
+            assertEquals(1, cpu.runFor(1));
+            assertEquals(3, cpu.runFor(100));
+            assertTrue(cpu.isHalted());
+            assertStackContains(cpu, 9);
+            assertEquals(0, cpu.runFor(100));
+        }
+    }
+
+    @Test
+    public void testRunForAcrossCalls() {
+        // addresses                           0     1  2     3  4     5  6     7  8
+        VerifiedProgram program = Verifier.verify(PUSH, 3, CALL, 5, HALT, PUSH, 2, MUL, RET);
+        CPU cpu = new CPU(program);
+        long executed = 0;
+        while (!cpu.isHalted()) {
+            executed += cpu.runFor(1);
+        }
+        assertEquals(6, executed);
+        assertStackContains(cpu, 6);
+    }
+
+    /**
+     * Adds the numbers from 1 to n with a tail recursive function, which keeps the running total on the stack.
+     */
+    private static int[] tailRecursiveSum(int n) {
+        return new int[]{
+                PUSH, 0,
+                PUSH, n,
+                CALL, 7,
+                HALT,
+                // Here is address 7, sum(n, total)
+                STORE, 0,
+                STORE, 1,
+                LOAD, 0,
+                JIF, 18,
+                LOAD, 1,
+                RET,
+                // Here is address 18
+                LOAD, 1,
+                LOAD, 0,
+                ADD,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                CALL, 7,
+                RET
+        };
+    }
+
+    @Test
+    public void testTailCallsReuseTheFrame() {
+        int n = 1000000;
+        int expected = 0;
+        for (int i = 1; i <= n; i++) {
+            expected += i;
+        }
+        // The main code's CALL needs a frame, and all the recursive calls reuse it
+        CPU checked = new CPU(tailRecursiveSum(n));
+        checked.setMaxCallDepth(1);
+        checked.run();
+        assertStackContains(checked, expected);
+
+        CPU verified = new CPU(Verifier.verify(tailRecursiveSum(n)));
+        verified.setMaxCallDepth(1);
+        verified.run();
+        assertStackContains(verified, expected);
+
+        CPU compiled = new CPU(Verifier.verify(tailRecursiveSum(n)), new JitSettings(0, 0));
+        compiled.run();
+        assertStackContains(compiled, expected);
+    }
+
+    @Test
+    public void testTailCallKeepsTheReturnAddress() {
+        // addresses      0     1  2     3  4     5  6     7  8
+        CPU cpu = new CPU(CALL, 4, PUSH, 1, CALL, 7, RET, PUSH, 2, RET);
+        cpu.step();
+        cpu.step();
+        assertEquals(7, cpu.getInstructionAddress());
+        assertEquals(2, cpu.getCurrentFrame().getReturnAddress());
+        cpu.step();
+        cpu.step();
+        assertEquals(2, cpu.getInstructionAddress());
+        assertStackContains(cpu, 2);
+    }
 }
@@ -0,0 +1,67 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class CallStackTest {
+    @Test
+    public void testPushAndPop() {
+        CallStack frames = new CallStack(2, 10);
+        Frame main = frames.peek();
+        Frame frame = frames.push(42, 3);
+        assertEquals(2, frames.size());
+        assertSame(frame, frames.peek());
+        assertEquals(42, frame.getReturnAddress());
+        assertSame(main, frames.pop());
+        assertEquals(1, frames.size());
+    }
+
+    @Test
+    public void testFramesAreReusedAndCleared() {
+        CallStack frames = new CallStack(0, 10);
+        Frame frame = frames.push(1, 4);
+        frame.setVariable(0, 7);
+        frame.setVariable(10, 8);
+        frames.pop();
+
+        Frame reused = frames.push(2, 1);
+        assertSame(frame, reused);
+        assertEquals(2, reused.getReturnAddress());
+        assertEquals(Collections.singletonMap(0, 0), reused.getVariables());
+        // The slots left over by the previous call do not reappear when growing
+        reused.setVariable(3, 5);
+        assertEquals(0, reused.getVariable(2));
+        assertEquals(0, reused.getVariable(10));
+        assertEquals(5, reused.getVariable(3));
+    }
+
+    @Test
+    public void testMaxDepth() {
+        CallStack frames = new CallStack(0, 100);
+        for (int i = 0; i < 100; i++) {
+            frames.push(i, 0);
+        }
+        try {
+            frames.push(100, 0);
+            fail("The call stack should be full");
+        } catch (CallDepthExceededException e) {
+            assertEquals(100, e.getMaxDepth());
+        }
+        assertEquals(101, frames.size());
+    }
+
+    @Test
+    public void testReset() {
+        CallStack frames = new CallStack(1, 10);
+        frames.peek().setVariable(0, 3);
+        frames.push(5, 0);
+        frames.reset();
+        assertEquals(1, frames.size());
+        assertEquals(0, frames.peek().getVariable(0));
+    }
+}
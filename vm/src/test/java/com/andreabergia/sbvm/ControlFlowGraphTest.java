@@ -0,0 +1,79 @@
+package com.andreabergia.sbvm;
+
+import com.andreabergia.sbvm.ControlFlowGraph.Block;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ControlFlowGraphTest {
+    @Test
+    public void testLoop() {
+        ControlFlowGraph graph = ControlFlowGraph.build(Verifier.verify(
+                PUSH, 10, STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0, JIF, 11,
+                LOAD, 1, HALT,
+                // Here is address 11
+                LOAD, 1, LOAD, 0, ADD, STORE, 1,
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4));
+        List<Block> blocks = graph.getBlocks();
+        assertEquals(4, blocks.size());
+        Block entry = graph.getBlockAt(0);
+        Block header = graph.getBlockAt(4);
+        Block exit = graph.getBlockAt(8);
+        Block body = graph.getBlockAt(11);
+        assertEquals(Arrays.asList(entry, header, exit, body), blocks);
+
+        assertEquals(Arrays.asList(header), entry.getSuccessors());
+        assertTrue(header.isConditional());
+        assertSame(exit, header.fallThrough);
+        assertSame(body, header.jumpTarget);
+        assertTrue(exit.getSuccessors().isEmpty());
+        assertNull(body.fallThrough);
+        assertSame(header, body.jumpTarget);
+        assertEquals(Arrays.asList(entry, body), header.predecessors);
+
+        assertEquals(0, entry.loopDepth);
+        assertEquals(1, header.loopDepth);
+        assertEquals(0, exit.loopDepth);
+        assertEquals(1, body.loopDepth);
+        for (Block block : blocks) {
+            assertTrue(block.reachable);
+        }
+    }
+
+    @Test
+    public void testReachability() {
+        ControlFlowGraph graph = ControlFlowGraph.build(Verifier.verify(
+                PUSH, 3, CALL, 9, HALT,
+                // Here is address 5, never executed
+                PUSH, 2, MUL, RET,
+                // Here is address 9
+                PUSH, 3, ADD, RET));
+        // The CALL does not end its block
+        assertEquals(3, graph.getBlocks().size());
+        assertEquals(3, graph.getBlockAt(0).nodes.size());
+        assertFalse(graph.getBlockAt(5).reachable);
+        assertTrue(graph.getBlockAt(9).reachable);
+        assertNull(graph.getBlockAt(2));
+    }
+}
@@ -0,0 +1,71 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ExecutionProfileTest {
+    private static final int[] COUNTDOWN = {
+            PUSH, 3,
+            STORE, 0,
+            // Here is address 4, the loop header
+            LOAD, 0,
+            JIF, 9,
+            HALT,
+            // Here is address 9
+            LOAD, 0,
+            CALL, 17,
+            STORE, 0,
+            JMP, 4,
+            // Here is address 17, a function that decrements its argument
+            PUSH, 1,
+            SUB,
+            RET
+    };
+
+    @Test
+    public void testCounters() {
+        CPU cpu = new CPU(COUNTDOWN);
+        ExecutionProfile profile = cpu.runProfiled();
+        assertTrue(cpu.isHalted());
+        assertEquals(0, cpu.getCurrentFrame().getVariable(0));
+
+        assertEquals(32, profile.getInstructionsCount());
+        assertEquals(7, profile.getOpcodeCount(LOAD));
+        assertEquals(1, profile.getOpcodeCount(HALT));
+        assertEquals(4, profile.getAddressCount(4));
+        assertEquals(3, profile.getAddressCount(17));
+        assertEquals(0, profile.getAddressCount(1));
+        assertEquals(3, profile.getCallCount(17));
+        assertEquals(0, profile.getCallCount(4));
+        assertEquals(3, profile.getJumpsTaken(6));
+        assertEquals(1, profile.getJumpsNotTaken(6));
+    }
+
+    @Test
+    public void testVerifiedProgramsCanBeProfiled() {
+        ExecutionProfile profile = new CPU(Verifier.verify(COUNTDOWN)).runProfiled();
+        assertEquals(32, profile.getInstructionsCount());
+    }
+
+    @Test
+    public void testReportUsesLabels() {
+        ExecutionProfile profile = new CPU(COUNTDOWN).runProfiled();
+        String report = profile.format(ImmutableMap.of("loop", 4, "decrement", 17));
+        assertTrue(report, report.contains("Instructions executed: 32"));
+        assertTrue(report, report.contains("17 (decrement)"));
+        assertTrue(report, report.contains("6 (loop+2)"));
+        assertTrue(report, report.matches("(?s).*JIF +3 taken +1 not taken.*"));
+    }
+}
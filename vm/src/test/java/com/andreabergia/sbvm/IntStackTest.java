@@ -0,0 +1,52 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntStackTest {
+    @Test
+    public void testPushAndPop() {
+        IntStack stack = new IntStack();
+        stack.push(1);
+        stack.push(2);
+        assertEquals(2, stack.size());
+        assertEquals(2, stack.peek());
+        assertEquals(2, stack.pop());
+        assertEquals(1, stack.pop());
+        assertTrue(stack.isEmpty());
+    }
+
+    @Test
+    public void testGrowsPastInitialCapacity() {
+        IntStack stack = new IntStack(1);
+        for (int i = 0; i < 100; i++) {
+            stack.push(i);
+        }
+        assertEquals(100, stack.size());
+        assertEquals(99, stack.get(0));
+        assertEquals(0, stack.get(99));
+    }
+
+    @Test
+    public void testViewIsLiveAndIteratesFromTheTop() {
+        IntStack stack = new IntStack();
+        Collection<Integer> view = stack.asCollection();
+        stack.push(42);
+        stack.push(68);
+        assertArrayEquals(new int[]{68, 42}, Ints.toArray(view));
+        assertArrayEquals(new int[]{68, 42}, stack.toArray());
+        stack.pop();
+        assertEquals(1, view.size());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testViewIsReadOnly() {
+        new IntStack().asCollection().add(1);
+    }
+}
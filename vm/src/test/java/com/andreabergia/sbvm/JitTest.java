@@ -0,0 +1,292 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertProgramRunsToHaltAndInstructionAddressIs;
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.CPUAssertions.assertVariableValues;
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.AND;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.OR;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class JitTest {
+    private static final JitSettings ALWAYS_COMPILE = new JitSettings(0, 0);
+
+    /**
+     * Sums the numbers from 1 to 100 in a loop in the main code, whose header is at address 4.
+     */
+    private static final int[] SUM_LOOP = {
+            PUSH, 100,
+            STORE, 0,
+            // Here is address 4
+            LOAD, 0,
+            PUSH, 0,
+            ISGT,
+            NOT,
+            JIF, 28,
+            LOAD, 0,
+            LOAD, 1,
+            ADD,
+            STORE, 1,
+            LOAD, 0,
+            PUSH, 1,
+            SUB,
+            STORE, 0,
+            JMP, 4,
+            // Here is address 28
+            LOAD, 1,
+            HALT
+    };
+
+    /**
+     * Computes the factorial of 10 with a recursive function.
+     */
+    private static final int[] RECURSIVE_FACTORIAL = {
+            PUSH, 10,
+            CALL, 5,
+            HALT,
+            // Here is address 5, the start of "fact"
+            DUP,
+            PUSH, 1,
+            ISGT,
+            JIF, 15,
+            POP,
+            PUSH, 1,
+            RET,
+            // Here is address 15
+            DUP,
+            PUSH, 1,
+            SUB,
+            CALL, 5,
+            MUL,
+            RET
+    };
+
+    @Test
+    public void testLoopInMainCode() {
+        CPU cpu = new CPU(Verifier.verify(SUM_LOOP), ALWAYS_COMPILE);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 31);
+        assertStackContains(cpu, 5050);
+        assertVariableValues(cpu, 0, 5050);
+        assertTrue(cpu.getJit().isLoopCompiled(4));
+    }
+
+    @Test
+    public void testLoopIsCompiledAfterTheThreshold() {
+        CPU cpu = new CPU(Verifier.verify(SUM_LOOP), new JitSettings(0, 50));
+        cpu.run();
+        assertStackContains(cpu, 5050);
+        assertTrue(cpu.getJit().isLoopCompiled(4));
+
+        cpu = new CPU(Verifier.verify(SUM_LOOP), new JitSettings(0, 1000));
+        cpu.run();
+        assertStackContains(cpu, 5050);
+        assertEquals(0, cpu.getJit().getCompiledUnitsCount());
+    }
+
+    @Test
+    public void testRecursiveFunction() {
+        CPU cpu = new CPU(Verifier.verify(RECURSIVE_FACTORIAL), ALWAYS_COMPILE);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 5);
+        assertStackContains(cpu, 3628800);
+        assertTrue(cpu.getJit().isFunctionCompiled(5));
+    }
+
+    @Test
+    public void testCompilerSharedByManyCPUs() {
+        JitCompiler jit = new JitCompiler(Verifier.verify(RECURSIVE_FACTORIAL), new JitSettings(5, 5));
+        for (int i = 0; i < 3; i++) {
+            CPU cpu = new CPU(jit);
+            cpu.run();
+            assertStackContains(cpu, 3628800);
+        }
+        assertTrue(jit.isFunctionCompiled(5));
+        assertEquals(1, jit.getCompiledUnitsCount());
+    }
+
+    @Test
+    public void testRecursionDeeperThanTheCompiledCodeLimit() {
+        int[] program = RECURSIVE_FACTORIAL.clone();
+        program[1] = 2000;
+        assertSameResult(program);
+    }
+
+    @Test
+    public void testFunctionWithLocalsAndComparisons() {
+        assertSameResult(
+                PUSH, 6,
+                PUSH, 4,
+                CALL, 7,
+                HALT,
+                // Here is address 7, the start of "max"
+                STORE, 1,
+                STORE, 0,
+                LOAD, 0,
+                LOAD, 1,
+                ISGE,
+                JIF, 21,
+                LOAD, 1,
+                RET,
+                // Here is address 21
+                LOAD, 0,
+                RET
+        );
+    }
+
+    @Test
+    public void testHaltInsideFunctionKeepsItemsAndVariables() {
+        CPU cpu = new CPU(Verifier.verify(
+                PUSH, 1,
+                STORE, 3,
+                PUSH, 7,
+                PUSH, 8,
+                CALL, 12,
+                POP,
+                HALT,
+                // Here is address 12
+                STORE, 0,
+                PUSH, 42,
+                LOAD, 0,
+                HALT
+        ), ALWAYS_COMPILE);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 19);
+        assertStackContains(cpu, 8, 42, 7);
+        assertVariableValues(cpu, 8);
+    }
+
+    @Test
+    public void testBooleanOperators() {
+        assertSameResult(
+                CALL, 3,
+                HALT,
+                // Here is address 3
+                PUSH, 3, PUSH, 0, AND,
+                PUSH, 3, PUSH, 4, AND,
+                PUSH, 0, PUSH, 0, OR,
+                PUSH, 0, PUSH, -2, OR,
+                PUSH, 7, NOT,
+                PUSH, 0, NOT,
+                PUSH, 5, PUSH, 5, ISEQ,
+                PUSH, -9, PUSH, 2, DIV,
+                PUSH, 100000, PUSH, 200000, MUL,
+                RET
+        );
+    }
+
+    @Test
+    public void testLoopInsideFunctionCalledRepeatedly() {
+        // Calls "sum(n)" for n from 1 to 30, and adds all the results
+        assertSameResult(
+                PUSH, 30,
+                STORE, 0,
+                // Here is address 4
+                LOAD, 0,
+                JIF, 10,
+                JMP, 28,
+                // Here is address 10
+                LOAD, 1,
+                LOAD, 0,
+                CALL, 31,
+                ADD,
+                STORE, 1,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4,
+                // Here is address 28
+                LOAD, 1,
+                HALT,
+                // Here is address 31, the start of "sum", which loops while n > 0
+                STORE, 0,
+                PUSH, 0,
+                // Here is address 35
+                LOAD, 0,
+                PUSH, 0,
+                ISGT,
+                JIF, 43,
+                RET,
+                // Here is address 43
+                LOAD, 0,
+                ADD,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 35
+        );
+    }
+
+    @Test
+    public void testMemoryInstructions() {
+        CPU cpu = new CPU(Verifier.verify(MemoryTest.ARRAY_PROGRAM), ALWAYS_COMPILE);
+        Memory memory = Memory.allocate(MemoryTest.ARRAY_PROGRAM_MEMORY.length);
+        cpu.setMemory(memory);
+        cpu.run();
+        assertArrayEquals(new Integer[]{7, 55}, toArray(cpu));
+        assertArrayEquals(MemoryTest.ARRAY_PROGRAM_MEMORY, MemoryTest.toArray(memory));
+        assertTrue(cpu.getJit().getCompiledUnitsCount() > 0);
+    }
+
+    @Test
+    public void testVectorInstructions() {
+        CPU cpu = new CPU(Verifier.verify(MemoryTest.VECTOR_PROGRAM), ALWAYS_COMPILE);
+        Memory memory = Memory.allocate(MemoryTest.VECTOR_PROGRAM_MEMORY.length);
+        cpu.setMemory(memory);
+        cpu.run();
+        assertArrayEquals(new Integer[]{176, 72}, toArray(cpu));
+        assertArrayEquals(MemoryTest.VECTOR_PROGRAM_MEMORY, MemoryTest.toArray(memory));
+        assertTrue(cpu.getJit().getCompiledUnitsCount() > 0);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryAccessOutsideOfTheMemoryInCompiledCode() {
+        new CPU(Verifier.verify(MemoryTest.ARRAY_PROGRAM), ALWAYS_COMPILE).run();
+    }
+
+    /**
+     * Runs the program with and without the JIT, and checks that the final states are identical. The JIT runs
+     * once compiling everything immediately, and once with low thresholds, to mix interpreted and compiled code.
+     */
+    private static void assertSameResult(int... program) {
+        VerifiedProgram verified = Verifier.verify(program);
+        CPU interpreted = new CPU(verified);
+        interpreted.run();
+        for (JitSettings settings : new JitSettings[]{ALWAYS_COMPILE, new JitSettings(2, 3)}) {
+            CPU compiled = new CPU(verified, settings);
+            compiled.run();
+            assertTrue("The CPU should be halted", compiled.isHalted());
+            assertEquals(interpreted.getInstructionAddress(), compiled.getInstructionAddress());
+            assertEquals(interpreted.getStack().size(), compiled.getStack().size());
+            assertArrayEquals(toArray(interpreted), toArray(compiled));
+            assertEquals(interpreted.getCurrentFrame().getVariables(), compiled.getCurrentFrame().getVariables());
+            if (settings == ALWAYS_COMPILE) {
+                assertTrue("Some code should have been compiled", compiled.getJit().getCompiledUnitsCount() > 0);
+            }
+        }
+    }
+
+    private static Integer[] toArray(CPU cpu) {
+        return cpu.getStack().toArray(new Integer[0]);
+    }
+}
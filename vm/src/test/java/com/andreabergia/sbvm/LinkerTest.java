@@ -0,0 +1,134 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.collect.ImmutableMap;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class LinkerTest {
+    private static final ObjectModule MAIN = new ObjectModule("main",
+            new int[]{PUSH, 3, CALL, -1, HALT},
+            Collections.emptyMap(),
+            Collections.emptySet(),
+            new int[0],
+            Collections.singletonMap(3, "addTen"));
+
+    private static final ObjectModule LIBRARY = new ObjectModule("library",
+            new int[]{JMP, 2, PUSH, 10, ADD, RET},
+            ImmutableMap.of("addTen", 0, "body", 2),
+            Collections.singleton("addTen"),
+            new int[]{1},
+            Collections.emptyMap());
+
+    @Test
+    public void testLinkRelocatesAndResolves() {
+        Linker.LinkedProgram linkedProgram = Linker.link(MAIN, LIBRARY);
+        assertArrayEquals(new int[]{PUSH, 3, CALL, 5, HALT, JMP, 7, PUSH, 10, ADD, RET}, linkedProgram.toArray());
+        assertEquals(ImmutableMap.of("main", 0, "library", 5), linkedProgram.getModuleAddresses());
+        assertEquals(ImmutableMap.of("library:addTen", 5, "library:body", 7), linkedProgram.getSymbols());
+
+        CPU cpu = new CPU(Verifier.verify(linkedProgram.toArray()));
+        cpu.run();
+        assertStackContains(cpu, 13);
+    }
+
+    @Test
+    public void testModulesAreNotModified() {
+        Linker.link(MAIN, LIBRARY);
+        Linker.LinkedProgram linkedProgram = Linker.link(LIBRARY);
+        assertArrayEquals(new int[]{JMP, 2, PUSH, 10, ADD, RET}, linkedProgram.toArray());
+    }
+
+    @Test
+    public void testAllUnresolvedSymbolsAreReported() {
+        ObjectModule other = new ObjectModule("other",
+                new int[]{CALL, -1, CALL, -1, CALL, -1, CALL, -1, RET},
+                Collections.emptyMap(),
+                Collections.emptySet(),
+                new int[0],
+                ImmutableMap.of(1, "missing", 3, "addTen", 5, "missing", 7, "body"));
+        ObjectModule duplicate = new ObjectModule("duplicate",
+                new int[]{RET},
+                Collections.singletonMap("addTen", 0),
+                Collections.singleton("addTen"),
+                new int[0],
+                Collections.emptyMap());
+        try {
+            Linker.link(MAIN, LIBRARY, other, duplicate);
+            fail("The program should not link");
+        } catch (UnresolvedSymbolsException e) {
+            assertEquals(Arrays.asList(
+                    "main: addTen is exported by more than a module (library, duplicate)",
+                    "other: missing is not defined",
+                    "other: addTen is exported by more than a module (library, duplicate)",
+                    "other: body is not exported (library)"),
+                    e.getUnresolvedSymbols());
+        }
+    }
+
+    @Test
+    public void testPrivateLabelsDoNotCollide() {
+        // Both modules have a private loop label, and the main one also has a private addTen
+        ObjectModule main = new ObjectModule("main",
+                new int[]{PUSH, 3, CALL, -1, JMP, 6, HALT, RET},
+                ImmutableMap.of("loop", 6, "addTen", 7),
+                Collections.emptySet(),
+                new int[]{5},
+                Collections.singletonMap(3, "addTen"));
+        ObjectModule library = new ObjectModule("library",
+                new int[]{JMP, 2, PUSH, 10, ADD, RET},
+                ImmutableMap.of("addTen", 0, "loop", 2),
+                Collections.singleton("addTen"),
+                new int[]{1},
+                Collections.emptyMap());
+        Linker.LinkedProgram linkedProgram = Linker.link(main, library);
+        assertArrayEquals(new int[]{PUSH, 3, CALL, 8, JMP, 6, HALT, RET, JMP, 10, PUSH, 10, ADD, RET},
+                linkedProgram.toArray());
+        assertEquals((Integer) 6, linkedProgram.getSymbols().get("main:loop"));
+        assertEquals((Integer) 10, linkedProgram.getSymbols().get("library:loop"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testExportsMustBeDefined() {
+        new ObjectModule("main", new int[]{HALT}, Collections.emptyMap(), Collections.singleton("missing"),
+                new int[0], Collections.emptyMap());
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testDuplicateModules() {
+        Linker.link(LIBRARY, LIBRARY);
+    }
+
+    @Test
+    public void testLinkManyModulesInParallel() {
+        // Each module calls the next one, and the last one returns
+        int count = 200;
+        ObjectModule[] modules = new ObjectModule[count];
+        modules[0] = new ObjectModule("module0", new int[]{PUSH, 0, CALL, -1, HALT},
+                Collections.emptyMap(), Collections.emptySet(), new int[0], Collections.singletonMap(3, "function1"));
+        for (int i = 1; i < count - 1; i++) {
+            modules[i] = new ObjectModule("module" + i, new int[]{PUSH, 1, ADD, CALL, -1, RET},
+                    Collections.singletonMap("function" + i, 0), Collections.singleton("function" + i), new int[0],
+                    Collections.singletonMap(4, "function" + (i + 1)));
+        }
+        modules[count - 1] = new ObjectModule("module" + (count - 1), new int[]{PUSH, 1, ADD, RET},
+                Collections.singletonMap("function" + (count - 1), 0), Collections.singleton("function" + (count - 1)),
+                new int[0], Collections.emptyMap());
+
+        CPU cpu = new CPU(Linker.link(modules).toArray());
+        cpu.run();
+        assertStackContains(cpu, count - 1);
+    }
+}
@@ -0,0 +1,66 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static org.junit.Assert.assertEquals;
+
+public class LocalsAnalyzerTest {
+    @Test
+    public void testProgramWithoutVariables() {
+        int[] localsCount = LocalsAnalyzer.computeLocalsCount(new int[]{PUSH, 1, HALT});
+        assertEquals(0, localsCount[0]);
+    }
+
+    @Test
+    public void testHighestSlotIsUsed() {
+        int[] localsCount = LocalsAnalyzer.computeLocalsCount(new int[]{LOAD, 3, STORE, 1, HALT});
+        assertEquals(4, localsCount[0]);
+    }
+
+    @Test
+    public void testJumpsAreFollowed() {
+        int[] localsCount = LocalsAnalyzer.computeLocalsCount(new int[]{
+                JIF, 5,
+                JMP, 7,
+                HALT,
+                // Here is address 5
+                LOAD, 2,
+                // Here is address 7
+                STORE, 4,
+                HALT
+        });
+        assertEquals(5, localsCount[0]);
+    }
+
+    @Test
+    public void testEveryCallTargetIsAnalyzedSeparately() {
+        int[] localsCount = LocalsAnalyzer.computeLocalsCount(new int[]{
+                STORE, 0,
+                CALL, 7,
+                CALL, 10,
+                HALT,
+                // Here is address 7
+                LOAD, 5,
+                RET,
+                // Here is address 10
+                RET
+        });
+        assertEquals(1, localsCount[0]);
+        assertEquals(6, localsCount[7]);
+        assertEquals(0, localsCount[10]);
+    }
+
+    @Test
+    public void testInvalidCodeIsSkipped() {
+        int[] localsCount = LocalsAnalyzer.computeLocalsCount(new int[]{STORE, -1, JMP, 100, LOAD});
+        assertEquals(0, localsCount[0]);
+    }
+}
@@ -0,0 +1,257 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VISGT;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class MemoryTest {
+    /**
+     * Writes the numbers from 1 to 10 in the words 0 to 9, copies them to the words 10 to 19, fills the words
+     * 20 to 24 with 7, then sums the words 10 to 19 in variable 1 and pushes the sum and the word 22.
+     */
+    static final int[] ARRAY_PROGRAM = {
+            PUSH, 10, STORE, 0,
+            // Here is address 4
+            LOAD, 0, NOT, JIF, 26,
+            LOAD, 0, PUSH, 1, SUB, LOAD, 0, MSTORE,
+            LOAD, 0, PUSH, 1, SUB, STORE, 0,
+            JMP, 4,
+            // Here is address 26
+            PUSH, 0, PUSH, 10, PUSH, 10, MCOPY,
+            PUSH, 20, PUSH, 7, PUSH, 5, MFILL,
+            PUSH, 10, STORE, 0,
+            // Here is address 44
+            LOAD, 0, NOT, JIF, 69,
+            LOAD, 1, LOAD, 0, PUSH, 9, ADD, MLOAD, ADD, STORE, 1,
+            LOAD, 0, PUSH, 1, SUB, STORE, 0,
+            JMP, 44,
+            // Here is address 69
+            LOAD, 1, PUSH, 22, MLOAD,
+            HALT
+    };
+
+    /**
+     * The memory after {@link #ARRAY_PROGRAM}, starting from a memory of 32 zero words.
+     */
+    static final int[] ARRAY_PROGRAM_MEMORY = {
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+            1, 2, 3, 4, 5, 6, 7, 8, 9, 10,
+            7, 7, 7, 7, 7,
+            0, 0, 0, 0, 0, 0, 0
+    };
+
+    /**
+     * Fills the words 0 to 15 with 1, then three times adds the words 0 to 7 to the words 8 to 15 and sums those
+     * in variable 1. Then multiplies the words 8 to 15 by themselves into 16 to 23, compares the two ranges into
+     * 24 to 31, and pushes the variable and the sum of the whole memory.
+     */
+    static final int[] VECTOR_PROGRAM = {
+            PUSH, 0, PUSH, 1, PUSH, 16, MFILL,
+            PUSH, 3, STORE, 0,
+            // Here is address 11
+            LOAD, 0, NOT, JIF, 44,
+            PUSH, 8, PUSH, 0, PUSH, 8, PUSH, 8, VADD,
+            LOAD, 1, PUSH, 8, PUSH, 8, VSUM, ADD, STORE, 1,
+            LOAD, 0, PUSH, 1, SUB, STORE, 0,
+            JMP, 11,
+            // Here is address 44
+            PUSH, 8, PUSH, 8, PUSH, 16, PUSH, 8, VMUL,
+            PUSH, 16, PUSH, 8, PUSH, 24, PUSH, 8, VISGT,
+            LOAD, 1, PUSH, 0, PUSH, 32, VSUM,
+            HALT
+    };
+
+    /**
+     * The memory after {@link #VECTOR_PROGRAM}, starting from a memory of 32 zero words.
+     */
+    static final int[] VECTOR_PROGRAM_MEMORY = {
+            1, 1, 1, 1, 1, 1, 1, 1,
+            4, 4, 4, 4, 4, 4, 4, 4,
+            16, 16, 16, 16, 16, 16, 16, 16,
+            1, 1, 1, 1, 1, 1, 1, 1
+    };
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAllocatedMemoryStartsWithZeroes() {
+        Memory memory = Memory.allocate(4);
+        assertEquals(4, memory.getSize());
+        assertArrayEquals(new int[]{0, 0, 0, 0}, toArray(memory));
+        memory.set(3, -5);
+        assertEquals(-5, memory.get(3));
+    }
+
+    @Test
+    public void testAccessesOutsideOfTheMemoryFail() {
+        Memory memory = Memory.allocate(4);
+        assertInvalidAccess(() -> memory.get(4));
+        assertInvalidAccess(() -> memory.set(-1, 0));
+        assertInvalidAccess(() -> memory.copy(0, 2, 3));
+        assertInvalidAccess(() -> memory.fill(1, 0, -1));
+        assertInvalidAccess(() -> Memory.EMPTY.get(0));
+        // Empty ranges are fine, even at the end of the memory
+        memory.copy(4, 0, 0);
+        memory.fill(4, 1, 0);
+    }
+
+    @Test
+    public void testCopy() {
+        Memory memory = memoryWith(1, 2, 3, 4, 5, 6);
+        memory.copy(0, 4, 2);
+        assertArrayEquals(new int[]{1, 2, 3, 4, 1, 2}, toArray(memory));
+    }
+
+    @Test
+    public void testCopyWithOverlappingRanges() {
+        Memory memory = memoryWith(1, 2, 3, 4, 5, 6);
+        memory.copy(0, 2, 4);
+        assertArrayEquals(new int[]{1, 2, 1, 2, 3, 4}, toArray(memory));
+        memory.copy(1, 0, 5);
+        assertArrayEquals(new int[]{2, 1, 2, 3, 4, 4}, toArray(memory));
+    }
+
+    @Test
+    public void testFill() {
+        Memory memory = Memory.allocate(5);
+        memory.fill(1, 9, 3);
+        assertArrayEquals(new int[]{0, 9, 9, 9, 0}, toArray(memory));
+    }
+
+    @Test
+    public void testVectorOperations() {
+        Memory memory = memoryWith(1, -2, 3, 4, 5, 6, 0, 0, 0);
+        memory.add(0, 3, 6, 3);
+        assertArrayEquals(new int[]{1, -2, 3, 4, 5, 6, 5, 3, 9}, toArray(memory));
+        memory.multiply(0, 3, 6, 3);
+        assertArrayEquals(new int[]{1, -2, 3, 4, 5, 6, 4, -10, 18}, toArray(memory));
+        memory.greaterThan(0, 3, 6, 3);
+        assertArrayEquals(new int[]{1, -2, 3, 4, 5, 6, 0, 0, 0}, toArray(memory));
+        memory.greaterThan(6, 0, 0, 3);
+        assertArrayEquals(new int[]{0, 1, 0, 4, 5, 6, 0, 0, 0}, toArray(memory));
+        assertEquals(16, memory.sum(0, 9));
+        assertEquals(0, memory.sum(9, 0));
+    }
+
+    @Test
+    public void testVectorOperationsOnManyChunks() {
+        int count = 2500;
+        Memory memory = Memory.allocate(count * 2);
+        for (int i = 0; i < count; i++) {
+            memory.set(i, i);
+            memory.set(count + i, 3);
+        }
+        // In place, with the same range as both sources
+        memory.multiply(count, count, count, count);
+        memory.add(0, count, 0, count);
+        int expectedSum = 0;
+        for (int i = 0; i < count; i++) {
+            assertEquals(i + 9, memory.get(i));
+            expectedSum += i + 9 + 9;
+        }
+        assertEquals(expectedSum, memory.sum(0, count * 2));
+    }
+
+    @Test
+    public void testSumWrapsAround() {
+        assertEquals(Integer.MIN_VALUE + 1, memoryWith(Integer.MAX_VALUE, 2).sum(0, 2));
+    }
+
+    @Test
+    public void testVectorOperationsWithInvalidRanges() {
+        Memory memory = Memory.allocate(8);
+        assertInvalidAccess(() -> memory.add(0, 4, 6, 4));
+        assertInvalidAccess(() -> memory.sum(6, 4));
+        assertInvalidAccess(() -> memory.multiply(0, 4, -1, 1));
+        // The destination partially overlaps a source
+        assertInvalidAccess(() -> memory.add(0, 4, 1, 3));
+        assertInvalidAccess(() -> memory.greaterThan(0, 4, 2, 3));
+        // The sources can overlap each other
+        memory.add(0, 1, 5, 3);
+    }
+
+    @Test
+    public void testMappedFile() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, ByteBuffer.allocate(12).putInt(1).putInt(2).putInt(3).array());
+        Memory memory = Memory.map(file);
+        assertArrayEquals(new int[]{1, 2, 3}, toArray(memory));
+
+        memory.set(1, 0x01020304);
+        memory.flush();
+        ByteBuffer content = ByteBuffer.wrap(Files.readAllBytes(file));
+        assertEquals(1, content.getInt());
+        assertEquals(0x01020304, content.getInt());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMappedFileMustContainWholeWords() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[]{1, 2, 3, 4, 5});
+        Memory.map(file);
+    }
+
+    @Test
+    public void testProgramProcessingAMappedFile() throws IOException {
+        Path file = folder.newFile().toPath();
+        Files.write(file, new byte[ARRAY_PROGRAM_MEMORY.length * 4]);
+        Memory memory = Memory.map(file);
+        CPU cpu = new CPU(Verifier.verify(ARRAY_PROGRAM));
+        cpu.setMemory(memory);
+        cpu.run();
+        memory.flush();
+        assertArrayEquals(ARRAY_PROGRAM_MEMORY, toArray(Memory.map(file)));
+    }
+
+    static Memory memoryWith(int... words) {
+        Memory memory = Memory.allocate(words.length);
+        for (int i = 0; i < words.length; i++) {
+            memory.set(i, words[i]);
+        }
+        return memory;
+    }
+
+    static int[] toArray(Memory memory) {
+        int[] words = new int[memory.getSize()];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = memory.get(i);
+        }
+        return words;
+    }
+
+    private static void assertInvalidAccess(Runnable access) {
+        try {
+            access.run();
+            fail("The access should have failed");
+        } catch (InvalidProgramException e) {
+            // Expected
+        }
+    }
+}
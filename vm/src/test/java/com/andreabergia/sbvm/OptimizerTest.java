@@ -0,0 +1,485 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class OptimizerTest {
+    @Test
+    public void testConstantFolding() {
+        OptimizationReport report = assertOptimizesTo(
+                new int[]{PUSH, 2, PUSH, 3, ADD, PUSH, 4, MUL, PUSH, 1, NOT, ADD, HALT},
+                new int[]{PUSH, 20, HALT});
+        assertEquals(4, report.getPassResults().get("constant folding").getRewrites());
+        assertEquals(7, report.getPassResults().get("constant folding").getRemovedInstructions());
+        assertEquals(9, report.getOriginalInstructions());
+        assertEquals(2, report.getOptimizedInstructions());
+    }
+
+    @Test
+    public void testDivisionByZeroIsNotFolded() {
+        int[] program = {PUSH, 1, PUSH, 0, DIV, HALT};
+        assertArrayEquals(program, Optimizer.optimize(program).getInstructions());
+    }
+
+    @Test
+    public void testConstantJumps() {
+        assertOptimizesTo(
+                new int[]{
+                        PUSH, 0,
+                        JIF, 7,
+                        PUSH, 1,
+                        HALT,
+                        // Here is address 7
+                        PUSH, 2,
+                        HALT},
+                // The code that cannot be reached anymore is removed
+                new int[]{PUSH, 1, HALT});
+        assertOptimizesTo(
+                new int[]{
+                        PUSH, 1,
+                        JIF, 7,
+                        PUSH, 1,
+                        HALT,
+                        // Here is address 7
+                        PUSH, 2,
+                        HALT},
+                new int[]{PUSH, 2, HALT});
+    }
+
+    @Test
+    public void testJumpToNextInstruction() {
+        assertOptimizesTo(
+                new int[]{JMP, 2, PUSH, 1, JIF, 6, HALT},
+                new int[]{HALT});
+    }
+
+    @Test
+    public void testUselessSequences() {
+        assertOptimizesTo(
+                new int[]{
+                        PUSH, 1,
+                        DUP, POP,
+                        LOAD, 3, POP,
+                        STORE, 0,
+                        LOAD, 0,
+                        PUSH, 5, POP,
+                        HALT},
+                new int[]{PUSH, 1, DUP, STORE, 0, HALT});
+    }
+
+    @Test
+    public void testDoubleNegation() {
+        assertOptimizesTo(
+                new int[]{LOAD, 0, NOT, NOT, JIF, 7, HALT, LOAD, 1, LOAD, 2, ISGT, NOT, NOT, HALT},
+                new int[]{LOAD, 0, JIF, 5, HALT, LOAD, 1, LOAD, 2, ISGT, HALT});
+        // Without a JIF, NOT NOT changes any non zero value to 1, so it has to stay
+        assertOptimizesTo(
+                new int[]{LOAD, 0, NOT, NOT, HALT},
+                new int[]{LOAD, 0, NOT, NOT, HALT});
+    }
+
+    @Test
+    public void testJumpTargetsAreRelocated() {
+        int[] program = {
+                PUSH, 5, PUSH, 5, ADD,
+                STORE, 0,
+                // Here is address 7, the loop header
+                LOAD, 0,
+                JIF, 14,
+                PUSH, 7,
+                HALT,
+                // Here is address 14
+                LOAD, 0,
+                CALL, 22,
+                STORE, 0,
+                JMP, 7,
+                // Here is address 22, a function that decrements its argument
+                PUSH, 2, PUSH, 1, SUB,
+                SUB,
+                RET
+        };
+        assertOptimizesTo(program, new int[]{
+                PUSH, 10,
+                STORE, 0,
+                LOAD, 0,
+                JIF, 11,
+                PUSH, 7,
+                HALT,
+                LOAD, 0,
+                CALL, 19,
+                STORE, 0,
+                JMP, 4,
+                PUSH, 1,
+                SUB,
+                RET
+        });
+    }
+
+    @Test
+    public void testPatternsAreNotFoldedAcrossJumpTargets() {
+        int[] program = {
+                LOAD, 0,
+                JIF, 8,
+                PUSH, 3,
+                JMP, 10,
+                // Here is address 8
+                PUSH, 1,
+                // Here is address 10, where the two paths merge: the PUSH 1 before it is not always executed
+                PUSH, 2,
+                ADD,
+                HALT
+        };
+        assertOptimizesTo(program, program.clone());
+    }
+
+    @Test
+    public void testSuperinstructionFusion() {
+        // A countdown loop, whose header is at address 4
+        int[] program = {
+                PUSH, 10,
+                STORE, 0,
+                LOAD, 0,
+                PUSH, 0,
+                ISGT,
+                NOT,
+                JIF, 28,
+                LOAD, 1,
+                LOAD, 0,
+                ADD,
+                STORE, 1,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4,
+                // Here is address 28
+                LOAD, 0, LOAD, 1, ISGE, JIF, 36,
+                HALT,
+                // Here is address 36
+                PUSH, 1,
+                HALT
+        };
+        OptimizationReport report = Optimizer.fuse(program);
+        assertArrayEquals(new int[]{
+                PUSH, 10,
+                STORE, 0,
+                LOAD, 0,
+                PUSH, 0,
+                ISGT,
+                JZ, 22,
+                LLOP, 1, 0, ADD,
+                STORE, 1,
+                INC, 0, -1,
+                JMP, 4,
+                // Here is address 22
+                LLOP, 0, 1, ISGE, JIF, 29,
+                HALT,
+                // Here is address 29
+                PUSH, 1,
+                HALT
+        }, report.getInstructions());
+        assertEquals(4, report.getPassResults().get("superinstructions").getRewrites());
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testFusedProgramsRunOnAllEngines() {
+        int[] program = Optimizer.fuse(
+                PUSH, 7, STORE, 0,
+                // Here is address 4
+                LOAD, 0, PUSH, 3, SUB, STORE, 0,
+                LOAD, 0, PUSH, 0, ISGT, JIF, 4,
+                LOAD, 0, LOAD, 0, MUL,
+                HALT).getInstructions();
+        CPU checked = new CPU(program);
+        checked.run();
+        CPU verified = new CPU(Verifier.verify(program));
+        verified.run();
+        PredecodedCPU predecoded = new PredecodedCPU(program);
+        predecoded.run();
+        CPU compiled = new CPU(Verifier.verify(program), new JitSettings(0, 0));
+        compiled.run();
+        for (VirtualMachine machine : new VirtualMachine[]{checked, verified, predecoded, compiled}) {
+            assertArrayEquals(new Integer[]{4}, machine.getStack().toArray());
+            assertEquals(-2, machine.getCurrentFrame().getVariable(0));
+        }
+        assertEquals(1, compiled.getJit().getCompiledUnitsCount());
+    }
+
+    @Test
+    public void testInlining() {
+        int[] program = {
+                PUSH, 7, STORE, 0,
+                PUSH, 3, CALL, 14,
+                PUSH, 4, CALL, 14,
+                ADD,
+                HALT,
+                // Here is address 14, square(n)
+                STORE, 0, LOAD, 0, LOAD, 0, MUL, RET};
+        OptimizationReport report = Optimizer.inline(program, 5);
+        // The function's variable becomes the caller's variable 1, and the function itself is left
+        assertArrayEquals(new int[]{
+                PUSH, 7, STORE, 0,
+                PUSH, 3, STORE, 1, LOAD, 1, LOAD, 1, MUL,
+                PUSH, 4, STORE, 1, LOAD, 1, LOAD, 1, MUL,
+                ADD,
+                HALT,
+                STORE, 0, LOAD, 0, LOAD, 0, MUL, RET
+        }, report.getInstructions());
+        assertSameFinalState(program, report.getInstructions());
+        assertEquals(2, report.getPassResults().get("inlining").getRewrites());
+        assertEquals(2, report.getInlinedCalls().size());
+        assertEquals(10, report.getInlinedCalls().get(0).getCallAddress());
+        assertEquals(6, report.getInlinedCalls().get(1).getCallAddress());
+        assertEquals(14, report.getInlinedCalls().get(1).getFunctionAddress());
+        assertEquals(5, report.getInlinedCalls().get(1).getInstructions());
+
+        assertEquals(0, Optimizer.inline(program, 4).getInlinedCalls().size());
+    }
+
+    @Test
+    public void testInliningFunctionsWithJumps() {
+        int[] program = {
+                PUSH, 6, PUSH, 4, CALL, 7, HALT,
+                // Here is address 7, max(a, b)
+                STORE, 1, STORE, 0, LOAD, 0, LOAD, 1, ISGE, JIF, 21, LOAD, 1, RET,
+                // Here is address 21
+                LOAD, 0, RET};
+        OptimizationReport report = Optimizer.inline(program, Optimizer.DEFAULT_INLINING_THRESHOLD);
+        assertEquals(1, report.getInlinedCalls().size());
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testInliningNestedFunctions() {
+        int[] program = {
+                PUSH, 5, CALL, 5, HALT,
+                // Here is address 5, f(n) = g(n + 1)
+                PUSH, 1, ADD, CALL, 11, RET,
+                // Here is address 11, g(n) = n * 2
+                PUSH, 2, MUL, RET};
+        OptimizationReport report = Optimizer.inline(program, Optimizer.DEFAULT_INLINING_THRESHOLD);
+        // The functions are inlined from the innermost one
+        assertEquals("[CALL at 8 of the function at 11, 3 instructions, CALL at 2 of the function at 5, 5 instructions]",
+                report.getInlinedCalls().toString());
+        assertEquals(PUSH, report.getInstructions()[2]);
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testInlinedVariablesStartFromZero() {
+        // The function counts on its variable being zero, and the two inlined copies share the same variable
+        int[] program = {
+                CALL, 6, CALL, 6, ADD, HALT,
+                // Here is address 6
+                LOAD, 0, PUSH, 1, ADD, DUP, STORE, 0, RET};
+        OptimizationReport report = Optimizer.inline(program, Optimizer.DEFAULT_INLINING_THRESHOLD);
+        assertEquals(2, report.getInlinedCalls().size());
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testRecursiveFunctionsAreNotInlined() {
+        int[] program = {
+                PUSH, 10, CALL, 5, HALT,
+                // Here is address 5
+                STORE, 0, LOAD, 0, PUSH, 2, ISGE, JIF, 17, LOAD, 0, RET,
+                // Here is address 17
+                LOAD, 0, PUSH, 1, SUB, CALL, 5, LOAD, 0, PUSH, 2, SUB, CALL, 5, ADD, RET};
+        OptimizationReport report = Optimizer.inline(program, 100);
+        assertEquals(0, report.getInlinedCalls().size());
+        assertArrayEquals(program, report.getInstructions());
+    }
+
+    @Test
+    public void testJumpThreading() {
+        assertOptimizesTo(
+                new int[]{
+                        LOAD, 0,
+                        JIF, 8,
+                        PUSH, 10,
+                        JMP, 12,
+                        // Here is address 8
+                        JMP, 10,
+                        JMP, 13,
+                        // Here is address 12
+                        HALT,
+                        PUSH, 20,
+                        HALT},
+                // The JIF skips the chain of JMPs, the JMP to the HALT becomes a HALT, and the JMPs are removed
+                new int[]{LOAD, 0, JIF, 7, PUSH, 10, HALT, PUSH, 20, HALT});
+    }
+
+    @Test
+    public void testConditionalJumpsOverAJmpAreInverted() {
+        assertOptimizesTo(
+                new int[]{LOAD, 0, JIF, 6, JMP, 9, PUSH, 1, HALT, PUSH, 2, HALT},
+                new int[]{LOAD, 0, NOT, JIF, 8, PUSH, 1, HALT, PUSH, 2, HALT});
+        assertOptimizesTo(
+                new int[]{LOAD, 0, NOT, JIF, 7, JMP, 10, PUSH, 1, HALT, PUSH, 2, HALT},
+                new int[]{LOAD, 0, JIF, 7, PUSH, 1, HALT, PUSH, 2, HALT});
+    }
+
+    @Test
+    public void testUnreachableFunctionsAreRemoved() {
+        OptimizationReport report = assertOptimizesTo(
+                new int[]{
+                        PUSH, 3, CALL, 9, HALT,
+                        // Here is address 5, a function that is never called
+                        PUSH, 2, MUL, RET,
+                        // Here is address 9
+                        PUSH, 3, ADD, RET},
+                new int[]{PUSH, 3, CALL, 5, HALT, PUSH, 3, ADD, RET});
+        assertEquals(1, report.getPassResults().get("unreachable code").getRewrites());
+    }
+
+    @Test
+    public void testInlinedFunctionsAreRemoved() {
+        int[] program = {
+                PUSH, 3, CALL, 7, PUSH, 4, HALT,
+                // Here is address 7, double(n)
+                PUSH, 2, MUL, RET};
+        int[] inlined = Optimizer.inline(program, Optimizer.DEFAULT_INLINING_THRESHOLD).getInstructions();
+        OptimizationReport report = Optimizer.optimize(inlined);
+        // Once it has been inlined, the function is not called anymore
+        assertEquals(1, report.getPassResults().get("unreachable code").getRewrites());
+        assertArrayEquals(new int[]{PUSH, 6, PUSH, 4, HALT}, report.getInstructions());
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testBlockLayoutMovesTheLoopExitAfterTheLoop() {
+        int[] program = {
+                PUSH, 10, STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0, JIF, 11,
+                LOAD, 1, HALT,
+                // Here is address 11
+                LOAD, 1, LOAD, 0, ADD, STORE, 1,
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4};
+        OptimizationReport report = Optimizer.layout(program);
+        assertArrayEquals(new int[]{
+                PUSH, 10, STORE, 0,
+                LOAD, 0, NOT, JIF, 25,
+                LOAD, 1, LOAD, 0, ADD, STORE, 1,
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4,
+                // Here is address 25
+                LOAD, 1, HALT
+        }, report.getInstructions());
+        assertEquals(2, report.getPassResults().get("block layout").getRewrites());
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testBlockLayoutRelocatesTheCalls() {
+        int[] program = {
+                PUSH, 10, STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0, JIF, 11,
+                LOAD, 1, HALT,
+                // Here is address 11
+                LOAD, 1, LOAD, 0, CALL, 28, STORE, 1,
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4,
+                // Here is address 28
+                ADD, RET};
+        OptimizationReport report = Optimizer.layout(program);
+        assertEquals(CALL, report.getInstructions()[13]);
+        assertEquals(29, report.getInstructions()[14]);
+        assertSameFinalState(program, report.getInstructions());
+    }
+
+    @Test
+    public void testBlockLayoutFollowsTheProfile() {
+        // Counts the multiples of 10 up to 100, in a block that is skipped by most iterations
+        int[] program = {
+                PUSH, 100, STORE, 0,
+                // Here is address 4, the loop header
+                LOAD, 0, JIF, 11,
+                LOAD, 1, HALT,
+                // Here is address 11
+                LOAD, 0, PUSH, 10, DIV, PUSH, 10, MUL, LOAD, 0, ISEQ, NOT, JIF, 32,
+                LOAD, 1, PUSH, 1, ADD, STORE, 1,
+                // Here is address 32
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4};
+        ExecutionProfile profile = new CPU(program).runProfiled();
+        OptimizationReport report = Optimizer.layout(Verifier.verify(program), profile);
+        assertArrayEquals(new int[]{
+                PUSH, 100, STORE, 0,
+                LOAD, 0, NOT, JIF, 31,
+                LOAD, 0, PUSH, 10, DIV, PUSH, 10, MUL, LOAD, 0, ISEQ, JIF, 34,
+                // Here is address 22
+                LOAD, 0, PUSH, 1, SUB, STORE, 0,
+                JMP, 4,
+                // Here is address 31
+                LOAD, 1, HALT,
+                // Here is address 34, the rare block
+                LOAD, 1, PUSH, 1, ADD, STORE, 1,
+                JMP, 22
+        }, report.getInstructions());
+        assertSameFinalState(program, report.getInstructions());
+
+        // Without the profile, nothing says which side of the second JIF is more likely
+        assertEquals(ISEQ, Optimizer.layout(program).getInstructions()[19]);
+        assertEquals(NOT, Optimizer.layout(program).getInstructions()[20]);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProfileOfAnotherProgramIsRejected() {
+        ExecutionProfile profile = new CPU(PUSH, 1, HALT).runProfiled();
+        Optimizer.layout(Verifier.verify(PUSH, 2, HALT), profile);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInvalidProgramsAreRejected() {
+        Optimizer.optimize(POP, HALT);
+    }
+
+    /**
+     * Checks the optimized program, and that it leaves the same stack and variables as the original.
+     */
+    private static OptimizationReport assertOptimizesTo(int[] program, int[] expected) {
+        OptimizationReport report = Optimizer.optimize(program);
+        assertArrayEquals(expected, report.getInstructions());
+        assertSameFinalState(program, report.getInstructions());
+        return report;
+    }
+
+    private static void assertSameFinalState(int[] program, int[] optimizedProgram) {
+        CPU original = new CPU(program);
+        original.run();
+        CPU optimized = new CPU(optimizedProgram);
+        optimized.run();
+        assertArrayEquals(original.getStack().toArray(), optimized.getStack().toArray());
+        // The frame can be smaller, if some variables are not used anymore
+        for (int varNumber : original.getCurrentFrame().getVariables().keySet()) {
+            assertEquals(original.getCurrentFrame().getVariable(varNumber), optimized.getCurrentFrame().getVariable(varNumber));
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MFILL;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MSTORE;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VADD;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static com.andreabergia.sbvm.Instructions.VSUM;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@link PredecodedCPU} behaves exactly like {@link CPU}, step by step.
+ */
+public class PredecodedCPUTest {
+    private static final int MAX_STEPS = 10000;
+
+    private static void assertSameBehavior(int... program) {
+        assertSameBehaviorWithMemory(0, program);
+    }
+
+    /**
+     * Like {@link #assertSameBehavior(int...)}, giving each engine its own memory of the given size.
+     */
+    private static void assertSameBehaviorWithMemory(int memorySize, int... program) {
+        CPU expected = new CPU(program);
+        expected.setMemory(Memory.allocate(memorySize));
+        PredecodedCPU actual = new PredecodedCPU(program);
+        actual.setMemory(Memory.allocate(memorySize));
+        for (int steps = 0; !expected.isHalted() && steps < MAX_STEPS; steps++) {
+            String expectedError = stepAndGetError(expected);
+            String actualError = stepAndGetError(actual);
+            assertEquals("Both engines should report the same error", expectedError, actualError);
+            if (expectedError != null) {
+                return;
+            }
+            assertSameState(expected, actual);
+        }
+        assertEquals(expected.isHalted(), actual.isHalted());
+
+        // Now run the whole program in one go
+        actual = new PredecodedCPU(program);
+        actual.setMemory(Memory.allocate(memorySize));
+        actual.run();
+        assertSameState(expected, actual);
+        assertArrayEquals("Memory", MemoryTest.toArray(expected.getMemory()), MemoryTest.toArray(actual.getMemory()));
+    }
+
+    private static String stepAndGetError(VirtualMachine machine) {
+        try {
+            machine.step();
+            return null;
+        } catch (InvalidProgramException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static void assertSameState(VirtualMachine expected, VirtualMachine actual) {
+        assertEquals("Instruction address", expected.getInstructionAddress(), actual.getInstructionAddress());
+        assertArrayEquals("Stack", Ints.toArray(expected.getStack()), Ints.toArray(actual.getStack()));
+        assertEquals("Halted", expected.isHalted(), actual.isHalted());
+        assertEquals("Variables", expected.getCurrentFrame().getVariables(), actual.getCurrentFrame().getVariables());
+    }
+
+    @Test
+    public void testArithmetic() {
+        assertSameBehavior(PUSH, 42, PUSH, 6, SUB, PUSH, 3, DIV, DUP, ADD, NOT, HALT);
+    }
+
+    @Test
+    public void testLoop() {
+        assertSameBehavior(
+                PUSH, 6, STORE, 0, PUSH, 4, STORE, 1, PUSH, 0, STORE, 2,
+                LOAD, 1, PUSH, 1, ISGE, NOT, JIF, 36,
+                LOAD, 0, LOAD, 2, ADD, STORE, 2,
+                LOAD, 1, PUSH, 1, SUB, STORE, 1,
+                JMP, 12,
+                HALT);
+    }
+
+    @Test
+    public void testFunctionCall() {
+        assertSameBehavior(
+                PUSH, 6, PUSH, 4, CALL, 7, HALT,
+                STORE, 1, STORE, 0, LOAD, 0, LOAD, 1, ISGE, JIF, 21, LOAD, 1, RET,
+                LOAD, 0, RET);
+    }
+
+    @Test
+    public void testJumpInTheMiddleOfAnInstruction() {
+        // Jumping to address 1 executes the PUSH operand as a HALT
+        assertSameBehavior(PUSH, HALT, JMP, 1);
+    }
+
+    @Test
+    public void testStreamFromAJumpTargetMergesBack() {
+        // From address 5 the operand of the second PUSH is decoded as a POP, then the program continues at 6
+        assertSameBehavior(PUSH, 1, JMP, 5, PUSH, POP, PUSH, 7, HALT);
+        assertEquals(8, DecodedProgram.decode(PUSH, 1, JMP, 5, PUSH, POP, PUSH, 7, HALT).size());
+    }
+
+    @Test
+    public void testErrors() {
+        assertSameBehavior(0x7F);
+        assertSameBehavior(PUSH);
+        assertSameBehavior(POP, HALT);
+        assertSameBehavior(ADD, HALT);
+        assertSameBehavior(JMP, 100);
+        assertSameBehavior(PUSH, 1, JIF, -1);
+        assertSameBehavior(JIF, 0, HALT);
+        assertSameBehavior(STORE, -3, HALT);
+        assertSameBehavior(RET);
+        assertSameBehavior(PUSH, 1);
+        assertSameBehavior(CALL, 2, RET);
+    }
+
+    @Test
+    public void testSuperinstructions() {
+        assertSameBehavior(
+                PUSH, 5, STORE, 0,
+                // Here is address 4
+                INC, 0, -1,
+                LLOP, 0, 1, ADD, STORE, 1,
+                LOAD, 0, JZ, 19,
+                JMP, 4,
+                // Here is address 19
+                LOAD, 1, PUSH, 10, JGE, 28,
+                PUSH, 1, HALT,
+                // Here is address 28
+                PUSH, 3, PUSH, 3, JEQ, 37,
+                HALT,
+                // Here is address 37
+                PUSH, 3, PUSH, 3, JGT, 37,
+                HALT);
+    }
+
+    @Test
+    public void testSuperinstructionErrors() {
+        assertSameBehavior(JEQ, 100);
+        assertSameBehavior(PUSH, 1, JGT, 0);
+        assertSameBehavior(JZ, 0);
+        assertSameBehavior(INC, -1, 3);
+        assertSameBehavior(INC, 1);
+        assertSameBehavior(LLOP, 0, 70000, ADD);
+        assertSameBehavior(LLOP, 0, 1, HALT);
+        assertSameBehavior(LLOP, 0);
+    }
+
+    @Test
+    public void testTailCalls() {
+        assertSameBehavior(
+                PUSH, 0,
+                PUSH, 20,
+                CALL, 7,
+                HALT,
+                // Here is address 7, sum(n, total)
+                STORE, 0,
+                STORE, 1,
+                LOAD, 0,
+                JIF, 18,
+                LOAD, 1,
+                RET,
+                // Here is address 18
+                LOAD, 1,
+                LOAD, 0,
+                ADD,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                CALL, 7,
+                RET);
+    }
+
+    @Test
+    public void testMemory() {
+        assertSameBehaviorWithMemory(MemoryTest.ARRAY_PROGRAM_MEMORY.length, MemoryTest.ARRAY_PROGRAM);
+    }
+
+    @Test
+    public void testMemoryErrors() {
+        assertSameBehavior(PUSH, 0, MLOAD, HALT);
+        assertSameBehavior(MLOAD, HALT);
+        assertSameBehavior(PUSH, 1, MSTORE, HALT);
+        assertSameBehavior(PUSH, 1, PUSH, 1, MFILL, HALT);
+        assertSameBehaviorWithMemory(4, PUSH, 2, PUSH, 0, PUSH, 3, MFILL, HALT);
+        assertSameBehaviorWithMemory(4, PUSH, 0, PUSH, 0, PUSH, 1, VADD, HALT);
+        assertSameBehaviorWithMemory(4, PUSH, 0, PUSH, 2, PUSH, 1, PUSH, 2, VMUL, HALT);
+        assertSameBehaviorWithMemory(4, PUSH, 3, VSUM, HALT);
+    }
+
+    @Test
+    public void testVectorInstructions() {
+        assertSameBehaviorWithMemory(MemoryTest.VECTOR_PROGRAM_MEMORY.length, MemoryTest.VECTOR_PROGRAM);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testHaltedCannotStep() {
+        PredecodedCPU cpu = new PredecodedCPU(HALT);
+        cpu.step();
+        cpu.step();
+    }
+}
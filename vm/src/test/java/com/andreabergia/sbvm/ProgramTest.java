@@ -0,0 +1,125 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProgramTest {
+    private static final int[] CODE = {
+            PUSH, 3,
+            STORE, 1,
+            LOAD, 1,
+            CALL, 9,
+            HALT,
+            // Here is address 9, a function that adds 10 to its argument
+            STORE, 4,
+            LOAD, 4,
+            PUSH, 10,
+            ADD,
+            RET
+    };
+
+    @Test
+    public void testMetadata() {
+        Program program = Program.of(CODE);
+        assertFalse(program.isVerified());
+        assertEquals(CODE.length, program.size());
+        assertArrayEquals(new int[]{0, 9}, program.getFunctionEntryPoints());
+        assertEquals(2, program.getLocalsCount(0));
+        assertEquals(5, program.getLocalsCount(9));
+        assertEquals(5, program.getMaxLocals());
+
+        Program verified = Program.verify(CODE);
+        assertTrue(verified.isVerified());
+        assertTrue(verified.getVerifiedProgram().getFunctions().containsKey(9));
+    }
+
+    @Test
+    public void testCodeIsCopied() {
+        int[] code = CODE.clone();
+        Program program = Program.of(code);
+        code[1] = 42;
+        program.toArray()[1] = 42;
+        CPU cpu = new CPU(program);
+        cpu.run();
+        assertStackContains(cpu, 13);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInvalidProgramsCannotBeVerified() {
+        Program.verify(POP, HALT);
+    }
+
+    @Test
+    public void testVerifiedProgramIsConvertedOnce() {
+        VerifiedProgram verifiedProgram = Verifier.verify(CODE);
+        assertSame(verifiedProgram.asProgram(), verifiedProgram.asProgram());
+        assertSame(verifiedProgram.asProgram(), new CPU(verifiedProgram).getProgram());
+    }
+
+    @Test
+    public void testProgramIsSharedByConcurrentCPUs() throws Exception {
+        Program program = Program.verify(CODE);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<Integer>> results = new ArrayList<>();
+            for (int i = 0; i < 100; i++) {
+                results.add(executor.submit(() -> {
+                    CPU cpu = new CPU(program);
+                    cpu.run();
+                    return cpu.getStack().iterator().next();
+                }));
+            }
+            for (Future<Integer> result : results) {
+                assertEquals(13, (int) result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testPool() {
+        CPUPool pool = new CPUPool(Program.verify(CODE), 1);
+        CPU first = pool.acquire();
+        first.run();
+        CPU second = pool.acquire();
+        assertNotSame(first, second);
+        pool.release(first);
+        pool.release(second);
+        assertEquals(1, pool.getIdleCount());
+
+        CPU reused = pool.acquire();
+        assertSame(first, reused);
+        assertFalse(reused.isHalted());
+        assertTrue(reused.getStack().isEmpty());
+        reused.run();
+        assertStackContains(reused, 13);
+        assertEquals(0, pool.getIdleCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testPoolRejectsOtherPrograms() {
+        new CPUPool(Program.of(CODE), 1).release(new CPU(CODE));
+    }
+}
@@ -0,0 +1,294 @@
+package com.andreabergia.sbvm;
+
+import com.google.common.primitives.Ints;
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JEQ;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MLOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link RegisterCPU} computes the same results as {@link CPU}.
+ */
+public class RegisterCPUTest {
+    private static final int[] LOOP = {
+            PUSH, 6, STORE, 0, PUSH, 4, STORE, 1, PUSH, 0, STORE, 2,
+            // Here is address 12
+            LOAD, 1, PUSH, 1, ISGE, NOT, JIF, 36,
+            LOAD, 0, LOAD, 2, ADD, STORE, 2,
+            LOAD, 1, PUSH, 1, SUB, STORE, 1,
+            JMP, 12,
+            // Here is address 36
+            HALT};
+
+    private static final int[] TAIL_RECURSIVE_SUM = {
+            PUSH, 0,
+            PUSH, 20,
+            CALL, 7,
+            HALT,
+            // Here is address 7, sum(total, n)
+            STORE, 0,
+            STORE, 1,
+            LOAD, 0,
+            JIF, 18,
+            LOAD, 1,
+            RET,
+            // Here is address 18
+            LOAD, 1,
+            LOAD, 0,
+            ADD,
+            LOAD, 0,
+            PUSH, 1,
+            SUB,
+            CALL, 7,
+            RET};
+
+    private static RegisterCPU assertSameResult(int... program) {
+        VerifiedProgram verifiedProgram = Verifier.verify(program);
+        CPU expected = new CPU(verifiedProgram);
+        expected.run();
+        RegisterCPU actual = new RegisterCPU(RegisterProgram.translate(verifiedProgram));
+        actual.run();
+        assertTrue(actual.isHalted());
+        assertArrayEquals("Stack", Ints.toArray(expected.getStack()), Ints.toArray(actual.getStack()));
+        assertEquals("Variables", expected.getCurrentFrame().getVariables(), actual.getCurrentFrame().getVariables());
+        assertEquals("Return address", expected.getCurrentFrame().getReturnAddress(),
+                actual.getCurrentFrame().getReturnAddress());
+        return actual;
+    }
+
+    @Test
+    public void testArithmetic() {
+        assertSameResult(PUSH, 42, PUSH, 6, SUB, PUSH, 3, DIV, DUP, ADD, NOT, HALT);
+        assertSameResult(PUSH, 7, PUSH, 3, MUL, PUSH, 21, ISEQ, PUSH, 0, ISGT, PUSH, 1, ISGE, POP, HALT);
+    }
+
+    @Test
+    public void testLoop() {
+        assertSameResult(LOOP);
+    }
+
+    @Test
+    public void testStoreDoesNotChangeTheValuesAlreadyLoaded() {
+        // The stack keeps the old value of the variable, even if the STORE is translated as the ADD's destination
+        assertSameResult(PUSH, 5, STORE, 0, LOAD, 0, LOAD, 0, PUSH, 1, ADD, STORE, 0, HALT);
+        assertSameResult(PUSH, 5, STORE, 0, LOAD, 0, DUP, INC, 0, 3, LOAD, 0, STORE, 1, HALT);
+        assertSameResult(PUSH, 5, STORE, 0, LOAD, 0, LOAD, 1, STORE, 0, STORE, 1, HALT);
+    }
+
+    @Test
+    public void testDupOfAResult() {
+        assertSameResult(PUSH, 2, PUSH, 3, ADD, DUP, STORE, 0, DUP, MUL, HALT);
+    }
+
+    @Test
+    public void testValuesAreStoredInTheirSlotsWhereTheCodeMerges() {
+        assertSameResult(
+                PUSH, 1, LOAD, 0, JZ, 11,
+                PUSH, 2, ADD, JMP, 14,
+                // Here is address 11
+                PUSH, 3, MUL,
+                // Here is address 14
+                HALT);
+    }
+
+    @Test
+    public void testConditionalJumpsOnComparisons() {
+        for (int comparison : new int[]{ISEQ, ISGE, ISGT}) {
+            for (int jump : new int[]{JIF, JZ}) {
+                for (int a = 1; a <= 3; a++) {
+                    assertSameResult(PUSH, a, PUSH, 2, comparison, jump, 10, PUSH, 10, HALT, PUSH, 20, HALT);
+                    assertSameResult(PUSH, a, PUSH, 2, comparison, NOT, jump, 11, PUSH, 10, HALT, PUSH, 20, HALT);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testFunctionCall() {
+        assertSameResult(
+                PUSH, 6, PUSH, 4, CALL, 7, HALT,
+                STORE, 1, STORE, 0, LOAD, 0, LOAD, 1, ISGE, JIF, 21, LOAD, 1, RET,
+                LOAD, 0, RET);
+    }
+
+    @Test
+    public void testFunctionThatLeavesValuesOnTheCallersStack() {
+        // The function takes one argument and returns three values, below an item of the caller
+        assertSameResult(
+                PUSH, 9, PUSH, 5, CALL, 7, HALT,
+                // Here is address 7
+                DUP, PUSH, 1, ADD, DUP, PUSH, 1, ADD, RET);
+    }
+
+    @Test
+    public void testHaltInAFunction() {
+        RegisterCPU cpu = assertSameResult(
+                PUSH, 1, PUSH, 2, STORE, 0, PUSH, 3, CALL, 11, HALT,
+                // Here is address 11
+                STORE, 0, PUSH, 4, LOAD, 0, HALT);
+        assertEquals(1, cpu.getCurrentFrame().getVariables().size());
+    }
+
+    @Test
+    public void testRecursion() {
+        // fib(n) = n >= 2 ? fib(n - 1) + fib(n - 2) : n, of 15
+        assertSameResult(
+                PUSH, 15, CALL, 5, HALT,
+                // Here is address 5
+                STORE, 0, LOAD, 0, PUSH, 2, ISGE, JIF, 17, LOAD, 0, RET,
+                // Here is address 17
+                LOAD, 0, PUSH, 1, SUB, CALL, 5,
+                LOAD, 0, PUSH, 2, SUB, CALL, 5,
+                ADD, RET);
+    }
+
+    @Test
+    public void testFunctionWithCodeBeforeItsEntryPoint() {
+        assertSameResult(
+                PUSH, 3, CALL, 9, HALT,
+                // Here is address 5
+                PUSH, 2, MUL, RET,
+                // Here is address 9, the entry point
+                PUSH, 1, ADD, JMP, 5);
+    }
+
+    @Test
+    public void testSuperinstructions() {
+        assertSameResult(
+                PUSH, 5, STORE, 0,
+                // Here is address 4
+                INC, 0, -1,
+                LLOP, 0, 1, ADD, STORE, 1,
+                LOAD, 0, JZ, 19,
+                JMP, 4,
+                // Here is address 19
+                LOAD, 1, PUSH, 10, JGE, 28,
+                PUSH, 1, HALT,
+                // Here is address 28
+                PUSH, 3, PUSH, 3, JEQ, 35,
+                HALT,
+                // Here is address 35
+                PUSH, 3, PUSH, 3, JGT, 35,
+                HALT);
+    }
+
+    @Test
+    public void testOptimizedPrograms() {
+        assertSameResult(Optimizer.fuse(LOOP).getInstructions());
+        assertSameResult(Optimizer.fuse(Optimizer.optimize(TAIL_RECURSIVE_SUM).getInstructions()).getInstructions());
+    }
+
+    @Test
+    public void testTailCallsReuseTheFrame() {
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(Verifier.verify(TAIL_RECURSIVE_SUM)));
+        cpu.setMaxCallDepth(1);
+        cpu.run();
+        assertArrayEquals(new int[]{210}, Ints.toArray(cpu.getStack()));
+    }
+
+    @Test
+    public void testMaxCallDepth() {
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(Verifier.verify(CALL, 3, HALT, CALL, 3, PUSH, 1, RET)));
+        cpu.setMaxCallDepth(100);
+        try {
+            cpu.run();
+            fail("The recursion should have been stopped");
+        } catch (CallDepthExceededException e) {
+            assertEquals(100, e.getMaxDepth());
+        }
+    }
+
+    @Test
+    public void testMemory() {
+        VerifiedProgram verifiedProgram = Verifier.verify(MemoryTest.ARRAY_PROGRAM);
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(verifiedProgram));
+        cpu.setMemory(Memory.allocate(MemoryTest.ARRAY_PROGRAM_MEMORY.length));
+        cpu.run();
+        assertArrayEquals(new int[]{7, 55}, Ints.toArray(cpu.getStack()));
+        assertArrayEquals(MemoryTest.ARRAY_PROGRAM_MEMORY, MemoryTest.toArray(cpu.getMemory()));
+    }
+
+    @Test
+    public void testVectorInstructions() {
+        VerifiedProgram verifiedProgram = Verifier.verify(MemoryTest.VECTOR_PROGRAM);
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(verifiedProgram));
+        cpu.setMemory(Memory.allocate(MemoryTest.VECTOR_PROGRAM_MEMORY.length));
+        cpu.run();
+        assertArrayEquals(new int[]{176, 72}, Ints.toArray(cpu.getStack()));
+        assertArrayEquals(MemoryTest.VECTOR_PROGRAM_MEMORY, MemoryTest.toArray(cpu.getMemory()));
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMemoryAccessOutsideOfTheMemory() {
+        new RegisterCPU(RegisterProgram.translate(Verifier.verify(PUSH, 0, MLOAD, HALT))).run();
+    }
+
+    @Test(expected = ArithmeticException.class)
+    public void testDivisionByZero() {
+        new RegisterCPU(RegisterProgram.translate(Verifier.verify(PUSH, 1, PUSH, 0, DIV, HALT))).run();
+    }
+
+    @Test
+    public void testFewerInstructionsThanTheStackMachine() {
+        VerifiedProgram program = Verifier.verify(LOOP);
+        CPU cpu = new CPU(program);
+        long stackInstructions = cpu.runFor(Long.MAX_VALUE);
+        RegisterCPU registerCpu = new RegisterCPU(RegisterProgram.translate(program));
+        long registerInstructions = registerCpu.runFor(Long.MAX_VALUE);
+        assertEquals(68, stackInstructions);
+        // Every iteration is a comparison, a jump, an ADD, a SUB and a JMP, instead of 14 instructions
+        assertEquals(26, registerInstructions);
+    }
+
+    @Test
+    public void testRunForCanBeResumed() {
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(Verifier.verify(LOOP)));
+        assertEquals(10, cpu.runFor(10));
+        assertFalse(cpu.isHalted());
+        assertEquals(16, cpu.runFor(100));
+        assertTrue(cpu.isHalted());
+        assertEquals(0, cpu.runFor(100));
+        assertArrayEquals(new int[0], Ints.toArray(cpu.getStack()));
+        assertEquals(24, cpu.getCurrentFrame().getVariable(2));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testStackIsUnknownWhileRunning() {
+        RegisterCPU cpu = new RegisterCPU(RegisterProgram.translate(Verifier.verify(LOOP)));
+        cpu.runFor(3);
+        cpu.getStack();
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testOnlyVerifiedProgramsCanBeTranslated() {
+        RegisterProgram.translate(Program.of(PUSH, 1, HALT));
+    }
+}
@@ -0,0 +1,142 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SchedulerTest {
+    /**
+     * Counts the variable 0 down from the given value to zero, executing 7 * n + 5 instructions.
+     */
+    private static CPU countdown(int n) {
+        return new CPU(Verifier.verify(
+                PUSH, n,
+                STORE, 0,
+                LOAD, 0,     // Address 4
+                JIF, 9,
+                HALT,
+                LOAD, 0,     // Address 9
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4));
+    }
+
+    @Test
+    public void testAllCPUsHalt() throws Exception {
+        List<CompletableFuture<CPU>> futures = new ArrayList<>();
+        try (Scheduler scheduler = new Scheduler(3, 100)) {
+            for (int i = 0; i < 1000; i++) {
+                futures.add(scheduler.submit(countdown(i)));
+            }
+            for (CompletableFuture<CPU> future : futures) {
+                CPU cpu = future.get(10, TimeUnit.SECONDS);
+                assertTrue(cpu.isHalted());
+                assertEquals(0, cpu.getCurrentFrame().getVariable(0));
+            }
+
+            Scheduler.Stats stats = scheduler.getStats();
+            assertEquals(1000, stats.getCompleted());
+            long expectedSlices = 0;
+            for (int i = 0; i < 1000; i++) {
+                expectedSlices += (7 * i + 5 + 99) / 100;
+            }
+            assertEquals(expectedSlices, stats.getSlices());
+            assertTrue(stats.getMaxLatencyNanos() >= stats.getLatencyPercentileNanos(0.99));
+            assertTrue(stats.getLatencyPercentileNanos(0.99) >= stats.getLatencyPercentileNanos(0.5));
+        }
+    }
+
+    @Test
+    public void testShortProgramsDoNotWaitForLongOnes() throws Exception {
+        try (Scheduler scheduler = new Scheduler(1, 10)) {
+            CompletableFuture<CPU> longRunning = scheduler.submit(countdown(10000000));
+            CompletableFuture<CPU> shortRunning = scheduler.submit(countdown(10));
+            shortRunning.get(10, TimeUnit.SECONDS);
+            assertFalse(longRunning.isDone());
+        }
+    }
+
+    @Test
+    public void testIdleWorkersStealWork() throws Exception {
+        List<CompletableFuture<CPU>> futures = new ArrayList<>();
+        try (Scheduler scheduler = new Scheduler(2, 1000)) {
+            // New CPUs alternate between the two queues: the second one only gets short programs
+            for (int i = 0; i < 8; i++) {
+                futures.add(scheduler.submit(countdown(200000)));
+                futures.add(scheduler.submit(countdown(1)));
+            }
+            for (CompletableFuture<CPU> future : futures) {
+                future.get(10, TimeUnit.SECONDS);
+            }
+            assertTrue(scheduler.getStats().getSteals() > 0);
+        }
+    }
+
+    @Test
+    public void testFailuresCompleteTheFuture() throws Exception {
+        try (Scheduler scheduler = new Scheduler(1, 100)) {
+            CompletableFuture<CPU> future = scheduler.submit(new CPU(PUSH, 1, RET));
+            try {
+                future.get(10, TimeUnit.SECONDS);
+                fail("The program should have failed");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof InvalidProgramException);
+            }
+            // The worker keeps going
+            CPU cpu = countdown(5);
+            assertSame(cpu, scheduler.submit(cpu).get(10, TimeUnit.SECONDS));
+        }
+    }
+
+    @Test
+    public void testCloseCancelsTheRemainingCPUs() {
+        CompletableFuture<CPU> future;
+        try (Scheduler scheduler = new Scheduler(1, 10)) {
+            future = scheduler.submit(countdown(Integer.MAX_VALUE));
+        }
+        assertTrue(future.isCancelled());
+    }
+
+    @Test
+    public void testCPUsSubmittedWhileClosingAreCancelled() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            Scheduler scheduler = new Scheduler(2, 10);
+            List<CompletableFuture<CPU>> futures = new ArrayList<>();
+            Thread submitter = new Thread(() -> {
+                try {
+                    while (true) {
+                        futures.add(scheduler.submit(countdown(Integer.MAX_VALUE)));
+                    }
+                } catch (IllegalStateException e) {
+                    // The scheduler has been closed
+                }
+            });
+            submitter.start();
+            Thread.sleep(1);
+            scheduler.close();
+            submitter.join();
+            for (CompletableFuture<CPU> future : futures) {
+                assertTrue("Every future should complete", future.isDone());
+            }
+        }
+    }
+}
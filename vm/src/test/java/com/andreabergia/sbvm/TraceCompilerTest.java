@@ -0,0 +1,299 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertProgramRunsToHaltAndInstructionAddressIs;
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.CPUAssertions.assertVariableValues;
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DIV;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.INC;
+import static com.andreabergia.sbvm.Instructions.ISEQ;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JGE;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.JZ;
+import static com.andreabergia.sbvm.Instructions.LLOP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TraceCompilerTest {
+    private static final JitSettings ALWAYS_RECORD = new JitSettings(0, 0);
+
+    /**
+     * Sums the numbers from 1 to 100 in a loop in the main code, whose header is at address 4.
+     */
+    private static final int[] SUM_LOOP = {
+            PUSH, 100,
+            STORE, 0,
+            // Here is address 4
+            LOAD, 0,
+            PUSH, 0,
+            ISGT,
+            NOT,
+            JIF, 28,
+            LOAD, 0,
+            LOAD, 1,
+            ADD,
+            STORE, 1,
+            LOAD, 0,
+            PUSH, 1,
+            SUB,
+            STORE, 0,
+            JMP, 4,
+            // Here is address 28
+            LOAD, 1,
+            HALT
+    };
+
+    /**
+     * Sums the even numbers from 1 to 100 in variable 1, and counts the odd ones in variable 2,
+     * so that the path through the loop changes at every iteration.
+     */
+    private static final int[] EVEN_AND_ODD_LOOP = {
+            PUSH, 100,
+            STORE, 0,
+            // Here is address 4
+            LOAD, 0,
+            JZ, 37,
+            LOAD, 0, PUSH, 2, DIV, PUSH, 2, MUL, LOAD, 0, ISEQ,
+            JIF, 26,
+            INC, 2, 1,
+            JMP, 32,
+            // Here is address 26
+            LLOP, 1, 0, ADD,
+            STORE, 1,
+            // Here is address 32
+            INC, 0, -1,
+            JMP, 4,
+            // Here is address 37
+            LOAD, 1,
+            LOAD, 2,
+            HALT
+    };
+
+    @Test
+    public void testLoopInMainCode() {
+        TraceCompiler traceCompiler = new TraceCompiler(Verifier.verify(SUM_LOOP), ALWAYS_RECORD);
+        CPU cpu = new CPU(traceCompiler);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 31);
+        assertStackContains(cpu, 5050);
+        assertVariableValues(cpu, 0, 5050);
+        assertArrayEquals(new int[]{4, 6, 8, 9, 10, 12, 14, 16, 17, 19, 21, 23, 24, 26}, traceCompiler.getTrace(4));
+    }
+
+    @Test
+    public void testLoopIsRecordedAfterTheThreshold() {
+        TraceCompiler traceCompiler = new TraceCompiler(Verifier.verify(SUM_LOOP), new JitSettings(0, 50));
+        CPU cpu = new CPU(traceCompiler);
+        cpu.run();
+        assertStackContains(cpu, 5050);
+        assertTrue(traceCompiler.isTraceCompiled(4));
+
+        traceCompiler = new TraceCompiler(Verifier.verify(SUM_LOOP), new JitSettings(0, 1000));
+        cpu = new CPU(traceCompiler);
+        cpu.run();
+        assertStackContains(cpu, 5050);
+        assertEquals(0, traceCompiler.getCompiledTracesCount());
+    }
+
+    @Test
+    public void testGuardsLeaveTheTraceWhenThePathChanges() {
+        TraceCompiler traceCompiler = assertSameResult(EVEN_AND_ODD_LOOP);
+        // The recorded iteration is the one of 99, which is odd
+        assertArrayEquals(new int[]{4, 6, 8, 10, 12, 13, 15, 16, 18, 19, 21, 24, 32, 35}, traceCompiler.getTrace(4));
+    }
+
+    @Test
+    public void testLoopUsingItemsPushedBeforeTheHeader() {
+        // The total is on the stack, below the items of the iteration
+        assertSameResult(
+                PUSH, 0,
+                PUSH, 10,
+                STORE, 0,
+                // Here is address 6
+                LOAD, 0,
+                JZ, 18,
+                LOAD, 0,
+                ADD,
+                INC, 0, -1,
+                JMP, 6,
+                // Here is address 18
+                HALT);
+    }
+
+    @Test
+    public void testComparisonJumps() {
+        assertSameResult(
+                PUSH, 0,
+                STORE, 0,
+                // Here is address 4
+                LOAD, 0, PUSH, 50, JGE, 15,
+                INC, 0, 3,
+                JMP, 4,
+                // Here is address 15
+                HALT);
+    }
+
+    @Test
+    public void testNestedLoops() {
+        // Sums i * j for i and j from 1 to 10: the inner loop is traced, and the outer one includes it
+        assertSameResult(
+                PUSH, 10,
+                STORE, 0,
+                // Here is address 4, the outer loop
+                LOAD, 0,
+                JZ, 35,
+                PUSH, 10,
+                STORE, 1,
+                // Here is address 12, the inner loop
+                LOAD, 1,
+                JZ, 30,
+                LLOP, 0, 1, MUL,
+                LOAD, 2,
+                ADD,
+                STORE, 2,
+                INC, 1, -1,
+                JMP, 12,
+                // Here is address 30
+                INC, 0, -1,
+                JMP, 4,
+                // Here is address 35
+                LOAD, 2,
+                HALT);
+    }
+
+    @Test
+    public void testLoopsThatCallFunctionsAreLeftToTheInterpreter() {
+        // Calls "sum(n)" for n from 1 to 30, and adds all the results
+        TraceCompiler traceCompiler = assertSameResult(
+                PUSH, 30,
+                STORE, 0,
+                // Here is address 4
+                LOAD, 0,
+                JIF, 10,
+                JMP, 28,
+                // Here is address 10
+                LOAD, 1,
+                LOAD, 0,
+                CALL, 31,
+                ADD,
+                STORE, 1,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 4,
+                // Here is address 28
+                LOAD, 1,
+                HALT,
+                // Here is address 31, the start of "sum", which loops while n > 0
+                STORE, 0,
+                PUSH, 0,
+                // Here is address 35
+                LOAD, 0,
+                PUSH, 0,
+                ISGT,
+                JIF, 43,
+                RET,
+                // Here is address 43
+                LOAD, 0,
+                ADD,
+                LOAD, 0,
+                PUSH, 1,
+                SUB,
+                STORE, 0,
+                JMP, 35);
+        assertTrue(traceCompiler.isTraceCompiled(35));
+        assertFalse(traceCompiler.isTraceCompiled(4));
+        assertEquals(1, traceCompiler.getFailedTracesCount());
+    }
+
+    @Test
+    public void testRunForStopsTheTraceWithinTheBudget() {
+        CPU cpu = new CPU(new TraceCompiler(Verifier.verify(EVEN_AND_ODD_LOOP), ALWAYS_RECORD));
+        assertEquals(100, cpu.runFor(100));
+        assertFalse(cpu.isHalted());
+        while (!cpu.isHalted()) {
+            assertTrue(cpu.runFor(100) <= 100);
+        }
+        assertStackContains(cpu, 50, 2550);
+    }
+
+    @Test
+    public void testCompilerSharedByManyCPUs() {
+        TraceCompiler traceCompiler = new TraceCompiler(Verifier.verify(SUM_LOOP), new JitSettings(0, 5));
+        for (int i = 0; i < 3; i++) {
+            CPU cpu = new CPU(traceCompiler);
+            cpu.run();
+            assertStackContains(cpu, 5050);
+        }
+        assertEquals(1, traceCompiler.getCompiledTracesCount());
+    }
+
+    @Test
+    public void testLoopsUsingTheMemory() {
+        TraceCompiler traceCompiler = new TraceCompiler(Verifier.verify(MemoryTest.ARRAY_PROGRAM), ALWAYS_RECORD);
+        CPU cpu = new CPU(traceCompiler);
+        Memory memory = Memory.allocate(MemoryTest.ARRAY_PROGRAM_MEMORY.length);
+        cpu.setMemory(memory);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, MemoryTest.ARRAY_PROGRAM.length);
+        assertStackContains(cpu, 7, 55);
+        assertArrayEquals(MemoryTest.ARRAY_PROGRAM_MEMORY, MemoryTest.toArray(memory));
+        assertTrue(traceCompiler.isTraceCompiled(4));
+        assertTrue(traceCompiler.isTraceCompiled(44));
+    }
+
+    @Test
+    public void testLoopsUsingVectorInstructions() {
+        TraceCompiler traceCompiler = new TraceCompiler(Verifier.verify(MemoryTest.VECTOR_PROGRAM), ALWAYS_RECORD);
+        CPU cpu = new CPU(traceCompiler);
+        Memory memory = Memory.allocate(MemoryTest.VECTOR_PROGRAM_MEMORY.length);
+        cpu.setMemory(memory);
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, MemoryTest.VECTOR_PROGRAM.length);
+        assertStackContains(cpu, 176, 72);
+        assertArrayEquals(MemoryTest.VECTOR_PROGRAM_MEMORY, MemoryTest.toArray(memory));
+        assertTrue(traceCompiler.isTraceCompiled(11));
+    }
+
+    /**
+     * Runs the program with and without traces, and checks that the final states are identical. The loops are
+     * recorded once immediately, and once after a few iterations. Returns the compiler of the first run.
+     */
+    private static TraceCompiler assertSameResult(int... program) {
+        VerifiedProgram verified = Verifier.verify(program);
+        CPU interpreted = new CPU(verified);
+        interpreted.run();
+        TraceCompiler first = null;
+        for (JitSettings settings : new JitSettings[]{ALWAYS_RECORD, new JitSettings(0, 3)}) {
+            TraceCompiler traceCompiler = new TraceCompiler(verified, settings);
+            CPU traced = new CPU(traceCompiler);
+            traced.run();
+            assertTrue("The CPU should be halted", traced.isHalted());
+            assertEquals(interpreted.getInstructionAddress(), traced.getInstructionAddress());
+            assertArrayEquals(toArray(interpreted), toArray(traced));
+            assertEquals(interpreted.getCurrentFrame().getVariables(), traced.getCurrentFrame().getVariables());
+            assertTrue("Some trace should have been compiled", traceCompiler.getCompiledTracesCount() > 0);
+            if (first == null) {
+                first = traceCompiler;
+            }
+        }
+        return first;
+    }
+
+    private static Integer[] toArray(CPU cpu) {
+        return cpu.getStack().toArray(new Integer[0]);
+    }
+}
@@ -0,0 +1,217 @@
+package com.andreabergia.sbvm;
+
+import org.junit.Test;
+
+import static com.andreabergia.sbvm.CPUAssertions.assertProgramRunsToHaltAndInstructionAddressIs;
+import static com.andreabergia.sbvm.CPUAssertions.assertStackContains;
+import static com.andreabergia.sbvm.CPUAssertions.assertVariableValues;
+import static com.andreabergia.sbvm.Instructions.ADD;
+import static com.andreabergia.sbvm.Instructions.CALL;
+import static com.andreabergia.sbvm.Instructions.DUP;
+import static com.andreabergia.sbvm.Instructions.HALT;
+import static com.andreabergia.sbvm.Instructions.ISGE;
+import static com.andreabergia.sbvm.Instructions.ISGT;
+import static com.andreabergia.sbvm.Instructions.JIF;
+import static com.andreabergia.sbvm.Instructions.JMP;
+import static com.andreabergia.sbvm.Instructions.LOAD;
+import static com.andreabergia.sbvm.Instructions.MCOPY;
+import static com.andreabergia.sbvm.Instructions.MUL;
+import static com.andreabergia.sbvm.Instructions.NOT;
+import static com.andreabergia.sbvm.Instructions.POP;
+import static com.andreabergia.sbvm.Instructions.PUSH;
+import static com.andreabergia.sbvm.Instructions.RET;
+import static com.andreabergia.sbvm.Instructions.STORE;
+import static com.andreabergia.sbvm.Instructions.SUB;
+import static com.andreabergia.sbvm.Instructions.VMUL;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class VerifierTest {
+    /**
+     * Computes the factorial of 5 with a recursive function:
+     * <pre>
+     * int fact(int n) {
+     *     if (n > 1) return n * fact(n - 1);
+     *     return 1;
+     * }
+     * </pre>
+     */
+    private static final int[] RECURSIVE_FACTORIAL = {
+            PUSH, 5,
+            CALL, 5,
+            HALT,
+            // Here is address 5, the start of "fact"
+            DUP,            // Stack contains n, n
+            PUSH, 1,        // Stack contains n, n, 1
+            ISGT,           // Stack contains n, n > 1
+            JIF, 15,
+            POP,
+            PUSH, 1,
+            RET,
+            // Here is address 15
+            DUP,            // Stack contains n, n
+            PUSH, 1,
+            SUB,            // Stack contains n, n - 1
+            CALL, 5,        // Stack contains n, fact(n - 1)
+            MUL,
+            RET
+    };
+
+    @Test
+    public void testSimpleProgram() {
+        VerifiedProgram verified = Verifier.verify(PUSH, 1, PUSH, 2, ADD, HALT);
+        FunctionInfo main = verified.getMain();
+        assertEquals(0, main.getArgumentsCount());
+        assertEquals(2, main.getMaxDepth());
+        assertEquals(2, main.getStackDepth(4));
+        assertFalse(main.isReachable(1));
+    }
+
+    @Test
+    public void testFunctionSummary() {
+        VerifiedProgram verified = Verifier.verify(
+                PUSH, 6,
+                PUSH, 4,
+                CALL, 7,
+                HALT,
+                // Here is address 7, the start of "max"
+                STORE, 1,
+                STORE, 0,
+                LOAD, 0,
+                LOAD, 1,
+                ISGE,
+                JIF, 21,
+                LOAD, 1,
+                RET,
+                // Here is address 21
+                LOAD, 0,
+                RET
+        );
+        FunctionInfo max = verified.getFunctions().get(7);
+        assertEquals(2, max.getArgumentsCount());
+        assertTrue(max.returns());
+        assertEquals(-1, max.getReturnDelta());
+        assertEquals(-2, max.getStackDepth(11));
+    }
+
+    @Test
+    public void testRecursiveFunction() {
+        VerifiedProgram verified = Verifier.verify(RECURSIVE_FACTORIAL);
+        FunctionInfo fact = verified.getFunctions().get(5);
+        assertEquals(1, fact.getArgumentsCount());
+        assertEquals(0, fact.getReturnDelta());
+        assertEquals(1, fact.getStackDepth(21));
+
+        CPU cpu = new CPU(verified);
+        assertTrue(cpu.isVerified());
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 5);
+        assertStackContains(cpu, 120);
+    }
+
+    @Test
+    public void testFunctionThatNeverReturns() {
+        VerifiedProgram verified = Verifier.verify(CALL, 3, POP, HALT);
+        assertFalse(verified.getFunctions().get(3).returns());
+    }
+
+    @Test
+    public void testVerifiedProgramRunsLikeTheCheckedOne() {
+        // Multiplies 6 by 4 with a loop; see CompleteProgramsTest
+        int[] program = {
+                PUSH, 6, STORE, 0, PUSH, 4, STORE, 1, PUSH, 0, STORE, 2,
+                LOAD, 1, PUSH, 1, ISGE, NOT, JIF, 36,
+                LOAD, 0, LOAD, 2, ADD, STORE, 2,
+                LOAD, 1, PUSH, 1, SUB, STORE, 1,
+                JMP, 12,
+                HALT
+        };
+        CPU cpu = new CPU(Verifier.verify(program));
+        assertProgramRunsToHaltAndInstructionAddressIs(cpu, 37);
+        assertVariableValues(cpu, 6, 0, 24);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testUnknownInstruction() {
+        Verifier.verify(0x7F, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testMissingOperand() {
+        Verifier.verify(HALT, PUSH);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testJumpInTheMiddleOfAnInstruction() {
+        Verifier.verify(JMP, 3, PUSH, 1, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testJumpOutsideOfTheProgram() {
+        Verifier.verify(JMP, 10, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testCallInTheMiddleOfAnInstruction() {
+        Verifier.verify(CALL, 3, PUSH, 1, RET);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInvalidVariableNumber() {
+        Verifier.verify(LOAD, -1, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStackUnderflow() {
+        Verifier.verify(PUSH, 1, ADD, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStackUnderflowInAMemoryInstruction() {
+        Verifier.verify(PUSH, 0, PUSH, 1, MCOPY, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStackUnderflowInAVectorInstruction() {
+        Verifier.verify(PUSH, 0, PUSH, 1, PUSH, 2, VMUL, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStackUnderflowThroughAFunction() {
+        Verifier.verify(PUSH, 1, CALL, 5, HALT, ADD, RET);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testStackUnderflowThroughAFunctionThatNeverReturns() {
+        // The function at 5 pops an item and calls itself, so it needs an argument that the one at 3 does not pass
+        Verifier.verify(CALL, 3, HALT, CALL, 5, POP, CALL, 5);
+    }
+
+    @Test
+    public void testRecursiveFunctionThatNeverReturnsKeepsItsArguments() {
+        VerifiedProgram verified = Verifier.verify(PUSH, 1, CALL, 5, HALT, STORE, 0, PUSH, 1, CALL, 5);
+        assertFalse(verified.getFunctions().get(5).returns());
+        assertEquals(1, verified.getFunctions().get(5).getArgumentsCount());
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInconsistentDepthAtMergePoint() {
+        // A loop that pushes an item at every iteration
+        Verifier.verify(PUSH, 1, PUSH, 1, JIF, 0, HALT);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testInconsistentReturnDepth() {
+        Verifier.verify(PUSH, 1, CALL, 5, HALT, JIF, 9, PUSH, 1, RET, RET);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testFallingOffTheEnd() {
+        Verifier.verify(PUSH, 1);
+    }
+
+    @Test(expected = InvalidProgramException.class)
+    public void testRetInMainCode() {
+        Verifier.verify(RET);
+    }
+}